@@ -0,0 +1,119 @@
+package spatial.kdpoint;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * <p>{@link VectorDistanceKernels} is the SIMD version of {@link DistanceKernels#squaredDistance(int[], int, int[], int, int)}
+ * and {@link DistanceKernels#squaredDistances(int[], int[], int, int, double[])}, written against the incubating
+ * {@code jdk.incubator.vector} module. Points with at least as many coordinates as there are lanes are measured one at
+ * a time: a run of {@code int} coordinates is loaded, widened to {@code double} lanes, and its squared differences are
+ * accumulated lane by lane. Buckets of lower dimensional points are measured one point per lane instead, by gathering
+ * the same coordinate of consecutive points into one vector, so that even 2-dimensional points fill the lanes.</p>
+ *
+ * <p>This class is not part of the default build, which only needs the standard modules. It lives in its own
+ * {@code src-vector} source root and is compiled on top of the other classes with</p>
+ * <pre>
+ * javac --add-modules jdk.incubator.vector -cp &lt;classes&gt; -d &lt;classes&gt; src-vector/spatial/kdpoint/*.java
+ * </pre>
+ * <p>{@link DistanceKernels} looks it up by name, and only after it has checked that the module was resolved into
+ * the boot layer (with {@code --add-modules jdk.incubator.vector}). If the class was not built, or the module is
+ * missing at runtime, the scalar loop of {@link DistanceKernels} does all the work.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see DistanceKernels
+ */
+final class VectorDistanceKernels {
+
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+	// ints are half as wide as doubles, so this species has as many lanes as DOUBLES
+	private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class,
+			VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+	// GATHER[dims][j] = j * dims, the offset of the j-th point of a lane group in a flat array, for every dims < lanes
+	private static final int[][] GATHER = new int[DOUBLES.length()][];
+
+	static {
+		for(int dims = 1; dims < GATHER.length; dims++){
+			GATHER[dims] = new int[DOUBLES.length()];
+			for(int j = 0; j < GATHER[dims].length; j++)
+				GATHER[dims][j] = j * dims;
+		}
+	}
+
+	private VectorDistanceKernels(){
+		// static utility class
+	}
+
+	/**
+	 * Returns the number of coordinates that one iteration of {@link #squaredDistance(int[], int, int[], int, int)}
+	 * processes at once.
+	 * @return The number of {@code double} lanes of the preferred species of this platform.
+	 */
+	static int lanes(){
+		return DOUBLES.length();
+	}
+
+	/**
+	 * Computes the squared euclidean distance between two coordinate runs of equal length, with the same contract as
+	 * {@link DistanceKernels#squaredDistance(int[], int, int[], int, int)}.
+	 * @param a The array holding the first run of coordinates.
+	 * @param aOffset The index of the first coordinate of the first run.
+	 * @param b The array holding the second run of coordinates.
+	 * @param bOffset The index of the first coordinate of the second run.
+	 * @param dims The number of coordinates in each run.
+	 * @return The squared euclidean distance between the two runs.
+	 */
+	static double squaredDistance(int[] a, int aOffset, int[] b, int bOffset, int dims){
+		DoubleVector sum = DoubleVector.zero(DOUBLES);
+		int upper = DOUBLES.loopBound(dims);
+		int i = 0;
+		for(; i < upper; i += DOUBLES.length()){
+			DoubleVector va = (DoubleVector) IntVector.fromArray(INTS, a, aOffset + i)
+					.convertShape(VectorOperators.I2D, DOUBLES, 0);
+			DoubleVector vb = (DoubleVector) IntVector.fromArray(INTS, b, bOffset + i)
+					.convertShape(VectorOperators.I2D, DOUBLES, 0);
+			DoubleVector diff = va.sub(vb);
+			sum = sum.add(diff.mul(diff));
+		}
+		double s = sum.reduceLanes(VectorOperators.ADD);
+		for(; i < dims; i++){
+			double d = (double) a[aOffset + i] - b[bOffset + i];
+			s += d * d;
+		}
+		return s;
+	}
+
+	/**
+	 * Computes the squared distances from one anchor to consecutive points stored back to back in a flat coordinate
+	 * array, with the same contract as {@link DistanceKernels#squaredDistances(int[], int[], int, int, double[])}.
+	 * @param anchor The coordinates of the anchor.
+	 * @param coords The flat coordinate array; point {@code i} occupies {@code coords[i * dims .. i * dims + dims - 1]}.
+	 * @param from The index of the first point to consider.
+	 * @param to The index one past the last point to consider.
+	 * @param out Receives the squared distance of point {@code from + i} from the anchor at {@code out[i]}.
+	 */
+	static void squaredDistances(int[] anchor, int[] coords, int from, int to, double[] out){
+		int dims = anchor.length, lanes = DOUBLES.length(), i = from;
+		if(dims < lanes){
+			int[] gather = GATHER[dims];
+			for(; i + lanes <= to; i += lanes){
+				DoubleVector sum = DoubleVector.zero(DOUBLES);
+				for(int d = 0; d < dims; d++){
+					DoubleVector x = (DoubleVector) IntVector.fromArray(INTS, coords, i * dims + d, gather, 0)
+							.convertShape(VectorOperators.I2D, DOUBLES, 0);
+					DoubleVector diff = x.sub(anchor[d]);
+					sum = sum.add(diff.mul(diff));
+				}
+				sum.intoArray(out, i - from);
+			}
+		}
+		for(; i < to; i++)
+			out[i - from] = squaredDistance(anchor, 0, coords, i * dims, dims);
+	}
+}
@@ -6,11 +6,22 @@ import org.junit.Test;
 import spatial.kdpoint.InvalidDimensionalityException;
 import spatial.kdpoint.KDPoint;
 import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.KNNComparator;
+import spatial.knnutils.KNNGraph;
+import spatial.metrics.*;
+import spatial.nodes.NeighborIterator;
+import spatial.trees.ArenaKDTree;
+import spatial.trees.ConcurrentKDTree;
+import spatial.trees.ConcurrentPRQuadTree;
 import spatial.trees.KDTree;
 import spatial.trees.PRQuadTree;
+import spatial.trees.SpatialQuerySolver;
+import spatial.trees.StaticKDTree;
 import visualization.CompactVizTree;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.*;
 import static spatial.kdpoint.KDPoint.*;
@@ -154,6 +165,18 @@ public class StudentTests {
                 "the expected element.", ZEROONE, myQueue.dequeue());
     }
 
+    @Test
+    public void testBPQContainsComparesElements(){
+        BoundedPriorityQueue<KDPoint> myQueue = new BoundedPriorityQueue<>(2);
+        myQueue.enqueue(ZERO, 1);
+        myQueue.enqueue(ONEONE, 2);
+        assertTrue("A BPQ should contain an element that was enqueued in it.", myQueue.contains(new KDPoint(0, 0)));
+        assertTrue("A BPQ should contain an element that was enqueued in it.", myQueue.contains(new KDPoint(1, 1)));
+        myQueue.enqueue(ONEZERO, 0.5); // pushes ONEONE out
+        assertFalse("A BPQ should not contain an element that it has thrown out.", myQueue.contains(ONEONE));
+        assertFalse("A BPQ should not contain an element that was never enqueued in it.", myQueue.contains(MINUSONEONE));
+    }
+
 
     /* ******************************************************************************************************** */
     /* ******************************************************************************************************** */
@@ -194,6 +217,1138 @@ public class StudentTests {
     }
 
 
+    @Test
+    public void testKDTreeKNNAndNNAgainstBruteForce() {
+        int MAX_DIM = 5;
+        for(int dim = 1; dim <= MAX_DIM; dim++){
+            KDTree tree = new KDTree(dim);
+            List<KDPoint> points = new ArrayList<>();
+            for(int i = 0; i < MAX_ITER; i++){
+                KDPoint p = getRandomPoint(dim);
+                points.add(p);
+                tree.insert(p);
+            }
+            for(int i = 0; i < MAX_ITER; i++){
+                KDPoint anchor = getRandomPoint(dim);
+                List<KDPoint> sorted = new ArrayList<>(points);
+                sorted.removeIf(p -> p.equals(anchor));
+                sorted.sort(Comparator.comparingDouble(p -> p.euclideanDistance(anchor)));
+                assertEquals("Nearest neighbor of " + anchor + " in a " + dim + "-D tree is not at the expected distance.",
+                        sorted.get(0).euclideanDistance(anchor), tree.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+                int j = 0;
+                for(KDPoint neighbor : tree.kNearestNeighbors(5, anchor))
+                    assertEquals("Neighbor #" + j + " of " + anchor + " in a " + dim + "-D tree is not at the expected distance.",
+                            sorted.get(j++).euclideanDistance(anchor), neighbor.euclideanDistance(anchor), 0);
+                assertEquals("A 5-NN query should return 5 neighbors.", 5, j);
+            }
+        }
+    }
+
+
+    @Test
+    public void testArenaKDTreeMirrorsKDTree() {
+        int dim = 3;
+        kdTree = new KDTree(dim);
+        ArenaKDTree arenaTree = new ArenaKDTree(dim);
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint p = getRandomPoint(dim);
+            points.add(p);
+            kdTree.insert(p);
+            arenaTree.insert(p);
+        }
+        for(int i = 0; i < MAX_ITER / 2; i++){
+            KDPoint p = points.remove(r.nextInt(points.size()));
+            kdTree.delete(p);
+            arenaTree.delete(p);
+        }
+        assertEquals("The arena-backed tree should hold as many points as the linked one.", kdTree.count(), arenaTree.count());
+        assertEquals("The arena-backed tree should have the same root as the linked one.", kdTree.getRoot(), arenaTree.getRoot());
+        assertEquals("The arena-backed tree should have the same height as the linked one.", kdTree.height(), arenaTree.height());
+        for(KDPoint p : points)
+            assertTrue("The arena-backed tree lost " + p + ".", arenaTree.search(p));
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = getRandomPoint(dim);
+            assertEquals("Range query around " + anchor + " differs between the arena-backed and the linked tree.",
+                    new HashSet<>(kdTree.range(anchor, BOUND / 2.0)), new HashSet<>(arenaTree.range(anchor, BOUND / 2.0)));
+            assertEquals("Nearest neighbor distances of " + anchor + " differ between the arena-backed and the linked tree.",
+                    kdTree.nearestNeighbor(anchor).euclideanDistance(anchor),
+                    arenaTree.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+            Iterator<KDPoint> expected = kdTree.kNearestNeighbors(7, anchor).iterator();
+            for(KDPoint neighbor : arenaTree.kNearestNeighbors(7, anchor))
+                assertEquals("kNN distances of " + anchor + " differ between the arena-backed and the linked tree.",
+                        expected.next().euclideanDistance(anchor), neighbor.euclideanDistance(anchor), 0);
+            assertFalse("The arena-backed tree returned fewer neighbors than the linked one.", expected.hasNext());
+        }
+    }
+
+    private static List<KDPoint> bruteForceRange(List<KDPoint> points, KDPoint anchor, double range, DistanceMetric metric){
+        List<KDPoint> inRange = new ArrayList<>();
+        for(KDPoint p : points)
+            if(!p.equals(anchor) && metric.distance(p, anchor) <= range)
+                inRange.add(p);
+        return inRange;
+    }
+
+    @Test
+    public void testDistanceMetricsAgainstBruteForce() {
+        DistanceMetric[] metrics = {EuclideanMetric.INSTANCE, ManhattanMetric.INSTANCE, ChebyshevMetric.INSTANCE,
+                new MinkowskiMetric(3), new WeightedEuclideanMetric(0.5, 4)};
+        for(DistanceMetric metric : metrics){
+            KDTree tree = new KDTree(2, metric);
+            prQuadTree = new PRQuadTree(8, 2, metric);
+            List<KDPoint> points = new ArrayList<>();
+            for(int i = 0; i < MAX_ITER; i++){
+                KDPoint p = getRandomPoint(2);
+                if(!prQuadTree.search(p)){ // PR-QuadTrees do not store duplicates
+                    tree.insert(p);
+                    prQuadTree.insert(p);
+                    points.add(p);
+                }
+            }
+            for(int i = 0; i < MAX_ITER; i++){
+                KDPoint anchor = getRandomPoint(2);
+                double range = r.nextInt(BOUND / 2);
+                Set<KDPoint> expected = new HashSet<>(bruteForceRange(points, anchor, range, metric));
+                assertEquals("KD-Tree range query around " + anchor + " under " + metric + " is wrong.",
+                        expected, new HashSet<>(tree.range(anchor, range)));
+                assertEquals("PR-QuadTree range query around " + anchor + " under " + metric + " is wrong.",
+                        expected, new HashSet<>(prQuadTree.range(anchor, range)));
+
+                List<KDPoint> sorted = new ArrayList<>(points);
+                sorted.removeIf(p -> p.equals(anchor));
+                sorted.sort(new KNNComparator<>(anchor, metric));
+                assertEquals("KD-Tree nearest neighbor of " + anchor + " under " + metric + " is not at the expected distance.",
+                        metric.distance(sorted.get(0), anchor), metric.distance(tree.nearestNeighbor(anchor), anchor), 0);
+                assertEquals("PR-QuadTree nearest neighbor of " + anchor + " under " + metric + " is not at the expected distance.",
+                        metric.distance(sorted.get(0), anchor), metric.distance(prQuadTree.nearestNeighbor(anchor), anchor), 0);
+                int j = 0;
+                for(KDPoint neighbor : tree.kNearestNeighbors(5, anchor))
+                    assertEquals("KD-Tree neighbor #" + j + " of " + anchor + " under " + metric + " is not at the expected distance.",
+                            metric.distance(sorted.get(j++), anchor), metric.distance(neighbor, anchor), 0);
+                j = 0;
+                for(KDPoint neighbor : prQuadTree.kNearestNeighbors(5, anchor))
+                    assertEquals("PR-QuadTree neighbor #" + j + " of " + anchor + " under " + metric + " is not at the expected distance.",
+                            metric.distance(sorted.get(j++), anchor), metric.distance(neighbor, anchor), 0);
+                assertEquals("A 5-NN query should return 5 neighbors.", 5, j);
+            }
+        }
+    }
+
+    @Test
+    public void testTreesRejectMetricsOfOtherDimensionalities() {
+        DistanceMetric metric = new WeightedEuclideanMetric(1, 1);
+        assertTrue("A weighted metric should support as many dimensions as it has weights.", metric.supportsDims(2));
+        assertFalse("A weighted metric should not support more dimensions than it has weights.", metric.supportsDims(3));
+        List<Runnable> constructors = Arrays.asList(() -> new KDTree(3, metric), () -> new KDTree(3, 4, metric),
+                () -> KDTree.persistent(3, metric), () -> new StaticKDTree(3, new ArrayList<>(), metric),
+                () -> new ConcurrentKDTree(3, metric), () -> new PRQuadTree(8, 2, new WeightedEuclideanMetric(1, 1, 1)),
+                () -> new ConcurrentPRQuadTree(8, 2, new WeightedEuclideanMetric(1)));
+        for(Runnable constructor : constructors){
+            try {
+                constructor.run();
+                fail("A tree should reject a DistanceMetric that cannot measure its points.");
+            } catch(RuntimeException ignored){
+                // expected
+            }
+        }
+        assertEquals("A tree should accept a DistanceMetric that can measure its points.", metric,
+                new KDTree(2, metric).getMetric());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testWeightedEuclideanMetricRejectsNonPositiveWeights() {
+        new WeightedEuclideanMetric(1, 0);
+    }
+
+    @Test
+    public void testRangeIsInclusiveAtIrrationalRadius() {
+        // sqrt(3) * sqrt(3) < 3 in floating point, so comparing squared distances naively would drop the point.
+        KDPoint origin = new KDPoint(0, 0, 0), corner = new KDPoint(1, 1, 1);
+        kdTree = new KDTree(3);
+        kdTree.insert(origin);
+        kdTree.insert(corner);
+        assertTrue("A point at distance exactly sqrt(3) should be within range sqrt(3).",
+                kdTree.range(origin, Math.sqrt(3)).contains(corner));
+        ArenaKDTree arenaTree = new ArenaKDTree(3);
+        arenaTree.insert(origin);
+        arenaTree.insert(corner);
+        assertTrue("A point at distance exactly sqrt(3) should be within range sqrt(3).",
+                arenaTree.range(origin, Math.sqrt(3)).contains(corner));
+        prQuadTree = new PRQuadTree(4, 1, new MinkowskiMetric(3));
+        prQuadTree.insert(new KDPoint(0, 0));
+        prQuadTree.insert(new KDPoint(1, 1));
+        assertTrue("A point at distance exactly cbrt(2) should be within range cbrt(2) under the Minkowski-3 metric.",
+                prQuadTree.range(new KDPoint(0, 0), Math.cbrt(2)).contains(new KDPoint(1, 1)));
+    }
+
+    @Test
+    public void testTreesShareStoredPoints() {
+        kdTree = new KDTree();
+        prQuadTree = new PRQuadTree(4, 1);
+        KDPoint a = new KDPoint(1, 2), b = new KDPoint(-3, 4);
+        for(KDPoint p : new KDPoint[]{a, b}){
+            kdTree.insert(p);
+            prQuadTree.insert(p);
+        }
+        a.coords[0] = 7; // mutating the caller's point must not affect the trees
+        assertTrue("KD-Tree should still contain (1, 2).", kdTree.search(new KDPoint(1, 2)));
+        assertTrue("PR-QuadTree should still contain (1, 2).", prQuadTree.search(new KDPoint(1, 2)));
+        assertSame("The KD-Tree root should be handed out without copying.", kdTree.getRoot(), kdTree.getRoot());
+        assertSame("Queries should hand out the KD-Tree's own points.", kdTree.getRoot(), kdTree.nearestNeighbor(b));
+        assertSame("Queries should hand out the PR-QuadTree's own points.", prQuadTree.nearestNeighbor(b),
+                prQuadTree.kNearestNeighbors(1, b).first());
+    }
+
+    @Test
+    public void testKDTreeBulkLoadIsBalanced() {
+        int n = 20000; // large enough for the parallel build to fork
+        List<KDPoint> sortedPoints = new ArrayList<>();
+        for(int i = 0; i < n; i++)
+            sortedPoints.add(new KDPoint(i, n - i)); // sorted input degenerates repeated insertions into a list
+        KDTree bulk = new KDTree(2, sortedPoints), parallel = KDTree.bulkLoadParallel(2, sortedPoints);
+        int optimalHeight = 31 - Integer.numberOfLeadingZeros(n);
+        assertEquals("A bulk loaded KD-Tree should have optimal height.", optimalHeight, bulk.height());
+        assertEquals("A bulk loaded KD-Tree should count all of its points.", n, bulk.count());
+        assertEquals("The parallel bulk load should build the same tree as the sequential one.",
+                bulk.treeDescription(false), parallel.treeDescription(false));
+        for(KDPoint p : sortedPoints)
+            assertTrue("A bulk loaded KD-Tree should contain " + p + ".", bulk.search(p));
+
+        // duplicates and ties in the splitting dimension must respect the insertion rule, so that deletions still work
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < MAX_ITER; i++)
+            points.add(new KDPoint(r.nextInt(10), r.nextInt(10)));
+        kdTree = new KDTree(2, points.toArray(new KDPoint[0]));
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = getRandomPoint(2);
+            List<KDPoint> sorted = new ArrayList<>(points);
+            sorted.removeIf(p -> p.equals(anchor));
+            sorted.sort(new KNNComparator<>(anchor));
+            assertEquals("Nearest neighbor of " + anchor + " in a bulk loaded tree is not at the expected distance.",
+                    sorted.get(0).euclideanDistance(anchor), kdTree.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+        }
+        int remaining = points.size();
+        for(KDPoint p : points){
+            kdTree.delete(p);
+            assertEquals("Deleting from a bulk loaded KD-Tree should decrement its count.", --remaining, kdTree.count());
+        }
+        assertTrue("Deleting every point of a bulk loaded KD-Tree should empty it.", kdTree.isEmpty());
+    }
+
+    @Test
+    public void testSelfBalancingKDTreeStaysLogarithmic() {
+        double alpha = 0.75;
+        int n = 5000;
+        kdTree = new KDTree(2, EuclideanMetric.INSTANCE, alpha);
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < n; i++){ // time-ordered stream: a plain KD-Tree would degenerate into a list
+            KDPoint p = new KDPoint(i, i / 2);
+            points.add(p);
+            kdTree.insert(p);
+        }
+        double maxHeight = Math.log(n) / Math.log(1 / alpha) + 1;
+        assertTrue("A self-balancing KD-Tree of " + n + " points should not be " + kdTree.height() + " levels tall.",
+                kdTree.height() <= maxHeight);
+        assertEquals("A self-balancing KD-Tree should count all of its points.", n, kdTree.count());
+        for(KDPoint p : points)
+            assertTrue("A self-balancing KD-Tree should contain " + p + ".", kdTree.search(p));
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = getRandomPoint(2);
+            points.sort(new KNNComparator<>(anchor));
+            assertEquals("Nearest neighbor of " + anchor + " in a self-balancing tree is not at the expected distance.",
+                    points.get(points.get(0).equals(anchor) ? 1 : 0).euclideanDistance(anchor),
+                    kdTree.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+        }
+        for(int i = 0; i < n; i += 2)
+            kdTree.delete(new KDPoint(i, i / 2));
+        assertEquals("Deletions from a self-balancing KD-Tree should be counted.", n / 2, kdTree.count());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testSelfBalancingKDTreeRejectsInvalidAlpha() {
+        new KDTree(2, EuclideanMetric.INSTANCE, 0.5);
+    }
+
+    @Test
+    public void testStaticKDTreeMirrorsKDTree() {
+        for(int dim = 1; dim <= 4; dim++){
+            kdTree = new KDTree(dim, ManhattanMetric.INSTANCE);
+            for(int i = 0; i < MAX_ITER; i++)
+                kdTree.insert(getRandomPoint(dim));
+            StaticKDTree frozen = new StaticKDTree(kdTree);
+            assertEquals("A frozen KD-Tree should hold all the points of the original.", kdTree.count(), frozen.count());
+            assertEquals("A frozen KD-Tree should be perfectly balanced.",
+                    31 - Integer.numberOfLeadingZeros(MAX_ITER), frozen.height());
+            for(int i = 0; i < MAX_ITER; i++){
+                KDPoint anchor = getRandomPoint(dim);
+                double range = r.nextInt(BOUND);
+                assertEquals("Range query around " + anchor + " should agree with the original " + dim + "-D tree.",
+                        new HashSet<>(kdTree.range(anchor, range)), new HashSet<>(frozen.range(anchor, range)));
+                assertEquals("Nearest neighbor of " + anchor + " should agree with the original " + dim + "-D tree.",
+                        ManhattanMetric.INSTANCE.distance(kdTree.nearestNeighbor(anchor), anchor),
+                        ManhattanMetric.INSTANCE.distance(frozen.nearestNeighbor(anchor), anchor), 0);
+                Iterator<KDPoint> expected = kdTree.kNearestNeighbors(5, anchor).iterator();
+                for(KDPoint neighbor : frozen.kNearestNeighbors(5, anchor))
+                    assertEquals("kNN of " + anchor + " should agree with the original " + dim + "-D tree.",
+                            ManhattanMetric.INSTANCE.distance(expected.next(), anchor),
+                            ManhattanMetric.INSTANCE.distance(neighbor, anchor), 0);
+                assertFalse("kNN of " + anchor + " should return as many neighbors as the original tree.",
+                        expected.hasNext());
+            }
+        }
+        assertNull("An empty frozen tree has no nearest neighbors.",
+                new StaticKDTree(new KDTree()).nearestNeighbor(new KDPoint(0, 0)));
+    }
+
+    @Test
+    public void testDegenerateKDTreeDoesNotOverflowTheStack() {
+        int n = 30000;
+        kdTree = new KDTree(2);
+        for(int i = 0; i < n; i++) // sorted insertions degenerate the tree into a single right spine
+            kdTree.insert(new KDPoint(i, i));
+        assertEquals("Sorted insertions into a plain KD-Tree should produce a list.", n - 1, kdTree.height());
+        assertTrue("The deepest point of a degenerate KD-Tree should be found.", kdTree.search(new KDPoint(n - 1, n - 1)));
+        assertFalse("A point past the deepest node should not be found.", kdTree.search(new KDPoint(n, n)));
+        KDPoint anchor = new KDPoint(n - 10, n - 10);
+        assertEquals("A range query at the bottom of a degenerate KD-Tree should find the neighboring points.",
+                new HashSet<>(Arrays.asList(new KDPoint(n - 11, n - 11), new KDPoint(n - 9, n - 9))),
+                new HashSet<>(kdTree.range(anchor, Math.sqrt(2))));
+        assertEquals("Nearest neighbor at the bottom of a degenerate KD-Tree is not at the expected distance.",
+                Math.sqrt(2), kdTree.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+        assertEquals("kNN at the bottom of a degenerate KD-Tree should return k neighbors.",
+                4, kdTree.kNearestNeighbors(4, anchor).size());
+        kdTree.delete(new KDPoint(0, 0)); // the root: every point below it is shifted up by successors
+        kdTree.delete(new KDPoint(n - 1, n - 1));
+        assertEquals("Deletions from a degenerate KD-Tree should be counted.", n - 2, kdTree.count());
+        assertFalse("A deleted root should not be found.", kdTree.search(new KDPoint(0, 0)));
+        assertTrue("Points below a deleted root should still be found.", kdTree.search(new KDPoint(n - 2, n - 2)));
+    }
+
+    @Test
+    public void testDegenerateArenaKDTreeDoesNotOverflowTheStack() {
+        int n = 30000;
+        ArenaKDTree arenaTree = new ArenaKDTree(2);
+        for(int i = 0; i < n; i++) // sorted insertions degenerate the tree into a single right spine
+            arenaTree.insert(new KDPoint(i, i));
+        assertEquals("Sorted insertions into an arena KD-Tree should produce a list.", n - 1, arenaTree.height());
+        KDPoint anchor = new KDPoint(n - 10, n - 10);
+        assertEquals("A range query at the bottom of a degenerate arena KD-Tree should find the neighboring points.",
+                new HashSet<>(Arrays.asList(new KDPoint(n - 11, n - 11), new KDPoint(n - 9, n - 9))),
+                new HashSet<>(arenaTree.range(anchor, Math.sqrt(2))));
+        assertEquals("Nearest neighbor at the bottom of a degenerate arena KD-Tree is not at the expected distance.",
+                Math.sqrt(2), arenaTree.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+        assertEquals("kNN at the bottom of a degenerate arena KD-Tree should return k neighbors.",
+                4, arenaTree.kNearestNeighbors(4, anchor).size());
+        arenaTree.delete(new KDPoint(0, 0)); // the root: every point below it is shifted up by successors
+        arenaTree.delete(new KDPoint(n - 1, n - 1));
+        assertEquals("Deletions from a degenerate arena KD-Tree should be counted.", n - 2, arenaTree.count());
+        assertFalse("A deleted root should not be found.", arenaTree.search(new KDPoint(0, 0)));
+        assertTrue("Points below a deleted root should still be found.", arenaTree.search(new KDPoint(n - 2, n - 2)));
+        assertEquals("Deleting the root of a list should only shorten it by one.", n - 3, arenaTree.height());
+    }
+
+    @Test
+    public void testLargeRangeQueriesAcceptWholeCells() {
+        DistanceMetric[] metrics = {EuclideanMetric.INSTANCE, ChebyshevMetric.INSTANCE, new MinkowskiMetric(3)};
+        for(DistanceMetric metric : metrics){
+            List<KDPoint> points = new ArrayList<>();
+            for(int i = 0; i < 10 * MAX_ITER; i++)
+                points.add(getRandomPoint(3));
+            kdTree = new KDTree(3, points, metric);
+            for(int i = 0; i < MAX_ITER; i++){
+                KDPoint anchor = (i % 2 == 0) ? points.get(r.nextInt(points.size())) : getRandomPoint(3);
+                double range = BOUND / 4.0 + r.nextInt(BOUND); // large enough that many cells lie entirely in range
+                assertEquals("KD-Tree range query around " + anchor + " with range " + range + " under " + metric + " is wrong.",
+                        new HashSet<>(bruteForceRange(points, anchor, range, metric)),
+                        new HashSet<>(kdTree.range(anchor, range)));
+            }
+            KDPoint anchor = points.get(0);
+            Collection<KDPoint> all = kdTree.range(anchor, 4.0 * BOUND);
+            assertFalse("A range query that covers the whole tree should still exclude its anchor.", all.contains(anchor));
+            assertEquals("A range query that covers the whole tree should return every other point.",
+                    points.stream().filter(p -> !p.equals(anchor)).count(), all.size());
+        }
+    }
+
+    @Test
+    public void testBucketedKDTreeAgainstBruteForce() {
+        for(int leafSize : new int[]{2, 16}){
+            kdTree = new KDTree(3, leafSize, ManhattanMetric.INSTANCE);
+            assertEquals("A bucketed KD-Tree should report its leaf size.", leafSize, kdTree.getLeafSize());
+            List<KDPoint> points = new ArrayList<>();
+            for(int i = 0; i < 5 * MAX_ITER; i++){
+                KDPoint p = (i % 10 == 0) ? new KDPoint(1, 2, 3) : getRandomPoint(3); // plenty of duplicates
+                points.add(p);
+                kdTree.insert(p);
+            }
+            assertTrue("A bucketed KD-Tree should be much shallower than its number of points.",
+                    kdTree.height() < points.size() / leafSize);
+            for(int i = 0; i < 3 * MAX_ITER; i++)
+                kdTree.delete(points.remove(r.nextInt(points.size())));
+            assertEquals("Deletions from a bucketed KD-Tree should be counted.", points.size(), kdTree.count());
+            for(KDPoint p : points)
+                assertTrue("A bucketed KD-Tree should contain " + p + ".", kdTree.search(p));
+            for(int i = 0; i < MAX_ITER; i++){
+                KDPoint anchor = getRandomPoint(3);
+                double range = r.nextInt(BOUND);
+                assertEquals("Bucketed KD-Tree range query around " + anchor + " is wrong.",
+                        new HashSet<>(bruteForceRange(points, anchor, range, ManhattanMetric.INSTANCE)),
+                        new HashSet<>(kdTree.range(anchor, range)));
+                List<KDPoint> sorted = new ArrayList<>(points);
+                sorted.removeIf(p -> p.equals(anchor));
+                sorted.sort(new KNNComparator<>(anchor, ManhattanMetric.INSTANCE));
+                assertEquals("Bucketed KD-Tree nearest neighbor of " + anchor + " is not at the expected distance.",
+                        ManhattanMetric.INSTANCE.distance(sorted.get(0), anchor),
+                        ManhattanMetric.INSTANCE.distance(kdTree.nearestNeighbor(anchor), anchor), 0);
+                int j = 0;
+                for(KDPoint neighbor : kdTree.kNearestNeighbors(5, anchor))
+                    assertEquals("Bucketed KD-Tree neighbor #" + j + " of " + anchor + " is not at the expected distance.",
+                            ManhattanMetric.INSTANCE.distance(sorted.get(j++), anchor),
+                            ManhattanMetric.INSTANCE.distance(neighbor, anchor), 0);
+            }
+            for(KDPoint p : points)
+                kdTree.delete(p);
+            assertTrue("A bucketed KD-Tree should be empty after deleting all of its points.", kdTree.isEmpty());
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testBucketedKDTreeRejectsInvalidLeafSize() {
+        new KDTree(2, 0);
+    }
+
+    @Test
+    public void testLazyDeletionKDTreeAgainstBruteForce() {
+        kdTree = new KDTree(2, EuclideanMetric.INSTANCE, KDTree.NO_REBALANCING, 0.5);
+        LinkedList<KDPoint> points = new LinkedList<>();
+        for(int i = 0; i < 20 * MAX_ITER; i++){ // a sliding window of points: old points expire as new ones arrive
+            KDPoint p = getRandomPoint(2);
+            points.add(p);
+            kdTree.insert(p);
+            if(points.size() > MAX_ITER){
+                KDPoint expired = points.removeFirst();
+                kdTree.delete(expired);
+                if(!points.contains(expired))
+                    assertFalse("An expired point should not be found by a lazily deleting tree.", kdTree.search(expired));
+            }
+        }
+        assertEquals("A lazily deleting tree should count only its live points.", points.size(), kdTree.count());
+        for(KDPoint p : points)
+            assertTrue("A lazily deleting tree should contain " + p + ".", kdTree.search(p));
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = getRandomPoint(2);
+            double range = r.nextInt(BOUND);
+            assertEquals("Range query around " + anchor + " should skip lazily deleted points.",
+                    new HashSet<>(bruteForceRange(points, anchor, range, EuclideanMetric.INSTANCE)),
+                    new HashSet<>(kdTree.range(anchor, range)));
+            List<KDPoint> sorted = new ArrayList<>(points);
+            sorted.removeIf(p -> p.equals(anchor));
+            sorted.sort(new KNNComparator<>(anchor));
+            assertEquals("Nearest neighbor of " + anchor + " should skip lazily deleted points.",
+                    sorted.get(0).euclideanDistance(anchor), kdTree.nearestNeighbor(anchor).euclideanDistance(anchor), 0);
+            int j = 0;
+            for(KDPoint neighbor : kdTree.kNearestNeighbors(5, anchor))
+                assertEquals("Neighbor #" + j + " of " + anchor + " should skip lazily deleted points.",
+                        sorted.get(j++).euclideanDistance(anchor), neighbor.euclideanDistance(anchor), 0);
+        }
+        for(KDPoint p : points)
+            kdTree.delete(p);
+        assertTrue("Compactions should leave an empty tree once every point is deleted.", kdTree.isEmpty());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testLazyDeletionKDTreeRejectsInvalidRatio() {
+        new KDTree(2, EuclideanMetric.INSTANCE, KDTree.NO_REBALANCING, 1.0);
+    }
+
+    @Test
+    public void testRangeCountsAndSamplesAgainstBruteForce() {
+        KDTree[] kdTrees = {new KDTree(2), new KDTree(2, 8), new KDTree(2, EuclideanMetric.INSTANCE, 0.7, 0.5)};
+        prQuadTree = new PRQuadTree(8, 2);
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < 5 * MAX_ITER; i++){
+            KDPoint p = getRandomPoint(2);
+            if(points.contains(p))
+                continue; // PR-QuadTrees store no duplicates
+            points.add(p);
+            prQuadTree.insert(p);
+            for(KDTree tree : kdTrees)
+                tree.insert(p);
+        }
+        for(int i = 0; i < MAX_ITER; i++){ // deletions have to keep the subtree counts right as well
+            KDPoint p = points.remove(r.nextInt(points.size()));
+            prQuadTree.delete(p);
+            for(KDTree tree : kdTrees)
+                tree.delete(p);
+        }
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = (i % 2 == 0) ? points.get(r.nextInt(points.size())) : getRandomPoint(2);
+            double range = r.nextInt(2 * BOUND);
+            int expected = bruteForceRange(points, anchor, range, EuclideanMetric.INSTANCE).size();
+            for(KDTree tree : kdTrees)
+                assertEquals("KD-Tree range count around " + anchor + " with range " + range + " was wrong.",
+                        expected, tree.rangeCount(anchor, range));
+            assertEquals("PR-QuadTree range count around " + anchor + " with range " + range + " was wrong.",
+                    expected, prQuadTree.rangeCount(anchor, range));
+        }
+        for(int i = 0; i < MAX_ITER; i++){
+            for(KDTree tree : kdTrees)
+                assertTrue("A KD-Tree should only sample its own points.", points.contains(tree.sample(r)));
+            assertTrue("A PR-QuadTree should only sample its own points.", points.contains(prQuadTree.sample(r)));
+        }
+        assertNull("An empty tree has nothing to sample.", new KDTree(2).sample(r));
+        assertNull("An empty tree has nothing to sample.", new PRQuadTree(8, 2).sample(r));
+    }
+
+    @Test
+    public void testSamplingIsUniform() {
+        kdTree = new KDTree(1);
+        for(int i = 0; i < 10; i++) // sorted insertions: a list-like tree, with the deepest point 9 levels down
+            kdTree.insert(new KDPoint(i));
+        int[] hits = new int[10];
+        for(int i = 0; i < 100 * MAX_ITER; i++)
+            hits[kdTree.sample(r).coords[0]]++;
+        for(int i = 0; i < 10; i++) // each point expects 2000 hits, with a standard deviation of about 42
+            assertTrue("Point " + i + " was sampled " + hits[i] + " times out of " + (100 * MAX_ITER) + ".",
+                    Math.abs(hits[i] - 10 * MAX_ITER) < 250);
+    }
+
+    @Test
+    public void testHeightsAndCountsAreMaintainedByDeletions() {
+        kdTree = new KDTree(2);
+        prQuadTree = new PRQuadTree(8, 1);
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint p = getRandomPoint(2);
+            if(!points.contains(p)){
+                points.add(p);
+                kdTree.insert(p);
+                prQuadTree.insert(p);
+            }
+        }
+        Collections.shuffle(points, r);
+        while(!points.isEmpty()){
+            KDPoint p = points.remove(points.size() - 1);
+            kdTree.delete(p);
+            prQuadTree.delete(p);
+            // the shape of a PR-QuadTree depends only on its points, so a fresh one over them must look the same
+            PRQuadTree fresh = new PRQuadTree(8, 1);
+            for(KDPoint q : points)
+                fresh.insert(q);
+            assertEquals("PR-QuadTree height after deleting " + p + " was wrong.", fresh.height(), prQuadTree.height());
+            assertEquals("PR-QuadTree count after deleting " + p + " was wrong.", points.size(), prQuadTree.count());
+            assertEquals("KD-Tree count after deleting " + p + " was wrong.", points.size(), kdTree.count());
+            int n = points.size();
+            if(n > 0) // a binary tree of n nodes is at least floor(log2(n)) and at most n - 1 levels high
+                assertTrue("KD-Tree height after deleting " + p + " was out of bounds.",
+                        kdTree.height() >= 31 - Integer.numberOfLeadingZeros(n) && kdTree.height() < n);
+        }
+        assertEquals("An emptied PR-QuadTree should have a height of -1.", -1, prQuadTree.height());
+        assertEquals("An emptied KD-Tree should have a height of -1.", -1, kdTree.height());
+    }
+
+    @Test
+    public void testApproximateKNNStaysWithinItsErrorBound() {
+        KDTree[] kdTrees = {new KDTree(2), new KDTree(2, 8)};
+        ArenaKDTree arenaTree = new ArenaKDTree(2); // answers exactly, by default
+        prQuadTree = new PRQuadTree(8, 4);
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < 5 * MAX_ITER; i++){
+            KDPoint p = getRandomPoint(2);
+            if(points.contains(p))
+                continue; // PR-QuadTrees store no duplicates
+            points.add(p);
+            prQuadTree.insert(p);
+            arenaTree.insert(p);
+            for(KDTree tree : kdTrees)
+                tree.insert(p);
+        }
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = getRandomPoint(2);
+            List<KDPoint> sorted = new ArrayList<>(points);
+            sorted.removeIf(p -> p.equals(anchor));
+            sorted.sort(Comparator.comparingDouble(p -> p.euclideanDistance(anchor)));
+            for(double epsilon : new double[]{0, 0.05, 0.5}){
+                List<BoundedPriorityQueue<KDPoint>> answers = new ArrayList<>();
+                for(KDTree tree : kdTrees)
+                    answers.add(tree.kNearestNeighbors(5, anchor, epsilon));
+                answers.add(prQuadTree.kNearestNeighbors(5, anchor, epsilon));
+                answers.add(arenaTree.kNearestNeighbors(5, anchor, epsilon));
+                for(BoundedPriorityQueue<KDPoint> answer : answers){
+                    int j = 0;
+                    for(KDPoint neighbor : answer){ // with epsilon = 0, the bound is tight
+                        double exact = sorted.get(j++).euclideanDistance(anchor);
+                        assertTrue("Neighbor #" + j + " of " + anchor + " with epsilon = " + epsilon + " is too far.",
+                                neighbor.euclideanDistance(anchor) <= (1 + epsilon) * exact + 1e-9);
+                    }
+                    assertEquals("An approximate 5-NN query should still return 5 neighbors.", 5, j);
+                }
+            }
+            // a single leaf visit gives up on the bound, but still has to come back with real points of the tree
+            for(KDTree tree : kdTrees)
+                assertTrue("A visit-limited search should return a point of the tree.",
+                        points.contains(tree.nearestNeighbor(anchor, 0.0, 1)));
+            assertTrue("A visit-limited search should return a point of the tree.",
+                    points.contains(prQuadTree.nearestNeighbor(anchor, 0.0, 1)));
+            assertTrue("A visit-limited search should return a point of the tree.",
+                    points.contains(arenaTree.nearestNeighbor(anchor, 0.0, 1)));
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testApproximateKNNRejectsNegativeEpsilon() {
+        new KDTree(2).kNearestNeighbors(1, ZERO, -0.1);
+    }
+
+    @Test
+    public void testBatchKNNMatchesSingleQueries() {
+        KDTree[] kdTrees = {new KDTree(2), new KDTree(2, 8)};
+        prQuadTree = new PRQuadTree(8, 4);
+        for(int i = 0; i < 5 * MAX_ITER; i++){
+            KDPoint p = getRandomPoint(2);
+            prQuadTree.insert(p);
+            for(KDTree tree : kdTrees)
+                tree.insert(p);
+        }
+        KDPoint[] anchors = new KDPoint[10 * MAX_ITER]; // many chunks, the last one partial
+        for(int i = 0; i < anchors.length; i++)
+            anchors[i] = getRandomPoint(2);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<List<BoundedPriorityQueue<KDPoint>>> batches = new ArrayList<>();
+            List<SpatialQuerySolver> solvers = new ArrayList<>();
+            for(KDTree tree : kdTrees){
+                batches.add(tree.kNearestNeighbors(5, anchors));
+                batches.add(tree.kNearestNeighbors(5, anchors, executor));
+                solvers.add(tree);
+                solvers.add(tree);
+            }
+            batches.add(prQuadTree.kNearestNeighbors(5, anchors));
+            batches.add(prQuadTree.kNearestNeighbors(5, anchors, executor));
+            solvers.add(prQuadTree);
+            solvers.add(prQuadTree);
+            for(int b = 0; b < batches.size(); b++){
+                assertEquals("A batch should return one result per anchor.", anchors.length, batches.get(b).size());
+                for(int i = 0; i < anchors.length; i++){
+                    Iterator<KDPoint> expected = solvers.get(b).kNearestNeighbors(5, anchors[i]).iterator();
+                    for(KDPoint neighbor : batches.get(b).get(i))
+                        assertEquals("Batch neighbor of " + anchors[i] + " differs from the single query.",
+                                expected.next(), neighbor);
+                    assertFalse("A batch returned fewer neighbors of " + anchors[i] + " than the single query.",
+                            expected.hasNext());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testBatchKNNRejectsInvalidK() {
+        new KDTree(2).kNearestNeighbors(0, new KDPoint[]{ZERO});
+    }
+
+    @Test
+    public void testAllKNNJoinMatchesSingleQueries() {
+        for(DistanceMetric metric : new DistanceMetric[]{EuclideanMetric.INSTANCE, ManhattanMetric.INSTANCE}){
+            kdTree = new KDTree(3, metric);
+            KDTree references = new KDTree(3, metric);
+            for(int i = 0; i < 5 * MAX_ITER; i++){
+                kdTree.insert((i % 50 == 0) ? new KDPoint(1, 2, 3) : getRandomPoint(3)); // a few duplicates
+                references.insert(getRandomPoint(3));
+            }
+            for(KNNGraph graph : new KNNGraph[]{kdTree.allKNearestNeighbors(7), kdTree.allKNearestNeighbors(7, references)}){
+                SpatialQuerySolver solver = (graph.getReference(0) == graph.getQuery(0)) ? kdTree : references;
+                assertEquals("A join should have a row per point of the tree.", kdTree.count(), graph.size());
+                for(int i = 0; i < graph.size(); i++){
+                    KDPoint anchor = graph.getQuery(i);
+                    Iterator<KDPoint> expected = solver.kNearestNeighbors(7, anchor).iterator();
+                    assertEquals("Every point should have 7 neighbors.", 7, graph.degree(i));
+                    for(int rank = 0; rank < graph.degree(i); rank++){
+                        KDPoint neighbor = graph.getReference(graph.neighbor(i, rank));
+                        assertEquals("The distance of neighbor #" + rank + " of " + anchor + " is stored wrong.",
+                                metric.distance(neighbor, anchor), graph.distance(i, rank), 0);
+                        assertEquals("Neighbor #" + rank + " of " + anchor + " is not at the expected distance.",
+                                metric.distance(expected.next(), anchor), graph.distance(i, rank), 0);
+                    }
+                }
+            }
+        }
+        kdTree = new KDTree(2);
+        kdTree.insert(ONEONE);
+        kdTree.insert(ONEONE);
+        kdTree.insert(ZERO);
+        KNNGraph graph = kdTree.allKNearestNeighbors(5);
+        for(int i = 0; i < graph.size(); i++) // copies of a point are not its neighbors, like in kNN queries
+            assertEquals("A join should return fewer than k neighbors when there are not enough points.",
+                    graph.getQuery(i).equals(ZERO) ? 2 : 1, graph.degree(i));
+    }
+
+    @Test
+    public void testPersistentKDTreeSnapshotsAreIsolated() {
+        kdTree = KDTree.persistent(2);
+        KDTree mirror = new KDTree(2);
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint p = getRandomPoint(2);
+            points.add(p);
+            kdTree.insert(p);
+            mirror.insert(p);
+        }
+        KDTree snapshot = kdTree.snapshot();
+        String before = snapshot.treeDescription(false).toString();
+        for(int i = 0; i < MAX_ITER / 2; i++){ // deletions move successors up, and insertions go below them
+            KDPoint p = points.remove(r.nextInt(points.size()));
+            kdTree.delete(p);
+            mirror.delete(p);
+            KDPoint q = getRandomPoint(2);
+            points.add(q);
+            kdTree.insert(q);
+            mirror.insert(q);
+        }
+        assertEquals("Updates to a persistent tree should not change its snapshots.", before,
+                snapshot.treeDescription(false).toString());
+        assertEquals("A snapshot should keep the count it was taken with.", MAX_ITER, snapshot.count());
+        assertEquals("A persistent tree should take the shape of a regular one.", mirror.treeDescription(false),
+                kdTree.treeDescription(false));
+        assertEquals("A persistent tree should count like a regular one.", mirror.count(), kdTree.count());
+        assertEquals("A persistent tree should be as high as a regular one.", mirror.height(), kdTree.height());
+        for(KDPoint p : points)
+            assertTrue("A persistent tree should contain " + p + ".", kdTree.search(p));
+        for(KDPoint p : points)
+            snapshot.delete(p);
+        assertEquals("Updates to a snapshot should not change the tree it was taken from.", points.size(), kdTree.count());
+    }
+
+    @Test
+    public void testPersistentKDTreeTakesConcurrentWriters() throws InterruptedException {
+        kdTree = KDTree.persistent(3);
+        int writers = 4, perWriter = 5 * MAX_ITER;
+        List<Thread> threads = new ArrayList<>();
+        for(int w = 0; w < writers; w++){
+            Random random = new Random(SEED + w);
+            threads.add(new Thread(() -> {
+                for(int i = 0; i < perWriter; i++)
+                    kdTree.insert(new KDPoint(random.nextInt(BOUND), random.nextInt(BOUND), random.nextInt(BOUND)));
+            }));
+        }
+        for(Thread t : threads)
+            t.start();
+        for(int i = 0; i < MAX_ITER; i++){ // every snapshot is a whole tree, never one that is half updated
+            KDTree snapshot = kdTree.snapshot();
+            assertEquals("A snapshot should hold as many points as a range query over all of it sees.",
+                    snapshot.count(), snapshot.rangeCount(new KDPoint(-1, -1, -1), 4.0 * BOUND));
+        }
+        for(Thread t : threads)
+            t.join();
+        assertEquals("No concurrent insertion should be lost.", writers * perWriter, kdTree.count());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testOnlyPersistentKDTreesTakeSnapshots() {
+        new KDTree(2).snapshot();
+    }
+
+    @Test
+    public void testConcurrentKDTreeMatchesKDTree() throws InterruptedException {
+        ConcurrentKDTree concurrent = new ConcurrentKDTree(3);
+        int writers = 4, perWriter = 5 * MAX_ITER;
+        List<List<KDPoint>> batches = new ArrayList<>();
+        for(int w = 0; w < writers; w++){
+            List<KDPoint> batch = new ArrayList<>();
+            for(int i = 0; i < perWriter; i++)
+                batch.add(getRandomPoint(3));
+            batches.add(batch);
+        }
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for(List<KDPoint> batch : batches)
+            threads.add(new Thread(() -> {
+                try {
+                    for(KDPoint p : batch){
+                        concurrent.insert(p);
+                        if(!concurrent.search(p)) // an insertion is visible as soon as it returns
+                            failures.add(new AssertionError(p + " was inserted but not found."));
+                    }
+                } catch(Throwable t){
+                    failures.add(t);
+                }
+            }));
+        threads.add(new Thread(() -> {
+            try {
+                Random random = new Random(SEED);
+                for(int i = 0; i < 10 * MAX_ITER; i++){
+                    KDPoint anchor = new KDPoint(random.nextInt(BOUND), random.nextInt(BOUND), random.nextInt(BOUND));
+                    concurrent.range(anchor, 10);
+                    concurrent.kNearestNeighbors(3, anchor);
+                }
+            } catch(Throwable t){
+                failures.add(t);
+            }
+        }));
+        for(Thread t : threads)
+            t.start();
+        for(Thread t : threads)
+            t.join();
+        assertEquals("No reader or writer of a concurrent KD-Tree should fail.", Collections.emptyList(), failures);
+
+        kdTree = new KDTree(3);
+        for(List<KDPoint> batch : batches)
+            for(KDPoint p : batch)
+                kdTree.insert(p);
+        assertEquals("No concurrent insertion should be lost.", kdTree.count(), concurrent.count());
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = getRandomPoint(3);
+            List<KDPoint> expectedRange = new ArrayList<>(kdTree.range(anchor, 20)),
+                    actualRange = new ArrayList<>(concurrent.range(anchor, 20));
+            expectedRange.sort(Comparator.comparing(KDPoint::toString));
+            actualRange.sort(Comparator.comparing(KDPoint::toString));
+            assertEquals("A concurrent KD-Tree should answer range queries like a regular one.", expectedRange, actualRange);
+            assertEquals("A concurrent KD-Tree should find nearest neighbors like a regular one.",
+                    anchor.euclideanDistance(kdTree.nearestNeighbor(anchor)),
+                    anchor.euclideanDistance(concurrent.nearestNeighbor(anchor)), 1e-9);
+            Iterator<KDPoint> expected = kdTree.kNearestNeighbors(5, anchor).iterator(),
+                    actual = concurrent.kNearestNeighbors(5, anchor).iterator();
+            while(expected.hasNext())
+                assertEquals("A concurrent KD-Tree should find k nearest neighbors like a regular one.",
+                        anchor.euclideanDistance(expected.next()), anchor.euclideanDistance(actual.next()), 1e-9);
+            assertFalse("A concurrent KD-Tree should find no more neighbors than a regular one.", actual.hasNext());
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testConcurrentKDTreeRejectsDeletions() {
+        ConcurrentKDTree concurrent = new ConcurrentKDTree(2);
+        concurrent.insert(ZERO);
+        concurrent.delete(ZERO);
+    }
+
+    @Test
+    public void testNeighborIteratorsBrowseByDistance() {
+        KDTree[] kdTrees = {new KDTree(2), new KDTree(2, 8), new KDTree(2, EuclideanMetric.INSTANCE, 0.75, 0.5)};
+        prQuadTree = new PRQuadTree(8, 4);
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < 5 * MAX_ITER; i++){
+            KDPoint p = getRandomPoint(2);
+            if(prQuadTree.search(p))
+                continue; // PR-QuadTrees keep no duplicates
+            points.add(p);
+            prQuadTree.insert(p);
+            for(KDTree tree : kdTrees)
+                tree.insert(p);
+        }
+        for(int i = 0; i < MAX_ITER; i++){ // tombstones for the lazy tree, collapses for the PR-QuadTree
+            KDPoint p = points.remove(r.nextInt(points.size()));
+            prQuadTree.delete(p);
+            for(KDTree tree : kdTrees)
+                tree.delete(p);
+        }
+        List<SpatialQuerySolver> solvers = new ArrayList<>(Arrays.asList(kdTrees));
+        solvers.add(prQuadTree);
+        for(int i = 0; i < MAX_ITER / 4; i++){
+            KDPoint anchor = (i % 2 == 0) ? getRandomPoint(2) : points.get(r.nextInt(points.size()));
+            double[] expected = points.stream().filter(p -> !p.equals(anchor))
+                    .mapToDouble(anchor::euclideanDistance).sorted().toArray();
+            for(SpatialQuerySolver solver : solvers){
+                NeighborIterator it = (solver instanceof KDTree) ? ((KDTree) solver).neighborIterator(anchor)
+                        : ((PRQuadTree) solver).neighborIterator(anchor);
+                for(double distance : expected){
+                    assertTrue("A neighbor iterator should browse every point other than the anchor.", it.hasNext());
+                    KDPoint next = it.next();
+                    assertEquals("A neighbor iterator should browse points by increasing distance.", distance,
+                            anchor.euclideanDistance(next), 1e-9);
+                    assertEquals("A neighbor iterator should report the distance of the last neighbor.", distance,
+                            it.distance(), 1e-9);
+                }
+                assertFalse("A neighbor iterator should browse no other points.", it.hasNext());
+            }
+            double radius = (expected.length > 10) ? expected[10] : Double.POSITIVE_INFINITY;
+            assertEquals("A neighbor stream should stop along with its consumer.",
+                    Arrays.stream(expected).filter(d -> d <= radius).count(),
+                    kdTrees[0].neighbors(anchor).takeWhile(p -> anchor.euclideanDistance(p) <= radius).count());
+        }
+        assertFalse("An empty tree should have no neighbors.", new KDTree(2).neighborIterator(ZERO).hasNext());
+        assertFalse("An empty tree should have no neighbors.", new PRQuadTree(4, 1).neighbors(ZERO).findAny().isPresent());
+    }
+
+    @Test
+    public void testBoxRangeQueriesMatchBruteForce() {
+        KDTree[] kdTrees = {new KDTree(2), new KDTree(2, 4), new KDTree(2, EuclideanMetric.INSTANCE, 0.75),
+                new KDTree(2, EuclideanMetric.INSTANCE, KDTree.NO_REBALANCING, 0.5), KDTree.persistent(2)};
+        prQuadTree = new PRQuadTree(8, 2);
+        List<KDPoint> points = new ArrayList<>(), unique = new ArrayList<>();
+        for(int i = 0; i < 5 * MAX_ITER; i++){
+            KDPoint p = getRandomPoint(2);
+            points.add(p);
+            for(KDTree tree : kdTrees)
+                tree.insert(p);
+            if(!prQuadTree.search(p)){
+                unique.add(p);
+                prQuadTree.insert(p);
+            }
+        }
+        for(int i = 0; i < MAX_ITER; i++){ // tombstones for the lazy tree, collapses for the PR-QuadTree
+            KDPoint p = points.remove(r.nextInt(points.size()));
+            for(KDTree tree : kdTrees)
+                tree.delete(p);
+            if(!points.contains(p)){
+                unique.remove(p);
+                prQuadTree.delete(p);
+            }
+        }
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint a = getRandomPoint(2), b = (i % 10 == 0) ? new KDPoint(BOUND, BOUND) : getRandomPoint(2);
+            if(i % 20 == 0)
+                a = new KDPoint(-BOUND, -BOUND); // covers everything
+            KDPoint low = new KDPoint(Math.min(a.coords[0], b.coords[0]), Math.min(a.coords[1], b.coords[1])),
+                    high = new KDPoint(Math.max(a.coords[0], b.coords[0]), Math.max(a.coords[1], b.coords[1]));
+            List<String> expected = inBox(points, low, high);
+            for(KDTree tree : kdTrees){
+                assertEquals("A box query should return every point in the box, sides included.", expected,
+                        sortedStrings(tree.range(low, high)));
+                assertEquals("A box count should count every point in the box, sides included.", expected.size(),
+                        tree.rangeCount(low, high));
+            }
+            assertEquals("A box query should return every point in the box, sides included.", inBox(unique, low, high),
+                    sortedStrings(prQuadTree.range(low, high)));
+            assertEquals("A box count should count every point in the box, sides included.",
+                    inBox(unique, low, high).size(), prQuadTree.rangeCount(low, high));
+            if(low.coords[0] < high.coords[0]) // the x sides swapped
+                assertTrue("An inverted box should be empty.", kdTrees[0].range(new KDPoint(high.coords[0], low.coords[1]),
+                        new KDPoint(low.coords[0], high.coords[1])).isEmpty());
+        }
+    }
+
+    @Test
+    public void testReverseKNearestNeighborsMatchBruteForce() {
+        KDTree kdTree = new KDTree(2), bucketTree = new KDTree(2, 4);
+        prQuadTree = new PRQuadTree(8, 2);
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < 2 * MAX_ITER; i++){
+            KDPoint p = getRandomPoint(2);
+            if(!prQuadTree.search(p)){
+                points.add(p);
+                kdTree.insert(p);
+                bucketTree.insert(p);
+                prQuadTree.insert(p);
+            }
+        }
+        for(int i = 0; i < MAX_ITER / 4; i++){
+            KDPoint q = (i % 2 == 0) ? points.get(r.nextInt(points.size())) : getRandomPoint(2);
+            int k = 1 + r.nextInt(5);
+            List<String> expected = new ArrayList<>();
+            for(KDPoint p : points){
+                if(p.equals(q))
+                    continue;
+                int closer = 0;
+                for(KDPoint o : points)
+                    if(!o.equals(p) && o.euclideanDistance(p) < q.euclideanDistance(p))
+                        closer++;
+                if(closer < k)
+                    expected.add(p.toString());
+            }
+            Collections.sort(expected);
+            assertEquals("A reverse kNN query should return every point that has the query among its k nearest neighbors.",
+                    expected, sortedStrings(kdTree.reverseKNearestNeighbors(k, q)));
+            assertEquals("A reverse kNN query should return every point that has the query among its k nearest neighbors.",
+                    expected, sortedStrings(bucketTree.reverseKNearestNeighbors(k, q)));
+            assertEquals("A reverse kNN query should return every point that has the query among its k nearest neighbors.",
+                    expected, sortedStrings(prQuadTree.reverseKNearestNeighbors(k, q)));
+        }
+        assertTrue("A reverse kNN query over an empty tree should be empty.",
+                new KDTree(2).reverseKNearestNeighbors(3, new KDPoint(0, 0)).isEmpty());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testReverseKNearestNeighborsRejectHigherDimensions() {
+        new KDTree(3).reverseKNearestNeighbors(1, new KDPoint(0, 0, 0));
+    }
+
+    @Test
+    public void testRadiusBoundedKNNMatchesFilteredKNN() {
+        KDTree[] kdTrees = {new KDTree(2), new KDTree(2, 4), KDTree.persistent(2)};
+        ArenaKDTree arenaTree = new ArenaKDTree(2); // filters the unbounded kNN, by default
+        prQuadTree = new PRQuadTree(8, 2);
+        for(int i = 0; i < 3 * MAX_ITER; i++){
+            KDPoint p = getRandomPoint(2);
+            for(KDTree tree : kdTrees)
+                tree.insert(p);
+            arenaTree.insert(p);
+            if(!prQuadTree.search(p))
+                prQuadTree.insert(p);
+        }
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = getRandomPoint(2);
+            int k = 1 + r.nextInt(10);
+            double radius = (i % 10 == 0) ? 0 : r.nextDouble() * BOUND / 4;
+            for(KDTree tree : kdTrees)
+                assertEquals("A radius-bounded kNN query should return the kNN within the radius.",
+                        distancesWithin(tree.kNearestNeighbors(k, anchor), anchor, radius),
+                        distancesWithin(tree.kNearestNeighborsWithin(k, anchor, radius), anchor, Double.POSITIVE_INFINITY));
+            assertEquals("A radius-bounded kNN query should return the kNN within the radius.",
+                    distancesWithin(prQuadTree.kNearestNeighbors(k, anchor), anchor, radius),
+                    distancesWithin(prQuadTree.kNearestNeighborsWithin(k, anchor, radius), anchor, Double.POSITIVE_INFINITY));
+            assertEquals("A radius-bounded kNN query should return the kNN within the radius.",
+                    distancesWithin(arenaTree.kNearestNeighbors(k, anchor), anchor, radius),
+                    distancesWithin(arenaTree.kNearestNeighborsWithin(k, anchor, radius), anchor, Double.POSITIVE_INFINITY));
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testRadiusBoundedKNNRejectsNegativeRadii() {
+        new KDTree(2).kNearestNeighborsWithin(3, new KDPoint(0, 0), -1);
+    }
+
+    @Test
+    public void testRadiusBoundedKNNMeasuresWithTheTreeMetric() {
+        List<KDPoint> corners = Arrays.asList(new KDPoint(0, 0), new KDPoint(3, 0), new KDPoint(2, 2));
+        BoundedPriorityQueue<KDPoint> neighbors = new StaticKDTree(2, corners, ManhattanMetric.INSTANCE)
+                .kNearestNeighborsWithin(5, new KDPoint(0, 0), 3.5);
+        assertEquals("A radius-bounded kNN query should only return neighbors within the radius under the tree's metric.",
+                1, neighbors.size());
+        assertEquals("A radius-bounded kNN query should only return neighbors within the radius under the tree's metric.",
+                new KDPoint(3, 0), neighbors.first());
+
+        DistanceMetric metric = ManhattanMetric.INSTANCE;
+        List<KDPoint> points = new ArrayList<>();
+        ConcurrentKDTree concurrentKDTree = new ConcurrentKDTree(2, metric);
+        ConcurrentPRQuadTree concurrentPRQuadTree = new ConcurrentPRQuadTree(8, 2, metric);
+        for(int i = 0; i < 3 * MAX_ITER; i++){
+            KDPoint p = getRandomPoint(2);
+            if(concurrentPRQuadTree.search(p))
+                continue;
+            points.add(p);
+            concurrentKDTree.insert(p);
+            concurrentPRQuadTree.insert(p);
+        }
+        StaticKDTree staticKDTree = new StaticKDTree(2, points, metric);
+        SpatialQuerySolver[] solvers = {staticKDTree, concurrentKDTree, concurrentPRQuadTree};
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = getRandomPoint(2);
+            int k = 1 + r.nextInt(10);
+            double radius = (i % 10 == 0) ? 0 : r.nextDouble() * BOUND / 4;
+            List<KDPoint> sorted = new ArrayList<>(points);
+            sorted.removeIf(anchor::equals);
+            sorted.sort(new KNNComparator<>(anchor, metric));
+            List<Double> expected = new ArrayList<>();
+            for(int j = 0; j < Math.min(k, sorted.size()) && metric.distance(sorted.get(j), anchor) <= radius; j++)
+                expected.add(metric.distance(sorted.get(j), anchor));
+            for(SpatialQuerySolver solver : solvers){
+                List<Double> actual = new ArrayList<>();
+                for(KDPoint neighbor : solver.kNearestNeighborsWithin(k, anchor, radius))
+                    actual.add(metric.distance(neighbor, anchor));
+                assertEquals("A radius-bounded kNN query should return the kNN within the radius under the tree's metric.",
+                        expected, actual);
+            }
+        }
+    }
+
+    private static List<Double> distancesWithin(Iterable<KDPoint> neighbors, KDPoint anchor, double radius){
+        List<Double> distances = new ArrayList<>();
+        for(KDPoint p : neighbors)
+            if(p.euclideanDistance(anchor) <= radius)
+                distances.add(p.euclideanDistance(anchor));
+        Collections.sort(distances);
+        return distances;
+    }
+
+    private static List<String> inBox(Collection<KDPoint> points, KDPoint low, KDPoint high){
+        List<KDPoint> inside = new ArrayList<>();
+        for(KDPoint p : points)
+            if(p.coords[0] >= low.coords[0] && p.coords[0] <= high.coords[0]
+                    && p.coords[1] >= low.coords[1] && p.coords[1] <= high.coords[1])
+                inside.add(p);
+        return sortedStrings(inside);
+    }
+
+    private static List<String> sortedStrings(Collection<KDPoint> points){
+        List<String> strings = new ArrayList<>();
+        for(KDPoint p : points)
+            strings.add(p.toString());
+        Collections.sort(strings);
+        return strings;
+    }
+
+    @Test
+    public void testStreamingRangeQueriesMatchRange() {
+        KDTree[] kdTrees = {new KDTree(2), new KDTree(2, 4), KDTree.persistent(2)};
+        prQuadTree = new PRQuadTree(8, 2);
+        for(KDTree tree : kdTrees)
+            assertFalse("A range stream over an empty tree should be empty.",
+                    tree.rangeStream(new KDPoint(0, 0), BOUND).findAny().isPresent());
+        assertTrue("A visitor over an empty tree should complete.",
+                prQuadTree.range(new KDPoint(0, 0), BOUND, p -> false));
+        List<KDPoint> points = new ArrayList<>();
+        for(int i = 0; i < 5 * MAX_ITER; i++){
+            KDPoint p = getRandomPoint(2);
+            points.add(p);
+            for(KDTree tree : kdTrees)
+                tree.insert(p);
+            if(!prQuadTree.search(p))
+                prQuadTree.insert(p);
+        }
+        for(int i = 0; i < MAX_ITER / 2; i++){
+            KDPoint p = points.remove(r.nextInt(points.size()));
+            for(KDTree tree : kdTrees)
+                tree.delete(p);
+            if(!points.contains(p))
+                prQuadTree.delete(p);
+        }
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = (i % 2 == 0) ? points.get(r.nextInt(points.size())) : getRandomPoint(2);
+            double range = r.nextDouble() * BOUND / 2;
+            for(KDTree tree : kdTrees){
+                List<String> expected = sortedStrings(tree.range(anchor, range));
+                List<KDPoint> visited = new ArrayList<>(), streamed = new ArrayList<>();
+                assertTrue("A visitor that never stops should complete the query.", tree.range(anchor, range, visited::add));
+                tree.rangeStream(anchor, range).forEach(streamed::add);
+                assertEquals("A visitor should see every hit of the range query.", expected, sortedStrings(visited));
+                assertEquals("A range stream should hold every hit of the range query.", expected, sortedStrings(streamed));
+                assertEquals("A limited range stream should stop at its limit.", Math.min(5, expected.size()),
+                        tree.rangeStream(anchor, range).limit(5).count());
+                if(expected.size() > 5){
+                    int[] seen = {0};
+                    assertFalse("A visitor that stops should end the query.", tree.range(anchor, range, p -> ++seen[0] < 5));
+                    assertEquals("A visitor that stops should see no hit after it does.", 5, seen[0]);
+                }
+            }
+            List<String> expected = sortedStrings(prQuadTree.range(anchor, range));
+            List<KDPoint> visited = new ArrayList<>();
+            assertTrue("A visitor that never stops should complete the query.", prQuadTree.range(anchor, range, visited::add));
+            assertEquals("A visitor should see every hit of the range query.", expected, sortedStrings(visited));
+            assertEquals("A range stream should count every hit of the range query.", expected.size(),
+                    prQuadTree.rangeStream(anchor, range).count());
+        }
+    }
+
+    /**
+     * This &quot;test&quot; just gives an example for how to generate a KD-tree visualization using {@link CompactVizTree}.
+     * If successful, an image named <tt>compact_kdtree.png</tt> should be saved inside your project directory
+     * Please make sure to delete these image files before submission. We give it to you as a {@code jUnit} test
+     * in order for it to run automatically whenever you run the full suite.
+     */
+    @Test
+    public void testKDTreeViz(){
+        kdTree = new KDTree(2);
+        KDPoint[] points = {new KDPoint(10, 30),
+                new KDPoint(12, 18),
+                new KDPoint(-20, 300),
+                new KDPoint(16, 100),
+                new KDPoint(10, 500),
+                new KDPoint(18, 500),
+        };
+
+        for(int i=1;i<points.length;i++)
+            kdTree.insert(points[i]);
+
+        ArrayList<String> kdDescription = kdTree.treeDescription(false);
+        CompactVizTree visualizer = new CompactVizTree(120,40,10);
+        visualizer.drawBinaryTreeToFile(kdDescription,"compact_kdtree");
+
+    }
+
+
     /* ******************************************************************************************************** */
     /* ******************************************************************************************************** */
     /* ***************************************** PR-QUADTREE TESTS ******************************************** */
@@ -246,6 +1401,21 @@ public class StudentTests {
 
 
 
+    @Test
+    public void testSplitQuadrantsKeepTheirExtents() {
+        // A 16x16 PR-QuadTree whose root splits at once. If the gray node lost a level, its NE child would be centered
+        // at (2, 2) rather than (4, 4), and quadrant pruning would miss the points near (6, 6).
+        prQuadTree = new PRQuadTree(4, 1);
+        KDPoint[] points = {new KDPoint(5, 5), new KDPoint(7, 7), new KDPoint(-5, -5), new KDPoint(1, 6)};
+        for(KDPoint p : points)
+            prQuadTree.insert(p);
+        assertEquals("Range queries should find the points of split quadrants.",
+                new HashSet<>(Arrays.asList(new KDPoint(5, 5), new KDPoint(7, 7))),
+                new HashSet<>(prQuadTree.range(new KDPoint(6, 6), 1.5)));
+        assertEquals("Nearest neighbor queries should find the points of split quadrants.",
+                new KDPoint(7, 7), prQuadTree.nearestNeighbor(new KDPoint(8, 8)));
+    }
+
     @Test
     public void testKNNPRQuadTree(){
 
@@ -324,32 +1494,6 @@ public class StudentTests {
     }
 
 
-    /**
-     * This &quot;test&quot; just gives an example for how to generate a KD-tree visualization using {@link CompactVizTree}.
-     * If successful, an image named <tt>compact_kdtree.png</tt> should be saved inside your project directory
-     * Please make sure to delete these image files before submission. We give it to you as a {@code jUnit} test
-     * in order for it to run automatically whenever you run the full suite.
-     */
-    @Test
-    public void testKDTreeViz(){
-        kdTree = new KDTree(2);
-        KDPoint[] points = {new KDPoint(10, 30),
-                new KDPoint(12, 18),
-                new KDPoint(-20, 300),
-                new KDPoint(16, 100),
-                new KDPoint(10, 500),
-                new KDPoint(18, 500),
-        };
-
-        for(int i=1;i<points.length;i++)
-            kdTree.insert(points[i]);
-
-        ArrayList<String> kdDescription = kdTree.treeDescription(false);
-        CompactVizTree visualizer = new CompactVizTree(120,40,10);
-        visualizer.drawBinaryTreeToFile(kdDescription,"compact_kdtree");
-
-    }
-
     /**
      * This "test" just gives an example for how to generate a Quadtree visualization using {@link CompactVizTree}.
      * If successful, an image named {@code compact_quadtree.png} should be created.
@@ -404,5 +1548,86 @@ public class StudentTests {
     	}
     	
     }
+
+    @Test
+    public void testConcurrentPRQuadTreeMatchesPRQuadTree() throws InterruptedException {
+        ConcurrentPRQuadTree concurrent = new ConcurrentPRQuadTree(8, 2);
+        prQuadTree = new PRQuadTree(8, 2);
+        int writers = 4, perWriter = 5 * MAX_ITER;
+        Set<KDPoint> distinct = new HashSet<>(); // no two writers touch the same point, so the outcome is known
+        List<List<KDPoint>> batches = new ArrayList<>();
+        for(int w = 0; w < writers; w++){
+            List<KDPoint> batch = new ArrayList<>();
+            while(batch.size() < perWriter){
+                KDPoint p = getRandomPoint(2);
+                if(distinct.add(p))
+                    batch.add(p);
+            }
+            batches.add(batch);
+        }
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for(List<KDPoint> batch : batches) // every writer inserts its points, and deletes half of them again
+            threads.add(new Thread(() -> {
+                try {
+                    for(KDPoint p : batch)
+                        concurrent.insert(p);
+                    for(int i = 0; i < batch.size(); i += 2)
+                        concurrent.delete(batch.get(i));
+                } catch(Throwable t){
+                    failures.add(t);
+                }
+            }));
+        Thread reader = new Thread(() -> { // queries run through splits and collapses
+            try {
+                Random random = new Random(SEED);
+                for(int i = 0; i < 10 * MAX_ITER; i++){
+                    KDPoint anchor = new KDPoint(random.nextInt(BOUND), random.nextInt(BOUND));
+                    concurrent.range(anchor, 10);
+                    concurrent.kNearestNeighbors(3, anchor);
+                    concurrent.nearestNeighbor(anchor);
+                }
+            } catch(Throwable t){
+                failures.add(t);
+            }
+        });
+        threads.add(reader);
+        for(Thread t : threads)
+            t.start();
+        for(Thread t : threads)
+            t.join();
+        assertEquals("No reader or writer of a concurrent PR-QuadTree should fail.", Collections.emptyList(), failures);
+
+        List<KDPoint> remaining = new ArrayList<>();
+        for(List<KDPoint> batch : batches){
+            for(int i = 0; i < batch.size(); i += 2)
+                assertFalse("A concurrent PR-QuadTree should not keep a deleted point.", concurrent.search(batch.get(i)));
+            for(int i = 1; i < batch.size(); i += 2)
+                remaining.add(batch.get(i));
+        }
+        for(KDPoint p : remaining)
+            prQuadTree.insert(p);
+        assertEquals("A concurrent PR-QuadTree should count like a regular one.", prQuadTree.count(), concurrent.count());
+        for(int i = 0; i < MAX_ITER; i++){
+            KDPoint anchor = getRandomPoint(2);
+            assertEquals("A concurrent PR-QuadTree should answer range queries like a regular one.",
+                    new HashSet<>(prQuadTree.range(anchor, 20)), new HashSet<>(concurrent.range(anchor, 20)));
+            assertEquals("A concurrent PR-QuadTree should count ranges like a regular one.",
+                    prQuadTree.rangeCount(anchor, 20), concurrent.rangeCount(anchor, 20));
+            assertEquals("A concurrent PR-QuadTree should find nearest neighbors like a regular one.",
+                    anchor.euclideanDistance(prQuadTree.nearestNeighbor(anchor)),
+                    anchor.euclideanDistance(concurrent.nearestNeighbor(anchor)), 1e-9);
+            Iterator<KDPoint> expected = prQuadTree.kNearestNeighbors(5, anchor).iterator(),
+                    actual = concurrent.kNearestNeighbors(5, anchor).iterator();
+            while(expected.hasNext())
+                assertEquals("A concurrent PR-QuadTree should find k nearest neighbors like a regular one.",
+                        anchor.euclideanDistance(expected.next()), anchor.euclideanDistance(actual.next()), 1e-9);
+            assertFalse("A concurrent PR-QuadTree should find no more neighbors than a regular one.", actual.hasNext());
+        }
+        for(KDPoint p : remaining)
+            concurrent.delete(p);
+        assertTrue("A concurrent PR-QuadTree should collapse back to an empty one.",
+                concurrent.isEmpty() && concurrent.height() == -1);
+    }
 }
 
@@ -0,0 +1,156 @@
+package spatial.kdpoint;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * <p>{@link DistanceKernels} holds the squared distance routines over the {@code int[] coords} of {@link KDPoint}s,
+ * and over raw coordinate runs inside flat arrays: between two points, and from one anchor to a whole bucket of
+ * points stored back to back. Every euclidean distance of the package, of the nodes and of the array-backed trees
+ * goes through them, so there is only one tight loop to tune.</p>
+ *
+ * <p>The inner loop over coordinates keeps four independent accumulators. The squared difference of each coordinate
+ * then does not wait on the previous sum, so the CPU can overlap consecutive coordinates of high dimensional points.
+ * Since coordinates are {@code int}s, every squared difference is an integer that a {@code double} represents exactly,
+ * so the result does not depend on the order of summation as long as it stays below 2<sup>53</sup>.</p>
+ *
+ * <p>When the optional {@code VectorDistanceKernels} class of the {@code src-vector} source root was built, and the
+ * JVM runs with {@code --add-modules jdk.incubator.vector}, runs of coordinates at least as long as one SIMD register
+ * go through it instead, and so do buckets of at least that many points of lower dimensionality, which it
+ * measures one point per lane. Both are checked once, when this class is initialized, and the class is bound through a
+ * {@link MethodHandle}, so that nothing here refers to the incubating module; otherwise, the scalar loop above is the
+ * only code path.</p>
+ *
+ * <p>The squared distance computed here is 0 (zero) <b>iff</b> the two points are equal, so callers can skip the
+ * anchor of a query by its distance without a separate equality check.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see KDPoint#squaredDistance(KDPoint)
+ */
+public final class DistanceKernels {
+
+	private static final String VECTOR_KERNELS = "spatial.kdpoint.VectorDistanceKernels";
+
+	/**
+	 * The squared distance of VectorDistanceKernels, or null if the Vector API is not available.
+	 */
+	private static final MethodHandle VECTOR_DISTANCE = vectorKernel("squaredDistance",
+			MethodType.methodType(double.class, int[].class, int.class, int[].class, int.class, int.class));
+
+	/**
+	 * The one-to-many squared distances of VectorDistanceKernels, or null if the Vector API is not available.
+	 */
+	private static final MethodHandle VECTOR_DISTANCES = vectorKernel("squaredDistances",
+			MethodType.methodType(void.class, int[].class, int[].class, int.class, int.class, double[].class));
+
+	/**
+	 * The number of lanes of VectorDistanceKernels, or 0 (zero) if the Vector API is not available.
+	 */
+	private static final int VECTOR_LANES = vectorLanes();
+
+	private DistanceKernels(){
+		// static utility class
+	}
+
+	// private helper that looks up a kernel of VectorDistanceKernels, only if its module was resolved at startup
+	private static MethodHandle vectorKernel(String name, MethodType type){
+		if(!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+			return null;
+		try {
+			Class<?> kernels = Class.forName(VECTOR_KERNELS, true, DistanceKernels.class.getClassLoader());
+			return MethodHandles.lookup().findStatic(kernels, name, type);
+		} catch(ReflectiveOperationException | LinkageError | RuntimeException e){ // not built, or no usable species
+			return null;
+		}
+	}
+
+	private static int vectorLanes(){
+		MethodHandle lanes = vectorKernel("lanes", MethodType.methodType(int.class));
+		if(VECTOR_DISTANCE == null || VECTOR_DISTANCES == null || lanes == null)
+			return 0;
+		try {
+			int n = (int) lanes.invokeExact();
+			return n > 1 ? n : 0;
+		} catch(Throwable t){
+			return 0;
+		}
+	}
+
+	/**
+	 * Computes the squared euclidean distance between two coordinate runs of equal length, stored at arbitrary offsets
+	 * of two arrays (which may be the same array).
+	 * @param a The array holding the first run of coordinates.
+	 * @param aOffset The index of the first coordinate of the first run.
+	 * @param b The array holding the second run of coordinates.
+	 * @param bOffset The index of the first coordinate of the second run.
+	 * @param dims The number of coordinates in each run.
+	 * @return The squared euclidean distance between the two runs.
+	 */
+	public static double squaredDistance(int[] a, int aOffset, int[] b, int bOffset, int dims){
+		if(VECTOR_LANES != 0 && dims >= VECTOR_LANES){
+			try {
+				return (double) VECTOR_DISTANCE.invokeExact(a, aOffset, b, bOffset, dims);
+			} catch(RuntimeException | Error e){
+				throw e;
+			} catch(Throwable t){ // the kernel declares no checked exceptions
+				throw new RuntimeException(t);
+			}
+		}
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+		int i = 0;
+		for(; i + 3 < dims; i += 4){
+			double d0 = (double) a[aOffset + i] - b[bOffset + i];
+			double d1 = (double) a[aOffset + i + 1] - b[bOffset + i + 1];
+			double d2 = (double) a[aOffset + i + 2] - b[bOffset + i + 2];
+			double d3 = (double) a[aOffset + i + 3] - b[bOffset + i + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+		}
+		for(; i < dims; i++){
+			double d = (double) a[aOffset + i] - b[bOffset + i];
+			s0 += d * d;
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Computes the squared euclidean distance between two coordinate arrays of equal length.
+	 * @param a The coordinates of the first point.
+	 * @param b The coordinates of the second point.
+	 * @return The squared euclidean distance between a and b.
+	 */
+	public static double squaredDistance(int[] a, int[] b){
+		return squaredDistance(a, 0, b, 0, a.length);
+	}
+
+	/**
+	 * Computes the squared distances from one anchor to consecutive points stored back to back in a flat coordinate
+	 * array, as the leaves of {@link spatial.nodes.KDTreeBucketNode} and {@link spatial.nodes.PRQuadBlackNode} store
+	 * them. The dimensionality of the points is the length of the anchor.
+	 * @param anchor The coordinates of the anchor.
+	 * @param coords The flat coordinate array; point {@code i} occupies {@code coords[i * dims .. i * dims + dims - 1]}.
+	 * @param from The index of the first point to consider.
+	 * @param to The index one past the last point to consider.
+	 * @param out Receives the squared distance of point {@code from + i} from the anchor at {@code out[i]}. Its length
+	 *            must be at least {@code to - from}.
+	 */
+	public static void squaredDistances(int[] anchor, int[] coords, int from, int to, double[] out){
+		int dims = anchor.length;
+		if(VECTOR_LANES != 0 && (dims >= VECTOR_LANES || to - from >= VECTOR_LANES)){
+			try {
+				VECTOR_DISTANCES.invokeExact(anchor, coords, from, to, out);
+				return;
+			} catch(RuntimeException | Error e){
+				throw e;
+			} catch(Throwable t){ // the kernel declares no checked exceptions
+				throw new RuntimeException(t);
+			}
+		}
+		for(int i = from; i < to; i++)
+			out[i - from] = squaredDistance(anchor, 0, coords, i * dims, dims);
+	}
+}
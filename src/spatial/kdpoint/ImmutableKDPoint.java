@@ -0,0 +1,70 @@
+package spatial.kdpoint;
+
+/**
+ * <p>{@link ImmutableKDPoint} is a {@link KDPoint} whose coordinates never change after construction. Because of that,
+ * it can be <b>shared</b> instead of copied: the trees store {@link ImmutableKDPoint}s in their nodes, and hand the very
+ * same references out of {@link spatial.nodes.KDTreeNode#getPoint()}, {@link spatial.nodes.PRQuadNode#getCentroid()}
+ * and every query, without any defensive copies.</p>
+ *
+ * <p>Since {@link KDPoint#coords} is a public field for the convenience of client code, immutability is a contract:
+ * client code should <b>never</b> write to the coordinates of an {@link ImmutableKDPoint}. Use {@link #of(KDPoint)} to
+ * freeze a mutable {@link KDPoint}; it copies it once, and returns {@link ImmutableKDPoint}s as they are.</p>
+ *
+ * <p>An {@link ImmutableKDPoint} computes its {@link #hashCode()} once, at construction, and is {@link #equals(Object)
+ * equal} to any {@link KDPoint} with the same coordinates, so both kinds can be mixed freely in hash based collections.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see KDPoint
+ */
+public final class ImmutableKDPoint extends KDPoint {
+
+	/**
+	 * The hash code of the coordinates, computed once.
+	 */
+	private final int hash;
+
+	/**
+	 * Initialize an {@link ImmutableKDPoint} with some {@code int} values. The values are copied, so that later changes
+	 * to the array do not affect this.
+	 * @param vals The values with which to initialize the {@link ImmutableKDPoint}.
+	 */
+	public ImmutableKDPoint(int... vals){
+		super(vals);
+		hash = super.hashCode();
+	}
+
+	/**
+	 * Initialize an {@link ImmutableKDPoint} with the coordinates of an existing {@link KDPoint}.
+	 * @param p The {@link KDPoint} whose coordinates we copy.
+	 */
+	public ImmutableKDPoint(KDPoint p){
+		this(p.coords);
+	}
+
+	/**
+	 * Returns an {@link ImmutableKDPoint} with the coordinates of p. This is p itself if it is already immutable, and a
+	 * copy otherwise.
+	 * @param p The {@link KDPoint} to freeze. It may be null.
+	 * @return An {@link ImmutableKDPoint} equal to p, or null if p is null.
+	 */
+	public static ImmutableKDPoint of(KDPoint p){
+		if(p == null || p instanceof ImmutableKDPoint)
+			return (ImmutableKDPoint) p;
+		return new ImmutableKDPoint(p.coords);
+	}
+
+	@Override
+	public int hashCode(){
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o){
+		if(o == this)
+			return true;
+		if(o instanceof ImmutableKDPoint && ((ImmutableKDPoint) o).hash != hash)
+			return false; // cheap rejection: different hashes can never belong to equal coordinates
+		return super.equals(o);
+	}
+}
@@ -13,7 +13,7 @@ public class KDPoint {
 	
 	/** To make matters simple for client code, we will allow the {@link KDPoint}'s
 	 * coordinates to be publicly accessible. This makes {@link KDPoint}s <b>mutable</b>,
-	 * so deep copies will be required wherever we copy {@link KDPoint}s.
+	 * so deep copies will be required wherever we copy {@link KDPoint}s, unless they are {@link ImmutableKDPoint}s.
 	 */
 	public int[] coords;
 
@@ -106,17 +106,19 @@ public class KDPoint {
 
 	@Override
 	public int hashCode() {
-		int hash= 0;
+		// Polynomial hash, like java.util.Arrays#hashCode(int[]): it spreads nearby points much better than a
+		// weighted sum of the coordinates, and needs no floating point arithmetic.
+		int hash = 1;
 		for(int i = 0; i < coords.length; i++)
-			hash+= coords[i]  *  Math.pow(2,i);
+			hash = 31 * hash + coords[i];
 		return hash;
 	}
 
 	@Override
 	public boolean equals(Object o){
-		if(o == null)
-			return false;
-		if(o.getClass() != this.getClass())
+		if(o == this)
+			return true;
+		if(!(o instanceof KDPoint)) // Also false for null; an ImmutableKDPoint can be equal to a KDPoint.
 			return false;
 		KDPoint oCasted = (KDPoint)o; // No ClassCastExceptions here because of above check
 		if(oCasted.coords.length != coords.length)
@@ -126,20 +128,41 @@ public class KDPoint {
 				return false;
 		return true;
 	}
-	
+
+	/**
+	 * Calculate the <b>squared Euclidean distance</b> between this and p. Since the square root is monotonic,
+	 * comparing squared distances orders {@link KDPoint}s exactly like comparing {@link #euclideanDistance(KDPoint)
+	 * euclideanDistance}s, so tree traversals use this and only take the square root of the distances they return.
+	 * @param p The {@link KDPoint} to calculate the squared distance to.
+	 * @return The <b>squared Euclidean distance</b> between the two {@link KDPoint}s.
+	 * @throws RuntimeException if the dimensionality of the two KDPoints is different.
+	 */
+	public double squaredDistance(KDPoint p) throws RuntimeException{
+		if(coords.length != p.coords.length)
+			throw new RuntimeException("Cannot calculate the Euclidean Distance between KDPoints of different dimensionalities.");
+		return DistanceKernels.squaredDistance(coords, p.coords);
+	}
+
+	/**
+	 * A static version of squared distance calculations, symmetric like {@link #euclideanDistance(KDPoint, KDPoint)}.
+	 * @param p1 One of the two {@link KDPoint}s to calculate the squared distance of.
+	 * @param p2 One of the two {@link KDPoint}s to calculate the squared distance of.
+	 * @return The squared Euclidean distance between p1 and p2.
+	 * @see #squaredDistance(KDPoint)
+	 */
+	public static double squaredDistance(KDPoint p1, KDPoint p2){
+		return p1.squaredDistance(p2);
+	}
+
 	/**
 	 * Calculate the <b>Euclidean distance</b> between this and p.
 	 * @param p The {@link KDPoint} to calculate the distance to.
 	 * @return The <b>Euclidean distance</b> between the two {@link KDPoint}s.
 	 * @throws RuntimeException if the dimensionality of the two KDPoints is different.
+	 * @see #squaredDistance(KDPoint)
 	 */
-	public double euclideanDistance(KDPoint p) throws RuntimeException{ // TODO: Make faster
-		if(coords.length != p.coords.length)
-			throw new RuntimeException("Cannot calculate the Euclidean Distance between KDPoints of different dimensionalities.");
-		double sum = 0.0;
-		for(int i = 0; i < coords.length; i++)
-			sum = sum + Math.pow((coords[i] - p.coords[i]), 2);
-		return Math.sqrt(sum);
+	public double euclideanDistance(KDPoint p) throws RuntimeException{
+		return Math.sqrt(squaredDistance(p));
 	}
 	
 	/**
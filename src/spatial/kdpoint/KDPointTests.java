@@ -177,6 +177,93 @@ public class KDPointTests {
         }
     }
 
+    @Test
+    public void testKDPointSquaredDistance() {
+        assertEquals("The squared distance between a point and itself must be 0", 0,
+                origin3D.squaredDistance(origin3D), 0);
+        KDPoint complexPointOne = new KDPoint(3, 2, -1);
+        KDPoint complexPointTwo = new KDPoint(1, 3, 1);
+        assertEquals("The squared Euclidean distance between two points is wrong", 9,
+                complexPointOne.squaredDistance(complexPointTwo), 0);
+        assertEquals("The squared Euclidean distance (static squaredDistance()) between two points is wrong", 9,
+                KDPoint.squaredDistance(complexPointTwo, complexPointOne), 0);
+
+        // Squared distances must agree with euclidean distances everywhere.
+        for (int i = 0; i < MAX_ITER; i++) {
+            KDPoint p = new KDPoint(-r.nextInt(MAX_COORD), r.nextInt(MAX_COORD));
+            KDPoint q = new KDPoint(r.nextInt(MAX_COORD), -r.nextInt(MAX_COORD));
+            double dist = p.euclideanDistance(q);
+            assertEquals("The squared distance between " + p + " and " + q + " does not match their euclidean distance.",
+                    dist * dist, p.squaredDistance(q), EPS);
+        }
+
+        // Coordinate differences must not overflow int arithmetic.
+        KDPoint min = new KDPoint(Integer.MIN_VALUE), max = new KDPoint(Integer.MAX_VALUE);
+        assertEquals("The squared distance between the extreme int coordinates overflowed.",
+                Math.pow(2, 32) - 1, Math.sqrt(min.squaredDistance(max)), 0);
+
+        try {
+            origin2D.squaredDistance(origin3D);
+            fail("Expected RuntimeException");
+        } catch (RuntimeException e) {}
+    }
+
+    @Test
+    public void testDistanceKernelsMatchPointwiseDistances() {
+        for (int dim = 1; dim <= 70; dim++) {
+            KDPoint p = randomPoint(dim), q = randomPoint(dim);
+            double expected = 0;
+            for (int i = 0; i < dim; i++)
+                expected += Math.pow((double) p.coords[i] - q.coords[i], 2);
+            assertEquals("The kernel distance differs from the pointwise one in " + dim + " dimensions.",
+                    expected, DistanceKernels.squaredDistance(p.coords, q.coords), 0);
+
+            // the same runs, stored back to back in one flat array
+            int[] flat = new int[3 * dim];
+            System.arraycopy(q.coords, 0, flat, dim, dim);
+            System.arraycopy(p.coords, 0, flat, 2 * dim, dim);
+            assertEquals("The kernel distance between runs of a flat array differs from the pointwise one in " + dim + " dimensions.",
+                    expected, DistanceKernels.squaredDistance(flat, 2 * dim, flat, dim, dim), 0);
+            assertEquals("The squared distance of a point from itself must be 0.",
+                    0, DistanceKernels.squaredDistance(p.coords, 0, flat, 2 * dim, dim), 0);
+
+            // one anchor against a bucket of points, stored back to back, skipping the first and the last
+            KDPoint[] bucket = new KDPoint[21];
+            int[] coords = new int[bucket.length * dim];
+            for (int i = 0; i < bucket.length; i++) {
+                bucket[i] = (i == 7) ? new KDPoint(p) : randomPoint(dim);
+                System.arraycopy(bucket[i].coords, 0, coords, i * dim, dim);
+            }
+            double[] out = new double[bucket.length];
+            DistanceKernels.squaredDistances(p.coords, coords, 1, bucket.length - 1, out);
+            for (int i = 1; i < bucket.length - 1; i++)
+                assertEquals("Batch distance differs from the pointwise one in " + dim + " dimensions.",
+                        p.squaredDistance(bucket[i]), out[i - 1], 0);
+            assertEquals("The squared distance of a point from itself must be 0.", 0, out[6], 0);
+        }
+    }
+
+    private KDPoint randomPoint(int dim) {
+        int[] coords = new int[dim];
+        for (int i = 0; i < dim; i++)
+            coords[i] = r.nextInt(2 * MAX_COORD) - MAX_COORD;
+        return new KDPoint(coords);
+    }
+
+    @Test
+    public void testImmutableKDPointEqualsAndHashesLikeKDPoint() {
+        for (int i = 0; i < MAX_ITER; i++) {
+            KDPoint p = randomPoint(1 + r.nextInt(5));
+            ImmutableKDPoint frozen = ImmutableKDPoint.of(p);
+            assertEquals("A frozen KDPoint should be equal to the original.", p, frozen);
+            assertEquals("A KDPoint should be equal to its frozen copy.", frozen, p);
+            assertEquals("A frozen KDPoint should hash like the original.", p.hashCode(), frozen.hashCode());
+            assertSame("Freezing an ImmutableKDPoint should not copy it.", frozen, ImmutableKDPoint.of(frozen));
+            p.coords[0]++;
+            assertNotEquals("Freezing a KDPoint should copy its coordinates.", p, frozen);
+        }
+    }
+
     @Test
     public void testKDPointToString() {
 
@@ -150,7 +150,24 @@ public class BoundedPriorityQueue<T> implements PriorityQueue<T> {
 	}
 
 	/**
-	 * Inspects whether a given element is in the queue. O(N) complexity.
+	 * Returns the priority of the last element in the queue. Branch-and-bound
+	 * traversals compare it against their pruning bounds directly, instead of
+	 * recomputing the distance of {@link #last()} to the anchor.
+	 *
+	 * @return The maximum priority held by our queue, or
+	 *         {@link Double#POSITIVE_INFINITY} if the queue is empty.
+	 */
+	public double lastPriority() {
+		if (this.queue.size() == 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return this.queue.get(this.size() - 1).getPriority();
+	}
+
+	/**
+	 * Inspects whether a given element is in the queue. O(N) complexity. The
+	 * elements held by the queue are compared with {@code element} through
+	 * {@link Object#equals(Object)}; their priorities play no part.
 	 * 
 	 * @param element The element to search for.
 	 * @return {@code true} iff {@code element} is in {@code this}, {@code false}
@@ -158,7 +175,7 @@ public class BoundedPriorityQueue<T> implements PriorityQueue<T> {
 	 */
 	public boolean contains(T element) {
 		for(int i = 0; i < this.queue.size(); i++) {
-			if (this.queue.get(i).equals(element)){
+			if (this.queue.get(i).getData().equals(element)){
 				return true;
 			}
 		}
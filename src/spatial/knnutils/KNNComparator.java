@@ -1,6 +1,8 @@
 package spatial.knnutils;
 
 import spatial.kdpoint.KDPoint;
+import spatial.metrics.DistanceMetric;
+import spatial.metrics.EuclideanMetric;
 
 import java.io.Serializable;
 import java.util.Comparator;
@@ -24,6 +26,11 @@ public class KNNComparator<T extends KDPoint> implements Comparator<T>, Serializ
 	 */
 	private T anchor;
 
+	/**
+	 * The {@link DistanceMetric} that distances to the anchor are measured with.
+	 */
+	private DistanceMetric metric;
+
 	/**
 	 * A default serial version ID so that the compiler doesn't complain.
 	 */
@@ -34,12 +41,23 @@ public class KNNComparator<T extends KDPoint> implements Comparator<T>, Serializ
 	 * @param arg The {@link KDPoint} object used as the basis of all future comparisons. 
 	 */
 	public KNNComparator(T arg) {
+		this(arg, EuclideanMetric.INSTANCE);
+	}
+
+	/**
+	 * Stores the anchor point, and the {@link DistanceMetric} that all future comparisons measure distances with.
+	 * @param arg The {@link KDPoint} object used as the basis of all future comparisons.
+	 * @param metric The {@link DistanceMetric} that distances to arg are measured with.
+	 */
+	public KNNComparator(T arg, DistanceMetric metric) {
 		anchor = arg;
+		this.metric = metric;
 	}
 
 	@Override
 	public int compare(T o1, T o2) {
-		double comparison = o1.euclideanDistance(anchor) - o2.euclideanDistance(anchor);
+		// reduced distances order points exactly like distances do
+		double comparison = metric.reducedDistance(o1, anchor) - metric.reducedDistance(o2, anchor);
 		if(comparison < 0) // o1 closer
 			return -1;
 		else if(comparison == 0) // same distance
@@ -0,0 +1,100 @@
+package spatial.knnutils;
+
+import spatial.kdpoint.KDPoint;
+
+/**
+ * <p>{@link KNNGraph} holds the result of an all-k-nearest neighbors join: for every <em>query</em> {@link KDPoint}, its
+ * k nearest <em>reference</em> {@link KDPoint}s, nearest first. Instead of one {@link BoundedPriorityQueue} per query
+ * point, the whole graph lives in three primitive arrays, in compressed sparse row form: the neighbors of query i are
+ * the reference indices {@code neighbors[offsets[i] .. offsets[i + 1] - 1]}, and their distances are stored at the same
+ * positions of {@code distances}. Points are identified by their index in {@link #getQuery(int)} and
+ * {@link #getReference(int)}, which are the same array for a join of a tree with itself.</p>
+ *
+ * <p>A query point has fewer than k neighbors only if there are fewer than k reference points other than itself.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see spatial.trees.KDTree#allKNearestNeighbors(int)
+ */
+public class KNNGraph {
+
+	private final int k;
+	private final KDPoint[] queries, references;
+	private final int[] offsets, neighbors;
+	private final double[] distances;
+
+	/**
+	 * Wraps the arrays of a join. They are not copied.
+	 * @param k The number of neighbors requested per query point.
+	 * @param queries The query points.
+	 * @param references The reference points; the same array as queries for a join of a tree with itself.
+	 * @param offsets The first position of the neighbors of every query point, plus the total number of neighbors at
+	 *                the end; queries.length + 1 entries.
+	 * @param neighbors The reference indices of the neighbors, nearest first for every query point.
+	 * @param distances The distances of the neighbors, at the same positions.
+	 */
+	public KNNGraph(int k, KDPoint[] queries, KDPoint[] references, int[] offsets, int[] neighbors, double[] distances){
+		this.k = k;
+		this.queries = queries;
+		this.references = references;
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+		this.distances = distances;
+	}
+
+	/**
+	 * @return The number of neighbors requested per query point.
+	 */
+	public int getK(){
+		return k;
+	}
+
+	/**
+	 * @return The number of query points.
+	 */
+	public int size(){
+		return queries.length;
+	}
+
+	/**
+	 * @param i The index of a query point.
+	 * @return The query point at index i.
+	 */
+	public KDPoint getQuery(int i){
+		return queries[i];
+	}
+
+	/**
+	 * @param j The index of a reference point.
+	 * @return The reference point at index j.
+	 */
+	public KDPoint getReference(int j){
+		return references[j];
+	}
+
+	/**
+	 * @param i The index of a query point.
+	 * @return The number of neighbors found for query point i: k, unless there are fewer reference points.
+	 */
+	public int degree(int i){
+		return offsets[i + 1] - offsets[i];
+	}
+
+	/**
+	 * @param i The index of a query point.
+	 * @param rank The rank of the neighbor, from 0 (zero) for the nearest one to {@link #degree(int)} - 1.
+	 * @return The reference index of the neighbor of query point i at that rank.
+	 */
+	public int neighbor(int i, int rank){
+		return neighbors[offsets[i] + rank];
+	}
+
+	/**
+	 * @param i The index of a query point.
+	 * @param rank The rank of the neighbor, from 0 (zero) for the nearest one to {@link #degree(int)} - 1.
+	 * @return The distance between query point i and its neighbor at that rank.
+	 */
+	public double distance(int i, int rank){
+		return distances[offsets[i] + rank];
+	}
+}
@@ -0,0 +1,49 @@
+package spatial.metrics;
+
+/**
+ * <p>{@link ChebyshevMetric} is the L<sub>&infin;</sub> norm: the largest absolute coordinate difference. It is its own
+ * reduced distance. Unlike the other norms, coordinates are combined with a maximum instead of a sum, which
+ * {@link #accumulate(double, int, double)} takes care of; the pruning bounds need nothing else.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see DistanceMetric
+ * @see MinkowskiMetric
+ */
+public final class ChebyshevMetric implements DistanceMetric {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The one instance that everybody can share; the metric has no state.
+     */
+    public static final ChebyshevMetric INSTANCE = new ChebyshevMetric();
+
+    private ChebyshevMetric(){
+    }
+
+    // deserialization hands back the shared instance
+    private Object readResolve(){
+        return INSTANCE;
+    }
+
+    @Override
+    public double accumulate(double reduced, int dim, double diff){
+        return Math.max(reduced, Math.abs(diff));
+    }
+
+    @Override
+    public double toReduced(double distance){
+        return distance;
+    }
+
+    @Override
+    public double fromReduced(double reduced){
+        return reduced;
+    }
+
+    @Override
+    public String toString(){
+        return "Chebyshev";
+    }
+}
@@ -0,0 +1,169 @@
+package spatial.metrics;
+
+import spatial.kdpoint.KDPoint;
+
+import java.io.Serializable;
+
+/**
+ * <p>{@link DistanceMetric} is an abstraction over the distance functions that {@link spatial.trees.KDTree}s and
+ * {@link spatial.trees.PRQuadTree}s can answer range and nearest neighbor queries for. Every metric is a coordinate-wise
+ * norm of the difference between two {@link KDPoint}s: the distance is built up by folding the contribution of one
+ * coordinate difference at a time into an accumulator, through {@link #accumulate(double, int, double)}.</p>
+ *
+ * <p>For speed, the trees never compare actual distances, but <b>reduced</b> distances: a cheap, strictly increasing
+ * transformation of the distance, such as the squared distance for {@link EuclideanMetric}. Reduced distances order
+ * {@link KDPoint}s exactly like distances do, and {@link #toReduced(double)} and {@link #fromReduced(double)} convert
+ * between the two only where a distance enters or leaves a query.</p>
+ *
+ * <p>Because a norm can only grow when more coordinates contribute, folding in a <em>subset</em> of the coordinate
+ * differences gives a lower bound on the distance. This is what makes pruning metric-correct:</p>
+ * <ul>
+ *     <li>{@link #reducedPlaneDistance(int, double)} bounds the distance to anything on the other side of a
+ *     <em>K</em>-D Tree splitting plane,</li>
+ *     <li>{@link #reducedBoxDistance(KDPoint, double[], double[])} is the exact distance to the closest point of an
+ *     axis-aligned box such as a PR-QuadTree quadrant, or the cell of a <em>K</em>-D Tree node, and</li>
+ *     <li>{@link #reducedFarthestBoxDistance(KDPoint, double[], double[])} bounds it from above, so that a box which
+ *     lies entirely within a range can be accepted without looking at its points one by one.</li>
+ * </ul>
+ *
+ * <p>Minor detail: since {@link DistanceMetric} is an <b>interface</b>, all of its methods are implicitly public, so
+ * the explicit scope modifier is <b>not needed</b> in the source.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see EuclideanMetric
+ * @see ManhattanMetric
+ * @see ChebyshevMetric
+ * @see WeightedEuclideanMetric
+ * @see MinkowskiMetric
+ */
+public interface DistanceMetric extends Serializable {
+
+    /**
+     * Folds the difference between two points in a single coordinate into a reduced distance accumulator.
+     * @param reduced The reduced distance accumulated so far; 0 (zero) for no coordinates at all.
+     * @param dim The coordinate that the difference was taken in.
+     * @param diff The difference of the two points in coordinate dim. Its sign is irrelevant.
+     * @return The reduced distance accounting for diff as well.
+     */
+    double accumulate(double reduced, int dim, double diff);
+
+    /**
+     * Converts a distance to its reduced form.
+     * @param distance A non-negative distance under this metric.
+     * @return The reduced distance that corresponds to distance.
+     */
+    double toReduced(double distance);
+
+    /**
+     * Converts a reduced distance back to an actual distance.
+     * @param reduced A reduced distance, as returned by {@link #reducedDistance(KDPoint, KDPoint)}.
+     * @return The distance that corresponds to reduced.
+     */
+    double fromReduced(double reduced);
+
+    /**
+     * <p>Converts the radius of a range query to the reduced distance that query results are compared against. This
+     * is {@link #toReduced(double)}, nudged by a few units in the last place such that a reduced distance {@code r}
+     * satisfies {@code r <= reducedRange(range)} <b>exactly when</b> {@code fromReduced(r) <= range}. Without the
+     * correction, rounding could exclude a point that lies exactly at distance range, such as a point at distance
+     * {@code sqrt(3)} from a query with range {@code sqrt(3)}, since {@code sqrt(3) * sqrt(3) < 3}.</p>
+     *
+     * <p>Range queries call this once, and then only compare reduced distances.</p>
+     * @param range The <b>INCLUSIVE</b> radius of a range query.
+     * @return The largest reduced distance which is within range.
+     */
+    default double reducedRange(double range){
+        double reduced = toReduced(range);
+        for(int i = 0; i < 64 && fromReduced(reduced) > range; i++)
+            reduced = Math.nextDown(reduced);
+        for(int i = 0; i < 64 && fromReduced(Math.nextUp(reduced)) <= range; i++)
+            reduced = Math.nextUp(reduced);
+        return reduced;
+    }
+
+    /**
+     * Calculates the reduced distance between two {@link KDPoint}s.
+     * @param p1 One of the two {@link KDPoint}s.
+     * @param p2 One of the two {@link KDPoint}s.
+     * @return The reduced distance between p1 and p2. It is 0 (zero) <b>iff</b> the points are equal.
+     * @throws RuntimeException if the dimensionality of the two KDPoints is different.
+     */
+    default double reducedDistance(KDPoint p1, KDPoint p2){
+        if(p1.coords.length != p2.coords.length)
+            throw new RuntimeException("Cannot calculate the distance between KDPoints of different dimensionalities.");
+        double reduced = 0.0;
+        for(int i = 0; i < p1.coords.length; i++)
+            reduced = accumulate(reduced, i, (double) p1.coords[i] - p2.coords[i]);
+        return reduced;
+    }
+
+    /**
+     * Calculates the distance between two {@link KDPoint}s.
+     * @param p1 One of the two {@link KDPoint}s.
+     * @param p2 One of the two {@link KDPoint}s.
+     * @return The distance between p1 and p2.
+     */
+    default double distance(KDPoint p1, KDPoint p2){
+        return fromReduced(reducedDistance(p1, p2));
+    }
+
+    /**
+     * A lower bound on the reduced distance from a point to any point on the other side of an axis-aligned splitting
+     * plane.
+     * @param dim The coordinate that the plane is perpendicular to.
+     * @param diff The difference between the point's coordinate in dim and the plane's.
+     * @return A reduced distance that no point across the plane can be closer than.
+     */
+    default double reducedPlaneDistance(int dim, double diff){
+        return accumulate(0.0, dim, diff);
+    }
+
+    /**
+     * The reduced distance from a point to the closest point of an axis-aligned box. It is 0 (zero) if the point lies
+     * in the box.
+     * @param p The {@link KDPoint}.
+     * @param low The lowest coordinates of the box, per dimension.
+     * @param high The highest coordinates of the box, per dimension.
+     * @return The reduced distance from p to the box.
+     */
+    default double reducedBoxDistance(KDPoint p, double[] low, double[] high){
+        double reduced = 0.0;
+        for(int i = 0; i < p.coords.length; i++){
+            double gap = Math.max(0.0, Math.max(low[i] - p.coords[i], p.coords[i] - high[i]));
+            reduced = accumulate(reduced, i, gap);
+        }
+        return reduced;
+    }
+
+    /**
+     * The reduced distance from a point to the farthest point of an axis-aligned box, which is one of its corners.
+     * Every point of the box is at most this far from p, so a range query can accept a whole box at once when this is
+     * within its range.
+     * @param p The {@link KDPoint}.
+     * @param low The lowest coordinates of the box, per dimension. They may be infinite.
+     * @param high The highest coordinates of the box, per dimension. They may be infinite.
+     * @return The reduced distance from p to the farthest corner of the box; infinite if the box is unbounded.
+     * @see #reducedBoxDistance(KDPoint, double[], double[])
+     */
+    default double reducedFarthestBoxDistance(KDPoint p, double[] low, double[] high){
+        double reduced = 0.0;
+        for(int i = 0; i < p.coords.length; i++){
+            double gap = Math.max(p.coords[i] - low[i], high[i] - p.coords[i]);
+            reduced = accumulate(reduced, i, gap);
+        }
+        return reduced;
+    }
+
+    /**
+     * Checks whether this metric can measure distances between points of the provided dimensionality. Trees call this
+     * once, when they are created, so that a metric built for a different number of coordinates is rejected up front
+     * rather than on the first query.
+     * @param dims The dimensionality of the points of a tree.
+     * @return true iff this can measure distances between dims-dimensional points. The default accepts every
+     * dimensionality.
+     */
+    default boolean supportsDims(int dims){
+        return true;
+    }
+}
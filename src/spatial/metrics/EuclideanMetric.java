@@ -0,0 +1,56 @@
+package spatial.metrics;
+
+import spatial.kdpoint.KDPoint;
+
+/**
+ * <p>{@link EuclideanMetric} is the default {@link DistanceMetric} of our trees: the L<sub>2</sub> norm, as computed by
+ * {@link KDPoint#euclideanDistance(KDPoint)}. Its reduced distance is the {@link KDPoint#squaredDistance(KDPoint)
+ * squared distance}, which spares every comparison a square root.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see DistanceMetric
+ * @see WeightedEuclideanMetric
+ */
+public final class EuclideanMetric implements DistanceMetric {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The one instance that everybody can share; the metric has no state.
+     */
+    public static final EuclideanMetric INSTANCE = new EuclideanMetric();
+
+    private EuclideanMetric(){
+    }
+
+    // deserialization hands back the shared instance, which the trees compare against by identity
+    private Object readResolve(){
+        return INSTANCE;
+    }
+
+    @Override
+    public double accumulate(double reduced, int dim, double diff){
+        return reduced + diff * diff;
+    }
+
+    @Override
+    public double toReduced(double distance){
+        return distance * distance;
+    }
+
+    @Override
+    public double fromReduced(double reduced){
+        return Math.sqrt(reduced);
+    }
+
+    @Override
+    public double reducedDistance(KDPoint p1, KDPoint p2){
+        return p1.squaredDistance(p2);
+    }
+
+    @Override
+    public String toString(){
+        return "Euclidean";
+    }
+}
@@ -0,0 +1,48 @@
+package spatial.metrics;
+
+/**
+ * <p>{@link ManhattanMetric} is the L<sub>1</sub> (&quot;city block&quot;) norm: the sum of the absolute coordinate
+ * differences. It is its own reduced distance.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see DistanceMetric
+ * @see MinkowskiMetric
+ */
+public final class ManhattanMetric implements DistanceMetric {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The one instance that everybody can share; the metric has no state.
+     */
+    public static final ManhattanMetric INSTANCE = new ManhattanMetric();
+
+    private ManhattanMetric(){
+    }
+
+    // deserialization hands back the shared instance
+    private Object readResolve(){
+        return INSTANCE;
+    }
+
+    @Override
+    public double accumulate(double reduced, int dim, double diff){
+        return reduced + Math.abs(diff);
+    }
+
+    @Override
+    public double toReduced(double distance){
+        return distance;
+    }
+
+    @Override
+    public double fromReduced(double reduced){
+        return reduced;
+    }
+
+    @Override
+    public String toString(){
+        return "Manhattan";
+    }
+}
@@ -0,0 +1,59 @@
+package spatial.metrics;
+
+/**
+ * <p>{@link MinkowskiMetric} is the L<sub>p</sub> norm for a real <em>p &ge; 1</em>:
+ * <em>(&Sigma; |p<sub>i</sub> - q<sub>i</sub>|<sup>p</sup>)<sup>1/p</sup></em>. Its reduced distance is the sum
+ * before the final root. For <em>p = 1</em> and <em>p = 2</em>, prefer {@link ManhattanMetric} and
+ * {@link EuclideanMetric}, which avoid calls to {@link Math#pow(double, double)}.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see DistanceMetric
+ */
+public final class MinkowskiMetric implements DistanceMetric {
+
+    private static final long serialVersionUID = 1L;
+
+    private final double p;
+
+    /**
+     * Creates a {@link MinkowskiMetric} of the provided order.
+     * @param p The order of the norm.
+     * @throws RuntimeException if p is smaller than 1 or not finite, in which case the function is not a
+     * metric and the trees could not prune with it.
+     */
+    public MinkowskiMetric(double p){
+        if(!(p >= 1) || Double.isInfinite(p))
+            throw new RuntimeException("The order provided, " + p + ", is invalid: Please provide a finite number of " +
+                    "at least 1.");
+        this.p = p;
+    }
+
+    /**
+     * A simple accessor for the order of the norm.
+     * @return The order p of the norm.
+     */
+    public double getP(){
+        return p;
+    }
+
+    @Override
+    public double accumulate(double reduced, int dim, double diff){
+        return reduced + Math.pow(Math.abs(diff), p);
+    }
+
+    @Override
+    public double toReduced(double distance){
+        return Math.pow(distance, p);
+    }
+
+    @Override
+    public double fromReduced(double reduced){
+        return Math.pow(reduced, 1.0 / p);
+    }
+
+    @Override
+    public String toString(){
+        return "Minkowski(p=" + p + ")";
+    }
+}
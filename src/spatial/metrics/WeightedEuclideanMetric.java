@@ -0,0 +1,65 @@
+package spatial.metrics;
+
+import java.util.Arrays;
+
+/**
+ * <p>{@link WeightedEuclideanMetric} is a Euclidean distance where every coordinate has its own weight:
+ * <em>sqrt(&Sigma; w<sub>i</sub> (p<sub>i</sub> - q<sub>i</sub>)<sup>2</sup>)</em>. It is useful when the coordinates
+ * of our {@link spatial.kdpoint.KDPoint}s are measured in different units. Like {@link EuclideanMetric}, its reduced
+ * distance is the squared distance.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see DistanceMetric
+ * @see EuclideanMetric
+ */
+public final class WeightedEuclideanMetric implements DistanceMetric {
+
+    private static final long serialVersionUID = 1L;
+
+    private final double[] weights;
+
+    /**
+     * Creates a {@link WeightedEuclideanMetric} with the provided per-coordinate weights.
+     * @param weights The weight of every coordinate. Its length must be the dimensionality of the points that the
+     *                metric will be used with. It is copied.
+     * @throws RuntimeException if no weights are provided, or some weight is not strictly positive and finite.
+     */
+    public WeightedEuclideanMetric(double... weights){
+        if(weights.length == 0)
+            throw new RuntimeException("No weights were provided: Please provide at least one weight.");
+        for(double w : weights)
+            if(!(w > 0) || Double.isInfinite(w))
+                throw new RuntimeException("The weight provided, " + w + ", is invalid: Please provide a strictly " +
+                        "positive, finite number.");
+        this.weights = Arrays.copyOf(weights, weights.length);
+    }
+
+    @Override
+    public double accumulate(double reduced, int dim, double diff){
+        return reduced + weights[dim] * diff * diff;
+    }
+
+    @Override
+    public double toReduced(double distance){
+        return distance * distance;
+    }
+
+    @Override
+    public double fromReduced(double reduced){
+        return Math.sqrt(reduced);
+    }
+
+    /**
+     * {@inheritDoc} There must be exactly one weight per coordinate.
+     */
+    @Override
+    public boolean supportsDims(int dims){
+        return weights.length == dims;
+    }
+
+    @Override
+    public String toString(){
+        return "WeightedEuclidean" + Arrays.toString(weights);
+    }
+}
@@ -0,0 +1,116 @@
+package spatial.nodes;
+
+import spatial.knnutils.BoundedPriorityQueue;
+
+/**
+ * A bounded max-heap of (node id, distance) pairs, so that the farthest of the
+ * k best candidates is always at index 0. Ties keep the candidate that was
+ * offered first, like {@link BoundedPriorityQueue} does. The array based trees
+ * collect kNN candidates as plain {@code int} ids in it, and only turn the k
+ * survivors into {@link spatial.kdpoint.KDPoint}s.
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see KDTreeArena
+ * @see StaticKDTreeLayout
+ */
+final class CandidateHeap {
+	final int[] id;
+	final double[] dist;
+	private final int[] order;
+	int size;
+	private int offered;
+
+	CandidateHeap(int capacity) {
+		id = new int[capacity];
+		dist = new double[capacity];
+		order = new int[capacity];
+	}
+
+	boolean isFull() {
+		return size == id.length;
+	}
+
+	// true iff slot a should sit above slot b in the heap
+	private boolean above(int a, int b) {
+		return dist[a] > dist[b] || (dist[a] == dist[b] && order[a] > order[b]);
+	}
+
+	void offer(int node, double d) {
+		if (isFull()) {
+			if (d >= dist[0]) {
+				return;
+			}
+			set(0, node, d, offered++);
+			siftDown(0);
+		} else {
+			set(size, node, d, offered++);
+			siftUp(size++);
+		}
+	}
+
+	/**
+	 * Empties the heap, nearest candidate first.
+	 *
+	 * @param ids   Receives the ids of the candidates, in ascending distance.
+	 * @param dists Receives the matching distances.
+	 * @return The number of candidates drained.
+	 */
+	int drainAscending(int[] ids, double[] dists) {
+		int found = size;
+		for (int i = found - 1; i >= 0; i--) { // the heap yields the farthest candidate first
+			dists[i] = dist[0];
+			ids[i] = poll();
+		}
+		return found;
+	}
+
+	int poll() {
+		int top = id[0];
+		size--;
+		set(0, id[size], dist[size], order[size]);
+		siftDown(0);
+		return top;
+	}
+
+	private void set(int slot, int node, double d, int o) {
+		id[slot] = node;
+		dist[slot] = d;
+		order[slot] = o;
+	}
+
+	private void swap(int a, int b) {
+		int tmpId = id[a], tmpOrder = order[a];
+		double tmpDist = dist[a];
+		set(a, id[b], dist[b], order[b]);
+		set(b, tmpId, tmpDist, tmpOrder);
+	}
+
+	private void siftUp(int slot) {
+		while (slot > 0) {
+			int parent = (slot - 1) / 2;
+			if (!above(slot, parent)) {
+				return;
+			}
+			swap(slot, parent);
+			slot = parent;
+		}
+	}
+
+	private void siftDown(int slot) {
+		while (true) {
+			int largest = slot, l = 2 * slot + 1, r = l + 1;
+			if (l < size && above(l, largest)) {
+				largest = l;
+			}
+			if (r < size && above(r, largest)) {
+				largest = r;
+			}
+			if (largest == slot) {
+				return;
+			}
+			swap(slot, largest);
+			slot = largest;
+		}
+	}
+}
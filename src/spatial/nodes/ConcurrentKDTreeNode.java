@@ -0,0 +1,301 @@
+package spatial.nodes;
+
+import spatial.kdpoint.ImmutableKDPoint;
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.NNData;
+import spatial.metrics.DistanceMetric;
+import spatial.trees.KDTree;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * <p>
+ * {@link ConcurrentKDTreeNode} is a node of an <b>insert-only</b> KD-Tree that
+ * any number of threads may grow and query at once, without locks. Its point
+ * is final, and its child links only ever change once, from null to a fresh
+ * node, by a compare-and-set: an insertion that loses the race for a link
+ * simply carries on below the node that won it. Since no link is ever cut or
+ * moved, a traversal that reads every link once can never see a broken
+ * subtree; it sees each insertion either completely or not at all.
+ * </p>
+ *
+ * <p>
+ * The nodes keep no heights or sizes, which every insertion would otherwise
+ * contend for along its whole path, so rebalancing, deletions and counting
+ * queries are left to {@link KDTreeNode}.
+ * </p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see spatial.trees.ConcurrentKDTree
+ */
+public class ConcurrentKDTreeNode {
+
+	private static final AtomicReferenceFieldUpdater<ConcurrentKDTreeNode, ConcurrentKDTreeNode> LEFT = AtomicReferenceFieldUpdater
+			.newUpdater(ConcurrentKDTreeNode.class, ConcurrentKDTreeNode.class, "left");
+	private static final AtomicReferenceFieldUpdater<ConcurrentKDTreeNode, ConcurrentKDTreeNode> RIGHT = AtomicReferenceFieldUpdater
+			.newUpdater(ConcurrentKDTreeNode.class, ConcurrentKDTreeNode.class, "right");
+
+	private final ImmutableKDPoint p;
+	private volatile ConcurrentKDTreeNode left, right; // set once, by LEFT and RIGHT
+
+	/**
+	 * 1-arg constructor. Stores the provided {@link KDPoint} inside the freshly
+	 * created node.
+	 *
+	 * @param p The {@link KDPoint} to store inside this, frozen into an
+	 *          {@link ImmutableKDPoint} so that readers on other threads see it
+	 *          whole.
+	 */
+	public ConcurrentKDTreeNode(KDPoint p) {
+		this.p = ImmutableKDPoint.of(p);
+	}
+
+	// private helper for calculating next dimension to use for Tree operations
+	private static int nextDim(int currentDim, int totalDims) {
+		return (currentDim + 1 == totalDims) ? 0 : currentDim + 1;
+	}
+
+	/**
+	 * Inserts the provided {@link KDPoint} in the tree rooted at this, like
+	 * {@link KDTreeNode#insert(KDPoint, int, int)} does: points equal to the split
+	 * value go right. The new node is installed with a single compare-and-set on
+	 * the empty link it is found for, and if another thread installs a node there
+	 * first, the descent goes on from that node, so the insertion never blocks and
+	 * never retries from the top.
+	 *
+	 * @param pIn     The {@link KDPoint} to insert into the node.
+	 * @param currDim The current dimension to consider.
+	 * @param dims    The total number of dimensions that the space considers.
+	 */
+	public void insert(KDPoint pIn, int currDim, int dims) {
+		ConcurrentKDTreeNode node = new ConcurrentKDTreeNode(pIn), curr = this;
+		while (true) {
+			boolean right = pIn.coords[currDim] >= curr.p.coords[currDim];
+			ConcurrentKDTreeNode next = right ? curr.right : curr.left;
+			if (next == null) {
+				if ((right ? RIGHT : LEFT).compareAndSet(curr, null, node)) {
+					return;
+				}
+				next = right ? curr.right : curr.left; // lost the race: follow the winner
+			}
+			curr = next;
+			currDim = nextDim(currDim, dims);
+		}
+	}
+
+	/**
+	 * Searches the subtree rooted at the current node for the provided
+	 * {@link KDPoint}.
+	 *
+	 * @param pIn     The {@link KDPoint} to search for.
+	 * @param currDim The current dimension considered.
+	 * @param dims    The total number of dimensions considered.
+	 * @return true iff pIn was found in the subtree rooted at this, false
+	 *         otherwise.
+	 */
+	public boolean search(KDPoint pIn, int currDim, int dims) {
+		ConcurrentKDTreeNode curr = this;
+		while (curr != null) {
+			if (curr.p.equals(pIn)) {
+				return true;
+			}
+			// points equal to the split value live on the right
+			curr = (pIn.coords[currDim] >= curr.p.coords[currDim]) ? curr.right : curr.left;
+			currDim = nextDim(currDim, dims);
+		}
+		return false;
+	}
+
+	/**
+	 * Executes a range query like
+	 * {@link KDTreeNode#range(KDPoint, Collection, double, int, int, DistanceMetric)}
+	 * does: all {@link KDPoint}s within range of the anchor, <b>INCLUSIVE</b>,
+	 * except for the anchor itself, are added to results.
+	 *
+	 * @param anchor  The centroid of the ball that the range query implicitly
+	 *                creates.
+	 * @param results A {@link Collection} that accumulates all the results.
+	 * @param range   The <b>INCLUSIVE</b> range from the anchor.
+	 * @param currDim The current dimension examined by the node.
+	 * @param dims    The total number of dimensions considered.
+	 * @param metric  The {@link DistanceMetric} that measures distances.
+	 */
+	public void range(KDPoint anchor, Collection<KDPoint> results, double range, int currDim, int dims,
+			DistanceMetric metric) {
+		double reducedRange = metric.reducedRange(range);
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(this, currDim, 0.0);
+			while (!stack.isEmpty()) {
+				ConcurrentKDTreeNode curr = (ConcurrentKDTreeNode) stack.pop();
+				int d = stack.poppedInt();
+				if (!curr.p.equals(anchor) && metric.reducedDistance(curr.p, anchor) <= reducedRange) {
+					results.add(curr.p);
+				}
+				double diff = (double) anchor.coords[d] - curr.p.coords[d];
+				ConcurrentKDTreeNode near = (diff < 0) ? curr.left : curr.right;
+				ConcurrentKDTreeNode far = (diff < 0) ? curr.right : curr.left;
+				// PRUNING: the far side of the split only matters if the ball crosses its plane
+				if (far != null && metric.reducedPlaneDistance(d, diff) <= reducedRange) {
+					stack.push(far, nextDim(d, dims), 0.0);
+				}
+				if (near != null) {
+					stack.push(near, nextDim(d, dims), 0.0);
+				}
+			}
+		} finally {
+			stack.release();
+		}
+	}
+
+	/**
+	 * Executes a nearest neighbor query like
+	 * {@link KDTreeNode#nearestNeighbor(KDPoint, int, NNData, int, DistanceMetric)}
+	 * does.
+	 *
+	 * @param anchor  The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param currDim The current dimension considered.
+	 * @param n       The best guess so far, with its distance from the anchor.
+	 * @param dims    The total number of dimensions considered.
+	 * @param metric  The {@link DistanceMetric} that measures distances.
+	 * @return n, updated with the nearest neighbor found and its distance.
+	 */
+	public NNData<KDPoint> nearestNeighbor(KDPoint anchor, int currDim, NNData<KDPoint> n, int dims,
+			DistanceMetric metric) {
+		// A single neighbor is a kNN query with k = 1, seeded with the caller's best guess.
+		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(1);
+		if (n.getBestDist() != KDTree.INFTY) {
+			queue.enqueue(n.getBestGuess(), metric.toReduced(n.getBestDist()));
+		}
+		kNearestNeighbors(1, anchor, queue, currDim, dims, metric);
+		if (!queue.isEmpty()) {
+			n.update(queue.first(), metric.fromReduced(queue.lastPriority()));
+		}
+		return n;
+	}
+
+	/**
+	 * Executes a k-nearest neighbors query like
+	 * {@link KDTreeNode#kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, int, int, DistanceMetric)}
+	 * does. The priorities in the queue are reduced distances.
+	 *
+	 * @param k       The total number of neighbors to retrieve.
+	 * @param anchor  The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param queue   A {@link BoundedPriorityQueue} that will maintain at most k
+	 *                nearest neighbors of the anchor point at all times.
+	 * @param currDim The current dimension considered.
+	 * @param dims    The total number of dimensions considered.
+	 * @param metric  The {@link DistanceMetric} that measures distances.
+	 */
+	public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int currDim, int dims,
+			DistanceMetric metric) {
+		knn2(k, anchor, queue, Double.POSITIVE_INFINITY, currDim, dims, metric);
+	}
+
+	/**
+	 * Executes a k-nearest neighbors query that only accepts neighbors within
+	 * maxRadius of the anchor, <b>INCLUSIVE</b>, like
+	 * {@link KDTreeNode#kNearestNeighborsWithin(int, KDPoint, BoundedPriorityQueue, int, int, DistanceMetric, double)}
+	 * does. The priorities in the queue are reduced distances.
+	 *
+	 * @param k         The total number of neighbors to retrieve.
+	 * @param anchor    The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param queue     A {@link BoundedPriorityQueue} that will maintain at most
+	 *                  k nearest neighbors of the anchor point at all times.
+	 * @param currDim   The current dimension considered.
+	 * @param dims      The total number of dimensions considered.
+	 * @param metric    The {@link DistanceMetric} that measures distances.
+	 * @param maxRadius The largest distance from the anchor that a neighbor may
+	 *                  have.
+	 */
+	public void kNearestNeighborsWithin(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int currDim,
+			int dims, DistanceMetric metric, double maxRadius) {
+		knn2(k, anchor, queue, metric.reducedRange(maxRadius), currDim, dims, metric);
+	}
+
+	// private helper for k-nearest neighbors queries, which never look farther than reducedRadius from the anchor
+	private void knn2(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, double reducedRadius, int currDim,
+			int dims, DistanceMetric metric) {
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(this, currDim, 0.0);
+			while (!stack.isEmpty()) {
+				ConcurrentKDTreeNode curr = (ConcurrentKDTreeNode) stack.pop();
+				int d = stack.poppedInt();
+				double bound = stack.poppedBound();
+				if (bound > reducedRadius || (queue.size() >= k && bound > queue.lastPriority())) {
+					continue;
+				}
+				if (!curr.p.equals(anchor)) {
+					double dist = metric.reducedDistance(curr.p, anchor);
+					if (dist <= reducedRadius) {
+						queue.enqueue(curr.p, dist);
+					}
+				}
+				// greedy descent towards the anchor
+				double diff = (double) anchor.coords[d] - curr.p.coords[d];
+				ConcurrentKDTreeNode near = (diff < 0) ? curr.left : curr.right;
+				ConcurrentKDTreeNode far = (diff < 0) ? curr.right : curr.left;
+				if (far != null) {
+					stack.push(far, nextDim(d, dims), metric.reducedPlaneDistance(d, diff));
+				}
+				if (near != null) {
+					stack.push(near, nextDim(d, dims), 0.0);
+				}
+			}
+		} finally {
+			stack.release();
+		}
+	}
+
+	/**
+	 * Computes the height of the subtree rooted at this, as it stands when each of
+	 * its links is read. Unlike {@link KDTreeNode#height()}, this takes time
+	 * linear in the size of the subtree, since no heights are kept.
+	 *
+	 * @return The height of the subtree rooted at this; 0 for a single node.
+	 */
+	public int height() {
+		int height = 0;
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(this, 0, 0.0);
+			while (!stack.isEmpty()) {
+				ConcurrentKDTreeNode curr = (ConcurrentKDTreeNode) stack.pop();
+				int depth = stack.poppedInt();
+				height = Math.max(height, depth);
+				ConcurrentKDTreeNode left = curr.left, right = curr.right;
+				if (left != null) {
+					stack.push(left, depth + 1, 0.0);
+				}
+				if (right != null) {
+					stack.push(right, depth + 1, 0.0);
+				}
+			}
+		} finally {
+			stack.release();
+		}
+		return height;
+	}
+
+	/**
+	 * A simple getter for the {@link KDPoint} held by the node.
+	 *
+	 * @return The {@link KDPoint} of this. It is immutable, so it is shared rather
+	 *         than copied.
+	 */
+	public ImmutableKDPoint getPoint() {
+		return p;
+	}
+
+	public ConcurrentKDTreeNode getLeft() {
+		return left;
+	}
+
+	public ConcurrentKDTreeNode getRight() {
+		return right;
+	}
+}
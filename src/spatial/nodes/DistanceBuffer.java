@@ -0,0 +1,61 @@
+package spatial.nodes;
+
+/**
+ * <p>
+ * A scratch array for the reduced distances of one bucket, which the scans of
+ * {@link KDTreeBucketNode} leaves and {@link PRQuadBlackNode}s fill all at once,
+ * through
+ * {@link spatial.kdpoint.DistanceKernels#squaredDistances(int[], int[], int, int, double[])}
+ * under the euclidean metric, before they walk the points of the bucket.
+ * </p>
+ *
+ * <p>
+ * Like {@link TraversalStack}, each thread keeps one buffer and reuses it across
+ * scans through {@link #acquire()} and {@link #release()}, so the array only
+ * grows until it fits the largest bucket seen. A scan that starts while the
+ * thread's buffer is in use (for example from inside a
+ * {@link java.util.Collection#add(Object)} callback) gets a fresh one.
+ * </p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ */
+final class DistanceBuffer {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final ThreadLocal<DistanceBuffer> CACHED = ThreadLocal.withInitial(DistanceBuffer::new);
+
+	private double[] distances = new double[INITIAL_CAPACITY];
+	private boolean inUse;
+
+	/**
+	 * @return The buffer of the calling thread. It must be handed back with
+	 *         {@link #release()} once the scan is over.
+	 */
+	static DistanceBuffer acquire() {
+		DistanceBuffer buffer = CACHED.get();
+		if (buffer.inUse) {
+			return new DistanceBuffer(); // re-entrant scan: never share the buffer
+		}
+		buffer.inUse = true;
+		return buffer;
+	}
+
+	/**
+	 * Makes the buffer available to the next {@link #acquire()} of the thread.
+	 */
+	void release() {
+		inUse = false;
+	}
+
+	/**
+	 * @param length The number of distances to hold.
+	 * @return An array of at least length slots, whose contents are undefined.
+	 */
+	double[] distances(int length) {
+		if (distances.length < length) {
+			distances = new double[Math.max(length, 2 * distances.length)];
+		}
+		return distances;
+	}
+}
@@ -0,0 +1,394 @@
+package spatial.nodes;
+
+import spatial.kdpoint.DistanceKernels;
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.KNNGraph;
+import spatial.metrics.DistanceMetric;
+import spatial.metrics.EuclideanMetric;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * {@link DualTreeKNN} computes an all-k-nearest neighbors join: the k nearest
+ * reference points of <em>every</em> query point, in one traversal of two trees
+ * instead of one descent from the root per query point. Both point sets are
+ * indexed by a bucketed KD-Tree whose nodes keep the bounding box of their
+ * points, and the join walks pairs of nodes, one from each tree:
+ * </p>
+ * <ul>
+ * <li>A pair is pruned when the distance between the two boxes is no smaller
+ * than the bound of the query node: the distance of the k-th candidate of its
+ * worst off point. No reference point in the pair can improve any query point
+ * in it.</li>
+ * <li>The bound of a query node is shared by all of its points, and is
+ * tightened bottom-up, as the largest bound of its two children, every time the
+ * join returns from them.</li>
+ * <li>Of two nodes of equal size, the query node is split first, and
+ * reference children are visited closest box first, so that every query node
+ * meets the reference points around it before the ones across a split, and the
+ * bounds shrink as early as possible.</li>
+ * <li>Pairs of leaves compare their points in a tight loop over flat
+ * coordinate arrays, skipping the query points whose own k-th candidate is
+ * already closer than the reference box.</li>
+ * </ul>
+ *
+ * <p>
+ * As with {@link KDTreeNode#kNearestNeighbors(int, KDPoint,
+ * spatial.knnutils.BoundedPriorityQueue, int, int, DistanceMetric)}, a
+ * reference point equal to the query point is never its neighbor. The
+ * candidates of all the query points live in one {@code int[]} and one
+ * {@code double[]} of k slots per point, each row a max-heap, and the result is
+ * a {@link KNNGraph} in compressed sparse row form.
+ * </p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see KNNGraph
+ * @see spatial.trees.KDTree#allKNearestNeighbors(int)
+ */
+public final class DualTreeKNN {
+
+	private static final int LEAF_SIZE = 16;
+
+	private final int k, dims;
+	private final DistanceMetric metric;
+	private final boolean euclidean; // take the squared distance kernel instead of folding coordinates one by one
+	private final BoxTree queryTree, referenceTree;
+
+	// the candidates of the query point in slot s, as a max-heap in [s * k, s * k + heapSizes[s])
+	private final int[] heapIds;
+	private final double[] heapDists;
+	private final int[] heapSizes;
+
+	// the reduced distance that a reference point must beat to be a candidate of any point under a query node
+	private final double[] bounds;
+
+	private DualTreeKNN(BoxTree queryTree, BoxTree referenceTree, int k, int dims, DistanceMetric metric) {
+		this.k = k;
+		this.dims = dims;
+		this.metric = metric;
+		this.euclidean = (metric == EuclideanMetric.INSTANCE);
+		this.queryTree = queryTree;
+		this.referenceTree = referenceTree;
+		int n = queryTree.index.length;
+		heapIds = new int[n * k];
+		heapDists = new double[n * k];
+		heapSizes = new int[n];
+		bounds = new double[queryTree.nodes];
+		Arrays.fill(bounds, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Finds the k nearest reference points of every query point.
+	 *
+	 * @param queries    The query points. The array is not modified.
+	 * @param references The reference points. Pass the same array as queries to
+	 *                   join a point set with itself, which indexes it only once.
+	 * @param k          The number of neighbors per query point.
+	 * @param dims       The total number of dimensions that the space considers.
+	 * @param metric     The {@link DistanceMetric} that measures distances.
+	 * @return The k nearest neighbors of every query point.
+	 */
+	public static KNNGraph join(KDPoint[] queries, KDPoint[] references, int k, int dims, DistanceMetric metric) {
+		BoxTree queryTree = new BoxTree(queries, dims);
+		BoxTree referenceTree = (references == queries) ? queryTree : new BoxTree(references, dims);
+		DualTreeKNN join = new DualTreeKNN(queryTree, referenceTree, k, dims, metric);
+		if (queryTree.nodes > 0 && referenceTree.nodes > 0) {
+			join.join(0, 0, join.boxDistance(0, 0));
+		}
+		return join.toGraph(queries, references);
+	}
+
+	private void join(int q, int r, double reducedBoxDistance) {
+		if (reducedBoxDistance >= bounds[q]) {
+			return; // nothing in r is close enough to improve anything in q
+		}
+		boolean queryLeaf = queryTree.isLeaf(q), referenceLeaf = referenceTree.isLeaf(r);
+		if (queryLeaf && referenceLeaf) {
+			scanLeaves(q, r);
+		} else if (queryLeaf || (!referenceLeaf && referenceTree.count(r) > queryTree.count(q))) {
+			// split the larger node, which is the reference one here
+			int near = referenceTree.left[r], far = referenceTree.right[r];
+			double nearDist = boxDistance(q, near), farDist = boxDistance(q, far);
+			// boxes that touch q tie at 0 (zero): then the one whose center is closer is more likely to hold neighbors
+			if (farDist < nearDist || (farDist == nearDist && centerGap(q, far) < centerGap(q, near))) {
+				int node = near;
+				near = far;
+				far = node;
+				double dist = nearDist;
+				nearDist = farDist;
+				farDist = dist;
+			}
+			join(q, near, nearDist);
+			join(q, far, farDist);
+		} else {
+			int left = queryTree.left[q], right = queryTree.right[q];
+			join(left, r, boxDistance(left, r));
+			join(right, r, boxDistance(right, r));
+			bounds[q] = Math.max(bounds[left], bounds[right]);
+		}
+	}
+
+	// the base case: offers every reference point of leaf r to every query point of leaf q
+	private void scanLeaves(int q, int r) {
+		double worst = 0.0;
+		for (int qs = queryTree.begin[q]; qs < queryTree.end[q]; qs++) {
+			if (heapSizes[qs] == k && pointBoxDistance(qs, r) >= heapDists[qs * k]) {
+				worst = Math.max(worst, heapDists[qs * k]);
+				continue; // the box of r is too far from this point, even if not from the whole of q
+			}
+			for (int rs = referenceTree.begin[r]; rs < referenceTree.end[r]; rs++) {
+				double dist = reducedDistance(qs, rs);
+				if (dist != 0) { // 0 only for copies of the query point itself
+					offer(qs, rs, dist);
+				}
+			}
+			worst = Math.max(worst, (heapSizes[qs] == k) ? heapDists[qs * k] : Double.POSITIVE_INFINITY);
+		}
+		bounds[q] = worst;
+	}
+
+	// private helper for the reduced distance between the points in query slot qs and reference slot rs
+	private double reducedDistance(int qs, int rs) {
+		int[] a = queryTree.coords, b = referenceTree.coords;
+		if (euclidean) {
+			return DistanceKernels.squaredDistance(a, qs * dims, b, rs * dims, dims);
+		}
+		double reduced = 0.0;
+		for (int i = 0; i < dims; i++) {
+			reduced = metric.accumulate(reduced, i, (double) a[qs * dims + i] - b[rs * dims + i]);
+		}
+		return reduced;
+	}
+
+	// private helper for the reduced distance between the boxes of query node q and reference node r
+	private double boxDistance(int q, int r) {
+		double reduced = 0.0;
+		for (int i = 0; i < dims; i++) {
+			int qi = q * dims + i, ri = r * dims + i;
+			double gap = Math.max(0.0, Math.max((double) referenceTree.low[ri] - queryTree.high[qi],
+					(double) queryTree.low[qi] - referenceTree.high[ri]));
+			reduced = metric.accumulate(reduced, i, gap);
+		}
+		return reduced;
+	}
+
+	// private helper for the reduced distance between the point in query slot qs and the box of reference node r
+	private double pointBoxDistance(int qs, int r) {
+		double reduced = 0.0;
+		for (int i = 0; i < dims; i++) {
+			int c = queryTree.coords[qs * dims + i], ri = r * dims + i;
+			double gap = Math.max(0.0, Math.max((double) referenceTree.low[ri] - c, (double) c - referenceTree.high[ri]));
+			reduced = metric.accumulate(reduced, i, gap);
+		}
+		return reduced;
+	}
+
+	// private helper for the L1 distance between the centers of the boxes of query node q and reference node r, doubled
+	private long centerGap(int q, int r) {
+		long gap = 0;
+		for (int i = 0; i < dims; i++) {
+			int qi = q * dims + i, ri = r * dims + i;
+			gap += Math.abs(((long) queryTree.low[qi] + queryTree.high[qi]) - ((long) referenceTree.low[ri] + referenceTree.high[ri]));
+		}
+		return gap;
+	}
+
+	// private helper that makes reference slot rs a candidate of query slot qs, if it beats the k-th one
+	private void offer(int qs, int rs, double dist) {
+		int base = qs * k, size = heapSizes[qs];
+		if (size < k) {
+			heapSizes[qs] = size + 1;
+			siftUp(base, size, rs, dist);
+		} else if (dist < heapDists[base]) {
+			siftDown(base, size, rs, dist);
+		}
+	}
+
+	// fills the hole at slot of the heap at base with (id, dist), moving it up towards the root
+	private void siftUp(int base, int slot, int id, double dist) {
+		while (slot > 0) {
+			int parent = (slot - 1) >>> 1;
+			if (heapDists[base + parent] >= dist) {
+				break;
+			}
+			heapIds[base + slot] = heapIds[base + parent];
+			heapDists[base + slot] = heapDists[base + parent];
+			slot = parent;
+		}
+		heapIds[base + slot] = id;
+		heapDists[base + slot] = dist;
+	}
+
+	// replaces the root of the heap at base, of the provided size, with (id, dist), moving it down
+	private void siftDown(int base, int size, int id, double dist) {
+		int slot = 0;
+		while (true) {
+			int child = 2 * slot + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && heapDists[base + child + 1] > heapDists[base + child]) {
+				child++;
+			}
+			if (heapDists[base + child] <= dist) {
+				break;
+			}
+			heapIds[base + slot] = heapIds[base + child];
+			heapDists[base + slot] = heapDists[base + child];
+			slot = child;
+		}
+		heapIds[base + slot] = id;
+		heapDists[base + slot] = dist;
+	}
+
+	// drains every heap, nearest candidate first, into the rows of a KNNGraph indexed like the input arrays
+	private KNNGraph toGraph(KDPoint[] queries, KDPoint[] references) {
+		int n = queries.length;
+		int[] offsets = new int[n + 1];
+		for (int qs = 0; qs < n; qs++) {
+			offsets[queryTree.index[qs] + 1] = heapSizes[qs];
+		}
+		for (int i = 0; i < n; i++) {
+			offsets[i + 1] += offsets[i];
+		}
+		int[] neighbors = new int[offsets[n]];
+		double[] distances = new double[offsets[n]];
+		for (int qs = 0; qs < n; qs++) {
+			int base = qs * k, row = offsets[queryTree.index[qs]];
+			for (int size = heapSizes[qs]; size > 0; size--) { // the heap yields the farthest candidate first
+				neighbors[row + size - 1] = referenceTree.index[heapIds[base]];
+				distances[row + size - 1] = metric.fromReduced(heapDists[base]);
+				siftDown(base, size - 1, heapIds[base + size - 1], heapDists[base + size - 1]);
+			}
+		}
+		return new KNNGraph(k, queries, references, offsets, neighbors, distances);
+	}
+
+	/*
+	 * A bucketed KD-Tree over a point set, for the join only: the points are
+	 * reordered so that every node covers a contiguous run of slots, and their
+	 * coordinates are copied into one flat array in slot order. Every node keeps
+	 * its run, its children (NIL for leaves) and the bounding box of its points.
+	 * Nodes split their run at the median of the dimension in which their box is
+	 * widest.
+	 */
+	private static final class BoxTree {
+		private static final int NIL = -1;
+
+		final int dims;
+		final int[] index; // index[slot] is the position of the point of slot in the input array
+		final int[] coords;
+		int[] begin, end, left, right;
+		int[] low, high;
+		int nodes;
+
+		BoxTree(KDPoint[] points, int dims) {
+			this.dims = dims;
+			int n = points.length;
+			index = new int[n];
+			for (int i = 0; i < n; i++) {
+				index[i] = i;
+			}
+			int capacity = Math.max(1, 4 * n / LEAF_SIZE);
+			begin = new int[capacity];
+			end = new int[capacity];
+			left = new int[capacity];
+			right = new int[capacity];
+			low = new int[capacity * dims];
+			high = new int[capacity * dims];
+			if (n > 0) {
+				build(points, 0, n);
+			}
+			coords = new int[n * dims];
+			for (int slot = 0; slot < n; slot++) {
+				System.arraycopy(points[index[slot]].coords, 0, coords, slot * dims, dims);
+			}
+		}
+
+		boolean isLeaf(int node) {
+			return left[node] == NIL;
+		}
+
+		int count(int node) {
+			return end[node] - begin[node];
+		}
+
+		// builds the subtree over the slots [from, to), and returns its root
+		private int build(KDPoint[] points, int from, int to) {
+			int node = newNode(from, to);
+			int widest = 0;
+			Arrays.fill(low, node * dims, node * dims + dims, Integer.MAX_VALUE);
+			Arrays.fill(high, node * dims, node * dims + dims, Integer.MIN_VALUE);
+			for (int slot = from; slot < to; slot++) {
+				int[] p = points[index[slot]].coords;
+				for (int i = 0; i < dims; i++) {
+					low[node * dims + i] = Math.min(low[node * dims + i], p[i]);
+					high[node * dims + i] = Math.max(high[node * dims + i], p[i]);
+				}
+			}
+			for (int i = 1; i < dims; i++) {
+				if ((long) high[node * dims + i] - low[node * dims + i]
+						> (long) high[node * dims + widest] - low[node * dims + widest]) {
+					widest = i;
+				}
+			}
+			// a run of copies of a single point cannot be split any further
+			if (to - from > LEAF_SIZE && high[node * dims + widest] > low[node * dims + widest]) {
+				int mid = (from + to) >>> 1;
+				select(points, from, to - 1, mid, widest);
+				int l = build(points, from, mid);
+				int r = build(points, mid, to);
+				left[node] = l;
+				right[node] = r;
+			}
+			return node;
+		}
+
+		private int newNode(int from, int to) {
+			if (nodes == begin.length) {
+				int capacity = 2 * nodes;
+				begin = Arrays.copyOf(begin, capacity);
+				end = Arrays.copyOf(end, capacity);
+				left = Arrays.copyOf(left, capacity);
+				right = Arrays.copyOf(right, capacity);
+				low = Arrays.copyOf(low, capacity * dims);
+				high = Arrays.copyOf(high, capacity * dims);
+			}
+			begin[nodes] = from;
+			end[nodes] = to;
+			left[nodes] = NIL;
+			right[nodes] = NIL;
+			return nodes++;
+		}
+
+		// quickselect over index: moves the slot of rank k (in dim) within [lo, hi] to k
+		private void select(KDPoint[] points, int lo, int hi, int k, int dim) {
+			while (lo < hi) {
+				int pivot = points[index[(lo + hi) >>> 1]].coords[dim];
+				int i = lo, j = hi;
+				while (i <= j) {
+					while (points[index[i]].coords[dim] < pivot) {
+						i++;
+					}
+					while (points[index[j]].coords[dim] > pivot) {
+						j--;
+					}
+					if (i <= j) {
+						int tmp = index[i];
+						index[i++] = index[j];
+						index[j--] = tmp;
+					}
+				}
+				if (k <= j) {
+					hi = j;
+				} else if (k >= i) {
+					lo = i;
+				} else {
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,476 @@
+package spatial.nodes;
+
+import spatial.kdpoint.DistanceKernels;
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedPriorityQueue;
+import spatial.metrics.EuclideanMetric;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * <p>
+ * {@link KDTreeArena} stores all the nodes of a KD-Tree in a handful of flat
+ * primitive arrays instead of one {@link KDTreeNode} object per node. A node is
+ * just an {@code int} id: its coordinates are
+ * {@code coords[id * dims .. id * dims + dims - 1]}, and its children are
+ * {@code left[id]} and {@code right[id]}, with {@link #NIL} standing in for a
+ * null child. There is no object header, no {@link KDPoint} and no separate
+ * {@code int[]} per node, and a descent reads consecutive {@code int}s instead
+ * of chasing three references.
+ * </p>
+ *
+ * <p>
+ * The algorithms are the ones of {@link KDTreeNode}: the tree acts as a Binary
+ * Search Tree on the current dimension, sending values <b>greater than or
+ * equal to</b> the split value to the right, deletion replaces a node by its
+ * successor in the cutting dimension, and all queries compare
+ * {@link KDPoint#squaredDistance(KDPoint) squared distances}. {@link KDPoint}s
+ * are only created for the results handed back to the caller. It is used by
+ * {@link spatial.trees.ArenaKDTree} to implement its functionality.
+ * </p>
+ *
+ * <p>
+ * Since coordinates are addressed by {@code int} indices, an arena holds at
+ * most {@code Integer.MAX_VALUE / dims} nodes, live or deleted, so that
+ * {@code id * dims + dim} never overflows. Inserting past that limit throws a
+ * {@link RuntimeException} instead of corrupting the arrays.
+ * </p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see spatial.trees.ArenaKDTree
+ * @see KDTreeNode
+ */
+public class KDTreeArena {
+
+	/**
+	 * The id used for a missing child, and for the root of an empty tree.
+	 */
+	public static final int NIL = -1;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	/*
+	 * Like those of KDTreeNode, the traversals below run on an explicit TraversalStack rather than on the call stack,
+	 * since the tree is not balanced and a sorted insertion order makes it as deep as it is large. Nodes are ints, so
+	 * an entry leaves its node slot null and keeps the node in its int instead: the index id * dims + dim of the
+	 * node's coordinate in its cutting dimension, which is the split value itself and gives back both id and dim.
+	 */
+
+	private final int dims;
+	private final int maxNodes; // the most ids whose coordinates can all be indexed by an int
+	private int[] coords;
+	private int[] left, right;
+	private int root;
+	private int nodes; // ids in [0, nodes) have been handed out at least once
+	private int freeList; // ids of deleted nodes, chained through left[]
+
+	/**
+	 * Creates an empty arena for points of the provided dimensionality.
+	 *
+	 * @param dims The total number of dimensions that the space considers.
+	 */
+	public KDTreeArena(int dims) {
+		this.dims = dims;
+		this.maxNodes = Integer.MAX_VALUE / dims;
+		int capacity = Math.min(INITIAL_CAPACITY, maxNodes);
+		this.coords = new int[capacity * dims];
+		this.left = new int[capacity];
+		this.right = new int[capacity];
+		this.root = NIL;
+		this.nodes = 0;
+		this.freeList = NIL;
+	}
+
+	// private helper for calculating next dimension to use for Tree operations
+	private int nextDim(int currentDim) {
+		return (currentDim + 1 == dims) ? 0 : currentDim + 1;
+	}
+
+	// private helper that hands out a node id, recycling deleted ids first
+	private int allocate(int[] p) {
+		int id;
+		if (freeList != NIL) {
+			id = freeList;
+			freeList = left[id];
+		} else {
+			if (nodes == left.length) {
+				if (nodes == maxNodes) {
+					throw new RuntimeException("The arena is full: it can hold at most " + maxNodes + " "
+							+ dims + "-dimensional points.");
+				}
+				int capacity = (int) Math.min(2L * left.length, maxNodes);
+				coords = Arrays.copyOf(coords, Math.multiplyExact(capacity, dims));
+				left = Arrays.copyOf(left, capacity);
+				right = Arrays.copyOf(right, capacity);
+			}
+			id = nodes++;
+		}
+		System.arraycopy(p, 0, coords, id * dims, dims);
+		left[id] = NIL;
+		right[id] = NIL;
+		return id;
+	}
+
+	// private helper that returns a node id to the free list
+	private void release(int id) {
+		left[id] = freeList;
+		right[id] = NIL;
+		freeList = id;
+	}
+
+	// private helper comparing the point stored at id with p
+	private boolean pointEquals(int id, int[] p) {
+		int base = id * dims;
+		for (int i = 0; i < dims; i++) {
+			if (coords[base + i] != p[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// private helper for the squared euclidean distance between the point stored at id and p
+	private double squaredDistance(int id, int[] p) {
+		return DistanceKernels.squaredDistance(coords, id * dims, p, 0, dims);
+	}
+
+	/**
+	 * Copies the point stored at a node out of the arena.
+	 *
+	 * @param id The id of the node.
+	 * @return A fresh {@link KDPoint} with the coordinates stored at id.
+	 */
+	public KDPoint getPoint(int id) {
+		return new KDPoint(Arrays.copyOfRange(coords, id * dims, id * dims + dims));
+	}
+
+	/**
+	 * @return The id of the root node, or {@link #NIL} if the arena is empty.
+	 */
+	public int getRoot() {
+		return root;
+	}
+
+	/**
+	 * @param id The id of a node.
+	 * @return The id of the left child of that node, or {@link #NIL}.
+	 */
+	public int getLeft(int id) {
+		return left[id];
+	}
+
+	/**
+	 * @param id The id of a node.
+	 * @return The id of the right child of that node, or {@link #NIL}.
+	 */
+	public int getRight(int id) {
+		return right[id];
+	}
+
+	/**
+	 * Inserts the provided {@link KDPoint}. The descent is a loop, since we only
+	 * need to remember the parent link that we will fill in.
+	 *
+	 * @param p The {@link KDPoint} to insert. Its coordinates are copied into the
+	 *          arena.
+	 * @throws RuntimeException if the arena already holds
+	 *                          {@code Integer.MAX_VALUE / dims} nodes.
+	 * @see KDTreeNode#insert(KDPoint, int, int)
+	 */
+	public void insert(KDPoint p) {
+		int[] pIn = p.coords;
+		int id = allocate(pIn);
+		if (root == NIL) {
+			root = id;
+			return;
+		}
+		int curr = root, currDim = 0;
+		while (true) {
+			if (pIn[currDim] >= coords[curr * dims + currDim]) {
+				if (right[curr] == NIL) {
+					right[curr] = id;
+					return;
+				}
+				curr = right[curr];
+			} else {
+				if (left[curr] == NIL) {
+					left[curr] = id;
+					return;
+				}
+				curr = left[curr];
+			}
+			currDim = nextDim(currDim);
+		}
+	}
+
+	/**
+	 * Searches the arena for the provided {@link KDPoint}.
+	 *
+	 * @param p The {@link KDPoint} to search for.
+	 * @return true iff p was found, false otherwise.
+	 * @see KDTreeNode#search(KDPoint, int, int)
+	 */
+	public boolean search(KDPoint p) {
+		int[] pIn = p.coords;
+		int curr = root, currDim = 0;
+		while (curr != NIL) {
+			if (pointEquals(curr, pIn)) {
+				return true;
+			}
+			curr = (pIn[currDim] >= coords[curr * dims + currDim]) ? right[curr] : left[curr];
+			currDim = nextDim(currDim);
+		}
+		return false;
+	}
+
+	/**
+	 * Deletes the provided {@link KDPoint}, which the caller guarantees to be in
+	 * the arena.
+	 *
+	 * @param p The {@link KDPoint} to delete.
+	 * @see KDTreeNode#delete(KDPoint, int, int)
+	 */
+	public void delete(KDPoint p) {
+		int[] pIn = p.coords;
+		// the node that links to curr, and whether curr is its right child; NIL while curr is the root
+		int parent = NIL, curr = root, currDim = 0;
+		boolean isRight = false;
+		while (true) {
+			if (pointEquals(curr, pIn)) {
+				if (left[curr] == NIL && right[curr] == NIL) {
+					release(curr);
+					if (parent == NIL) {
+						root = NIL;
+					} else if (isRight) {
+						right[parent] = NIL;
+					} else {
+						left[parent] = NIL;
+					}
+					return;
+				}
+				if (right[curr] == NIL) {
+					// move the left subtree to the right, so that the successor rule holds
+					right[curr] = left[curr];
+					left[curr] = NIL;
+				}
+				// overwrite curr with its successor, and go on to delete the successor from the right subtree
+				int successor = findMin(right[curr], currDim, nextDim(currDim));
+				pIn = Arrays.copyOfRange(coords, successor * dims, successor * dims + dims);
+				System.arraycopy(pIn, 0, coords, curr * dims, dims);
+				isRight = true;
+			} else {
+				isRight = pIn[currDim] >= coords[curr * dims + currDim];
+			}
+			parent = curr;
+			curr = isRight ? right[curr] : left[curr];
+			currDim = nextDim(currDim);
+		}
+	}
+
+	// private helper for finding the node with minimum targetDim coordinate in the subtree rooted at start. Ties go
+	// to the node that comes first in pre-order.
+	private int findMin(int start, int targetDim, int currDim) {
+		int min = start;
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(null, start * dims + currDim, 0.0);
+			while (!stack.isEmpty()) {
+				stack.pop();
+				int entry = stack.poppedInt(), curr = entry / dims, d = entry - curr * dims;
+				if (coords[curr * dims + targetDim] < coords[min * dims + targetDim]) {
+					min = curr;
+				}
+				// when curr cuts on targetDim, its right subtree cannot hold anything smaller than curr
+				if (right[curr] != NIL && d != targetDim) {
+					stack.push(null, right[curr] * dims + nextDim(d), 0.0);
+				}
+				if (left[curr] != NIL) {
+					stack.push(null, left[curr] * dims + nextDim(d), 0.0);
+				}
+			}
+		} finally {
+			stack.release();
+		}
+		return min;
+	}
+
+	/**
+	 * Executes a range query. All the {@link KDPoint}s whose euclidean distance
+	 * from the anchor is at most range, <b>INCLUSIVE</b>, <b>except</b> for the
+	 * anchor itself, are added to results.
+	 *
+	 * @param anchor  The centroid of the hypersphere that the range query
+	 *                implicitly creates.
+	 * @param results A {@link Collection} that accumulates the results.
+	 * @param range   The <b>INCLUSIVE</b> range from the anchor.
+	 * @see KDTreeNode#range(KDPoint, Collection, double, int, int)
+	 */
+	public void range(KDPoint anchor, Collection<KDPoint> results, double range) {
+		if (root == NIL) {
+			return;
+		}
+		int[] a = anchor.coords;
+		double rangeSq = EuclideanMetric.INSTANCE.reducedRange(range);
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(null, root * dims, 0.0);
+			while (!stack.isEmpty()) {
+				stack.pop();
+				int entry = stack.poppedInt(), curr = entry / dims, d = entry - curr * dims;
+				if (!pointEquals(curr, a) && squaredDistance(curr, a) <= rangeSq) {
+					results.add(getPoint(curr));
+				}
+				double diff = (double) a[d] - coords[entry];
+				int near = (diff < 0) ? left[curr] : right[curr];
+				int far = (diff < 0) ? right[curr] : left[curr];
+				// PRUNING: the far side of the split only matters if the ball crosses its plane
+				if (far != NIL && diff * diff <= rangeSq) {
+					stack.push(null, far * dims + nextDim(d), 0.0);
+				}
+				if (near != NIL) {
+					stack.push(null, near * dims + nextDim(d), 0.0);
+				}
+			}
+		} finally {
+			stack.release();
+		}
+	}
+
+	/**
+	 * Executes a nearest neighbor query.
+	 *
+	 * @param anchor The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @return The nearest {@link KDPoint} to anchor other than anchor itself, or
+	 *         null if there is none.
+	 * @see KDTreeNode#nearestNeighbor(KDPoint, int, spatial.knnutils.NNData, int)
+	 */
+	public KDPoint nearestNeighbor(KDPoint anchor) {
+		if (root == NIL) {
+			return null;
+		}
+		int[] a = anchor.coords;
+		int best = NIL;
+		double bestSq = Double.POSITIVE_INFINITY;
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(null, root * dims, 0.0);
+			while (!stack.isEmpty()) {
+				stack.pop();
+				// Can this subtree be pruned? Only if its splitting plane is farther than the current NN.
+				if (stack.poppedBound() > bestSq) {
+					continue;
+				}
+				int entry = stack.poppedInt(), curr = entry / dims, d = entry - curr * dims;
+				if (!pointEquals(curr, a)) {
+					double distSq = squaredDistance(curr, a);
+					if (distSq <= bestSq) {
+						bestSq = distSq;
+						best = curr;
+					}
+				}
+				// greedy descent towards the anchor
+				double diff = (double) a[d] - coords[entry];
+				int near = (diff < 0) ? left[curr] : right[curr];
+				int far = (diff < 0) ? right[curr] : left[curr];
+				if (far != NIL) {
+					stack.push(null, far * dims + nextDim(d), diff * diff);
+				}
+				if (near != NIL) {
+					stack.push(null, near * dims + nextDim(d), 0.0);
+				}
+			}
+		} finally {
+			stack.release();
+		}
+		return best == NIL ? null : getPoint(best);
+	}
+
+	/**
+	 * Executes a k-nearest neighbors query. Candidates are kept as node ids in a
+	 * primitive max-heap while the tree is traversed, and only the k survivors
+	 * are turned into {@link KDPoint}s and moved into the queue.
+	 *
+	 * @param k      The total number of neighbors to retrieve.
+	 * @param anchor The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param queue  A {@link BoundedPriorityQueue} that receives the k nearest
+	 *               neighbors of anchor, sorted by distance.
+	 * @see KDTreeNode#kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, int,
+	 *      int)
+	 */
+	public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue) {
+		if (root == NIL) {
+			return;
+		}
+		int[] a = anchor.coords;
+		CandidateHeap heap = new CandidateHeap(k);
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(null, root * dims, 0.0);
+			while (!stack.isEmpty()) {
+				stack.pop();
+				// visit the subtree if the heap is not yet full, or if its splitting plane is no farther than the
+				// worst candidate kept so far
+				if (heap.isFull() && stack.poppedBound() > heap.dist[0]) {
+					continue;
+				}
+				int entry = stack.poppedInt(), curr = entry / dims, d = entry - curr * dims;
+				if (!pointEquals(curr, a)) {
+					heap.offer(curr, squaredDistance(curr, a));
+				}
+				// greedy descent towards the anchor
+				double diff = (double) a[d] - coords[entry];
+				int near = (diff < 0) ? left[curr] : right[curr];
+				int far = (diff < 0) ? right[curr] : left[curr];
+				if (far != NIL) {
+					stack.push(null, far * dims + nextDim(d), diff * diff);
+				}
+				if (near != NIL) {
+					stack.push(null, near * dims + nextDim(d), 0.0);
+				}
+			}
+		} finally {
+			stack.release();
+		}
+		int[] ids = new int[heap.size];
+		double[] dists = new double[heap.size];
+		int found = heap.drainAscending(ids, dists);
+		for (int i = 0; i < found; i++) {
+			queue.enqueue(getPoint(ids[i]), dists[i]);
+		}
+	}
+
+	/**
+	 * Returns the height of the tree held by the arena, following the conventions
+	 * of {@link KDTreeNode#height()}.
+	 *
+	 * @return The height of the tree, or -1 if it is empty.
+	 */
+	public int height() {
+		if (root == NIL) {
+			return -1;
+		}
+		// the int of an entry is the node itself here, and the bound is its depth
+		int height = 0;
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(null, root, 0.0);
+			while (!stack.isEmpty()) {
+				stack.pop();
+				int curr = stack.poppedInt();
+				double depth = stack.poppedBound();
+				height = Math.max(height, (int) depth);
+				if (right[curr] != NIL) {
+					stack.push(null, right[curr], depth + 1);
+				}
+				if (left[curr] != NIL) {
+					stack.push(null, left[curr], depth + 1);
+				}
+			}
+		} finally {
+			stack.release();
+		}
+		return height;
+	}
+}
@@ -0,0 +1,913 @@
+package spatial.nodes;
+
+import spatial.kdpoint.DistanceKernels;
+import spatial.kdpoint.ImmutableKDPoint;
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.NNData;
+import spatial.metrics.DistanceMetric;
+import spatial.metrics.EuclideanMetric;
+import spatial.trees.KDTree;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * <p>
+ * {@link KDTreeBucketNode} is a node of a <b>bucketed</b> KD-Tree, where the
+ * {@link KDPoint}s live only in the leaves, up to a leaf capacity each, like
+ * they do in the black nodes of a {@link spatial.trees.PRQuadTree}. A node is
+ * either:
+ * </p>
+ * <ul>
+ * <li>an <b>internal</b> node, which holds no points, only a split dimension, a
+ * split value and two non-null children: points whose coordinate in the split
+ * dimension is <b>greater than or equal to</b> the split value live on the
+ * right, exactly as in {@link KDTreeNode}, and the others on the left, or</li>
+ * <li>a <b>leaf</b>, which holds the coordinates of its points back to back in
+ * one flat {@code int[]}, next to the shared {@link ImmutableKDPoint}s that
+ * queries hand out.</li>
+ * </ul>
+ *
+ * <p>
+ * A leaf splits only when it overflows, at the median of the dimension in
+ * which its points are most spread out, so the split adapts to the data
+ * instead of cycling through the dimensions. A leaf whose points are all equal
+ * cannot be split; it simply grows past its capacity. Deletions merge a leaf
+ * back into its sibling as soon as the two fit in a single leaf. With leaves of
+ * a few dozen points, the tree has a fraction of the nodes of a
+ * {@link KDTreeNode} tree, and queries spend their time in tight loops over
+ * contiguous coordinates instead of chasing references. It is used by
+ * {@link KDTree#KDTree(int, int)} to implement its functionality.
+ * </p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see KDTree#KDTree(int, int)
+ * @see KDTreeNode
+ */
+public class KDTreeBucketNode {
+
+	// internal nodes
+	private int splitDim, splitValue;
+	private KDTreeBucketNode left, right;
+
+	// leaves: points == null for internal nodes
+	private int[] coords;
+	private ImmutableKDPoint[] points;
+
+	// the number of points and the height of the subtree rooted at this, kept up to date by every update
+	private int count, height;
+
+	/**
+	 * Creates an empty leaf.
+	 *
+	 * @param leafSize The capacity of the leaf.
+	 * @param dims     The total number of dimensions that the space considers.
+	 */
+	public KDTreeBucketNode(int leafSize, int dims) {
+		this.coords = new int[leafSize * dims];
+		this.points = new ImmutableKDPoint[leafSize];
+		this.count = 0;
+	}
+
+	/**
+	 * @return true iff this is a leaf, which holds points instead of children.
+	 */
+	public boolean isLeaf() {
+		return points != null;
+	}
+
+	// private helper that appends p to this leaf, growing it if it is full
+	private void add(ImmutableKDPoint p, int dims) {
+		if (count == points.length) {
+			points = Arrays.copyOf(points, 2 * count);
+			coords = Arrays.copyOf(coords, 2 * count * dims);
+		}
+		System.arraycopy(p.coords, 0, coords, count * dims, dims);
+		points[count++] = p;
+	}
+
+	// private helper that returns the index of p in this leaf, or -1
+	private int indexOf(int[] p, int dims) {
+		for (int i = 0, base = 0; i < count; i++, base += dims) {
+			int d = 0;
+			while (d < dims && coords[base + d] == p[d]) {
+				d++;
+			}
+			if (d == dims) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// private helper for the reduced distance between the point in slot i of this leaf and p
+	private double reducedDistance(int i, int[] p, int dims, DistanceMetric metric) {
+		int base = i * dims;
+		if (metric == EuclideanMetric.INSTANCE) {
+			return DistanceKernels.squaredDistance(coords, base, p, 0, dims);
+		}
+		double reduced = 0.0;
+		for (int d = 0; d < dims; d++) {
+			reduced = metric.accumulate(reduced, d, (double) coords[base + d] - p[d]);
+		}
+		return reduced;
+	}
+
+	// private helper that measures the reduced distances between all the points of this leaf and p at once, into the
+	// buffer: under the euclidean metric, the whole leaf goes through a single batch kernel call
+	private double[] reducedDistances(int[] p, int dims, DistanceMetric metric, DistanceBuffer buffer) {
+		double[] out = buffer.distances(count);
+		if (metric == EuclideanMetric.INSTANCE && p.length == dims) {
+			DistanceKernels.squaredDistances(p, coords, 0, count, out);
+		} else {
+			for (int i = 0; i < count; i++) {
+				out[i] = reducedDistance(i, p, dims, metric);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Inserts the provided {@link KDPoint} in the leaf whose cell contains it,
+	 * splitting the leaf if it overflows.
+	 *
+	 * @param pIn      The {@link KDPoint} to insert. It is frozen into an
+	 *                 {@link ImmutableKDPoint}, which is only a copy if pIn was
+	 *                 mutable.
+	 * @param leafSize The capacity of the leaves.
+	 * @param dims     The total number of dimensions that the space considers.
+	 */
+	public void insert(KDPoint pIn, int leafSize, int dims) {
+		TraversalStack path = TraversalStack.acquire();
+		try {
+			KDTreeBucketNode curr = this;
+			while (!curr.isLeaf()) {
+				path.push(curr, 0, 0.0);
+				curr = (pIn.coords[curr.splitDim] >= curr.splitValue) ? curr.right : curr.left;
+			}
+			curr.add(ImmutableKDPoint.of(pIn), dims);
+			if (curr.count > leafSize) {
+				curr.split(leafSize, dims);
+			}
+			refresh(path);
+		} finally {
+			path.release();
+		}
+	}
+
+	// private helper that recomputes the point count and the height of this internal node from its children
+	private void refresh() {
+		count = left.count + right.count;
+		height = 1 + Math.max(left.height, right.height);
+	}
+
+	// private helper that refreshes the internal nodes on the path of an update, which are popped from the deepest up
+	private static void refresh(TraversalStack path) {
+		while (!path.isEmpty()) {
+			((KDTreeBucketNode) path.pop()).refresh();
+		}
+	}
+
+	/*
+	 * Turns this overflowing leaf into an internal node over two fresh leaves. The split dimension is the one with the
+	 * widest spread, and the split value is the median in it, except when the median is also the minimum: then it is
+	 * the smallest value above the minimum, so that neither side is empty. A leaf with no spread at all holds copies
+	 * of a single point, and is left to grow instead.
+	 */
+	private void split(int leafSize, int dims) {
+		int bestDim = -1;
+		long bestSpread = 0;
+		for (int d = 0; d < dims; d++) {
+			int min = coords[d], max = coords[d];
+			for (int base = dims; base < count * dims; base += dims) {
+				min = Math.min(min, coords[base + d]);
+				max = Math.max(max, coords[base + d]);
+			}
+			if ((long) max - min > bestSpread) {
+				bestDim = d;
+				bestSpread = (long) max - min;
+			}
+		}
+		if (bestDim < 0) {
+			return;
+		}
+		int[] values = new int[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = coords[i * dims + bestDim];
+		}
+		Arrays.sort(values);
+		int value = values[count / 2];
+		if (value == values[0]) {
+			int i = count / 2;
+			while (values[i] == values[0]) {
+				i++;
+			}
+			value = values[i];
+		}
+		left = new KDTreeBucketNode(leafSize, dims);
+		right = new KDTreeBucketNode(leafSize, dims);
+		for (int i = 0; i < count; i++) {
+			(coords[i * dims + bestDim] >= value ? right : left).add(points[i], dims);
+		}
+		splitDim = bestDim;
+		splitValue = value;
+		coords = null;
+		points = null;
+		refresh();
+	}
+
+	/**
+	 * Searches the subtree rooted at this for the provided {@link KDPoint}.
+	 *
+	 * @param pIn  The {@link KDPoint} to search for.
+	 * @param dims The total number of dimensions that the space considers.
+	 * @return true iff pIn was found in the subtree rooted at this, false
+	 *         otherwise.
+	 */
+	public boolean search(KDPoint pIn, int dims) {
+		KDTreeBucketNode curr = this;
+		while (!curr.isLeaf()) {
+			curr = (pIn.coords[curr.splitDim] >= curr.splitValue) ? curr.right : curr.left;
+		}
+		return curr.indexOf(pIn.coords, dims) >= 0;
+	}
+
+	/**
+	 * Deletes one copy of the provided {@link KDPoint} from the subtree rooted at
+	 * this, if there is one. The last point of its leaf takes its slot, and if the
+	 * leaf and its sibling then fit in a single leaf, their parent becomes that
+	 * leaf. A leaf left empty with an internal sibling is replaced by the sibling.
+	 *
+	 * @param pIn      The {@link KDPoint} to delete.
+	 * @param leafSize The capacity of the leaves.
+	 * @param dims     The total number of dimensions that the space considers.
+	 * @return A reference to this after the deletion takes place, or null if the
+	 *         subtree is now empty.
+	 */
+	public KDTreeBucketNode delete(KDPoint pIn, int leafSize, int dims) {
+		KDTreeBucketNode parent = null, curr = this;
+		TraversalStack path = TraversalStack.acquire();
+		try {
+			while (!curr.isLeaf()) {
+				path.push(curr, 0, 0.0);
+				parent = curr;
+				curr = (pIn.coords[curr.splitDim] >= curr.splitValue) ? curr.right : curr.left;
+			}
+			int i = curr.indexOf(pIn.coords, dims);
+			if (i < 0) {
+				return this;
+			}
+			curr.count--;
+			System.arraycopy(curr.coords, curr.count * dims, curr.coords, i * dims, dims);
+			curr.points[i] = curr.points[curr.count];
+			curr.points[curr.count] = null;
+			if (parent == null) {
+				return curr.count == 0 ? null : this;
+			}
+			KDTreeBucketNode sibling = (parent.left == curr) ? parent.right : parent.left;
+			if (sibling.isLeaf() && curr.count + sibling.count <= leafSize) {
+				// the parent becomes the merged leaf
+				for (int j = 0; j < sibling.count; j++) {
+					curr.add(sibling.points[j], dims);
+				}
+				parent.coords = curr.coords;
+				parent.points = curr.points;
+				parent.count = curr.count;
+				parent.height = 0;
+				parent.left = parent.right = null;
+				path.pop(); // a leaf now, with nothing to refresh
+			} else if (curr.count == 0) {
+				// the parent becomes its other child
+				parent.splitDim = sibling.splitDim;
+				parent.splitValue = sibling.splitValue;
+				parent.left = sibling.left;
+				parent.right = sibling.right;
+				parent.coords = sibling.coords;
+				parent.points = sibling.points;
+				parent.count = sibling.count;
+				parent.height = sibling.height;
+				path.pop();
+			}
+			refresh(path);
+			return this;
+		} finally {
+			path.release();
+		}
+	}
+
+	/**
+	 * Executes a range query. All the {@link KDPoint}s whose distance from the
+	 * anchor is at most range, <b>INCLUSIVE</b>, <b>except</b> for the anchor
+	 * itself, are added to results.
+	 *
+	 * @param anchor  The centroid of the hypersphere that the range query
+	 *                implicitly creates.
+	 * @param results A {@link Collection} that accumulates the results.
+	 * @param range   The <b>INCLUSIVE</b> range from the anchor.
+	 * @param dims    The total number of dimensions that the space considers.
+	 * @param metric  The {@link DistanceMetric} that measures distances.
+	 * @see KDTreeNode#range(KDPoint, Collection, double, int, int, DistanceMetric)
+	 */
+	public void range(KDPoint anchor, Collection<KDPoint> results, double range, int dims, DistanceMetric metric) {
+		double reducedRange = metric.reducedRange(range);
+		TraversalStack stack = TraversalStack.acquire();
+		DistanceBuffer buffer = DistanceBuffer.acquire();
+		try {
+			stack.push(this, 0, 0.0);
+			while (!stack.isEmpty()) {
+				KDTreeBucketNode curr = (KDTreeBucketNode) stack.pop();
+				// PRUNING: the far subtree can only hold points in range if the splitting plane is in range
+				if (stack.poppedBound() > reducedRange) {
+					continue;
+				}
+				if (curr.isLeaf()) {
+					double[] dists = curr.reducedDistances(anchor.coords, dims, metric, buffer);
+					for (int i = 0; i < curr.count; i++) {
+						double dist = dists[i];
+						if (dist != 0 && dist <= reducedRange) { // 0 only for the anchor itself
+							results.add(curr.points[i]);
+						}
+					}
+				} else {
+					curr.pushChildren(stack, anchor, metric);
+				}
+			}
+		} finally {
+			buffer.release();
+			stack.release();
+		}
+	}
+
+	/*
+	 * Counting range queries track the cell of every node they visit, like the range queries of KDTreeNode do: the
+	 * entry of a child carries the side of its parent's cell that the split narrows (CELL_LOW for a right child,
+	 * CELL_HIGH for a left one), packed with the split dimension, and an undo entry with a null node restores the
+	 * side once the subtree is done. A subtree whose cell lies within range is counted whole.
+	 */
+	private static final int CELL_LOW = 0, CELL_HIGH = 1, CELL_ROOT = 2, INSIDE = 3;
+
+	/**
+	 * Counts the {@link KDPoint}s that
+	 * {@link #range(KDPoint, Collection, double, int, DistanceMetric)} would
+	 * return, without collecting them. A subtree whose cell lies entirely within
+	 * range contributes its point count, so only the leaves whose cells straddle
+	 * the border of the range are scanned.
+	 *
+	 * @param anchor The centroid of the hypersphere that the range query
+	 *               implicitly creates.
+	 * @param range  The <b>INCLUSIVE</b> range from the anchor.
+	 * @param dims   The total number of dimensions that the space considers.
+	 * @param metric The {@link DistanceMetric} that measures distances.
+	 * @return The number of {@link KDPoint}s other than the anchor within range
+	 *         of it.
+	 * @see KDTreeNode#rangeCount(KDPoint, double, int, int, DistanceMetric)
+	 */
+	public int rangeCount(KDPoint anchor, double range, int dims, DistanceMetric metric) {
+		double reducedRange = metric.reducedRange(range);
+		double[] low = new double[dims], high = new double[dims];
+		Arrays.fill(low, Double.NEGATIVE_INFINITY);
+		Arrays.fill(high, Double.POSITIVE_INFINITY);
+		int count = 0;
+		TraversalStack stack = TraversalStack.acquire();
+		DistanceBuffer buffer = DistanceBuffer.acquire();
+		try {
+			stack.push(this, CELL_ROOT, 0.0);
+			while (!stack.isEmpty()) {
+				KDTreeBucketNode curr = (KDTreeBucketNode) stack.pop();
+				int d = stack.poppedInt() >>> 2, kind = stack.poppedInt() & 3;
+				if (curr == null) {
+					// undo entry: the subtree is done, so give the cell its old side back
+					(kind == CELL_LOW ? low : high)[d] = stack.poppedBound();
+					continue;
+				}
+				if (kind != CELL_ROOT) {
+					double[] side = (kind == CELL_LOW) ? low : high;
+					stack.push(null, (d << 2) | kind, side[d]);
+					side[d] = stack.poppedBound();
+				}
+				double closest = metric.reducedBoxDistance(anchor, low, high);
+				if (closest > reducedRange) {
+					continue;
+				}
+				if (metric.reducedFarthestBoxDistance(anchor, low, high) <= reducedRange) {
+					// the anchor is not part of the answer, and only a cell around it can hold copies of it
+					count += curr.count;
+					if (closest == 0) {
+						count -= curr.copiesOf(anchor, dims, metric);
+					}
+				} else if (curr.isLeaf()) {
+					double[] dists = curr.reducedDistances(anchor.coords, dims, metric, buffer);
+					for (int i = 0; i < curr.count; i++) {
+						double dist = dists[i];
+						if (dist != 0 && dist <= reducedRange) { // 0 only for the anchor itself
+							count++;
+						}
+					}
+				} else {
+					stack.push(curr.right, (curr.splitDim << 2) | CELL_LOW, curr.splitValue);
+					stack.push(curr.left, (curr.splitDim << 2) | CELL_HIGH, curr.splitValue);
+				}
+			}
+		} finally {
+			buffer.release();
+			stack.release();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a {@link RangeSpliterator} that runs the range query of
+	 * {@link #range(KDPoint, Collection, double, int, DistanceMetric)} one hit at
+	 * a time, without collecting the hits.
+	 *
+	 * @param anchor The centroid of the hypersphere that the range query
+	 *               implicitly creates.
+	 * @param range  The <b>INCLUSIVE</b> range from the anchor.
+	 * @param dims   The total number of dimensions that the space considers.
+	 * @param metric The {@link DistanceMetric} that measures distances.
+	 * @return The hits of the query, as they are found.
+	 * @see KDTreeNode#rangeSpliterator(KDPoint, double, int, int, DistanceMetric)
+	 */
+	public RangeSpliterator rangeSpliterator(KDPoint anchor, double range, int dims, DistanceMetric metric) {
+		return new Range(this, anchor, range, dims, metric);
+	}
+
+	/*
+	 * The traversal behind rangeSpliterator: internal nodes are expanded from the stack, with the same bounds as in
+	 * KDTreeNode, and the leaf being scanned is kept along with the slot to resume its scan from.
+	 */
+	private static final class Range extends RangeSpliterator {
+
+		private KDTreeBucketNode leaf;
+		private int slot;
+		private double[] distances; // of the points of leaf, measured when the leaf is reached
+
+		// the spliterator may move between threads, so it keeps a buffer of its own
+		private final DistanceBuffer buffer = new DistanceBuffer();
+
+		Range(KDTreeBucketNode root, KDPoint anchor, double range, int dims, DistanceMetric metric) {
+			super(anchor, range, dims, metric);
+			stack.push(root, 0, 0.0);
+		}
+
+		@Override
+		KDPoint nextHit() {
+			while (true) {
+				if (leaf != null) {
+					while (slot < leaf.count) {
+						int i = slot++;
+						double dist = distances[i];
+						if (dist != 0 && dist <= reducedRange) { // 0 only for the anchor itself
+							return leaf.points[i];
+						}
+					}
+					leaf = null;
+				}
+				if (stack.isEmpty()) {
+					return null;
+				}
+				KDTreeBucketNode curr = (KDTreeBucketNode) stack.pop();
+				double bound = stack.poppedBound();
+				if (curr.isLeaf()) {
+					leaf = curr;
+					slot = 0;
+					distances = curr.reducedDistances(anchor.coords, dims, metric, buffer);
+					continue;
+				}
+				double diff = (double) anchor.coords[curr.splitDim] - curr.splitValue;
+				double farBound = Math.max(bound, metric.reducedPlaneDistance(curr.splitDim, diff));
+				// PRUNING: the far side of the split only matters if the ball crosses its plane
+				if (farBound <= reducedRange) {
+					stack.push((diff < 0) ? curr.right : curr.left, 0, farBound);
+				}
+				stack.push((diff < 0) ? curr.left : curr.right, 0, bound);
+			}
+		}
+	}
+
+	/**
+	 * Executes an orthogonal range query: all the {@link KDPoint}s that lie in the
+	 * axis-aligned box spanned by lowCorner and highCorner, <b>INCLUSIVE</b> on
+	 * every side, are added to results. Cells are tracked like they are by
+	 * {@link #rangeCount(KDPoint, double, int, DistanceMetric)}: a child is only
+	 * visited if the box reaches across the split into its side, and a subtree
+	 * whose cell lies within the box is added whole.
+	 *
+	 * @param lowCorner  The corner of the box with the smallest coordinates.
+	 * @param highCorner The corner of the box with the largest coordinates.
+	 * @param results    A {@link Collection} that accumulates the results.
+	 * @param dims       The total number of dimensions that the space considers.
+	 * @see KDTreeNode#range(KDPoint, KDPoint, Collection, int, int)
+	 */
+	public void range(KDPoint lowCorner, KDPoint highCorner, Collection<KDPoint> results, int dims) {
+		boxRange(lowCorner, highCorner, results, dims);
+	}
+
+	/**
+	 * Counts the {@link KDPoint}s that
+	 * {@link #range(KDPoint, KDPoint, Collection, int)} would return, without
+	 * collecting them. A subtree whose cell lies within the box contributes its
+	 * point count, so only the leaves whose cells straddle a side of the box are
+	 * scanned.
+	 *
+	 * @param lowCorner  The corner of the box with the smallest coordinates.
+	 * @param highCorner The corner of the box with the largest coordinates.
+	 * @param dims       The total number of dimensions that the space considers.
+	 * @return The number of {@link KDPoint}s within the box.
+	 * @see KDTreeNode#rangeCount(KDPoint, KDPoint, int, int)
+	 */
+	public int rangeCount(KDPoint lowCorner, KDPoint highCorner, int dims) {
+		return boxRange(lowCorner, highCorner, null, dims);
+	}
+
+	// private helper for box queries. With null results, it only counts the points in the box, and returns the count.
+	private int boxRange(KDPoint lowCorner, KDPoint highCorner, Collection<KDPoint> results, int dims) {
+		int count = 0;
+		double[] low = new double[dims], high = new double[dims];
+		Arrays.fill(low, Double.NEGATIVE_INFINITY);
+		Arrays.fill(high, Double.POSITIVE_INFINITY);
+		double[] boxLow = new double[dims], boxHigh = new double[dims];
+		for (int d = 0; d < dims; d++) {
+			boxLow[d] = lowCorner.coords[d];
+			boxHigh[d] = highCorner.coords[d];
+		}
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(this, CELL_ROOT, 0.0);
+			while (!stack.isEmpty()) {
+				KDTreeBucketNode curr = (KDTreeBucketNode) stack.pop();
+				int d = stack.poppedInt() >>> 2, kind = stack.poppedInt() & 3;
+				if (curr == null) {
+					// undo entry: the subtree is done, so give the cell its old side back
+					(kind == CELL_LOW ? low : high)[d] = stack.poppedBound();
+					continue;
+				}
+				if (kind == INSIDE) {
+					// part of a subtree whose cell is within the box: no comparisons to make
+					if (curr.isLeaf()) {
+						results.addAll(Arrays.asList(curr.points).subList(0, curr.count));
+					} else {
+						stack.push(curr.right, INSIDE, 0.0);
+						stack.push(curr.left, INSIDE, 0.0);
+					}
+					continue;
+				}
+				if (kind != CELL_ROOT) {
+					double[] side = (kind == CELL_LOW) ? low : high;
+					stack.push(null, (d << 2) | kind, side[d]);
+					side[d] = stack.poppedBound();
+				}
+				if (KDTreeNode.cellInBox(low, high, boxLow, boxHigh)) {
+					if (results != null) {
+						stack.push(curr, INSIDE, 0.0);
+					} else {
+						count += curr.count;
+					}
+				} else if (curr.isLeaf()) {
+					for (int i = 0; i < curr.count; i++) {
+						if (curr.inBox(i, lowCorner.coords, highCorner.coords, dims)) {
+							if (results != null) {
+								results.add(curr.points[i]);
+							} else {
+								count++;
+							}
+						}
+					}
+				} else {
+					// PRUNING: the box only reaches into the side of the split that it overlaps; the points of the
+					// left child are below the split, so the high side of its cell is an inclusive split - 1
+					if (highCorner.coords[curr.splitDim] >= curr.splitValue) {
+						stack.push(curr.right, (curr.splitDim << 2) | CELL_LOW, curr.splitValue);
+					}
+					if (lowCorner.coords[curr.splitDim] < curr.splitValue) {
+						stack.push(curr.left, (curr.splitDim << 2) | CELL_HIGH, curr.splitValue - 1.0);
+					}
+				}
+			}
+		} finally {
+			stack.release();
+		}
+		return count;
+	}
+
+	// private helper that checks whether the point in slot i of this leaf lies in the box [low, high]
+	private boolean inBox(int i, int[] low, int[] high, int dims) {
+		int base = i * dims;
+		for (int d = 0; d < dims; d++) {
+			int c = coords[base + d];
+			if (c < low[d] || c > high[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// private helper that counts the copies of p in the subtree rooted at this, which all share the leaf of p
+	private int copiesOf(KDPoint p, int dims, DistanceMetric metric) {
+		KDTreeBucketNode curr = this;
+		while (!curr.isLeaf()) {
+			curr = (p.coords[curr.splitDim] >= curr.splitValue) ? curr.right : curr.left;
+		}
+		int copies = 0;
+		for (int i = 0; i < curr.count; i++) {
+			if (curr.reducedDistance(i, p.coords, dims, metric) == 0) {
+				copies++;
+			}
+		}
+		return copies;
+	}
+
+	// private helper that pushes the far child of this, bounded by the splitting plane, and then the near one
+	private void pushChildren(TraversalStack stack, KDPoint anchor, DistanceMetric metric) {
+		double diff = (double) anchor.coords[splitDim] - splitValue;
+		if (diff < 0) {
+			stack.push(right, 0, metric.reducedPlaneDistance(splitDim, diff));
+			stack.push(left, 0, 0.0);
+		} else {
+			stack.push(left, 0, metric.reducedPlaneDistance(splitDim, diff));
+			stack.push(right, 0, 0.0);
+		}
+	}
+
+	/**
+	 * Executes a nearest neighbor query.
+	 *
+	 * @param anchor The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param n      The best guess so far, with its distance from the anchor, or
+	 *               {@link KDTree#INFTY} if there is none yet.
+	 * @param dims   The total number of dimensions that the space considers.
+	 * @param metric The {@link DistanceMetric} that measures distances.
+	 * @return n, updated with the nearest neighbor found and its distance.
+	 * @see KDTreeNode#nearestNeighbor(KDPoint, int, NNData, int, DistanceMetric)
+	 */
+	public NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n, int dims, DistanceMetric metric) {
+		// The traversal works on reduced distances; convert the caller's bound in and the result back out.
+		double best = (n.getBestDist() == KDTree.INFTY) ? Double.POSITIVE_INFINITY : metric.toReduced(n.getBestDist());
+		KDPoint bestGuess = n.getBestGuess();
+		TraversalStack stack = TraversalStack.acquire();
+		DistanceBuffer buffer = DistanceBuffer.acquire();
+		try {
+			stack.push(this, 0, 0.0);
+			while (!stack.isEmpty()) {
+				KDTreeBucketNode curr = (KDTreeBucketNode) stack.pop();
+				// Can this subtree be pruned? Only if its splitting plane is farther than the current NN.
+				if (stack.poppedBound() > best) {
+					continue;
+				}
+				if (curr.isLeaf()) {
+					double[] dists = curr.reducedDistances(anchor.coords, dims, metric, buffer);
+					for (int i = 0; i < curr.count; i++) {
+						double dist = dists[i];
+						if (dist != 0 && dist < best) {
+							best = dist;
+							bestGuess = curr.points[i];
+						}
+					}
+				} else {
+					curr.pushChildren(stack, anchor, metric);
+				}
+			}
+		} finally {
+			buffer.release();
+			stack.release();
+		}
+		if (best != Double.POSITIVE_INFINITY) {
+			n.update(bestGuess, metric.fromReduced(best));
+		}
+		return n;
+	}
+
+	/**
+	 * Executes a k-nearest neighbors query. The priorities in the queue are
+	 * {@link DistanceMetric#reducedDistance(KDPoint, KDPoint) reduced distances},
+	 * like those of {@link KDTreeNode}.
+	 *
+	 * @param k      The total number of neighbors to retrieve.
+	 * @param anchor The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param queue  A {@link BoundedPriorityQueue} that will maintain at most k
+	 *               nearest neighbors of the anchor point at all times.
+	 * @param dims   The total number of dimensions that the space considers.
+	 * @param metric The {@link DistanceMetric} that measures distances.
+	 * @see KDTreeNode#kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, int,
+	 *      int, DistanceMetric)
+	 */
+	public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int dims,
+			DistanceMetric metric) {
+		knn(k, anchor, queue, Double.POSITIVE_INFINITY, dims, metric);
+	}
+
+	/**
+	 * Executes a k-nearest neighbors query that only accepts neighbors within
+	 * maxRadius of the anchor, <b>INCLUSIVE</b>. Subtrees beyond the radius are
+	 * pruned from the very first split.
+	 *
+	 * @param k         The total number of neighbors to retrieve.
+	 * @param anchor    The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param queue     A {@link BoundedPriorityQueue} that will maintain at most
+	 *                  k nearest neighbors of the anchor point at all times.
+	 * @param dims      The total number of dimensions that the space considers.
+	 * @param metric    The {@link DistanceMetric} that measures distances.
+	 * @param maxRadius The largest distance from the anchor that a neighbor may
+	 *                  have.
+	 * @see KDTreeNode#kNearestNeighborsWithin(int, KDPoint, BoundedPriorityQueue,
+	 *      int, int, DistanceMetric, double)
+	 */
+	public void kNearestNeighborsWithin(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int dims,
+			DistanceMetric metric, double maxRadius) {
+		knn(k, anchor, queue, metric.reducedRange(maxRadius), dims, metric);
+	}
+
+	// private helper for k-nearest neighbors queries, which never look farther than reducedRadius from the anchor
+	private void knn(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, double reducedRadius, int dims,
+			DistanceMetric metric) {
+		TraversalStack stack = TraversalStack.acquire();
+		DistanceBuffer buffer = DistanceBuffer.acquire();
+		try {
+			stack.push(this, 0, 0.0);
+			while (!stack.isEmpty()) {
+				KDTreeBucketNode curr = (KDTreeBucketNode) stack.pop();
+				// visit the subtree if its splitting plane is within the radius, and either the queue is not yet
+				// full, or the plane is no farther than the worst neighbor kept so far
+				double bound = stack.poppedBound();
+				if (bound > reducedRadius || (queue.size() >= k && bound > queue.lastPriority())) {
+					continue;
+				}
+				if (curr.isLeaf()) {
+					double[] dists = curr.reducedDistances(anchor.coords, dims, metric, buffer);
+					for (int i = 0; i < curr.count; i++) {
+						double dist = dists[i];
+						if (dist != 0 && dist <= reducedRadius) {
+							queue.enqueue(curr.points[i], dist);
+						}
+					}
+				} else {
+					curr.pushChildren(stack, anchor, metric);
+				}
+			}
+		} finally {
+			buffer.release();
+			stack.release();
+		}
+	}
+
+	/**
+	 * Executes an <b>approximate</b> k-nearest neighbors query in best-bin-first
+	 * order: the subtree with the smallest bound is always explored next, by a
+	 * greedy descent to a leaf that queues the far side of every split on the
+	 * way. The search stops once no queued subtree can improve the k-th neighbor
+	 * by a factor of 1+epsilon, or after scanning maxVisits leaves.
+	 *
+	 * @param k         The total number of neighbors to retrieve.
+	 * @param anchor    The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param queue     A {@link BoundedPriorityQueue} that will maintain at most
+	 *                  k nearest neighbors of the anchor point at all times.
+	 * @param dims      The total number of dimensions that the space considers.
+	 * @param metric    The {@link DistanceMetric} that measures distances.
+	 * @param epsilon   The relative error allowed, at least 0 (zero).
+	 * @param maxVisits The largest number of leaves to scan.
+	 * @see KDTreeNode#kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, int,
+	 *      int, DistanceMetric, double, int)
+	 */
+	public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int dims,
+			DistanceMetric metric, double epsilon, int maxVisits) {
+		double kth = Double.NaN, threshold = Double.POSITIVE_INFINITY;
+		NodeQueue bins = NodeQueue.acquire();
+		DistanceBuffer buffer = DistanceBuffer.acquire();
+		try {
+			bins.push(this, 0, 0.0);
+			for (int visits = 0; visits < maxVisits && !bins.isEmpty(); visits++) {
+				KDTreeBucketNode curr = (KDTreeBucketNode) bins.pop();
+				double bound = bins.poppedBound();
+				if (bound > threshold) {
+					break; // every other bin is at least as far as this one
+				}
+				while (!curr.isLeaf()) {
+					double diff = (double) anchor.coords[curr.splitDim] - curr.splitValue;
+					double farBound = Math.max(bound, metric.reducedPlaneDistance(curr.splitDim, diff));
+					if (farBound <= threshold) {
+						bins.push((diff < 0) ? curr.right : curr.left, 0, farBound);
+					}
+					curr = (diff < 0) ? curr.left : curr.right;
+				}
+				double[] dists = curr.reducedDistances(anchor.coords, dims, metric, buffer);
+				for (int i = 0; i < curr.count; i++) {
+					double dist = dists[i];
+					if (dist != 0) {
+						queue.enqueue(curr.points[i], dist);
+					}
+				}
+				if (queue.size() >= k && queue.lastPriority() != kth) {
+					kth = queue.lastPriority();
+					threshold = KDTreeNode.shrink(kth, epsilon, metric);
+				}
+			}
+		} finally {
+			buffer.release();
+			bins.release();
+		}
+	}
+
+	/**
+	 * Returns a {@link NeighborIterator} over the points of the subtree rooted at
+	 * this, by increasing distance from the anchor. No work is done until the
+	 * first neighbor is asked for.
+	 *
+	 * @param anchor The &quot;anchor&quot; {@link KDPoint} of the neighbors.
+	 * @param dims   The total number of dimensions that the space considers.
+	 * @param metric The {@link DistanceMetric} that measures distances.
+	 * @return An iterator over the neighbors of the anchor, nearest first.
+	 * @see KDTreeNode#neighbors(KDPoint, int, int, DistanceMetric)
+	 */
+	public NeighborIterator neighbors(KDPoint anchor, int dims, DistanceMetric metric) {
+		return new NeighborIterator(this, 0, anchor, dims, metric);
+	}
+
+	// package-private helper for NeighborIterator: queues the points of a leaf, or both children of an internal node
+	// bounded by the split between them and the anchor
+	void browse(NeighborIterator neighbors, KDPoint anchor, double bound, int dims, DistanceMetric metric) {
+		if (isLeaf()) {
+			DistanceBuffer buffer = DistanceBuffer.acquire();
+			try {
+				double[] dists = reducedDistances(anchor.coords, dims, metric, buffer);
+				for (int i = 0; i < count; i++) {
+					neighbors.offer(points[i], dists[i]);
+				}
+			} finally {
+				buffer.release();
+			}
+			return;
+		}
+		double diff = (double) anchor.coords[splitDim] - splitValue;
+		double farBound = Math.max(bound, metric.reducedPlaneDistance(splitDim, diff));
+		neighbors.offer(left, 0, (diff < 0) ? bound : farBound);
+		neighbors.offer(right, 0, (diff < 0) ? farBound : bound);
+	}
+
+	/**
+	 * Returns the height of the subtree rooted at this, where leaves have a
+	 * height of 0 (zero), regardless of how many points they hold. It is
+	 * maintained by every update, so this takes O(1) time.
+	 *
+	 * @return The height of the subtree rooted at this.
+	 */
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * @return The number of {@link KDPoint}s held in the subtree rooted at this,
+	 *         duplicates included.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the {@link KDPoint} of the provided rank in the subtree rooted at
+	 * this, in leaf order. The descent is guided by the point counts of the
+	 * subtrees, so a uniformly random rank gives a uniformly random point.
+	 *
+	 * @param rank The rank of the point, from 0 (zero) to {@link #size()},
+	 *             exclusive.
+	 * @return The {@link ImmutableKDPoint} of the provided rank.
+	 * @see KDTreeNode#pointAt(int)
+	 */
+	public ImmutableKDPoint pointAt(int rank) {
+		KDTreeBucketNode curr = this;
+		while (!curr.isLeaf()) {
+			if (rank < curr.left.count) {
+				curr = curr.left;
+			} else {
+				rank -= curr.left.count;
+				curr = curr.right;
+			}
+		}
+		return curr.points[rank];
+	}
+
+	/**
+	 * Adds every {@link KDPoint} held in the subtree rooted at this, duplicates
+	 * included, to the provided {@link Collection}.
+	 *
+	 * @param results A {@link Collection} that accumulates the points.
+	 */
+	public void points(Collection<KDPoint> results) {
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(this, 0, 0.0);
+			while (!stack.isEmpty()) {
+				KDTreeBucketNode curr = (KDTreeBucketNode) stack.pop();
+				if (curr.isLeaf()) {
+					results.addAll(Arrays.asList(curr.points).subList(0, curr.count));
+				} else {
+					stack.push(curr.right, 0, 0.0);
+					stack.push(curr.left, 0, 0.0);
+				}
+			}
+		} finally {
+			stack.release();
+		}
+	}
+}
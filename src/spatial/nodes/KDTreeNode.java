@@ -1,11 +1,18 @@
 package spatial.nodes;
 
 import spatial.exceptions.UnimplementedMethodException;
+import spatial.kdpoint.ImmutableKDPoint;
 import spatial.kdpoint.KDPoint;
 import spatial.knnutils.BoundedPriorityQueue;
 import spatial.knnutils.NNData;
+import spatial.metrics.DistanceMetric;
+import spatial.metrics.EuclideanMetric;
+import spatial.trees.KDTree;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * <p>
@@ -28,9 +35,12 @@ public class KDTreeNode {
 	 */
 	/* ************* WE PROVIDE THESE FIELDS TO GET YOU STARTED. **************** */
 	/* ************************************************************************** */
-	private KDPoint p;
-	private int height;
+	private ImmutableKDPoint p;
+	private int height; // height of the subtree rooted at this, kept up to date by every update
 	private KDTreeNode left, right;
+	private int size; // number of nodes in the subtree rooted at this, for weight balancing
+	private boolean deleted; // tombstone of a lazy deletion: the node still splits space, but its point is gone
+	private int dead; // number of tombstones in the subtree rooted at this, out of its size
 
 	/*
 	 * *****************************************************************************
@@ -65,13 +75,156 @@ public class KDTreeNode {
 	 * created node.
 	 * 
 	 * @param p The {@link KDPoint} to store inside this. Just a reminder:
-	 *          {@link KDPoint}s are <b>mutable!!!</b>.
+	 *          {@link KDPoint}s are <b>mutable!!!</b>, so it is frozen into an
+	 *          {@link ImmutableKDPoint}, which is only a copy if p was mutable.
 	 */
 	public KDTreeNode(KDPoint p) {
-		this.p = new KDPoint(p);
+		this.p = ImmutableKDPoint.of(p);
 		this.height = 0;
 		this.left = null;
 		this.right = null;
+		this.size = 1;
+	}
+
+	/**
+	 * <p>
+	 * Builds a <b>balanced</b> KD-Tree over the provided {@link KDPoint}s in
+	 * O(n log n) time, instead of inserting them one by one. Every node holds the
+	 * median of its subtree's points in the current dimension, found in expected
+	 * linear time by quickselect. Points whose value equals the median's go to the
+	 * right subtree, exactly where {@link #insert(KDPoint, int, int)} would have
+	 * put them, so the result supports all the usual operations unchanged.
+	 * </p>
+	 *
+	 * @param points The {@link KDPoint}s to build the tree over. The array is
+	 *               reordered in place, so pass a scratch copy.
+	 * @param dims   The total number of dimensions that the space considers.
+	 * @return The root of the tree, or null if there are no points.
+	 * @see #buildParallel(KDPoint[], int, ForkJoinPool)
+	 */
+	public static KDTreeNode build(KDPoint[] points, int dims) {
+		return build(points, 0, points.length, 0, dims);
+	}
+
+	/**
+	 * Like {@link #build(KDPoint[], int)}, but the two subtrees of every large
+	 * enough node are built in parallel, as fork-join tasks of the provided pool.
+	 * The resulting tree is identical to the one that
+	 * {@link #build(KDPoint[], int)} returns.
+	 *
+	 * @param points The {@link KDPoint}s to build the tree over. The array is
+	 *               reordered in place, so pass a scratch copy.
+	 * @param dims   The total number of dimensions that the space considers.
+	 * @param pool   The {@link ForkJoinPool} that runs the build tasks.
+	 * @return The root of the tree, or null if there are no points.
+	 */
+	public static KDTreeNode buildParallel(KDPoint[] points, int dims, ForkJoinPool pool) {
+		return pool.invoke(new BuildTask(points, 0, points.length, 0, dims));
+	}
+
+	// private recursive helper for bulk loading the points in [from, to)
+	private static KDTreeNode build(KDPoint[] points, int from, int to, int currDim, int dims) {
+		if (from >= to) {
+			return null;
+		}
+		int split = medianSplit(points, from, to, currDim);
+		int next = ((currDim + 1) == dims) ? 0 : currDim + 1;
+		KDTreeNode node = new KDTreeNode(points[split]);
+		node.left = build(points, from, split, next, dims);
+		node.right = build(points, split + 1, to, next, dims);
+		node.size = to - from;
+		node.refreshHeight();
+		return node;
+	}
+
+	/*
+	 * Reorders points[from, to) around their median in dim, and returns the index
+	 * of the point that should become the subtree root: everything before it is
+	 * strictly smaller in dim, and everything after it is greater than or equal.
+	 */
+	private static int medianSplit(KDPoint[] points, int from, int to, int dim) {
+		int mid = (from + to) >>> 1;
+		select(points, from, to - 1, mid, dim);
+		int median = points[mid].coords[dim];
+		// points before mid are <= median; gather the ones equal to it right before mid, since they belong on the right
+		int split = mid;
+		for (int i = mid - 1; i >= from; i--) {
+			if (points[i].coords[dim] == median) {
+				swap(points, i, --split);
+			}
+		}
+		return split;
+	}
+
+	// quickselect: moves the point of rank k (in dim) within points[lo, hi] to index k. Shared with StaticKDTreeLayout.
+	static void select(KDPoint[] points, int lo, int hi, int k, int dim) {
+		while (lo < hi) {
+			int a = points[lo].coords[dim], b = points[(lo + hi) >>> 1].coords[dim], c = points[hi].coords[dim];
+			int pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c)); // median of three
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (points[i].coords[dim] < pivot) {
+					i++;
+				}
+				while (points[j].coords[dim] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(points, i++, j--);
+				}
+			}
+			// now points[lo, j] <= pivot, points[i, hi] >= pivot and everything in between equals pivot
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private static void swap(KDPoint[] points, int i, int j) {
+		KDPoint tmp = points[i];
+		points[i] = points[j];
+		points[j] = tmp;
+	}
+
+	/*
+	 * Fork-join task behind buildParallel: ranges below SEQUENTIAL_THRESHOLD are
+	 * built sequentially, since forking them costs more than it saves.
+	 */
+	private static final class BuildTask extends RecursiveTask<KDTreeNode> {
+		private static final long serialVersionUID = 1L;
+		private static final int SEQUENTIAL_THRESHOLD = 1 << 13;
+
+		private final KDPoint[] points;
+		private final int from, to, currDim, dims;
+
+		BuildTask(KDPoint[] points, int from, int to, int currDim, int dims) {
+			this.points = points;
+			this.from = from;
+			this.to = to;
+			this.currDim = currDim;
+			this.dims = dims;
+		}
+
+		@Override
+		protected KDTreeNode compute() {
+			if (to - from <= SEQUENTIAL_THRESHOLD) {
+				return build(points, from, to, currDim, dims);
+			}
+			int split = medianSplit(points, from, to, currDim);
+			int next = ((currDim + 1) == dims) ? 0 : currDim + 1;
+			KDTreeNode node = new KDTreeNode(points[split]);
+			BuildTask leftTask = new BuildTask(points, from, split, next, dims);
+			leftTask.fork();
+			node.right = new BuildTask(points, split + 1, to, next, dims).compute();
+			node.left = leftTask.join();
+			node.size = to - from;
+			node.refreshHeight();
+			return node;
+		}
 	}
 
 	/**
@@ -90,33 +243,174 @@ public class KDTreeNode {
 	 * @see #delete(KDPoint, int, int)
 	 */
 	public void insert(KDPoint pIn, int currDim, int dims) {
-		if (pIn.coords[currDim] >= this.p.coords[currDim]) {
-			// move to right subtree
-			if (this.right == null) {
-				this.right = new KDTreeNode(pIn);
-				// if left child is null as well, increment height (inserted at unoccupied
-				// level)
-				if (this.left == null) {
-					this.height++;
+		// iterative descent: the tree can be arbitrarily deep, so the call stack is no place for the path
+		TraversalStack path = TraversalStack.acquire();
+		try {
+			KDTreeNode curr = this;
+			while (true) {
+				curr.size++;
+				path.push(curr, 0, 0.0);
+				if (pIn.coords[currDim] >= curr.p.coords[currDim]) {
+					// move to right subtree
+					if (curr.right == null) {
+						curr.right = new KDTreeNode(pIn);
+						break;
+					}
+					curr = curr.right;
+				} else {
+					// move to left subtree
+					if (curr.left == null) {
+						curr.left = new KDTreeNode(pIn);
+						break;
+					}
+					curr = curr.left;
 				}
-			} else {
-				this.right.insert(pIn, nextDim(currDim, dims), dims);
+				currDim = nextDim(currDim, dims);
 			}
-		} else {
-			// move to left subtree
-			if (this.left == null) {
-				this.left = new KDTreeNode(pIn);
-				// if right child is null as well, increment height (inserted at unoccupied
-				// level)
-				if (this.right == null) {
-					this.height++;
+			refreshHeights(path);
+		} finally {
+			path.release();
+		}
+	}
+
+	// private helper for the height of a possibly null subtree
+	private static int height(KDTreeNode node) {
+		return (node == null) ? -1 : node.height;
+	}
+
+	// private helper that recomputes the height of this from the heights of its children
+	private void refreshHeight() {
+		height = 1 + Math.max(height(left), height(right));
+	}
+
+	/*
+	 * Private helper that recomputes the heights of the nodes on the path of an update, which are popped from the
+	 * deepest up. Only the links along the path have changed, so once a node keeps its old height, so do all the nodes
+	 * above it, and the rest of the path is left as is.
+	 */
+	private static void refreshHeights(TraversalStack path) {
+		while (!path.isEmpty()) {
+			KDTreeNode curr = (KDTreeNode) path.pop();
+			int old = curr.height;
+			curr.refreshHeight();
+			if (curr.height == old) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Inserts the provided {@link KDPoint} like
+	 * {@link #insert(KDPoint, int, int)} does, while keeping the tree rooted at
+	 * this <b>&alpha;-weight-balanced</b>: no child may hold more than alpha times
+	 * the nodes of its parent's subtree. On the way down, the <b>highest</b> node
+	 * that the insertion would unbalance (the &quot;scapegoat&quot;) is not
+	 * descended into; its subtree is rebuilt around medians instead, together with
+	 * the new point, by {@link #build(KDPoint[], int)}. Smaller alpha means
+	 * shallower trees but more frequent rebuilds.
+	 * </p>
+	 *
+	 * <p>
+	 * A rebuild of m nodes costs O(m log m), and can only happen again after
+	 * &Omega;(m) insertions below the rebuilt node, so insertions cost amortized
+	 * O(log<sup>2</sup> n) time and the height stays O(log n).
+	 * </p>
+	 *
+	 * @param pIn     The {@link KDPoint} to insert into the node.
+	 * @param currDim The current dimension to consider.
+	 * @param dims    The total number of dimensions that the space considers.
+	 * @param alpha   The balance factor, in (0.5, 1).
+	 * @return The root of the subtree after the insertion: either this, or the
+	 *         root of its rebuilt replacement.
+	 * @see #size()
+	 */
+	public KDTreeNode insert(KDPoint pIn, int currDim, int dims, double alpha) {
+		int rootDim = currDim;
+		KDTreeNode parent = null, curr = this;
+		boolean fromRight = false;
+		TraversalStack path = TraversalStack.acquire();
+		try {
+			while (true) {
+				boolean goRight = pIn.coords[currDim] >= curr.p.coords[currDim];
+				KDTreeNode child = goRight ? curr.right : curr.left;
+				int childSize = (child == null) ? 1 : child.size + 1;
+				if (childSize > alpha * (curr.size + 1)) {
+					// curr is the scapegoat: replace its whole subtree, leaving its tombstones behind
+					KDTreeNode rebuilt = curr.rebuild(pIn, currDim, dims);
+					dropTombstones(pIn, curr, rootDim, dims, curr.dead);
+					if (parent == null) {
+						return rebuilt;
+					}
+					if (fromRight) {
+						parent.right = rebuilt;
+					} else {
+						parent.left = rebuilt;
+					}
+					refreshHeights(path);
+					return this;
 				}
-			} else {
-				this.left.insert(pIn, nextDim(currDim, dims), dims);
+				curr.size++;
+				path.push(curr, 0, 0.0);
+				if (child == null) {
+					if (goRight) {
+						curr.right = new KDTreeNode(pIn);
+					} else {
+						curr.left = new KDTreeNode(pIn);
+					}
+					refreshHeights(path);
+					return this;
+				}
+				parent = curr;
+				fromRight = goRight;
+				curr = child;
+				currDim = nextDim(currDim, dims);
 			}
+		} finally {
+			path.release();
 		}
 	}
 
+	// private helper that rebuilds the subtree rooted at this, plus pIn, around medians
+	private KDTreeNode rebuild(KDPoint pIn, int currDim, int dims) {
+		KDPoint[] points = new KDPoint[this.size - this.dead + 1];
+		int count = collect(this, points, 0);
+		points[count] = pIn;
+		return build(points, 0, points.length, currDim, dims);
+	}
+
+	// private helper that takes removed tombstones off the nodes on the path of p from this down to, excluding, end
+	private void dropTombstones(KDPoint p, KDTreeNode end, int currDim, int dims, int removed) {
+		for (KDTreeNode curr = this; curr != end && removed > 0; currDim = nextDim(currDim, dims)) {
+			curr.size -= removed;
+			curr.dead -= removed;
+			curr = (p.coords[currDim] >= curr.p.coords[currDim]) ? curr.right : curr.left;
+		}
+	}
+
+	// private helper that gathers the live points of the subtree rooted at root into points, starting at index from
+	private static int collect(KDTreeNode root, KDPoint[] points, int from) {
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(root, 0, 0.0);
+			while (!stack.isEmpty()) {
+				KDTreeNode curr = (KDTreeNode) stack.pop();
+				if (!curr.deleted) {
+					points[from++] = curr.p;
+				}
+				if (curr.right != null) {
+					stack.push(curr.right, 0, 0.0);
+				}
+				if (curr.left != null) {
+					stack.push(curr.left, 0, 0.0);
+				}
+			}
+		} finally {
+			stack.release();
+		}
+		return from;
+	}
+
 	/**
 	 * <p>
 	 * Deletes the provided {@link KDPoint} from the tree rooted at this. To select
@@ -146,86 +440,273 @@ public class KDTreeNode {
 	 * @return A reference to this after the deletion takes place.
 	 */
 	public KDTreeNode delete(KDPoint pIn, int currDim, int dims) {
-		if (this.p.equals(pIn)) {
-			if (this.left == null && this.right == null) {
-				this.p = null;
+		// Iterative version of the classic recursion: every node on the way down loses one node from its subtree. When
+		// the target is found, it takes over the point of its successor, which then becomes the target in the right
+		// subtree, until the target is a leaf that can simply be unlinked.
+		KDPoint target = pIn;
+		KDTreeNode parent = null, curr = this;
+		boolean fromRight = false;
+		TraversalStack path = TraversalStack.acquire();
+		try {
+			while (!(curr.p.equals(target) && curr.left == null && curr.right == null)) {
+				curr.size--;
+				path.push(curr, 0, 0.0);
+				if (curr.p.equals(target)) {
+					if (curr.right == null) {
+						// only a left subtree: move it to the right, so that the successor rule holds
+						curr.right = curr.left;
+						curr.left = null;
+					}
+					KDTreeNode successor = curr.right.findMin(currDim, nextDim(currDim, dims), dims);
+					curr.p = successor.p; // immutable, so the successor's point can simply be shared
+					target = curr.p;
+					fromRight = true;
+				} else {
+					fromRight = target.coords[currDim] >= curr.p.coords[currDim];
+				}
+				parent = curr;
+				curr = fromRight ? curr.right : curr.left;
+				currDim = nextDim(currDim, dims);
+			}
+			curr.p = null;
+			if (parent == null) {
 				return null;
-			} else if (this.right != null) {
-				// Is there a non-null right subtree?
-				// Find in-order successor for currDim and recursively delete successor
-
-				KDTreeNode successor = this.right.findMin(currDim, nextDim(currDim, dims), dims);
-				this.p = new KDPoint(successor.p);
-				this.right = this.right.delete(new KDPoint(successor.p), nextDim(currDim, dims), dims);
-				return this;
+			}
+			if (fromRight) {
+				parent.right = null;
 			} else {
-				// this.left != null && this.right == null
-				KDTreeNode successor = this.left.findMin(currDim, nextDim(currDim, dims), dims);
-				this.p = new KDPoint(successor.p);
-				this.right = this.left;
-				this.left = null;
-				this.right = this.right.delete(new KDPoint(successor.p), nextDim(currDim, dims), dims);
-				return this;
+				parent.left = null;
 			}
-		} else if (pIn.coords[currDim] >= this.p.coords[currDim]) {
-			// need to go to right subtree to find node for deletion
-			this.right = this.right.delete(pIn, nextDim(currDim, dims), dims);
-			return this;
-		} else {
-			// need to go to right subtree to find node for deletion
-			this.left = this.left.delete(pIn, nextDim(currDim, dims), dims);
+			// the whole path is on the stack, including the nodes that only moved their left subtree to the right
+			refreshHeights(path);
 			return this;
+		} finally {
+			path.release();
 		}
 	}
 
-	// private helper for finding the minimum of the current node based on currDim
-	// in left subtree
-	private KDTreeNode findMin(int targetDim, int currDim, int dims) {
-
-		if (this.left == null && this.right == null) {
-			return this;
+	/**
+	 * <p>
+	 * Deletes the provided {@link KDPoint} <b>lazily</b>: its node is only marked
+	 * with a tombstone, which keeps splitting space like before, while searches
+	 * and queries skip its point. There is no successor to find and nothing
+	 * cascades down the tree, so the deletion costs one descent.
+	 * </p>
+	 *
+	 * <p>
+	 * Tombstones are counted per subtree, and the <b>highest</b> subtree on the
+	 * path whose share of tombstones now exceeds maxDeadRatio is compacted: it is
+	 * rebuilt around medians from its live points only, like
+	 * {@link #build(KDPoint[], int)} does. A compaction of m nodes can only
+	 * happen again after &Omega;(m) deletions below it, so its cost is amortized
+	 * over the deletions that caused it. A tombstoned leaf, which is a subtree of
+	 * tombstones only, is simply unlinked.
+	 * </p>
+	 *
+	 * @param pIn          The {@link KDPoint} to delete. A live copy of it
+	 *                     <b>must</b> be in the subtree rooted at this; check
+	 *                     with {@link #search(KDPoint, int, int)} first.
+	 * @param currDim      The current dimension to consider.
+	 * @param dims         The total number of dimensions that the space
+	 *                     considers.
+	 * @param maxDeadRatio The largest share of tombstones, in (0, 1), that a
+	 *                     subtree may hold.
+	 * @return The root of the subtree after the deletion: either this, the root
+	 *         of its compacted replacement, or null if no live points are left.
+	 * @see #delete(KDPoint, int, int)
+	 */
+	public KDTreeNode lazyDelete(KDPoint pIn, int currDim, int dims, double maxDeadRatio) {
+		// mark the first live copy on the path of pIn, counting the new tombstone in every subtree above it
+		KDTreeNode marked = this;
+		for (int d = currDim; ; d = nextDim(d, dims)) {
+			marked.dead++;
+			if (!marked.deleted && marked.p.equals(pIn)) {
+				marked.deleted = true;
+				break;
+			}
+			marked = (pIn.coords[d] >= marked.p.coords[d]) ? marked.right : marked.left;
 		}
-		if (targetDim == currDim) {
-			if (this.left == null) { // no more left subtree, current will be the smallest
-				return this;
-			} else {
-				return this.left.findMin(targetDim, (((currDim + 1) == dims) ? 0 : currDim + 1), dims);
+		// compact the highest subtree on the same path that holds too many tombstones
+		KDTreeNode parent = null, curr = this;
+		boolean fromRight = false;
+		TraversalStack path = TraversalStack.acquire();
+		try {
+			for (int d = currDim; ; d = nextDim(d, dims)) {
+				if (curr.dead > maxDeadRatio * curr.size) {
+					KDTreeNode compacted = curr.compact(d, dims);
+					dropTombstones(pIn, curr, currDim, dims, curr.dead);
+					if (parent == null) {
+						return compacted;
+					}
+					if (fromRight) {
+						parent.right = compacted;
+					} else {
+						parent.left = compacted;
+					}
+					refreshHeights(path);
+					return this;
+				}
+				if (curr == marked) {
+					return this; // nothing changed below the new tombstone
+				}
+				path.push(curr, 0, 0.0);
+				parent = curr;
+				fromRight = pIn.coords[d] >= curr.p.coords[d];
+				curr = fromRight ? curr.right : curr.left;
 			}
+		} finally {
+			path.release();
 		}
-		KDTreeNode leftNode = (this.left == null) ? null
-				: this.left.findMin(targetDim, (((currDim + 1) == dims) ? 0 : currDim + 1), dims);
-		KDTreeNode rightNode = (this.right == null) ? null
-				: this.right.findMin(targetDim, (((currDim + 1) == dims) ? 0 : currDim + 1), dims);
-		return findMin2(leftNode, rightNode, this, targetDim);
 	}
 
-	// find minimum of current node, its left child, and its right child
-	private KDTreeNode findMin2(KDTreeNode leftMin, KDTreeNode rightMin, KDTreeNode curr, int targetDim) {
-		if (leftMin != null && rightMin != null && curr != null) {
-			KDTreeNode childSuccessor = leftMin;
-			if (leftMin.p.coords[targetDim] >= rightMin.p.coords[targetDim]) {
-				childSuccessor = rightMin;
-			} else {
-				childSuccessor = leftMin;
+	// private helper that rebuilds the subtree rooted at this around medians, from its live points only
+	private KDTreeNode compact(int currDim, int dims) {
+		KDPoint[] points = new KDPoint[this.size - this.dead];
+		collect(this, points, 0);
+		return build(points, 0, points.length, currDim, dims);
+	}
+
+	// private helper for finding the node with the minimum targetDim coordinate in the subtree rooted at this
+	private KDTreeNode findMin(int targetDim, int currDim, int dims) {
+		KDTreeNode min = this;
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(this, currDim, 0.0);
+			while (!stack.isEmpty()) {
+				KDTreeNode curr = (KDTreeNode) stack.pop();
+				int d = stack.poppedInt();
+				if (curr.p.coords[targetDim] < min.p.coords[targetDim]) {
+					min = curr;
+				}
+				// when curr cuts on targetDim, its right subtree cannot hold anything smaller than curr
+				if (curr.right != null && d != targetDim) {
+					stack.push(curr.right, nextDim(d, dims), 0.0);
+				}
+				if (curr.left != null) {
+					stack.push(curr.left, nextDim(d, dims), 0.0);
+				}
+			}
+		} finally {
+			stack.release();
+		}
+		return min;
+	}
+
+	// private copy constructor for path copying: the copy shares the point and both subtrees of other
+	private KDTreeNode(KDTreeNode other) {
+		this.p = other.p;
+		this.height = other.height;
+		this.left = other.left;
+		this.right = other.right;
+		this.size = other.size;
+	}
+
+	/**
+	 * <p>
+	 * Inserts the provided {@link KDPoint} <b>persistently</b>: the tree rooted at
+	 * this is left untouched, and the nodes on the insertion path are copied
+	 * instead, so the result is a new root that shares every other subtree with
+	 * this. The insertion follows the rules of
+	 * {@link #insert(KDPoint, int, int)}, in O(height) time and space.
+	 * </p>
+	 *
+	 * <p>
+	 * Since no node reachable from this is ever modified, any number of threads
+	 * can keep querying the old tree while the new one is built.
+	 * </p>
+	 *
+	 * @param pIn     The {@link KDPoint} to insert.
+	 * @param currDim The current dimension to consider.
+	 * @param dims    The total number of dimensions that the space considers.
+	 * @return The root of a new tree, holding the points of this and pIn.
+	 * @see #persistentDelete(KDPoint, int, int)
+	 */
+	public KDTreeNode persistentInsert(KDPoint pIn, int currDim, int dims) {
+		KDTreeNode root = new KDTreeNode(this), curr = root;
+		TraversalStack path = TraversalStack.acquire();
+		try {
+			while (true) {
+				curr.size++;
+				path.push(curr, 0, 0.0);
+				if (pIn.coords[currDim] >= curr.p.coords[currDim]) {
+					if (curr.right == null) {
+						curr.right = new KDTreeNode(pIn);
+						break;
+					}
+					curr = curr.right = new KDTreeNode(curr.right);
+				} else {
+					if (curr.left == null) {
+						curr.left = new KDTreeNode(pIn);
+						break;
+					}
+					curr = curr.left = new KDTreeNode(curr.left);
+				}
+				currDim = nextDim(currDim, dims);
 			}
+			refreshHeights(path);
+			return root;
+		} finally {
+			path.release();
+		}
+	}
 
-			if (childSuccessor.p.coords[targetDim] >= this.p.coords[targetDim]) {
-				return this;
+	/**
+	 * Deletes the provided {@link KDPoint} <b>persistently</b>, following the rules
+	 * of {@link #delete(KDPoint, int, int)}: the nodes on the path to the point,
+	 * and on the path of every successor that moves up, are copied, and the tree
+	 * rooted at this is left untouched.
+	 *
+	 * @param pIn     The {@link KDPoint} to delete. It <b>must</b> be in the
+	 *                subtree rooted at this; check with
+	 *                {@link #search(KDPoint, int, int)} first.
+	 * @param currDim The current dimension to consider.
+	 * @param dims    The total number of dimensions that the space considers.
+	 * @return The root of a new tree, holding the points of this except for one
+	 *         copy of pIn, or null if it is empty.
+	 * @see #persistentInsert(KDPoint, int, int)
+	 */
+	public KDTreeNode persistentDelete(KDPoint pIn, int currDim, int dims) {
+		KDPoint target = pIn;
+		KDTreeNode root = new KDTreeNode(this), parent = null, curr = root;
+		boolean fromRight = false;
+		TraversalStack path = TraversalStack.acquire();
+		try {
+			while (!(curr.p.equals(target) && curr.left == null && curr.right == null)) {
+				curr.size--;
+				path.push(curr, 0, 0.0);
+				if (curr.p.equals(target)) {
+					if (curr.right == null) {
+						curr.right = curr.left;
+						curr.left = null;
+					}
+					// the search for the successor only reads the shared subtree
+					curr.p = curr.right.findMin(currDim, nextDim(currDim, dims), dims).p;
+					target = curr.p;
+					fromRight = true;
+				} else {
+					fromRight = target.coords[currDim] >= curr.p.coords[currDim];
+				}
+				parent = curr;
+				// copy the next node on the path before it changes; a leaf that is only unlinked is copied needlessly
+				if (fromRight) {
+					curr = curr.right = new KDTreeNode(curr.right);
+				} else {
+					curr = curr.left = new KDTreeNode(curr.left);
+				}
+				currDim = nextDim(currDim, dims);
+			}
+			if (parent == null) {
+				return null;
+			}
+			if (fromRight) {
+				parent.right = null;
 			} else {
-				return childSuccessor;
+				parent.left = null;
 			}
-		} else if (leftMin == null && rightMin != null && curr != null) {
-			return (rightMin.p.coords[targetDim] >= this.p.coords[targetDim]) ? this : rightMin;
-		} else if (leftMin != null && rightMin == null && curr != null) {
-			return (leftMin.p.coords[targetDim] >= this.p.coords[targetDim]) ? this : leftMin;
-		} else if (leftMin != null && rightMin != null && curr == null) {
-			return (leftMin.p.coords[targetDim] >= rightMin.p.coords[targetDim]) ? rightMin : leftMin;
-		} else if (leftMin == null && rightMin == null && curr != null) {
-			return curr;
-		} else if (leftMin != null && rightMin == null && curr == null) {
-			return leftMin;
-		} else {
-			return rightMin;
+			refreshHeights(path);
+			return root;
+		} finally {
+			path.release();
 		}
 	}
 
@@ -240,25 +721,17 @@ public class KDTreeNode {
 	 *         otherwise.
 	 */
 	public boolean search(KDPoint pIn, int currDim, int dims) {
-		// found the target node, return
-		if (this.p.equals(pIn)) {
-			return true;
-		}
-
-		if (pIn.coords[currDim] >= this.p.coords[currDim]) {
-			// must go right to continue the search
-			if (this.right == null) {
-				return false;
-			}
-			return this.right.search(pIn, nextDim(currDim, dims), dims);
-		} else {
-			// pIn.coords[currDim] < this.p.coords[currDim]
-			if (this.left == null) {
-				return false;
-			} else {
-				return this.left.search(pIn, nextDim(currDim, dims), dims);
+		KDTreeNode curr = this;
+		while (curr != null) {
+			// found the target node, return
+			if (!curr.deleted && curr.p.equals(pIn)) {
+				return true;
 			}
+			// points equal to the split value live on the right
+			curr = (pIn.coords[currDim] >= curr.p.coords[currDim]) ? curr.right : curr.left;
+			currDim = nextDim(currDim, dims);
 		}
+		return false;
 	}
 
 	/**
@@ -334,61 +807,366 @@ public class KDTreeNode {
 	 * } } }
 	 */
 	public void range(KDPoint anchor, Collection<KDPoint> results, double range, int currDim, int dims) {
-		range2(this, anchor, results, range, currDim, dims);
+		range(anchor, results, range, currDim, dims, EuclideanMetric.INSTANCE);
 	}
 
-	//private helper for range query
-	private void range2(KDTreeNode curr, KDPoint anchor, Collection<KDPoint> results, double range, int currDim,
-			int dims) {
+	/**
+	 * Executes a range query like
+	 * {@link #range(KDPoint, Collection, double, int, int)} does, with distances
+	 * measured by the provided {@link DistanceMetric}.
+	 *
+	 * @param anchor  The centroid of the hypersphere that the range query
+	 *                implicitly creates.
+	 * @param results A {@link Collection} that accumulates all the results.
+	 * @param range   The <b>INCLUSIVE</b> range from the &quot;anchor&quot;
+	 *                {@link KDPoint}.
+	 * @param currDim The current dimension examined by the {@link KDTreeNode}.
+	 * @param dims    The total number of dimensions of our {@link KDPoint}s.
+	 * @param metric  The {@link DistanceMetric} that measures distances.
+	 */
+	public void range(KDPoint anchor, Collection<KDPoint> results, double range, int currDim, int dims,
+			DistanceMetric metric) {
+		// compare reduced distances against the reduced range, so that no roots are taken at all
+		range2(this, anchor, results, metric.reducedRange(range), currDim, dims, metric);
+	}
 
-		if (currDim == dims) {
-			currDim = 0;
+	/**
+	 * Counts the {@link KDPoint}s that a range query like
+	 * {@link #range(KDPoint, Collection, double, int, int, DistanceMetric)} would
+	 * return, without collecting them. A subtree whose cell lies entirely within
+	 * range contributes its {@link #size() size}, minus its tombstones and its
+	 * copies of the anchor, so only the nodes whose cells straddle the border of
+	 * the range are looked at one by one.
+	 *
+	 * @param anchor  The centroid of the hypersphere that the range query
+	 *                implicitly creates.
+	 * @param range   The <b>INCLUSIVE</b> range from the &quot;anchor&quot;
+	 *                {@link KDPoint}.
+	 * @param currDim The current dimension examined by the {@link KDTreeNode}.
+	 * @param dims    The total number of dimensions of our {@link KDPoint}s.
+	 * @param metric  The {@link DistanceMetric} that measures distances.
+	 * @return The number of {@link KDPoint}s other than the anchor within range
+	 *         of it.
+	 */
+	public int rangeCount(KDPoint anchor, double range, int currDim, int dims, DistanceMetric metric) {
+		return range2(this, anchor, null, metric.reducedRange(range), currDim, dims, metric);
+	}
+
+	/**
+	 * Returns a {@link RangeSpliterator} that runs the range query of
+	 * {@link #range(KDPoint, Collection, double, int, int, DistanceMetric)} one
+	 * hit at a time, without collecting the hits. Subtrees are pruned against the
+	 * splitting planes between them and the anchor.
+	 *
+	 * @param anchor  The centroid of the hypersphere that the range query
+	 *                implicitly creates.
+	 * @param range   The <b>INCLUSIVE</b> range from the &quot;anchor&quot;
+	 *                {@link KDPoint}.
+	 * @param currDim The current dimension examined by the {@link KDTreeNode}.
+	 * @param dims    The total number of dimensions of our {@link KDPoint}s.
+	 * @param metric  The {@link DistanceMetric} that measures distances.
+	 * @return The hits of the query, as they are found.
+	 */
+	public RangeSpliterator rangeSpliterator(KDPoint anchor, double range, int currDim, int dims,
+			DistanceMetric metric) {
+		return new Range(this, anchor, range, currDim, dims, metric);
+	}
+
+	/*
+	 * The traversal behind rangeSpliterator. The bound of an entry is the largest plane distance between the anchor
+	 * and a split that separates it from the subtree, so that a subtree is pruned as soon as any of those splits is out
+	 * of range. The children of a node are pushed before its own point is handed over, so the traversal can be resumed
+	 * from the stack alone.
+	 */
+	private static final class Range extends RangeSpliterator {
+
+		Range(KDTreeNode root, KDPoint anchor, double range, int currDim, int dims, DistanceMetric metric) {
+			super(anchor, range, dims, metric);
+			stack.push(root, currDim, 0.0);
 		}
-		
-		//check if the current KDPoint is within range of the anchor
-		if (!curr.getPoint().equals(anchor)) {
-			if (curr.getPoint().euclideanDistance(anchor) <= range) {
-				//if within range, add it to the list
 
-				results.add(curr.getPoint());
+		@Override
+		KDPoint nextHit() {
+			while (!stack.isEmpty()) {
+				KDTreeNode curr = (KDTreeNode) stack.pop();
+				int d = stack.poppedInt();
+				double bound = stack.poppedBound();
+				double diff = (double) anchor.coords[d] - curr.p.coords[d];
+				double farBound = Math.max(bound, metric.reducedPlaneDistance(d, diff));
+				KDTreeNode near = (diff < 0) ? curr.left : curr.right;
+				KDTreeNode far = (diff < 0) ? curr.right : curr.left;
+				// PRUNING: the far side of the split only matters if the ball crosses its plane
+				if (far != null && farBound <= reducedRange) {
+					stack.push(far, curr.nextDim(d, dims), farBound);
+				}
+				if (near != null) {
+					stack.push(near, curr.nextDim(d, dims), bound);
+				}
+				if (!curr.deleted && !curr.p.equals(anchor) && metric.reducedDistance(curr.p, anchor) <= reducedRange) {
+					return curr.p;
+				}
 			}
+			return null;
 		}
-		
-		
+	}
 
-		if (curr.left != null || curr.right != null) {
-			// if both subtrees are non-null
-			if (anchor.coords[currDim] < curr.p.coords[currDim]) {
-				// anchor is lesser in this dimension, try to go left
-				if (curr.left == null && curr.right != null) {
-					range2(curr.right, anchor, results, range, currDim + 1, dims);
-				} else {
-					range2(curr.left, anchor, results, range, currDim + 1, dims);
-					//traverse right if within rangeS
+	/**
+	 * Executes an orthogonal range query: all the {@link KDPoint}s that lie in the
+	 * axis-aligned box spanned by lowCorner and highCorner, <b>INCLUSIVE</b> on
+	 * every side, are added to results. A child is only visited if the box reaches
+	 * across the split into its side, and a subtree whose cell lies entirely
+	 * within the box is added whole, without a single coordinate comparison.
+	 *
+	 * @param lowCorner  The corner of the box with the smallest coordinates.
+	 * @param highCorner The corner of the box with the largest coordinates.
+	 * @param results    A {@link Collection} that accumulates all the results.
+	 * @param currDim    The current dimension examined by the {@link KDTreeNode}.
+	 * @param dims       The total number of dimensions of our {@link KDPoint}s.
+	 */
+	public void range(KDPoint lowCorner, KDPoint highCorner, Collection<KDPoint> results, int currDim, int dims) {
+		boxRange2(this, lowCorner, highCorner, results, currDim, dims);
+	}
+
+	/**
+	 * Counts the {@link KDPoint}s that
+	 * {@link #range(KDPoint, KDPoint, Collection, int, int)} would return, without
+	 * collecting them. A subtree whose cell lies entirely within the box
+	 * contributes its {@link #size() size}, minus its tombstones, so only the
+	 * nodes whose cells straddle a side of the box are looked at one by one.
+	 *
+	 * @param lowCorner  The corner of the box with the smallest coordinates.
+	 * @param highCorner The corner of the box with the largest coordinates.
+	 * @param currDim    The current dimension examined by the {@link KDTreeNode}.
+	 * @param dims       The total number of dimensions of our {@link KDPoint}s.
+	 * @return The number of {@link KDPoint}s within the box.
+	 */
+	public int rangeCount(KDPoint lowCorner, KDPoint highCorner, int currDim, int dims) {
+		return boxRange2(this, lowCorner, highCorner, null, currDim, dims);
+	}
+
+	/*
+	 * The queries below traverse the tree with an explicit TraversalStack instead of recursion, so that a degenerate,
+	 * list-like tree cannot overflow the call stack. Each node pushes its far child, with the distance of the splitting
+	 * plane as the bound, and then its near child, which is popped and explored first, exactly like the recursive
+	 * greedy descent. The far child is pruned when it is popped, against the best bound known at that time, which is
+	 * the same moment that the recursion would check it at.
+	 */
+
+	/*
+	 * Range queries go one step further, and track the cell of every node they visit: the axis-aligned box that the
+	 * splits of its ancestors confine its subtree to. low and high hold the cell of the node being visited, starting
+	 * from the whole (unbounded) space. A cell is pruned as soon as its closest point is out of range, which is never
+	 * looser than the plane distance of the split alone, and a cell whose farthest corner is within range is accepted
+	 * whole: its points are added without computing a single distance.
+	 *
+	 * Every child entry carries the side of the parent's cell that its split narrows (CELL_LOW for a right child,
+	 * CELL_HIGH for a left one) and the split value. When popped, it narrows the cell and pushes an undo entry (with
+	 * a null node) beneath its own children, which restores the old side once the whole subtree is done. The int slot
+	 * of an entry packs a dimension with the entry kind; for cell entries the dimension is that of the parent's split.
+	 * The near child is flagged as such: its cell is as close to the anchor as its parent's, so it needs no new check.
+	 */
+	private static final int CELL_LOW = 0, CELL_HIGH = 1, CELL_ROOT = 2, INSIDE = 3, NEAR = 4;
+
+	// private helper that packs a dimension and an entry kind into the int slot of a TraversalStack entry
+	private static int entry(int dim, int kind) {
+		return (dim << 3) | kind;
+	}
+
+	// private helper for range queries. With null results, it only counts the points in range, and returns the count.
+	private int range2(KDTreeNode root, KDPoint anchor, Collection<KDPoint> results, double reducedRange, int currDim,
+			int dims, DistanceMetric metric) {
+		int count = 0;
+		double[] low = new double[dims], high = new double[dims];
+		Arrays.fill(low, Double.NEGATIVE_INFINITY);
+		Arrays.fill(high, Double.POSITIVE_INFINITY);
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(root, entry(currDim, CELL_ROOT), 0.0);
+			while (!stack.isEmpty()) {
+				KDTreeNode curr = (KDTreeNode) stack.pop();
+				int d = stack.poppedInt() >>> 3, kind = stack.poppedInt() & 3;
+				boolean near = (stack.poppedInt() & NEAR) != 0;
+				if (curr == null) {
+					// undo entry: the subtree is done, so give the cell its old side back
+					(kind == CELL_LOW ? low : high)[d] = stack.poppedBound();
+					continue;
+				}
+				if (kind == INSIDE) {
+					// part of a subtree whose cell is within range: no distances to compute
+					if (!curr.deleted && !curr.p.equals(anchor)) {
+						results.add(curr.p);
+					}
 					if (curr.right != null) {
-						if (anchor.coords[currDim] - curr.p.coords[currDim] <= range) {
-							range2(curr.right, anchor, results, range, currDim + 1, dims);
+						stack.push(curr.right, INSIDE, 0.0);
+					}
+					if (curr.left != null) {
+						stack.push(curr.left, INSIDE, 0.0);
+					}
+					continue;
+				}
+				if (kind != CELL_ROOT) {
+					double[] side = (kind == CELL_LOW) ? low : high;
+					stack.push(null, entry(d, kind), side[d]);
+					side[d] = stack.poppedBound();
+					d = nextDim(d, dims);
+				}
+				// PRUNING: the cell can only hold points in range if its closest point is in range
+				if (!near && metric.reducedBoxDistance(anchor, low, high) > reducedRange) {
+					continue;
+				}
+				// A leaf gains nothing from being accepted whole. Otherwise, the extent of the cell in one dimension is
+				// a cheap first test: a cell that reaches out of range along a single axis cannot be within range.
+				boolean leaf = curr.left == null && curr.right == null;
+				if (!leaf
+						&& metric.reducedPlaneDistance(d,
+								Math.max(anchor.coords[d] - low[d], high[d] - anchor.coords[d])) <= reducedRange
+						&& metric.reducedFarthestBoxDistance(anchor, low, high) <= reducedRange) {
+					if (results != null) {
+						stack.push(curr, INSIDE, 0.0);
+					} else {
+						// the anchor is not part of the answer, and only a cell around it can hold copies of it
+						count += curr.size - curr.dead;
+						if (inCell(anchor, low, high)) {
+							count -= curr.copiesOf(anchor, d, dims);
 						}
 					}
+					continue;
+				}
+				//check if the current KDPoint is within range of the anchor
+				if (!curr.deleted && !curr.p.equals(anchor) && metric.reducedDistance(curr.p, anchor) <= reducedRange) {
+					//if within range, add it to the list, or just count it
+					if (results != null) {
+						results.add(curr.p);
+					} else {
+						count++;
+					}
+				}
+				// greedy descent towards the anchor first: points equal to the split value live on the right
+				int split = curr.p.coords[d];
+				boolean nearIsLeft = anchor.coords[d] < split;
+				KDTreeNode nearChild = nearIsLeft ? curr.left : curr.right;
+				KDTreeNode farChild = nearIsLeft ? curr.right : curr.left;
+				if (farChild != null) {
+					stack.push(farChild, entry(d, nearIsLeft ? CELL_LOW : CELL_HIGH), split);
+				}
+				if (nearChild != null) {
+					stack.push(nearChild, entry(d, (nearIsLeft ? CELL_HIGH : CELL_LOW) | NEAR), split);
 				}
+			}
+		} finally {
+			stack.release();
+		}
+		return count;
+	}
 
-			} else {
-				//one of the subtrees is null
-				if (curr.right == null && curr.left != null) {
-					// traverse left and avoid dead-end
-					range2(curr.left, anchor, results, range, currDim + 1, dims);
-				} else {
-					// traverse right to avoid dead-end
-					range2(curr.right, anchor, results, range, currDim + 1, dims);
-					// traverse left if within range
+	/*
+	 * Box queries track cells like range2 does, with the same entries. Since coordinates are ints and the points of a
+	 * left child are strictly below the split, the high side of a left child's cell is narrowed to split - 1, which
+	 * makes every side of a cell inclusive, like those of the box. With null results, they only count the points in
+	 * the box, and return the count.
+	 */
+	private int boxRange2(KDTreeNode root, KDPoint lowCorner, KDPoint highCorner, Collection<KDPoint> results,
+			int currDim, int dims) {
+		int count = 0;
+		double[] low = new double[dims], high = new double[dims];
+		Arrays.fill(low, Double.NEGATIVE_INFINITY);
+		Arrays.fill(high, Double.POSITIVE_INFINITY);
+		double[] boxLow = new double[dims], boxHigh = new double[dims];
+		for (int i = 0; i < dims; i++) {
+			boxLow[i] = lowCorner.coords[i];
+			boxHigh[i] = highCorner.coords[i];
+		}
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(root, entry(currDim, CELL_ROOT), 0.0);
+			while (!stack.isEmpty()) {
+				KDTreeNode curr = (KDTreeNode) stack.pop();
+				int d = stack.poppedInt() >>> 3, kind = stack.poppedInt() & 3;
+				if (curr == null) {
+					// undo entry: the subtree is done, so give the cell its old side back
+					(kind == CELL_LOW ? low : high)[d] = stack.poppedBound();
+					continue;
+				}
+				if (kind == INSIDE) {
+					// part of a subtree whose cell is within the box: no comparisons to make
+					if (!curr.deleted) {
+						results.add(curr.p);
+					}
+					if (curr.right != null) {
+						stack.push(curr.right, INSIDE, 0.0);
+					}
 					if (curr.left != null) {
-						if (anchor.coords[currDim] - curr.p.coords[currDim] <= range) {
-							range2(curr.left, anchor, results, range, currDim + 1, dims);
-						}
+						stack.push(curr.left, INSIDE, 0.0);
+					}
+					continue;
+				}
+				if (kind != CELL_ROOT) {
+					double[] side = (kind == CELL_LOW) ? low : high;
+					stack.push(null, entry(d, kind), side[d]);
+					side[d] = stack.poppedBound();
+					d = nextDim(d, dims);
+				}
+				if ((curr.left != null || curr.right != null) && cellInBox(low, high, boxLow, boxHigh)) {
+					if (results != null) {
+						stack.push(curr, INSIDE, 0.0);
+					} else {
+						count += curr.size - curr.dead;
+					}
+					continue;
+				}
+				if (!curr.deleted && inCell(curr.p, boxLow, boxHigh)) {
+					if (results != null) {
+						results.add(curr.p);
+					} else {
+						count++;
 					}
 				}
+				// PRUNING: points equal to the split value live on the right, so the left child only matters if the
+				// box reaches below the split, and the right child only if it reaches the split
+				int split = curr.p.coords[d];
+				if (curr.right != null && highCorner.coords[d] >= split) {
+					stack.push(curr.right, entry(d, CELL_LOW), split);
+				}
+				if (curr.left != null && lowCorner.coords[d] < split) {
+					stack.push(curr.left, entry(d, CELL_HIGH), split - 1.0);
+				}
 			}
+		} finally {
+			stack.release();
 		}
+		return count;
+	}
+
+	// helper that checks whether the cell [low, high] lies in the box [boxLow, boxHigh]. Shared with KDTreeBucketNode.
+	static boolean cellInBox(double[] low, double[] high, double[] boxLow, double[] boxHigh) {
+		for (int i = 0; i < low.length; i++) {
+			if (low[i] < boxLow[i] || high[i] > boxHigh[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// helper that checks whether p lies in the cell [low, high]. Shared with KDTreeBucketNode.
+	static boolean inCell(KDPoint p, double[] low, double[] high) {
+		for (int i = 0; i < low.length; i++) {
+			if (p.coords[i] < low[i] || p.coords[i] > high[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// private helper that counts the live copies of p in the subtree rooted at this; all of them lie on its search path
+	private int copiesOf(KDPoint p, int currDim, int dims) {
+		int copies = 0;
+		for (KDTreeNode curr = this; curr != null; currDim = nextDim(currDim, dims)) {
+			if (!curr.deleted && curr.p.equals(p)) {
+				copies++;
+			}
+			curr = (p.coords[currDim] >= curr.p.coords[currDim]) ? curr.right : curr.left;
+		}
+		return copies;
 	}
 
 	/**
@@ -428,80 +1206,65 @@ public class KDTreeNode {
 	 * @see #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, int, int)
 	 */
 	public NNData<KDPoint> nearestNeighbor(KDPoint anchor, int currDim, NNData<KDPoint> n, int dims) {
-		nearestNeighbor2(anchor, currDim, n, dims);
-		return n;
+		return nearestNeighbor(anchor, currDim, n, dims, EuclideanMetric.INSTANCE);
 	}
 
-	// private helper method for NN
-	private void nearestNeighbor2(KDPoint anchor, int currDim, NNData<KDPoint> n, int dims) {
-		if (this.p.coords[currDim] < anchor.coords[currDim]) {
-			if (this.right == null) {
-				double currDist = this.p.euclideanDistance(anchor);
-				// if current node is closer than current NN, update as the result
-				if ((n.getBestDist() == -1.0 || currDist <= n.getBestDist()) && !anchor.equals(this.p)) {
-					n.update(this.p, currDist);
-				}
+	/**
+	 * Executes a nearest neighbor query like
+	 * {@link #nearestNeighbor(KDPoint, int, NNData, int)} does, with distances
+	 * measured by the provided {@link DistanceMetric}.
+	 *
+	 * @param anchor  The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param currDim The current dimension considered.
+	 * @param n       The best guess so far, with its distance from the anchor.
+	 * @param dims    The total number of dimensions considered.
+	 * @param metric  The {@link DistanceMetric} that measures distances.
+	 * @return n, updated with the nearest neighbor found and its distance.
+	 */
+	public NNData<KDPoint> nearestNeighbor(KDPoint anchor, int currDim, NNData<KDPoint> n, int dims,
+			DistanceMetric metric) {
+		// The traversal works on reduced distances; convert the caller's bound in and the result back out.
+		double bestDist = n.getBestDist();
+		n.update(n.getBestGuess(), bestDist == KDTree.INFTY ? KDTree.INFTY : metric.toReduced(bestDist));
+		nearestNeighbor2(anchor, currDim, n, dims, metric);
+		if (n.getBestDist() != KDTree.INFTY) {
+			n.update(n.getBestGuess(), metric.fromReduced(n.getBestDist()));
+		}
+		return n;
+	}
 
-				// Non-null left Subtree
-				if (this.left != null) {
-					// Can the left subtree be Pruned? Check next left child distance.
-					if (this.left.p.euclideanDistance(anchor) <= n.getBestDist()) {
-						// left subtree has possible NN, check it
-						this.left.nearestNeighbor2(anchor, nextDim(currDim, dims), n, dims);
-					}
+	// private helper method for NN. The distance held by n is reduced throughout.
+	private void nearestNeighbor2(KDPoint anchor, int currDim, NNData<KDPoint> n, int dims, DistanceMetric metric) {
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(this, currDim, 0.0);
+			while (!stack.isEmpty()) {
+				KDTreeNode curr = (KDTreeNode) stack.pop();
+				int d = stack.poppedInt();
+				// Can this subtree be pruned? Only if its splitting plane is farther than the current NN.
+				if (n.getBestDist() != KDTree.INFTY && stack.poppedBound() > n.getBestDist()) {
+					continue;
 				}
-
-			} else {
 				// if current node is closer than current NN, update as the result
-				double currDist = this.p.euclideanDistance(anchor);
-				if ((n.getBestDist() == -1.0 || currDist <= n.getBestDist()) && !anchor.equals(this.p)) {
-					n.update(this.p, currDist);
-				}
-				// visit right subtree
-				this.right.nearestNeighbor2(anchor, nextDim(currDim, dims), n, dims);
-				if (this.left != null) {
-					// Can the left subtree be Pruned? Check next left child distance.
-					if (this.left.p.euclideanDistance(anchor) <= n.getBestDist()) {
-						// left subtree has possible NN, check it
-						this.left.nearestNeighbor2(anchor, nextDim(currDim, dims), n, dims);
+				if (!curr.deleted && !anchor.equals(curr.p)) {
+					double currDist = metric.reducedDistance(curr.p, anchor);
+					if (n.getBestDist() == KDTree.INFTY || currDist <= n.getBestDist()) {
+						n.update(curr.p, currDist);
 					}
 				}
-			}
-		} else {
-			if (this.left == null) {
-				double currDist = this.p.euclideanDistance(anchor);
-				if ((n.getBestDist() == -1.0 || currDist <= n.getBestDist()) && !anchor.equals(this.p)) {
-					n.update(this.p, currDist);
-				}
-
-				if (this.right != null) {
-					if (this.right != null) {
-						// Can the right subtree be Pruned? Check next left child distance.
-						if (this.right.p.euclideanDistance(anchor) <= n.getBestDist()) {
-							// left right has possible NN, check it
-							this.right.nearestNeighbor2(anchor, nextDim(currDim, dims), n, dims);
-						}
-					}
+				// greedy descent towards the anchor
+				double diff = (double) anchor.coords[d] - curr.p.coords[d];
+				KDTreeNode near = (diff < 0) ? curr.left : curr.right;
+				KDTreeNode far = (diff < 0) ? curr.right : curr.left;
+				if (far != null) {
+					stack.push(far, nextDim(d, dims), metric.reducedPlaneDistance(d, diff));
 				}
-
-			} else {
-				// this.left != null
-				double currDist = this.p.euclideanDistance(anchor);
-				if ((n.getBestDist() == -1.0 || currDist <= n.getBestDist()) && !anchor.equals(this.p)) {
-					n.update(this.p, currDist);
-				}
-
-				// visit left subtree
-				this.left.nearestNeighbor2(anchor, nextDim(currDim, dims), n, dims);
-				if (this.right != null) {
-					// Can the left subtree be Pruned? Check next left child distance.
-					if (this.right.p.euclideanDistance(anchor) <= n.getBestDist()) {
-						// left subtree has possible NN, check it
-						this.right.nearestNeighbor2(anchor, nextDim(currDim, dims), n, dims);
-					}
+				if (near != null) {
+					stack.push(near, nextDim(d, dims), 0.0);
 				}
 			}
-
+		} finally {
+			stack.release();
 		}
 	}
 
@@ -547,95 +1310,205 @@ public class KDTreeNode {
 	 * @see BoundedPriorityQueue
 	 */
 	public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int currDim, int dims) {
-		if (anchor.coords[currDim] < this.p.coords[currDim]) {
-			// search left
-			if (this.left == null) {
-				// Reached end of greedy descent, check the point
-				if (!this.p.equals(anchor)) {
-					// if point is not anchor, add to queue
-					queue.enqueue(this.p, this.p.euclideanDistance(anchor));
-				}
-				// Check other nodes for pruning
-				if (this.right != null) {
-					// right subtree
-					if (queue.size() != k) {
-						// check queue capacity. If not full, check right subtree
-						this.right.kNearestNeighbors(k, anchor, queue, nextDim(currDim, dims), dims);
-					} else {
-						if (queue.last().euclideanDistance(anchor) >= this.right.p.euclideanDistance(anchor)) {
-							// Queue is full, compare last elem. in queue to right child and check
-							// if right child has shorter or equal distance
-							this.right.kNearestNeighbors(k, anchor, queue, nextDim(currDim, dims), dims);
-						}
-					}
+		kNearestNeighbors(k, anchor, queue, currDim, dims, EuclideanMetric.INSTANCE);
+	}
+
+	/**
+	 * Executes a k-nearest neighbors query like
+	 * {@link #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, int, int)}
+	 * does, with distances measured by the provided {@link DistanceMetric}. The
+	 * priorities in the queue are {@link DistanceMetric#reducedDistance(KDPoint,
+	 * KDPoint) reduced distances}, which order the neighbors like their distances.
+	 *
+	 * @param k       The total number of neighbors to retrieve.
+	 * @param anchor  The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param queue   A {@link BoundedPriorityQueue} that will maintain at most k
+	 *                nearest neighbors of the anchor point at all times.
+	 * @param currDim The current dimension considered.
+	 * @param dims    The total number of dimensions considered.
+	 * @param metric  The {@link DistanceMetric} that measures distances.
+	 */
+	public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int currDim, int dims,
+			DistanceMetric metric) {
+		knn2(k, anchor, queue, Double.POSITIVE_INFINITY, currDim, dims, metric);
+	}
+
+	/**
+	 * Executes a k-nearest neighbors query that only accepts neighbors within
+	 * maxRadius of the anchor, <b>INCLUSIVE</b>: up to k neighbors, but none
+	 * farther than maxRadius. The radius bounds the search from the very first
+	 * node, before the queue is full, so a subtree beyond it is never visited,
+	 * which matters most when few points lie near the anchor.
+	 *
+	 * @param k         The total number of neighbors to retrieve.
+	 * @param anchor    The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param queue     A {@link BoundedPriorityQueue} that will maintain at most
+	 *                  k nearest neighbors of the anchor point at all times, with
+	 *                  their reduced distances as priorities.
+	 * @param currDim   The current dimension considered.
+	 * @param dims      The total number of dimensions considered.
+	 * @param metric    The {@link DistanceMetric} that measures distances.
+	 * @param maxRadius The largest distance from the anchor that a neighbor may
+	 *                  have.
+	 * @see #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, int, int,
+	 *      DistanceMetric)
+	 */
+	public void kNearestNeighborsWithin(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int currDim,
+			int dims, DistanceMetric metric, double maxRadius) {
+		knn2(k, anchor, queue, metric.reducedRange(maxRadius), currDim, dims, metric);
+	}
+
+	// private helper for k-nearest neighbors queries, which never look farther than reducedRadius from the anchor
+	private void knn2(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, double reducedRadius, int currDim,
+			int dims, DistanceMetric metric) {
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(this, currDim, 0.0);
+			while (!stack.isEmpty()) {
+				KDTreeNode curr = (KDTreeNode) stack.pop();
+				int d = stack.poppedInt();
+				// Pruning check: visit the subtree if its splitting plane is within the radius, and either the queue
+				// is not yet full, or the plane is no farther than the worst neighbor kept so far
+				double bound = stack.poppedBound();
+				if (bound > reducedRadius || (queue.size() >= k && bound > queue.lastPriority())) {
+					continue;
 				}
-			} else {
-				// add current node and compare with current points in queue
-				if (!this.p.equals(anchor)) {
-					queue.enqueue(this.p, this.p.euclideanDistance(anchor));
-				}
-				// greedy descent
-				this.left.kNearestNeighbors(k, anchor, queue, nextDim(currDim, dims), dims);
-
-				// Pruning check on right subtree
-				if (this.right != null) {
-					if (queue.size() != k) {
-						this.right.kNearestNeighbors(k, anchor, queue, nextDim(currDim, dims), dims);
-					} else if (queue.last().euclideanDistance(anchor) >= this.right.p.euclideanDistance(anchor)) {
-						// queue is full so do distance comparison between right child and last point in
-						// the queue
-						this.right.kNearestNeighbors(k, anchor, queue, nextDim(currDim, dims), dims);
+				if (!curr.deleted && !curr.p.equals(anchor)) {
+					double dist = metric.reducedDistance(curr.p, anchor);
+					if (dist <= reducedRadius) {
+						queue.enqueue(curr.p, dist);
 					}
 				}
+				// greedy descent towards the anchor
+				double diff = (double) anchor.coords[d] - curr.p.coords[d];
+				KDTreeNode near = (diff < 0) ? curr.left : curr.right;
+				KDTreeNode far = (diff < 0) ? curr.right : curr.left;
+				if (far != null) {
+					stack.push(far, nextDim(d, dims), metric.reducedPlaneDistance(d, diff));
+				}
+				if (near != null) {
+					stack.push(near, nextDim(d, dims), 0.0);
+				}
 			}
+		} finally {
+			stack.release();
+		}
+	}
 
-		} else {
-			// search to the right
-			if (this.right == null) {
-				if (!this.p.equals(anchor)) {
-					queue.enqueue(this.p, this.p.euclideanDistance(anchor));
+	/**
+	 * <p>
+	 * Executes an <b>approximate</b> k-nearest neighbors query in best-bin-first
+	 * order. Subtrees wait in a priority queue, keyed by a lower bound on their
+	 * distance from the anchor, and the closest one is always explored next, by a
+	 * greedy descent to a leaf that queues the far side of every split on the
+	 * way. The search stops once the closest subtree in the queue is not
+	 * (1+epsilon) times closer than the k-th neighbor found so far, or after
+	 * maxVisits such descents, whichever comes first.
+	 * </p>
+	 *
+	 * <p>
+	 * Without a limit on the descents, every neighbor returned is at most
+	 * (1+epsilon) times farther from the anchor than the true neighbor of the same
+	 * rank; with epsilon = 0 the answer is exact. With a limit, the answer is the
+	 * best that the visited leaves hold.
+	 * </p>
+	 *
+	 * @param k         The total number of neighbors to retrieve.
+	 * @param anchor    The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param queue     A {@link BoundedPriorityQueue} that will maintain at most
+	 *                  k nearest neighbors of the anchor point at all times, with
+	 *                  their reduced distances as priorities.
+	 * @param currDim   The current dimension considered.
+	 * @param dims      The total number of dimensions considered.
+	 * @param metric    The {@link DistanceMetric} that measures distances.
+	 * @param epsilon   The relative error allowed, at least 0 (zero).
+	 * @param maxVisits The largest number of leaves to descend to.
+	 * @see #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, int, int,
+	 *      DistanceMetric)
+	 */
+	public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, int currDim, int dims,
+			DistanceMetric metric, double epsilon, int maxVisits) {
+		// the reduced bound below which a subtree may still improve the k-th neighbor, for the k-th neighbor last seen
+		double kth = Double.NaN, threshold = Double.POSITIVE_INFINITY;
+		NodeQueue bins = NodeQueue.acquire();
+		try {
+			bins.push(this, currDim, 0.0);
+			for (int visits = 0; visits < maxVisits && !bins.isEmpty(); visits++) {
+				KDTreeNode curr = (KDTreeNode) bins.pop();
+				int d = bins.poppedInt();
+				double bound = bins.poppedBound();
+				if (queue.size() >= k && queue.lastPriority() != kth) {
+					kth = queue.lastPriority();
+					threshold = shrink(kth, epsilon, metric);
 				}
-
-				// Pruning check on left side
-				if (this.left != null) {
-					if (queue.size() != k) {
-
-						this.left.kNearestNeighbors(k, anchor, queue, nextDim(currDim, dims), dims);
-					} else if (queue.last().euclideanDistance(anchor) >= this.left.p.euclideanDistance(anchor)) {
-						this.left.kNearestNeighbors(k, anchor, queue, nextDim(currDim, dims), dims);
-					}
-				} else {
-					if (!this.p.equals(anchor)) {
-						queue.enqueue(this.p, this.p.euclideanDistance(anchor));
-					}
-
-					this.right.kNearestNeighbors(k, anchor, queue, nextDim(currDim, dims), dims);
-
-					if (this.left != null) {
-						if (queue.size() != k) {
-							this.left.kNearestNeighbors(k, anchor, queue, nextDim(currDim, dims), dims);
-						} else {
-							if (queue.last().euclideanDistance(anchor) >= this.left.p.euclideanDistance(anchor)) {
-								this.left.kNearestNeighbors(k, anchor, queue, nextDim(currDim, dims), dims);
-							}
+				// every other bin is at least as far as this one
+				if (bound > threshold) {
+					break;
+				}
+				// the near side of every split is as close as the bin itself, until the neighbors found rule it out
+				while (curr != null && bound <= threshold) {
+					if (!curr.deleted && !curr.p.equals(anchor)) {
+						queue.enqueue(curr.p, metric.reducedDistance(curr.p, anchor));
+						if (queue.size() >= k && queue.lastPriority() != kth) {
+							kth = queue.lastPriority();
+							threshold = shrink(kth, epsilon, metric);
 						}
 					}
-				}
-			} else {
-				if (!this.p.equals(anchor)) {
-					queue.enqueue(anchor, this.p.euclideanDistance(anchor));
-				}
-
-				this.right.kNearestNeighbors(k, anchor, queue, nextDim(currDim, dims), dims);
-
-				if (this.left != null) {
-					if (queue.size() != k) {
-						this.left.kNearestNeighbors(k, anchor, queue, nextDim(currDim, dims), dims);
-					} else if (queue.last().euclideanDistance(anchor) >= this.left.p.euclideanDistance(anchor)) {
-						this.left.kNearestNeighbors(k, anchor, queue, nextDim(currDim, dims), dims);
+					double diff = (double) anchor.coords[d] - curr.p.coords[d];
+					KDTreeNode near = (diff < 0) ? curr.left : curr.right;
+					KDTreeNode far = (diff < 0) ? curr.right : curr.left;
+					double farBound = Math.max(bound, metric.reducedPlaneDistance(d, diff));
+					if (far != null && farBound <= threshold) {
+						bins.push(far, nextDim(d, dims), farBound);
 					}
+					curr = near;
+					d = nextDim(d, dims);
 				}
 			}
+		} finally {
+			bins.release();
+		}
+	}
+
+	/*
+	 * Private helper that turns the reduced distance of the k-th neighbor into the bound that a subtree has to beat to
+	 * be worth a visit in an approximate search: a subtree can only improve the k-th neighbor by a factor of 1+epsilon
+	 * if its distance, times 1+epsilon, is smaller than that of the k-th neighbor. Shared with KDTreeBucketNode and
+	 * PRQuadGrayNode.
+	 */
+	static double shrink(double reducedKth, double epsilon, DistanceMetric metric) {
+		return (epsilon == 0) ? reducedKth : metric.toReduced(metric.fromReduced(reducedKth) / (1 + epsilon));
+	}
+
+	/**
+	 * Returns a {@link NeighborIterator} over the points of the subtree rooted at
+	 * this, by increasing distance from the anchor. No work is done until the
+	 * first neighbor is asked for.
+	 *
+	 * @param anchor  The &quot;anchor&quot; {@link KDPoint} of the neighbors.
+	 * @param currDim The current dimension considered.
+	 * @param dims    The total number of dimensions considered.
+	 * @param metric  The {@link DistanceMetric} that measures distances.
+	 * @return An iterator over the neighbors of the anchor, nearest first.
+	 */
+	public NeighborIterator neighbors(KDPoint anchor, int currDim, int dims, DistanceMetric metric) {
+		return new NeighborIterator(this, currDim, anchor, dims, metric);
+	}
+
+	// package-private helper for NeighborIterator: queues the point of this, and both children bounded by the splits
+	// between them and the anchor
+	void browse(NeighborIterator neighbors, KDPoint anchor, int currDim, double bound, int dims,
+			DistanceMetric metric) {
+		if (!deleted) {
+			neighbors.offer(p, metric.reducedDistance(p, anchor));
+		}
+		double diff = (double) anchor.coords[currDim] - p.coords[currDim];
+		double farBound = Math.max(bound, metric.reducedPlaneDistance(currDim, diff));
+		if (left != null) {
+			neighbors.offer(left, nextDim(currDim, dims), (diff < 0) ? bound : farBound);
+		}
+		if (right != null) {
+			neighbors.offer(right, nextDim(currDim, dims), (diff < 0) ? farBound : bound);
 		}
 	}
 
@@ -648,37 +1521,72 @@ public class KDTreeNode {
 	 * height(right_subtree))+1</li>
 	 * </ol>
 	 * 
+	 * The height is maintained incrementally by every update, so this takes O(1)
+	 * time.
+	 * 
 	 * @return the height of the subtree rooted at the current node.
 	 */
 	public int height() {
-		return height2(this);
+		return this.height;
 	}
 
-	private int height2(KDTreeNode curr) {
-		// if empty tree or subtree, return -1
-		if (curr == null) {
-			return -1;
-		}
-		// If dead-end return 0
-		if (curr.left == null && curr.right == null) {
-			return 0;
-		} else {
-			// Otherwise, check heights of left and right subtrees
-			// Take the greater height of the subtrees
-			// Add 1 to account for current level
-			return Math.max(height2(curr.left), height2(curr.right)) + 1;
+	/**
+	 * A simple getter for the {@link KDPoint} held by the current node. Since it is
+	 * an {@link ImmutableKDPoint}, it is shared rather than deep copied.
+	 * 
+	 * @return The {@link ImmutableKDPoint} held inside this.
+	 */
+	public ImmutableKDPoint getPoint() {
+		return this.p;
+	}
+
+	/**
+	 * Returns the number of nodes in the subtree rooted at the current node,
+	 * including itself.
+	 *
+	 * @return The size of the subtree rooted at this.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the live {@link KDPoint} of the provided rank in the subtree rooted
+	 * at this, in pre-order. The descent is guided by the sizes of the subtrees,
+	 * minus their tombstones, so it takes time proportional to the height of the
+	 * tree, and a uniformly random rank gives a uniformly random point.
+	 *
+	 * @param rank The rank of the point, from 0 (zero) to the number of live
+	 *             points in the subtree, exclusive.
+	 * @return The {@link ImmutableKDPoint} of the provided rank.
+	 */
+	public ImmutableKDPoint pointAt(int rank) {
+		KDTreeNode curr = this;
+		while (true) {
+			if (!curr.deleted) {
+				if (rank == 0) {
+					return curr.p;
+				}
+				rank--;
+			}
+			int leftLive = (curr.left == null) ? 0 : curr.left.size - curr.left.dead;
+			if (rank < leftLive) {
+				curr = curr.left;
+			} else {
+				rank -= leftLive;
+				curr = curr.right;
+			}
 		}
 	}
 
 	/**
-	 * A simple getter for the {@link KDPoint} held by the current node. Remember:
-	 * {@link KDPoint}s ARE MUTABLE, SO WE NEED TO DO DEEP COPIES!!!
-	 * 
-	 * @return The {@link KDPoint} held inside this.
+	 * Reports whether the point of the current node has been deleted lazily.
+	 *
+	 * @return true iff this is a tombstone, whose point is no longer in the tree.
+	 * @see #lazyDelete(KDPoint, int, int, double)
 	 */
-	public KDPoint getPoint() {
-		KDPoint point = new KDPoint(this.p);
-		return point;
+	public boolean isDeleted() {
+		return this.deleted;
 	}
 
 	public KDTreeNode getLeft() {
@@ -0,0 +1,148 @@
+package spatial.nodes;
+
+import spatial.kdpoint.KDPoint;
+import spatial.metrics.DistanceMetric;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>
+ * A {@link NeighborIterator} browses the {@link KDPoint}s of a tree by
+ * increasing distance from an anchor, one at a time, in the manner of
+ * Hjaltason and Samet's incremental nearest neighbor algorithm. A single
+ * {@link NodeQueue} holds both subtrees, keyed by a lower bound on their
+ * distance from the anchor, and points, keyed by their exact distance. Popping
+ * a subtree replaces it by its point and children; popping a point means that
+ * nothing left in the queue can be closer, so it is the next neighbor.
+ * </p>
+ *
+ * <p>
+ * Nothing is expanded before the consumer asks for the next neighbor, so
+ * pulling m neighbors costs about as much as a k-nearest neighbors query with
+ * k = m, whether or not m was known in advance. Like the k-nearest neighbors
+ * queries, the iterator skips points equal to the anchor. The tree must not be
+ * modified while it is being browsed, except for persistent trees, whose
+ * iterators browse the version they were created from.
+ * </p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see KDTreeNode#neighbors(KDPoint, int, int, DistanceMetric)
+ * @see KDTreeBucketNode#neighbors(KDPoint, int, DistanceMetric)
+ * @see PRQuadNode#neighbors(KDPoint, DistanceMetric)
+ */
+public final class NeighborIterator implements Iterator<KDPoint> {
+
+	private final KDPoint anchor;
+	private final int dims;
+	private final DistanceMetric metric;
+
+	// owned by this iterator for its whole life, so it is not one of the per-thread queues
+	private final NodeQueue queue = new NodeQueue();
+
+	private KDPoint next;
+	private double nextDistance, lastDistance = Double.NaN;
+
+	/**
+	 * @param root    The root of the tree to browse, or null for an empty tree.
+	 * @param rootDim The cutting dimension of the root, if it is a
+	 *                {@link KDTreeNode}.
+	 * @param anchor  The anchor of the neighbors.
+	 * @param dims    The total number of dimensions considered.
+	 * @param metric  The {@link DistanceMetric} that measures distances.
+	 */
+	NeighborIterator(Object root, int rootDim, KDPoint anchor, int dims, DistanceMetric metric) {
+		this.anchor = anchor;
+		this.dims = dims;
+		this.metric = metric;
+		if (root != null) {
+			queue.push(root, rootDim, 0.0);
+		}
+	}
+
+	/**
+	 * @param anchor The anchor of the neighbors.
+	 * @param metric The {@link DistanceMetric} that measures distances.
+	 * @return An iterator over the neighbors of the anchor in an empty tree, which
+	 *         has none.
+	 */
+	public static NeighborIterator empty(KDPoint anchor, DistanceMetric metric) {
+		return new NeighborIterator(null, 0, anchor, 0, metric);
+	}
+
+	/**
+	 * Queues a point of the tree, unless it is the anchor itself.
+	 *
+	 * @param p       The point.
+	 * @param reduced The reduced distance of p from the anchor.
+	 */
+	void offer(KDPoint p, double reduced) {
+		if (reduced != 0 || !p.equals(anchor)) {
+			queue.push(p, 0, reduced);
+		}
+	}
+
+	/**
+	 * Queues a subtree of the tree.
+	 *
+	 * @param node  The root of the subtree.
+	 * @param dim   The cutting dimension of node, if the tree needs one.
+	 * @param bound A lower bound on the reduced distance from the anchor to any
+	 *              point of the subtree, no smaller than that of its parent.
+	 */
+	void offer(Object node, int dim, double bound) {
+		queue.push(node, dim, bound);
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (next == null && !queue.isEmpty()) {
+			Object top = queue.pop();
+			double bound = queue.poppedBound();
+			if (top instanceof KDPoint) {
+				next = (KDPoint) top;
+				nextDistance = bound;
+			} else if (top instanceof KDTreeNode) {
+				((KDTreeNode) top).browse(this, anchor, queue.poppedInt(), bound, dims, metric);
+			} else if (top instanceof KDTreeBucketNode) {
+				((KDTreeBucketNode) top).browse(this, anchor, bound, dims, metric);
+			} else if (top instanceof PRQuadGrayNode) {
+				((PRQuadGrayNode) top).browse(this, anchor, metric);
+			} else {
+				PRQuadBlackNode black = (PRQuadBlackNode) top;
+				DistanceBuffer buffer = DistanceBuffer.acquire();
+				try {
+					double[] dists = black.reducedDistances(anchor, metric, buffer);
+					for (int i = 0; i < black.count; i++) {
+						offer(black.points[i], dists[i]);
+					}
+				} finally {
+					buffer.release();
+				}
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public KDPoint next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException("There are no more neighbors of " + anchor + ".");
+		}
+		KDPoint p = next;
+		next = null;
+		lastDistance = nextDistance;
+		return p;
+	}
+
+	/**
+	 * @return The distance from the anchor of the neighbor returned by the last
+	 *         call to {@link #next()}, or {@link Double#NaN} before the first
+	 *         one. Consumers that stop at some distance can check it without
+	 *         measuring the distance again.
+	 */
+	public double distance() {
+		return Double.isNaN(lastDistance) ? Double.NaN : metric.fromReduced(lastDistance);
+	}
+}
@@ -0,0 +1,142 @@
+package spatial.nodes;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A min-priority queue of tree nodes for the best-first traversals of
+ * {@link KDTreeNode}, {@link KDTreeBucketNode} and {@link PRQuadGrayNode}.
+ * Every entry is a node together with an {@code int} (the cutting dimension of
+ * the node, when the tree needs one) and a {@code double} (a lower bound on the
+ * distance from the anchor to anything in the node's subtree), and the entry
+ * with the smallest bound is popped first. Like {@link TraversalStack}, the
+ * three parts live in parallel arrays, so pushing and popping allocate
+ * nothing.
+ * </p>
+ *
+ * <p>
+ * Each thread keeps one queue and reuses it across queries through
+ * {@link #acquire()} and {@link #release()}, exactly like
+ * {@link TraversalStack}.
+ * </p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see TraversalStack
+ */
+final class NodeQueue {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final ThreadLocal<NodeQueue> CACHED = ThreadLocal.withInitial(NodeQueue::new);
+
+	private Object[] nodes = new Object[INITIAL_CAPACITY];
+	private int[] ints = new int[INITIAL_CAPACITY];
+	private double[] bounds = new double[INITIAL_CAPACITY];
+	private int size;
+	private boolean inUse;
+
+	// the int and double of the entry popped last
+	private int poppedInt;
+	private double poppedBound;
+
+	/**
+	 * @return An empty queue for the calling thread. It must be handed back with
+	 *         {@link #release()} once the traversal is over.
+	 */
+	static NodeQueue acquire() {
+		NodeQueue queue = CACHED.get();
+		if (queue.inUse) {
+			return new NodeQueue(); // re-entrant traversal: never share the queue
+		}
+		queue.inUse = true;
+		return queue;
+	}
+
+	/**
+	 * Empties the queue, dropping its references to nodes, and makes it available
+	 * to the next {@link #acquire()} of the thread.
+	 */
+	void release() {
+		while (size > 0) {
+			nodes[--size] = null;
+		}
+		inUse = false;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void push(Object node, int i, double bound) {
+		if (size == nodes.length) {
+			int capacity = 2 * size;
+			nodes = Arrays.copyOf(nodes, capacity);
+			ints = Arrays.copyOf(ints, capacity);
+			bounds = Arrays.copyOf(bounds, capacity);
+		}
+		// sift the hole up from the new last slot, then fill it
+		int slot = size++;
+		while (slot > 0) {
+			int parent = (slot - 1) >>> 1;
+			if (bounds[parent] <= bound) {
+				break;
+			}
+			move(parent, slot);
+			slot = parent;
+		}
+		set(slot, node, i, bound);
+	}
+
+	/**
+	 * Pops the entry with the smallest bound. Its {@code int} and {@code double}
+	 * are available from {@link #poppedInt()} and {@link #poppedBound()} until the
+	 * next pop.
+	 *
+	 * @return The node of the popped entry.
+	 */
+	Object pop() {
+		Object top = nodes[0];
+		poppedInt = ints[0];
+		poppedBound = bounds[0];
+		// sift the hole down from the root, then fill it with the old last entry
+		int last = --size;
+		double bound = bounds[last];
+		int slot = 0;
+		while (true) {
+			int child = 2 * slot + 1;
+			if (child >= last) {
+				break;
+			}
+			if (child + 1 < last && bounds[child + 1] < bounds[child]) {
+				child++;
+			}
+			if (bound <= bounds[child]) {
+				break;
+			}
+			move(child, slot);
+			slot = child;
+		}
+		set(slot, nodes[last], ints[last], bound);
+		nodes[last] = null;
+		return top;
+	}
+
+	int poppedInt() {
+		return poppedInt;
+	}
+
+	double poppedBound() {
+		return poppedBound;
+	}
+
+	private void set(int slot, Object node, int i, double bound) {
+		nodes[slot] = node;
+		ints[slot] = i;
+		bounds[slot] = bound;
+	}
+
+	private void move(int from, int to) {
+		set(to, nodes[from], ints[from], bounds[from]);
+	}
+}
@@ -1,9 +1,13 @@
 package spatial.nodes;
 
 import spatial.exceptions.UnimplementedMethodException;
+import spatial.kdpoint.DistanceKernels;
+import spatial.kdpoint.ImmutableKDPoint;
 import spatial.kdpoint.KDPoint;
 import spatial.knnutils.BoundedPriorityQueue;
 import spatial.knnutils.NNData;
+import spatial.metrics.DistanceMetric;
+import spatial.metrics.EuclideanMetric;
 import spatial.trees.CentroidAccuracyException;
 import spatial.trees.PRQuadTree;
 
@@ -37,6 +41,33 @@ public class PRQuadBlackNode extends PRQuadNode {
     public KDPoint [] points;
     public int count;
     private int currHeight;
+
+    // PR-QuadTrees index the plane, so every point of the bucket has two coordinates
+    private static final int DIMS = 2;
+
+    // the coordinates of points, back to back, which the batch distance kernel scans in one call
+    private int[] coords;
+
+    // package-private helper that stores p in the next free slot, frozen so that queries can hand it out as is
+    void append(KDPoint p) {
+        KDPoint frozen = ImmutableKDPoint.of(p);
+        System.arraycopy(frozen.coords, 0, coords, DIMS * count, DIMS);
+        points[count++] = frozen;
+    }
+
+    // package-private helper that measures the reduced distances between all the points of this and the anchor at
+    // once, into the buffer: under the euclidean metric, the whole bucket goes through a single batch kernel call
+    double[] reducedDistances(KDPoint anchor, DistanceMetric metric, DistanceBuffer buffer) {
+        double[] out = buffer.distances(count);
+        if(metric == EuclideanMetric.INSTANCE && anchor.coords.length == DIMS) {
+            DistanceKernels.squaredDistances(anchor.coords, coords, 0, count, out);
+        } else {
+            for(int i = 0; i < count; i++) {
+                out[i] = metric.reducedDistance(points[i], anchor);
+            }
+        }
+        return out;
+    }
     /* *********************************************************************** */
     /* ***************  IMPLEMENT THE FOLLOWING PUBLIC METHODS:  ************ */
     /* *********************************************************************** */
@@ -54,6 +85,7 @@ public class PRQuadBlackNode extends PRQuadNode {
     public PRQuadBlackNode(KDPoint centroid, int k, int bucketingParam){
         super(centroid, k, bucketingParam); // Call to the super class' protected constructor to properly initialize the object is necessary, even for a constructor that just throws!
         points = new KDPoint[bucketingParam]; // create new node with b-param
+        coords = new int[DIMS * bucketingParam];
         this.count = 0;
         this.currHeight = 0;
     }
@@ -75,8 +107,8 @@ public class PRQuadBlackNode extends PRQuadNode {
         points = new KDPoint[bucketingParam];
         count = 0;
         this.currHeight = 0;
-     // add KDPoint to BlackNode, increment count
-        points[count++] = p; 
+     // add KDPoint to BlackNode, increment count.
+        append(p);
     }
 
 
@@ -112,12 +144,12 @@ public class PRQuadBlackNode extends PRQuadNode {
     	// checking if black node can hold another point
     	if(count < bucketingParam) {
     		//inserting KDPoint
-    		points[count++] = p;
+    		append(p);
     		return this;
     	} else {
     		// insertion violates the bucketing parameter
-    		// make new grey node
-    		PRQuadGrayNode blackToGrey = new PRQuadGrayNode(this.centroid, this.k-1, bucketingParam);
+    		// make new grey node, which spans the very same quadrant and so keeps our k
+    		PRQuadGrayNode blackToGrey = new PRQuadGrayNode(this.centroid, this.k, bucketingParam);
     		// take all the points in the black node and insert them into the grey node created
             for(KDPoint pnts: points) {
             	blackToGrey.insert(pnts, this.k);
@@ -142,36 +174,19 @@ public class PRQuadBlackNode extends PRQuadNode {
      */
     @Override
     public PRQuadNode delete(KDPoint p) {
-    	// if the black node has at least 1 point,
-		// the black node will remain
-		// if not, a white node (null) will be returned
-    	if(count > 1) {
-	 		// remove the point from the Black node
-    		for(int i = 0; i<count; i++) {
-    			if(points[i].equals(p)) {
-    				points[i] = null;
-    				count--;
-    			}
-    		}
-    		
-    		//copying items to new array to skip null values
-    		KDPoint[] shrinkBlack = new KDPoint[bucketingParam];
-    		
-    		int counter = 0;
-    		for(int j = 0; j < bucketingParam; j++) {
-    			if(points[j] != null) {
-    				shrinkBlack[counter++] = points[j];
-    			}
+    	for(int i = 0; i < count; i++) {
+    		if(points[i].equals(p)) {
+    			// shift the points after it one slot to the left, keeping their order
+    			System.arraycopy(points, i + 1, points, i, count - i - 1);
+    			System.arraycopy(coords, DIMS * (i + 1), coords, DIMS * i, DIMS * (count - i - 1));
+    			points[--count] = null;
+    			// if the black node has at least 1 point, the black node will remain
+    			// if not, a white node (null) will be returned
+    			return (count == 0) ? null : this;
     		}
-    		
-    		this.points = shrinkBlack;
-    		
-    		return this;
-    		
-    	} else {
-    		return null;
     	}
-        	
+    	// p is not here: no changes
+    	return this;
     }
 
     @Override
@@ -216,43 +231,112 @@ public class PRQuadBlackNode extends PRQuadNode {
     	return p;
     }
 
+    // The scans below measure the whole bucket at once, into the thread's DistanceBuffer, and skip the anchor itself
+    // by its reduced distance of 0 (zero).
+
     @Override
-    public void range(KDPoint anchor, Collection<KDPoint> results,
-                      double range) {
-    	for(int i = 0; i < count; i++) {
-    		//check if each point in the node is within range of the anchor
-    		if(!points[i].equals(anchor) && points[i].euclideanDistance(anchor) <= range) {
-    			results.add(points[i]);
+    protected void rangeReduced(KDPoint anchor, Collection<KDPoint> results, double reducedRange,
+                                DistanceMetric metric) {
+    	DistanceBuffer buffer = DistanceBuffer.acquire();
+    	try {
+    		double[] dists = reducedDistances(anchor, metric, buffer);
+    		for(int i = 0; i < count; i++) {
+    			//check if each point in the node is within range of the anchor
+    			if(dists[i] != 0 && dists[i] <= reducedRange) {
+    				results.add(points[i]);
+    			}
     		}
+    	} finally {
+    		buffer.release();
     	}
     }
 
     @Override
-    public NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n) {
-    	for(int i = 0; i < count; i++) {
-   
-    		if(!points[i].equals(anchor)) {
-    			// if best dist has not been set, set it to max distance possible
-    			if(n.getBestDist() == -1) {
-    				n.update(null, INFTY);
-    			}
+    protected void nearestNeighborReduced(KDPoint anchor, NNData<KDPoint> n, DistanceMetric metric) {
+    	DistanceBuffer buffer = DistanceBuffer.acquire();
+    	try {
+    		double[] dists = reducedDistances(anchor, metric, buffer);
+    		for(int i = 0; i < count; i++) {
     			// check if each point has a closer distance than the current best distance
-    			if(points[i].euclideanDistance(anchor) != 0 && points[i].euclideanDistance(anchor) < n.getBestDist()) {
+    			double dist = dists[i];
+    			if(dist != 0 && (n.getBestDist() == INFTY || dist < n.getBestDist())) {
     				//update NNdata if so
-    				n.update(points[i], points[i].euclideanDistance(anchor));
+    				n.update(points[i], dist);
+    			}
+    		}
+    	} finally {
+    		buffer.release();
+    	}
+    }
+
+    @Override
+    protected int rangeCountReduced(KDPoint anchor, double reducedRange, DistanceMetric metric) {
+    	int inRange = 0;
+    	DistanceBuffer buffer = DistanceBuffer.acquire();
+    	try {
+    		double[] dists = reducedDistances(anchor, metric, buffer);
+    		for(int i = 0; i < count; i++) {
+    			if(dists[i] != 0 && dists[i] <= reducedRange) {
+    				inRange++;
     			}
     		}
+    	} finally {
+    		buffer.release();
     	}
-    	return n;
+    	return inRange;
     }
 
     @Override
-    public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue){
-        //can rely on BPQ to either add points or to ignore them based on distance
+    public void range(KDPoint lowCorner, KDPoint highCorner, Collection<KDPoint> results) {
     	for(int i = 0; i < count; i++) {
-    		if(!points[i].equals(anchor)) {
-    			queue.enqueue(points[i], points[i].euclideanDistance(anchor));
+    		KDPoint p = points[i];
+    		if(p.coords[0] >= lowCorner.coords[0] && p.coords[0] <= highCorner.coords[0]
+    				&& p.coords[1] >= lowCorner.coords[1] && p.coords[1] <= highCorner.coords[1]) {
+    			results.add(p);
     		}
     	}
     }
+
+    @Override
+    public int rangeCount(KDPoint lowCorner, KDPoint highCorner) {
+    	int inBox = 0;
+    	for(int i = 0; i < count; i++) {
+    		KDPoint p = points[i];
+    		if(p.coords[0] >= lowCorner.coords[0] && p.coords[0] <= highCorner.coords[0]
+    				&& p.coords[1] >= lowCorner.coords[1] && p.coords[1] <= highCorner.coords[1]) {
+    			inBox++;
+    		}
+    	}
+    	return inBox;
+    }
+
+    @Override
+    public KDPoint pointAt(int rank) {
+    	return points[rank];
+    }
+
+    @Override
+    protected void kNearestNeighborsReduced(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue,
+                                            double reducedRadius, DistanceMetric metric){
+        //can rely on BPQ to either add points or to ignore them based on distance.
+        //Reduced distances order the queue exactly like distances do.
+    	DistanceBuffer buffer = DistanceBuffer.acquire();
+    	try {
+    		double[] dists = reducedDistances(anchor, metric, buffer);
+    		for(int i = 0; i < count; i++) {
+    			if(dists[i] != 0 && dists[i] <= reducedRadius) {
+    				queue.enqueue(points[i], dists[i]);
+    			}
+    		}
+    	} finally {
+    		buffer.release();
+    	}
+    }
+
+    @Override
+    public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, DistanceMetric metric,
+                                  double epsilon, int maxVisits){
+        // a single bucket is a single leaf visit, and scanning all of it is never worse than the approximation
+        kNearestNeighbors(k, anchor, queue, metric);
+    }
 }
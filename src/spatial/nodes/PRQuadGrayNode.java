@@ -1,13 +1,14 @@
 package spatial.nodes;
 
 import spatial.exceptions.UnimplementedMethodException;
+import spatial.kdpoint.ImmutableKDPoint;
 import spatial.kdpoint.KDPoint;
 import spatial.knnutils.BoundedPriorityQueue;
 import spatial.knnutils.NNData;
+import spatial.metrics.DistanceMetric;
 import spatial.trees.CentroidAccuracyException;
 import spatial.trees.PRQuadTree;
 
-import java.util.ArrayList;
 import java.util.Collection;
 
 /**
@@ -40,6 +41,9 @@ public class PRQuadGrayNode extends PRQuadNode {
 	 */
 
 	private PRQuadNode NW, NE, SW, SE;
+
+	// the number of points and the height of the subtree rooted at this, kept up to date by every update
+	private int count, height;
 	/* *********************************************************************** */
 	/* *************** IMPLEMENT THE FOLLOWING PUBLIC METHODS: ************ */
 	/* *********************************************************************** */
@@ -89,11 +93,13 @@ public class PRQuadGrayNode extends PRQuadNode {
 	 */
 	@Override
 	public PRQuadNode insert(KDPoint p, int k) {
-		if (k < 0) {
+		if (this.k < 0) {
 			throw new CentroidAccuracyException("K can't be negative");
 		}
 
-		int kboundary = (int) Math.pow(2, k - 2);
+		// Our children span quadrants of half our side, so their centroids are offset by a quarter of it. This
+		// depends on the k of this node, which a split black node hands down unchanged, and not on the caller's.
+		int kboundary = (int) Math.pow(2, this.k - 2);
 		int centX, centY;
 
 		if (p.coords[0] >= centroid.coords[0]) {
@@ -108,10 +114,10 @@ public class PRQuadGrayNode extends PRQuadNode {
 				centY = centroid.coords[1] + kboundary;
 				// if no child here, create black node
 				if (NE == null) {
-					NE = new PRQuadBlackNode(new KDPoint(centX, centY), k - 1, bucketingParam, p);
+					NE = new PRQuadBlackNode(new ImmutableKDPoint(centX, centY), this.k - 1, bucketingParam, p);
 				} else {
 					// child here, insert based on whatever color node it is
-					NE = NE.insert(p, k);
+					NE = NE.insert(p, this.k - 1);
 				}
 			} else {
 				// insert point has to go to the SouthEast quadrant: y-value less than centroid
@@ -120,11 +126,11 @@ public class PRQuadGrayNode extends PRQuadNode {
 				centY = centroid.coords[1] - kboundary;
 				if (SE == null) {
 					// no child here, create new Black node
-					SE = new PRQuadBlackNode(new KDPoint(centX, centY), k - 1, bucketingParam, p);
+					SE = new PRQuadBlackNode(new ImmutableKDPoint(centX, centY), this.k - 1, bucketingParam, p);
 				} else {
 					// child already here, insert based on whatever color node it is
 
-					SE = SE.insert(p, k);
+					SE = SE.insert(p, this.k - 1);
 				}
 			}
 		} else {
@@ -140,11 +146,11 @@ public class PRQuadGrayNode extends PRQuadNode {
 				if (SW == null) {
 					// no child here, create new Black node
 
-					SW = new PRQuadBlackNode(new KDPoint(centX, centY), k - 1, bucketingParam, p);
+					SW = new PRQuadBlackNode(new ImmutableKDPoint(centX, centY), this.k - 1, bucketingParam, p);
 				} else {
 					// child already here, insert based on whatever color node it is
 
-					SW = SW.insert(p, k);
+					SW = SW.insert(p, this.k - 1);
 				}
 			} else {
 				// insert point has to go to the NorthWest quadrant: y-value greater than
@@ -154,17 +160,30 @@ public class PRQuadGrayNode extends PRQuadNode {
 				if (NW == null) {
 					// no child here, create new Black node
 
-					NW = new PRQuadBlackNode(new KDPoint(centX, centY), k - 1, bucketingParam, p);
+					NW = new PRQuadBlackNode(new ImmutableKDPoint(centX, centY), this.k - 1, bucketingParam, p);
 				} else {
 					// child already here, insert based on whatever color node it is
 
-					NW = NW.insert(p, k);
+					NW = NW.insert(p, this.k - 1);
 				}
 			}
 		}
+		count++;
+		refreshHeight();
 		return this;
 	}
 
+	// private helper that recomputes the height of this from the heights of its children
+	private void refreshHeight() {
+		height = 0;
+		for (int i = 0; i < 4; i++) {
+			PRQuadNode child = child(i);
+			if (child != null) {
+				height = Math.max(height, child.height() + 1);
+			}
+		}
+	}
+
 	/**
 	 * <p>
 	 * Deleting a {@link KDPoint} from a {@link PRQuadGrayNode} consists of
@@ -201,230 +220,86 @@ public class PRQuadGrayNode extends PRQuadNode {
 	 */
 	@Override
 	public PRQuadNode delete(KDPoint p) {
-
-		PRQuadBlackNode deleteNode = new PRQuadBlackNode(centroid, k, bucketingParam);
-		deleteNode.points = new KDPoint[bucketingParam];
-		ArrayList<KDPoint> points = new ArrayList<KDPoint>();
-
-		int blackNum = 0;
-		int greyNum = 0;
-
-		for (PRQuadNode node : getChildren()) {
-			// count how many black and grey node are children of current Node
-			if (node != null && node.getClass().equals(PRQuadBlackNode.class)) {
-				blackNum++;
-			} else if (node != null && node.getClass().equals(PRQuadGrayNode.class)) {
-				greyNum++;
-				// extract all non-white-node children from each node
-				for (KDPoint pts : ((PRQuadBlackNode) node).points) {
-
-					if (pts != null) {
-						points.add(pts);
+		int quadrant = quadrantOf(p);
+		PRQuadNode child = child(quadrant);
+		// white node means the search has failed, and nothing changes
+		if (child == null) {
+			return this;
+		}
+		int before = child.count();
+		child = child.delete(p);
+		if ((child == null ? 0 : child.count()) == before) {
+			return this; // p was not in the quadrant
+		}
+		setChild(quadrant, child);
+		count--;
+		// A gray child always holds more points than the bucketing parameter, so once this holds no more than that,
+		// all of its children are black, and both collapsing conditions are covered.
+		if (count <= bucketingParam) {
+			PRQuadBlackNode merged = new PRQuadBlackNode(centroid, k, bucketingParam);
+			for (int i = 0; i < 4; i++) {
+				PRQuadNode black = child(i);
+				if (black != null) {
+					for (KDPoint pts : ((PRQuadBlackNode) black).getPoints()) {
+						merged.append(pts);
 					}
 				}
 			}
+			return merged;
 		}
-		// perform intended deletion
-		points.remove(p);
-
-		if (p.coords[0] < centroid.coords[0] && p.coords[1] >= centroid.coords[1]) {
-			// if point lies in the NW quadrant (-, +) perform grey or black node deletion
-
-			// white node means nothing happens
-			if (NW == null) {
-				return this;
-			}
-
-			NW = NW.delete(p);
-			// if only one black node child, current grey node becomes a black node
-
-			if (blackNum == 1) {
-				return NW;
-			}
-
-			return deleteHelper(greyNum, points, deleteNode);
-
-		} else if (p.coords[0] >= centroid.coords[0] && p.coords[1] >= centroid.coords[0]) {
-			// if point lies in the NE quadrant (+, +) perform grey or black node deletion
-
-			// white node means nothing happens
-			if (NE == null) {
-				return this;
-			}
-			NE = NE.delete(p);
-			// if only one black node child, current grey node becomes a black node
-			if (blackNum == 1) {
-				return NE;
-			}
-
-			return deleteHelper(greyNum, points, deleteNode);
-
-		} else if (p.coords[0] < centroid.coords[0] && p.coords[1] < centroid.coords[1]) {
-			// if point lies in the SW quadrant (-, -) perform grey or black node deletion
-
-			// white node means nothing happens
-			if (SW == null) {
-				return this;
-			}
-
-			SW = SW.delete(p);
-			// if only one black node child, current grey node becomes a black node
-			if (blackNum == 1) {
-				return SW;
-			}
-
-			return deleteHelper(greyNum, points, deleteNode);
-
-		} else if ((p.coords[0] >= centroid.coords[0] && p.coords[1] < centroid.coords[1])) {
-			// if point lies in the SE quadrant (-, +) perform grey or black node deletion
-
-			// white node means nothing happens
-			if (SE == null) {
-				return this;
-			}
-			SE = SE.delete(p);
-
-			// if only one black node child, current grey node becomes a black node
-
-			if (blackNum == 1) {
-				return SE;
-			}
-
-			return deleteHelper(greyNum, points, deleteNode);
-		}
+		refreshHeight();
 		return this;
 	}
 
-	// Helper for deletion:
-	// performs the conversion of a grey node to a black if bucketing param. is
-	// greater than current KDPoint count and there's only one grey node present at
-	// this subtree
-	private PRQuadNode deleteHelper(int greyNum, ArrayList<KDPoint> points, PRQuadBlackNode greyToBlack) {
-		// check conditions for condensing grey node
-		if (count() <= bucketingParam && greyNum < 1) {
-			int temp = 0;
-			// extract all points and place them in new Black node
-			for (KDPoint pts : points) {
-				greyToBlack.points[temp++] = pts;
-				greyToBlack.count++;
-			}
-			// return the new Black node
-			return greyToBlack;
-		} else {
-			// otherwise, this helper function does nothing
-			return this;
-		}
-	}
-
 	@Override
 	public boolean search(KDPoint p) {
-		if (k < 0) {
-			throw new CentroidAccuracyException("K can't be negative");
-		}
 		if (p == null) {
 			return false;
 		}
-
-		// define current dimension restriction
-		int kBoundary = (int) Math.pow(2, k);
-
-		if (p.coords[0] < centroid.coords[0] && p.coords[1] >= centroid.coords[1]) {
-			// if the KD point has a less than x-value and a GTE y-value compared to the
-			// centroid,
-			// point should be in NW quadrant
-			if (NW == null) {
-				return false;
-			}
-
-			// recursive call to search on NE quadrant (greedy)
-			return NW.search(p);
-
-		} else if ((p.coords[0] >= centroid.coords[0] && p.coords[1] >= centroid.coords[1])
-				|| (p.coords[0] == centroid.coords[0] && p.coords[1] > centroid.coords[1])) {
-			// if the KD point has a GTE x-value and a GTE y-value, point should be in NE
-			// quadrant
-			// NE quadrant contains the inclusive boundary: any point on the NE x or y axis
-			// is within NE
-			if (NE == null) {
-				return false;
-			}
-			// recursive call to search on NE quadrant (greedy)
-			return NE.search(p);
-		} else if (p.coords[0] < centroid.coords[0] && p.coords[1] < centroid.coords[1]) {
-			// if the KD point has a lesser x-value and a lesser y-value, point should be in
-			// SW quadrant
-			if (SW == null) {
-				return false;
-			}
-			// recursive call to search on NE quadrant (greedy)
-
-			return SW.search(p);
-		} else if ((p.coords[0] >= centroid.coords[0] && p.coords[1] < centroid.coords[1])
-				|| (p.coords[0] == centroid.coords[0] && p.coords[1] < centroid.coords[1])) {
-			// if the KD point has a GTE x-value and a less than y-value, point should be in
-			// SE quadrant
-			// SE quadrant contains an inclusive y-axis boundary: any point on the NE y axis
-			// is within NE
-			if (SE == null) {
-				return false;
-			}
-
-			return SE.search(p);
-		} else if (p.coords[0] > centroid.coords[0] + kBoundary || p.coords[0] < centroid.coords[0] - kBoundary
-				|| p.coords[1] < centroid.coords[1] - kBoundary || p.coords[1] > centroid.coords[1] + kBoundary) {
-			// if the KDPoint is being out of the bounds of the current dimensions,
-			return false;
-		} else {
-			return false;
+		// descend greedily through the gray nodes, towards the quadrant that p would have been inserted into
+		PRQuadNode curr = this;
+		while (curr instanceof PRQuadGrayNode) {
+			PRQuadGrayNode gray = (PRQuadGrayNode) curr;
+			if (gray.k < 0) {
+				throw new CentroidAccuracyException("K can't be negative");
+			}
+			curr = gray.child(gray.quadrantOf(p));
 		}
+		// white node means the search has failed; a black node scans its bucket
+		return curr != null && curr.search(p);
 	}
 
 	@Override
 	public int height() {
-		int NWHeight = 0;
-		int NEHeight = 0;
-		int SWHeight = 0;
-		int SEHeight = 0;
-
-		// grab heights of each child
-		if (NW != null) {
-			NWHeight = 1 + NW.height();
-		}
-		if (NE != null) {
-			NEHeight = 1 + NE.height();
-		}
-		if (SW != null) {
-			SWHeight = 1 + SW.height();
-		}
-		if (SE != null) {
-			SEHeight = 1 + SE.height();
-		}
-
-		// compute the maximum of all children heights
-		return Math.max(Math.max(NWHeight, NEHeight), Math.max(SWHeight, SEHeight));
+		// maintained by insert and delete, since black nodes have a height of 0 and never change it
+		return height;
 	}
 
 	@Override
 	public int count() {
-		int totalCount = 0;
-
-		// grab KDPoint counts of each child
+		// maintained by insert and delete
+		return count;
+	}
 
-		if (NW != null) {
-			totalCount += NW.count();
-		}
-		if (NE != null) {
-			totalCount += NE.count();
-		}
-		if (SW != null) {
-			totalCount += SW.count();
-		}
-		if (SE != null) {
-			totalCount += SE.count();
+	@Override
+	public KDPoint pointAt(int rank) {
+		PRQuadNode curr = this;
+		while (curr instanceof PRQuadGrayNode) {
+			PRQuadGrayNode gray = (PRQuadGrayNode) curr;
+			// skip the quadrants that hold lower ranks, in Z-order
+			int quadrant = 0;
+			while (true) {
+				PRQuadNode child = gray.child(quadrant);
+				int childCount = (child == null) ? 0 : child.count();
+				if (rank < childCount) {
+					break;
+				}
+				rank -= childCount;
+				quadrant++;
+			}
+			curr = gray.child(quadrant);
 		}
-
-		// return sum of KDPoint counts
-		return totalCount;
+		return curr.pointAt(rank);
 	}
 
 	/**
@@ -451,283 +326,331 @@ public class PRQuadGrayNode extends PRQuadNode {
 		return children;
 	}
 
-	@Override
-	public void range(KDPoint anchor, Collection<KDPoint> results, double range) {
-		// Range process:
-		// Check coordinates of anchor and determine which quadrant that is most likely to contain the point. 
-		// Call range recursively on closest quadrant first
-		// Then call range on other quadrants in Z-order
-		if (anchor.coords[0] < centroid.coords[0] && anchor.coords[1] >= centroid.coords[1]) {
-			// NW quadrant will be queried first
-			if (NW != null) {
-				NW.range(anchor, results, range);
-			}
-
-			// range calls in Z-order
-			if (NE != null && NE.doesQuadIntersectAnchorRange(anchor, range)) {
-				NE.range(anchor, results, range);
-			}
-
-			if (SW != null && SW.doesQuadIntersectAnchorRange(anchor, range)) {
-				SW.range(anchor, results, range);
-			}
-
-			if (SE != null && SE.doesQuadIntersectAnchorRange(anchor, range)) {
-				SE.range(anchor, results, range);
-			}
-
-		} else if (anchor.coords[0] >= centroid.coords[0] && anchor.coords[1] >= centroid.coords[1]) {
-			// NE quadrant will be queried first
-			if (NE != null) {
-				NE.range(anchor, results, range);
-			}
-
-			// range calls in Z-order
-
-			if (NW != null && NW.doesQuadIntersectAnchorRange(anchor, range)) {
-				NW.range(anchor, results, range);
-			}
-
-			if (SW != null && SW.doesQuadIntersectAnchorRange(anchor, range)) {
-				SW.range(anchor, results, range);
-			}
-
-			if (SE != null && SE.doesQuadIntersectAnchorRange(anchor, range)) {
-				SE.range(anchor, results, range);
-			}
+	// private helper that returns the Z-order index of the quadrant that p falls in. Points on the vertical
+	// axis of the centroid belong to the east quadrants, and points on the horizontal axis to the north ones,
+	// exactly like insert(KDPoint, int) decides.
+	private int quadrantOf(KDPoint p) {
+		int east = (p.coords[0] >= centroid.coords[0]) ? 1 : 0;
+		int south = (p.coords[1] < centroid.coords[1]) ? 2 : 0;
+		return south + east;
+	}
 
-		} else if (anchor.coords[0] < centroid.coords[0] && anchor.coords[1] < centroid.coords[1]) {
-			// SW quadrant will be queried first
+	// private helper that returns the child in the provided Z-order index
+	private PRQuadNode child(int quadrant) {
+		switch (quadrant) {
+		case 0:
+			return NW;
+		case 1:
+			return NE;
+		case 2:
+			return SW;
+		default:
+			return SE;
+		}
+	}
 
-			if (SW != null) {
-				SW.range(anchor, results, range);
-			}
+	// private helper that replaces the child in the provided Z-order index
+	private void setChild(int quadrant, PRQuadNode child) {
+		switch (quadrant) {
+		case 0:
+			NW = child;
+			break;
+		case 1:
+			NE = child;
+			break;
+		case 2:
+			SW = child;
+			break;
+		default:
+			SE = child;
+		}
+	}
 
-			// range calls in Z-order
+	/*
+	 * The queries below walk the gray nodes with an explicit TraversalStack instead of recursing into them, and only
+	 * hand black nodes over to their own bucket scans. Every gray node pushes its children in reverse visiting order:
+	 * the quadrant that contains the anchor is pushed last, so it is popped and explored first, and the other
+	 * quadrants follow in Z-order, like the recursive version visited them. Each child carries the distance from the
+	 * anchor to its quadrant, and is pruned when it is popped, against the best bound known at that time.
+	 */
 
-			if (NW != null && NW.doesQuadIntersectAnchorRange(anchor, range)) {
-				NW.range(anchor, results, range);
+	// private helper that pushes the children of this, each with the reduced distance of its quadrant from anchor
+	private void pushChildren(TraversalStack stack, KDPoint anchor, DistanceMetric metric) {
+		int first = quadrantOf(anchor);
+		for (int i = 3; i >= -1; i--) {
+			PRQuadNode child = child(i < 0 ? first : i);
+			if (i != first && child != null) {
+				stack.push(child, 0, child.reducedDistanceToQuad(anchor, metric));
 			}
+		}
+	}
 
-			if (NE != null && NE.doesQuadIntersectAnchorRange(anchor, range)) {
-				NE.range(anchor, results, range);
+	// private helper that queues the non-null children of this, each bounded by its distance to the anchor
+	private void pushChildren(NodeQueue bins, KDPoint anchor, DistanceMetric metric) {
+		for (int i = 0; i < 4; i++) {
+			PRQuadNode child = child(i);
+			if (child != null) {
+				bins.push(child, 0, child.reducedDistanceToQuad(anchor, metric));
 			}
+		}
+	}
 
-			if (SE != null && SE.doesQuadIntersectAnchorRange(anchor, range)) {
-				SE.range(anchor, results, range);
+	// package-private helper for NeighborIterator: queues the non-null children of this, like pushChildren does
+	void browse(NeighborIterator neighbors, KDPoint anchor, DistanceMetric metric) {
+		for (int i = 0; i < 4; i++) {
+			PRQuadNode child = child(i);
+			if (child != null) {
+				neighbors.offer(child, 0, child.reducedDistanceToQuad(anchor, metric));
 			}
+		}
+	}
 
-		} else if (anchor.coords[0] >= centroid.coords[0] && anchor.coords[1] < centroid.coords[1]) {
-			// SE quadrant will be queried first
-
-			if (SE != null) {
-				SE.range(anchor, results, range);
-			}
+	/*
+	 * The traversal behind PRQuadNode#rangeSpliterator. Quadrants are pushed with their distance from the anchor and
+	 * skipped when it is out of range; the black node being scanned is kept along with the slot to resume its scan
+	 * from.
+	 */
+	static final class Range extends RangeSpliterator {
 
-			// range calls in Z-order
+		private PRQuadBlackNode leaf;
+		private int slot;
+		private double[] distances; // of the points of leaf, measured when the leaf is reached
 
-			if (NW != null && NW.doesQuadIntersectAnchorRange(anchor, range)) {
-				NW.range(anchor, results, range);
-			}
+		// the spliterator may move between threads, so it keeps a buffer of its own
+		private final DistanceBuffer buffer = new DistanceBuffer();
 
-			if (NE != null && NE.doesQuadIntersectAnchorRange(anchor, range)) {
-				NE.range(anchor, results, range);
-			}
+		Range(PRQuadNode root, KDPoint anchor, double range, DistanceMetric metric) {
+			super(anchor, range, 2, metric);
+			stack.push(root, 0, 0.0);
+		}
 
-			if (SW != null && SW.doesQuadIntersectAnchorRange(anchor, range)) {
-				SW.range(anchor, results, range);
+		@Override
+		KDPoint nextHit() {
+			while (true) {
+				if (leaf != null) {
+					while (slot < leaf.count) {
+						double dist = distances[slot];
+						KDPoint p = leaf.points[slot++];
+						if (dist != 0 && dist <= reducedRange) {
+							return p;
+						}
+					}
+					leaf = null;
+				}
+				if (stack.isEmpty()) {
+					return null;
+				}
+				PRQuadNode curr = (PRQuadNode) stack.pop();
+				// skip the quadrants that the range cannot reach
+				if (stack.poppedBound() > reducedRange) {
+					continue;
+				}
+				if (curr instanceof PRQuadGrayNode) {
+					((PRQuadGrayNode) curr).pushChildren(stack, anchor, metric);
+				} else {
+					leaf = (PRQuadBlackNode) curr;
+					slot = 0;
+					distances = leaf.reducedDistances(anchor, metric, buffer);
+				}
 			}
-
-		} else {
-			// query went out of bounds
-			throw new CentroidAccuracyException("Range Query out of bounds based on k-dim: " + this.k);
 		}
 	}
 
 	@Override
-	public NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n) {
-		// if best distance is set to Infinity/-1, then update it with a large enough INT
-		// that will be replaced by a smaller INT on the first KDPoint visited
-		if (n.getBestDist() == -1) {
-			n.update(null, 10000);
-		}
-		// Nearest Neighbor process:
-		// Check coordinates of anchor and determine which quadrant is most likely
-		// to contain the anchor. 
-		// Call NN recursively on that quadrant first if it intersects the range of the query
-		// Then call NN on other quadrants in Z-order to find other potential nearest neighbors.
-		if (anchor.coords[0] < centroid.coords[0] && anchor.coords[1] >= centroid.coords[1]) {
-			
-			if (NW != null && NW.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				NW.nearestNeighbor(anchor, n);
-			}
-			
-			if (NE != null && NE.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				NE.nearestNeighbor(anchor, n);
-			}
-			
-			if (SW != null && SW.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				SW.nearestNeighbor(anchor, n);
-			}
-			
-			if (SE != null && SE.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				SE.nearestNeighbor(anchor, n);
-			}
-		}else if (anchor.coords[0] >= centroid.coords[0] && anchor.coords[1] >= centroid.coords[1]) {
-			if (NE != null) {
-				NE.nearestNeighbor(anchor, n);
-			}
-			
-			if (NW != null && NW.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				NW.nearestNeighbor(anchor, n);
-			}
-			
-			if (SW != null && SW.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				SW.nearestNeighbor(anchor, n);
-			}
-			
-			if (SE != null && SE.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				SE.nearestNeighbor(anchor, n);
-			}
-
-		} else if (anchor.coords[0] < centroid.coords[0] && anchor.coords[1] < centroid.coords[1]) {
-			
-			if (SW != null && SW.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				SW.nearestNeighbor(anchor, n);
-			}
-			
-			if (NW != null && NW.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				NW.nearestNeighbor(anchor, n);
-			}
-			
-			if (NE != null && NE.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				NE.nearestNeighbor(anchor, n);
-			}
-			
-			if (SE != null && SE.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				SE.nearestNeighbor(anchor, n);
-			}
-			
-		} else if (anchor.coords[0] >= centroid.coords[0] && anchor.coords[1] < centroid.coords[1]){
-			
-			if (SE != null && SE.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				SE.nearestNeighbor(anchor, n);
-			}
-			
-			if (NW != null && NW.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				NW.nearestNeighbor(anchor, n);
-			}
-			
-			if (NE != null && NE.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				NE.nearestNeighbor(anchor, n);
-			}
-			
-			if (SW != null && SW.doesQuadIntersectAnchorRange(anchor, n.getBestDist())) {
-				SW.nearestNeighbor(anchor, n);
+	protected void rangeReduced(KDPoint anchor, Collection<KDPoint> results, double reducedRange,
+			DistanceMetric metric) {
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			pushChildren(stack, anchor, metric);
+			while (!stack.isEmpty()) {
+				PRQuadNode curr = (PRQuadNode) stack.pop();
+				// skip the quadrants that the range cannot reach
+				if (stack.poppedBound() > reducedRange) {
+					continue;
+				}
+				if (curr instanceof PRQuadGrayNode) {
+					((PRQuadGrayNode) curr).pushChildren(stack, anchor, metric);
+				} else {
+					curr.rangeReduced(anchor, results, reducedRange, metric);
+				}
 			}
-
-		}else {
-			throw new CentroidAccuracyException("NN query went out of bounds based on k-dim: " + this.k);
+		} finally {
+			stack.release();
 		}
-		return n;
 	}
 
 	@Override
-	public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue) {
-		//kNN process:
-		// Find the quadrant that is most likely to contain the anchor or points like the anchor.
-		// recursively call kNN on that quadrant/child.
-		// Then check other nodes 
-		// to add to BPQ, the node must be within euclidean dist. of the anchor.
-		// The BPQ will decide whether a KDPoint is added based on priority/distance, if at capacity,
-		// compared to the last element in the queue.
-		if (anchor.coords[0] < centroid.coords[0] && anchor.coords[1] >= centroid.coords[1]) {
-
-			if (NW != null) {
-				NW.kNearestNeighbors(k, anchor, queue);
-			}
-				
-			if (NE != null) {
-				//Possible pruning occurs here
-				if (NE.doesQuadIntersectAnchorRange(anchor, queue.last().euclideanDistance(anchor))) {
-					NE.kNearestNeighbors(k, anchor, queue);
-				}
-			}
-			if (SW != null) {
-				if (SW.doesQuadIntersectAnchorRange(anchor, queue.last().euclideanDistance(anchor))) {
-					SW.kNearestNeighbors(k, anchor, queue);
+	public void range(KDPoint lowCorner, KDPoint highCorner, Collection<KDPoint> results) {
+		// the int of an entry is 1 for the quadrants that lie within the box, whose points need no checks
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(this, 0, 0.0);
+			while (!stack.isEmpty()) {
+				PRQuadNode curr = (PRQuadNode) stack.pop();
+				boolean inside = stack.poppedInt() == 1;
+				if (!inside) {
+					// PRUNING: a quadrant that misses the box holds none of its points
+					if (!curr.doesQuadIntersectBox(lowCorner, highCorner)) {
+						continue;
+					}
+					inside = curr.isQuadInBox(lowCorner, highCorner);
 				}
-			}
-			if (SE != null) {
-				if (SE.doesQuadIntersectAnchorRange(anchor, queue.last().euclideanDistance(anchor))) {
-					SE.kNearestNeighbors(k, anchor, queue);
+				if (curr instanceof PRQuadGrayNode) {
+					for (int i = 3; i >= 0; i--) {
+						PRQuadNode child = ((PRQuadGrayNode) curr).child(i);
+						if (child != null) {
+							stack.push(child, inside ? 1 : 0, 0.0);
+						}
+					}
+				} else if (inside) {
+					PRQuadBlackNode black = (PRQuadBlackNode) curr;
+					for (int i = 0; i < black.count; i++) {
+						results.add(black.points[i]);
+					}
+				} else {
+					curr.range(lowCorner, highCorner, results);
 				}
 			}
+		} finally {
+			stack.release();
+		}
+	}
 
-		} else if (anchor.coords[0] >= centroid.coords[0] && anchor.coords[1] >= centroid.coords[1]) {
-			if (NE != null) {
-				NE.kNearestNeighbors(k, anchor, queue);
-			}
-			
-			if (NW != null) {
-				if (NW.doesQuadIntersectAnchorRange(anchor, queue.last().euclideanDistance(anchor))) {
-					NW.kNearestNeighbors(k, anchor, queue);
-				}
-			}
-			if (SW != null) {
-				if (SW.doesQuadIntersectAnchorRange(anchor, queue.last().euclideanDistance(anchor))) {
-					SW.kNearestNeighbors(k, anchor, queue);
+	@Override
+	public int rangeCount(KDPoint lowCorner, KDPoint highCorner) {
+		int inBox = 0;
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			stack.push(this, 0, 0.0);
+			while (!stack.isEmpty()) {
+				PRQuadNode curr = (PRQuadNode) stack.pop();
+				// PRUNING: a quadrant that misses the box holds none of its points
+				if (!curr.doesQuadIntersectBox(lowCorner, highCorner)) {
+					continue;
 				}
-			}
-			if (SE != null) {
-				if (SE.doesQuadIntersectAnchorRange(anchor, queue.last().euclideanDistance(anchor))) {
-					SE.kNearestNeighbors(k, anchor, queue);
+				if (curr.isQuadInBox(lowCorner, highCorner)) {
+					inBox += curr.count(); // the whole quadrant, without opening it
+				} else if (curr instanceof PRQuadGrayNode) {
+					for (int i = 3; i >= 0; i--) {
+						PRQuadNode child = ((PRQuadGrayNode) curr).child(i);
+						if (child != null) {
+							stack.push(child, 0, 0.0);
+						}
+					}
+				} else {
+					inBox += curr.rangeCount(lowCorner, highCorner);
 				}
 			}
+		} finally {
+			stack.release();
+		}
+		return inBox;
+	}
 
-		} else if (anchor.coords[0] < centroid.coords[0] && anchor.coords[1] < centroid.coords[1]) {
-
-			if (SW != null) {
-				SW.kNearestNeighbors(k, anchor, queue);
-			}
-
-			if (NW != null) {
-				if (NW.doesQuadIntersectAnchorRange(anchor, queue.last().euclideanDistance(anchor))) {
-					NW.kNearestNeighbors(k, anchor, queue);
+	@Override
+	protected int rangeCountReduced(KDPoint anchor, double reducedRange, DistanceMetric metric) {
+		int inRange = 0;
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			pushChildren(stack, anchor, metric);
+			while (!stack.isEmpty()) {
+				PRQuadNode curr = (PRQuadNode) stack.pop();
+				double closest = stack.poppedBound();
+				if (closest > reducedRange) {
+					continue;
 				}
-			}
-			if (NE != null) {
-				if (NE.doesQuadIntersectAnchorRange(anchor, queue.last().euclideanDistance(anchor))) {
-					NE.kNearestNeighbors(k, anchor, queue);
+				if (curr.reducedFarthestDistanceToQuad(anchor, metric) <= reducedRange) {
+					// the whole quadrant is in range; only the quadrant around the anchor can hold the anchor itself
+					inRange += curr.count();
+					if (closest == 0 && curr.search(anchor)) {
+						inRange--;
+					}
+				} else if (curr instanceof PRQuadGrayNode) {
+					((PRQuadGrayNode) curr).pushChildren(stack, anchor, metric);
+				} else {
+					inRange += curr.rangeCountReduced(anchor, reducedRange, metric);
 				}
 			}
-			if (SE != null) {
-				if (SE.doesQuadIntersectAnchorRange(anchor, queue.last().euclideanDistance(anchor))) {
-					SE.kNearestNeighbors(k, anchor, queue);
+		} finally {
+			stack.release();
+		}
+		return inRange;
+	}
+
+	@Override
+	protected void nearestNeighborReduced(KDPoint anchor, NNData<KDPoint> n, DistanceMetric metric) {
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			pushChildren(stack, anchor, metric);
+			while (!stack.isEmpty()) {
+				PRQuadNode curr = (PRQuadNode) stack.pop();
+				// a quadrant is only worth visiting if it could hold a point closer than the best guess
+				if (n.getBestDist() != INFTY && stack.poppedBound() > n.getBestDist()) {
+					continue;
+				}
+				if (curr instanceof PRQuadGrayNode) {
+					((PRQuadGrayNode) curr).pushChildren(stack, anchor, metric);
+				} else {
+					curr.nearestNeighborReduced(anchor, n, metric);
 				}
 			}
+		} finally {
+			stack.release();
+		}
+	}
 
-		} else if(anchor.coords[0] >= centroid.coords[0] && anchor.coords[1] < centroid.coords[1]){
-
-			if (SE != null) {
-				SE.kNearestNeighbors(k, anchor, queue);
+	@Override
+	protected void kNearestNeighborsReduced(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue,
+			double reducedRadius, DistanceMetric metric) {
+		TraversalStack stack = TraversalStack.acquire();
+		try {
+			pushChildren(stack, anchor, metric);
+			while (!stack.isEmpty()) {
+				PRQuadNode curr = (PRQuadNode) stack.pop();
+				// a quadrant can be pruned once it is beyond the radius, or once the BPQ is full and the quadrant is
+				// farther than the last element in it
+				double bound = stack.poppedBound();
+				if (bound > reducedRadius || (queue.size() >= k && bound > queue.lastPriority())) {
+					continue;
+				}
+				if (curr instanceof PRQuadGrayNode) {
+					((PRQuadGrayNode) curr).pushChildren(stack, anchor, metric);
+				} else {
+					curr.kNearestNeighborsReduced(k, anchor, queue, reducedRadius, metric);
+				}
 			}
+		} finally {
+			stack.release();
+		}
+	}
 
-			if (NW != null) {
-				if (NW.doesQuadIntersectAnchorRange(anchor, queue.last().euclideanDistance(anchor))) {
-					NW.kNearestNeighbors(k, anchor, queue);
+	@Override
+	public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, DistanceMetric metric,
+			double epsilon, int maxVisits) {
+		double kth = Double.NaN, threshold = Double.POSITIVE_INFINITY;
+		NodeQueue bins = NodeQueue.acquire();
+		try {
+			pushChildren(bins, anchor, metric);
+			int visits = 0;
+			while (visits < maxVisits && !bins.isEmpty()) {
+				PRQuadNode curr = (PRQuadNode) bins.pop();
+				// quadrants come out closest first, so no other one can beat the threshold either
+				if (bins.poppedBound() > threshold) {
+					break;
 				}
-			}
-			if (NE != null) {
-				if (NE.doesQuadIntersectAnchorRange(anchor, queue.last().euclideanDistance(anchor))) {
-					NE.kNearestNeighbors(k, anchor, queue);
+				if (curr instanceof PRQuadGrayNode) {
+					((PRQuadGrayNode) curr).pushChildren(bins, anchor, metric);
+					continue;
 				}
-			}
-			if (SW != null) {
-				if (SW.doesQuadIntersectAnchorRange(anchor, queue.last().euclideanDistance(anchor))) {
-					SW.kNearestNeighbors(k, anchor, queue);
+				curr.kNearestNeighbors(k, anchor, queue, metric);
+				visits++;
+				if (queue.size() >= k && queue.lastPriority() != kth) {
+					kth = queue.lastPriority();
+					threshold = KDTreeNode.shrink(kth, epsilon, metric);
 				}
 			}
+		} finally {
+			bins.release();
 		}
 	}
 }
@@ -1,8 +1,11 @@
 package spatial.nodes;
 
+import spatial.kdpoint.ImmutableKDPoint;
 import spatial.kdpoint.KDPoint;
 import spatial.knnutils.BoundedPriorityQueue;
 import spatial.knnutils.NNData;
+import spatial.metrics.DistanceMetric;
+import spatial.metrics.EuclideanMetric;
 import spatial.trees.CentroidAccuracyException;
 import spatial.trees.PRQuadTree;
 
@@ -35,7 +38,7 @@ public abstract class PRQuadNode {
      * <b>INVARIANT:</b> {@code centroid != null}
      * @see PRQuadNode#k
      */
-    protected KDPoint centroid;
+    protected ImmutableKDPoint centroid;
 
     /**
      * <p>The exponent to which 2 (two) is raised to characterize the length of the current quadrant's size. For example,
@@ -76,7 +79,7 @@ public abstract class PRQuadNode {
      *
      */
     protected PRQuadNode(KDPoint centroid, int k, int bucketingParam){
-        this.centroid = centroid;
+        this.centroid = ImmutableKDPoint.of(centroid);
         this.k = k;
         this.bucketingParam = bucketingParam;
     }
@@ -134,11 +137,11 @@ public abstract class PRQuadNode {
 
     /**
      * A getter for the centroid of {@code this}.
-     * @return A deep copy of the centroid of the current node.
+     * @return The centroid of the current node. It is immutable, so it is shared rather than copied.
      */
-    public KDPoint getCentroid()
+    public ImmutableKDPoint getCentroid()
     {
-        return new KDPoint(centroid);
+        return centroid;
     }
 
     @Override
@@ -172,6 +175,70 @@ public abstract class PRQuadNode {
         return (cornerDistanceSq <= Math.pow(range,2));
     }
 
+    /**
+     * Computes the <b>reduced</b> distance from anchor to the closest point of the quadrant spanned by this, under the
+     * provided {@link DistanceMetric}. The distance is 0 (zero) when anchor lies inside the quadrant. Comparing it
+     * against a reduced radius tells us whether a ball around anchor reaches into the quadrant, without any roots.
+     * @param anchor The centroid of the range.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     * @return The reduced distance between anchor and the quadrant spanned by this.
+     * @see DistanceMetric#reducedBoxDistance(KDPoint, double[], double[])
+     */
+    protected double reducedDistanceToQuad(KDPoint anchor, DistanceMetric metric)
+    {
+        // equivalent to width/2, height/2. Quadrants with k = 0 are created by splitting a k = 1 quadrant, whose
+        // children centroids cannot move by half a unit on an int grid: they keep the parent's centroid, and with it
+        // the parent's extent.
+        double quadSize = Math.scalb(1.0, Math.max(k, 1) - 1);
+        double dx = Math.max(0.0, Math.abs((double) anchor.coords[0] - centroid.coords[0]) - quadSize);
+        double dy = Math.max(0.0, Math.abs((double) anchor.coords[1] - centroid.coords[1]) - quadSize);
+        return metric.accumulate(metric.accumulate(0.0, 0, dx), 1, dy);
+    }
+
+    /**
+     * Computes the <b>reduced</b> distance from anchor to the farthest point of the quadrant spanned by this, which is
+     * one of its corners. When it is within the reduced radius of a range query, the whole quadrant is in range.
+     * @param anchor The centroid of the range.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     * @return The reduced distance between anchor and the farthest corner of the quadrant spanned by this.
+     * @see #reducedDistanceToQuad(KDPoint, DistanceMetric)
+     */
+    protected double reducedFarthestDistanceToQuad(KDPoint anchor, DistanceMetric metric)
+    {
+        double quadSize = Math.scalb(1.0, Math.max(k, 1) - 1); // see reducedDistanceToQuad
+        double dx = Math.abs((double) anchor.coords[0] - centroid.coords[0]) + quadSize;
+        double dy = Math.abs((double) anchor.coords[1] - centroid.coords[1]) + quadSize;
+        return metric.accumulate(metric.accumulate(0.0, 0, dx), 1, dy);
+    }
+
+    /**
+     * Checks whether the quadrant spanned by this, sides included, overlaps the axis-aligned box spanned by lowCorner
+     * and highCorner. If it does not, no point of the quadrant can be in the box.
+     * @param lowCorner The corner of the box with the smallest coordinates.
+     * @param highCorner The corner of the box with the largest coordinates.
+     * @return true if the quadrant and the box overlap.
+     */
+    protected boolean doesQuadIntersectBox(KDPoint lowCorner, KDPoint highCorner)
+    {
+        double quadSize = Math.scalb(1.0, Math.max(k, 1) - 1); // see reducedDistanceToQuad
+        return centroid.coords[0] - quadSize <= highCorner.coords[0] && centroid.coords[0] + quadSize >= lowCorner.coords[0]
+                && centroid.coords[1] - quadSize <= highCorner.coords[1] && centroid.coords[1] + quadSize >= lowCorner.coords[1];
+    }
+
+    /**
+     * Checks whether the quadrant spanned by this, sides included, lies entirely within the axis-aligned box spanned by
+     * lowCorner and highCorner. If it does, all of its points are in the box.
+     * @param lowCorner The corner of the box with the smallest coordinates.
+     * @param highCorner The corner of the box with the largest coordinates.
+     * @return true if the quadrant lies within the box.
+     */
+    protected boolean isQuadInBox(KDPoint lowCorner, KDPoint highCorner)
+    {
+        double quadSize = Math.scalb(1.0, Math.max(k, 1) - 1); // see reducedDistanceToQuad
+        return centroid.coords[0] - quadSize >= lowCorner.coords[0] && centroid.coords[0] + quadSize <= highCorner.coords[0]
+                && centroid.coords[1] - quadSize >= lowCorner.coords[1] && centroid.coords[1] + quadSize <= highCorner.coords[1];
+    }
+
     /**
      * <p>Executes a range query in the given {@link PRQuadNode}. Given an &quot;anchor&quot; {@link KDPoint},
      * all {@link KDPoint}s that have a {@link KDPoint#euclideanDistance(KDPoint) euclideanDistance} of <b>at most</b> range
@@ -188,8 +255,109 @@ public abstract class PRQuadNode {
  *              {@link KDPoint}s that satisfy our query will fall. The euclideanDistance metric used} is defined by
  *              {@link KDPoint#euclideanDistance(KDPoint)}.
      */
-    public abstract void range(KDPoint anchor, Collection<KDPoint> results,
-                               double range);
+    public void range(KDPoint anchor, Collection<KDPoint> results,
+                               double range){
+        range(anchor, results, range, EuclideanMetric.INSTANCE);
+    }
+
+    /**
+     * Executes a range query like {@link #range(KDPoint, Collection, double)} does, with distances measured by the
+     * provided {@link DistanceMetric}.
+     * @param anchor The centroid of the ball that the range query implicitly creates.
+     * @param results A {@link Collection} that accumulates all the results.
+     * @param range The <b>INCLUSIVE</b> range from the &quot;anchor&quot; {@link KDPoint}.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     */
+    public void range(KDPoint anchor, Collection<KDPoint> results, double range, DistanceMetric metric){
+        rangeReduced(anchor, results, metric.reducedRange(range), metric);
+    }
+
+    /**
+     * The traversal behind {@link #range(KDPoint, Collection, double, DistanceMetric)}, which compares
+     * {@link DistanceMetric#reducedDistance(KDPoint, KDPoint) reduced distances} against a reduced range.
+     * @param anchor The centroid of the ball that the range query implicitly creates.
+     * @param results A {@link Collection} that accumulates all the results.
+     * @param reducedRange The <b>INCLUSIVE</b> range from the anchor, as returned by {@link DistanceMetric#reducedRange(double)}.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     */
+    protected abstract void rangeReduced(KDPoint anchor, Collection<KDPoint> results, double reducedRange,
+                                         DistanceMetric metric);
+
+    /**
+     * Executes an orthogonal range query: all the {@link KDPoint}s that lie in the axis-aligned box spanned by lowCorner
+     * and highCorner, <b>INCLUSIVE</b> on every side, are added to results. Quadrants that miss the box are pruned, and
+     * quadrants that lie within it are added whole, without looking at their points one by one.
+     * @param lowCorner The corner of the box with the smallest coordinates.
+     * @param highCorner The corner of the box with the largest coordinates.
+     * @param results A {@link Collection} that accumulates all the results.
+     */
+    public abstract void range(KDPoint lowCorner, KDPoint highCorner, Collection<KDPoint> results);
+
+    /**
+     * Counts the {@link KDPoint}s that {@link #range(KDPoint, KDPoint, Collection)} would return, without collecting
+     * them. A quadrant that lies entirely within the box contributes its {@link #count()}, so only the quadrants that
+     * straddle a side of the box are looked at point by point.
+     * @param lowCorner The corner of the box with the smallest coordinates.
+     * @param highCorner The corner of the box with the largest coordinates.
+     * @return The number of {@link KDPoint}s within the box.
+     */
+    public abstract int rangeCount(KDPoint lowCorner, KDPoint highCorner);
+
+    /**
+     * Counts the {@link KDPoint}s that {@link #range(KDPoint, Collection, double, DistanceMetric)} would return,
+     * without collecting them. A quadrant that lies entirely within range contributes its {@link #count()}, so only the
+     * quadrants that straddle the border of the range are looked at point by point.
+     * @param anchor The centroid of the ball that the range query implicitly creates.
+     * @param range The <b>INCLUSIVE</b> range from the &quot;anchor&quot; {@link KDPoint}.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     * @return The number of {@link KDPoint}s other than the anchor within range of it.
+     */
+    public int rangeCount(KDPoint anchor, double range, DistanceMetric metric){
+        return rangeCountReduced(anchor, metric.reducedRange(range), metric);
+    }
+
+    /**
+     * The traversal behind {@link #rangeCount(KDPoint, double, DistanceMetric)}, which compares reduced distances
+     * against a reduced range.
+     * @param anchor The centroid of the ball that the range query implicitly creates.
+     * @param reducedRange The <b>INCLUSIVE</b> range from the anchor, as returned by {@link DistanceMetric#reducedRange(double)}.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     * @return The number of {@link KDPoint}s other than the anchor within range of it.
+     */
+    protected abstract int rangeCountReduced(KDPoint anchor, double reducedRange, DistanceMetric metric);
+
+    /**
+     * Returns the {@link KDPoint} of the provided rank in the subtree rooted at the current node, in Z-order of the
+     * quadrants. The descent is guided by the {@link #count() counts} of the subtrees, so a uniformly random rank gives
+     * a uniformly random point.
+     * @param rank The rank of the point, from 0 (zero) to {@link #count()}, exclusive.
+     * @return The {@link KDPoint} of the provided rank.
+     */
+    public abstract KDPoint pointAt(int rank);
+
+    /**
+     * Returns a {@link NeighborIterator} over the {@link KDPoint}s of the subtree rooted at the current node, by
+     * increasing distance from the anchor. Quadrants are only opened when the consumer asks for a neighbor that they
+     * might hold.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the neighbors.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     * @return An iterator over the neighbors of the anchor, nearest first.
+     */
+    public NeighborIterator neighbors(KDPoint anchor, DistanceMetric metric){
+        return new NeighborIterator(this, 0, anchor, 2, metric);
+    }
+
+    /**
+     * Returns a {@link RangeSpliterator} that runs the range query of
+     * {@link #range(KDPoint, Collection, double, DistanceMetric)} one hit at a time, without collecting the hits.
+     * @param anchor The centroid of the ball that the range query implicitly creates.
+     * @param range The <b>INCLUSIVE</b> range from the &quot;anchor&quot; {@link KDPoint}.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     * @return The hits of the query, as they are found.
+     */
+    public RangeSpliterator rangeSpliterator(KDPoint anchor, double range, DistanceMetric metric){
+        return new PRQuadGrayNode.Range(this, anchor, range, metric);
+    }
 
     /**
      * <p>Executes a nearest neighbor query, which returns the nearest neighbor, in terms of
@@ -214,7 +382,37 @@ public abstract class PRQuadNode {
      * @see NNData
      * @see #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue)
      */
-    public abstract NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n);
+    public NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n){
+        return nearestNeighbor(anchor, n, EuclideanMetric.INSTANCE);
+    }
+
+    /**
+     * Executes a nearest neighbor query like {@link #nearestNeighbor(KDPoint, NNData)} does, with distances measured
+     * by the provided {@link DistanceMetric}.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+     * @param n The best guess so far, with its distance from anchor, or {@link #INFTY} if there is none yet.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     * @return n, updated with the nearest neighbor found and its distance.
+     */
+    public NNData<KDPoint> nearestNeighbor(KDPoint anchor, NNData<KDPoint> n, DistanceMetric metric){
+        // The traversal works on reduced distances; convert the caller's bound in and the result back out.
+        double bestDist = n.getBestDist();
+        n.update(n.getBestGuess(), bestDist == INFTY ? INFTY : metric.toReduced(bestDist));
+        nearestNeighborReduced(anchor, n, metric);
+        if(n.getBestDist() != INFTY)
+            n.update(n.getBestGuess(), metric.fromReduced(n.getBestDist()));
+        return n;
+    }
+
+    /**
+     * The traversal behind {@link #nearestNeighbor(KDPoint, NNData, DistanceMetric)}. Identical in contract, except
+     * that the distance held by n is the {@link DistanceMetric#reducedDistance(KDPoint, KDPoint) reduced distance}
+     * of the best guess from the anchor.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+     * @param n The best guess so far, with its reduced distance from anchor, or {@link #INFTY} if there is none yet.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     */
+    protected abstract void nearestNeighborReduced(KDPoint anchor, NNData<KDPoint> n, DistanceMetric metric);
 
     /**
      * <p>Executes a nearest neighbor query, which returns the nearest neighbor, in terms of
@@ -241,7 +439,72 @@ public abstract class PRQuadNode {
      *
      * @see BoundedPriorityQueue
      */
-    public abstract void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue);
+    public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue){
+        kNearestNeighbors(k, anchor, queue, EuclideanMetric.INSTANCE);
+    }
+
+    /**
+     * Executes a k-nearest neighbors query like {@link #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue)} does,
+     * with distances measured by the provided {@link DistanceMetric}. The priorities in the queue are
+     * {@link DistanceMetric#reducedDistance(KDPoint, KDPoint) reduced distances}, which order the neighbors like
+     * their distances.
+     * @param k The total number of neighbors to retrieve.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+     * @param queue A {@link BoundedPriorityQueue} that will maintain at most k nearest neighbors of
+     *              the anchor point at all times.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     */
+    public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, DistanceMetric metric){
+        kNearestNeighborsReduced(k, anchor, queue, Double.POSITIVE_INFINITY, metric);
+    }
+
+    /**
+     * Executes a k-nearest neighbors query like {@link #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue,
+     * DistanceMetric)} does, but only accepts neighbors within maxRadius of the anchor, <b>INCLUSIVE</b>: up to k
+     * neighbors, but none farther than maxRadius. Quadrants beyond the radius are pruned from the very first one,
+     * before the queue is full.
+     * @param k The total number of neighbors to retrieve.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+     * @param queue A {@link BoundedPriorityQueue} that will maintain at most k nearest neighbors of
+     *              the anchor point at all times.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     * @param maxRadius The largest distance from the anchor that a neighbor may have.
+     */
+    public void kNearestNeighborsWithin(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue,
+                                        DistanceMetric metric, double maxRadius){
+        kNearestNeighborsReduced(k, anchor, queue, metric.reducedRange(maxRadius), metric);
+    }
+
+    /**
+     * The traversal behind both exact k-nearest neighbors queries, which never looks farther than reducedRadius from
+     * the anchor.
+     * @param k The total number of neighbors to retrieve.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+     * @param queue A {@link BoundedPriorityQueue} that will maintain at most k nearest neighbors of
+     *              the anchor point at all times.
+     * @param reducedRadius The largest reduced distance from the anchor that a neighbor may have, as returned by
+     *                      {@link DistanceMetric#reducedRange(double)}, or {@link Double#POSITIVE_INFINITY} for none.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     */
+    protected abstract void kNearestNeighborsReduced(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue,
+                                                     double reducedRadius, DistanceMetric metric);
+
+    /**
+     * Executes an <b>approximate</b> k-nearest neighbors query in best-bin-first order: quadrants are explored
+     * closest first, and the search stops once no remaining quadrant can improve the k-th neighbor by a factor of
+     * 1+epsilon, or after scanning maxVisits black nodes. Without a limit on the visits, every neighbor returned is
+     * at most (1+epsilon) times farther from the anchor than the true neighbor of the same rank.
+     * @param k The total number of neighbors to retrieve.
+     * @param anchor The &quot;anchor&quot; {@link KDPoint} of the nearest neighbor query.
+     * @param queue A {@link BoundedPriorityQueue} that will maintain at most k nearest neighbors of
+     *              the anchor point at all times.
+     * @param metric The {@link DistanceMetric} that measures distances.
+     * @param epsilon The relative error allowed, at least 0 (zero).
+     * @param maxVisits The largest number of black nodes to scan.
+     * @see #kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, DistanceMetric)
+     */
+    public abstract void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue,
+                                           DistanceMetric metric, double epsilon, int maxVisits);
 }
 
 
@@ -0,0 +1,122 @@
+package spatial.nodes;
+
+import spatial.kdpoint.KDPoint;
+import spatial.metrics.DistanceMetric;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * <p>
+ * A {@link RangeSpliterator} runs a range query one hit at a time: instead of
+ * collecting every {@link KDPoint} in range into a {@link java.util.Collection}
+ * first, it keeps the state of the traversal (its own {@link TraversalStack},
+ * and the position within the bucket being scanned, if any) between hits, and
+ * hands each hit over as soon as it is found. The hits are the points of the
+ * tree, which are immutable and shared, so no hit allocates anything; a
+ * consumer that stops early also stops the traversal, and the rest of the tree
+ * is never visited.
+ * </p>
+ *
+ * <p>
+ * Every kind of node provides its own traversal, in {@link #nextHit()}, with
+ * the same pruning as its collecting range query. The tree must not be
+ * modified while the query runs, except for persistent trees, whose queries
+ * run over the version they started from.
+ * </p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see KDTreeNode#rangeSpliterator(KDPoint, double, int, int, DistanceMetric)
+ * @see KDTreeBucketNode#rangeSpliterator(KDPoint, double, int, DistanceMetric)
+ * @see PRQuadNode#rangeSpliterator(KDPoint, double, DistanceMetric)
+ */
+public abstract class RangeSpliterator implements Spliterator<KDPoint> {
+
+	final KDPoint anchor;
+	final double reducedRange;
+	final int dims;
+	final DistanceMetric metric;
+
+	// owned by this query for its whole life, so it is not one of the per-thread stacks
+	final TraversalStack stack = new TraversalStack();
+
+	/**
+	 * @param anchor The centroid of the ball that the range query implicitly
+	 *               creates.
+	 * @param range  The <b>INCLUSIVE</b> range from the anchor.
+	 * @param dims   The total number of dimensions considered.
+	 * @param metric The {@link DistanceMetric} that measures distances.
+	 */
+	RangeSpliterator(KDPoint anchor, double range, int dims, DistanceMetric metric) {
+		this.anchor = anchor;
+		this.reducedRange = metric.reducedRange(range);
+		this.dims = dims;
+		this.metric = metric;
+	}
+
+	/**
+	 * Resumes the traversal up to the next {@link KDPoint} within range of the
+	 * anchor, other than the anchor itself.
+	 *
+	 * @return The next hit, or null once the traversal is over.
+	 */
+	abstract KDPoint nextHit();
+
+	/**
+	 * Hands the hits over to the visitor, one by one, for as long as it asks for
+	 * more.
+	 *
+	 * @param visitor Called with every hit; returns true to go on, or false to
+	 *                end the query.
+	 * @return true if the query ran to completion, false if the visitor ended it.
+	 */
+	public boolean forEachWhile(Predicate<? super KDPoint> visitor) {
+		for (KDPoint hit = nextHit(); hit != null; hit = nextHit()) {
+			if (!visitor.test(hit)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super KDPoint> action) {
+		KDPoint hit = nextHit();
+		if (hit == null) {
+			return false;
+		}
+		action.accept(hit);
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super KDPoint> action) {
+		for (KDPoint hit = nextHit(); hit != null; hit = nextHit()) {
+			action.accept(hit);
+		}
+	}
+
+	/**
+	 * @return null: the hits are found in a single, sequential traversal.
+	 */
+	@Override
+	public Spliterator<KDPoint> trySplit() {
+		return null;
+	}
+
+	/**
+	 * @return {@link Long#MAX_VALUE}: the number of hits is not known until the
+	 *         traversal is over.
+	 */
+	@Override
+	public long estimateSize() {
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public int characteristics() {
+		return NONNULL;
+	}
+}
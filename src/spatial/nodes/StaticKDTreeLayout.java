@@ -0,0 +1,284 @@
+package spatial.nodes;
+
+import spatial.kdpoint.DistanceKernels;
+import spatial.kdpoint.ImmutableKDPoint;
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedPriorityQueue;
+import spatial.metrics.DistanceMetric;
+import spatial.metrics.EuclideanMetric;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * <p>
+ * {@link StaticKDTreeLayout} stores a <b>read-only</b>, perfectly balanced
+ * KD-Tree <em>implicitly</em>: there are no nodes and no child links at all,
+ * only one flat {@code int[]} of coordinates in breadth-first (Eytzinger)
+ * order. The node in slot {@code i} keeps its coordinates at
+ * {@code coords[i * dims .. i * dims + dims - 1]}, its children are the slots
+ * {@code 2i + 1} and {@code 2i + 2}, and a child exists iff its slot is smaller
+ * than the number of points. The tree is <em>complete</em>, so the n points
+ * occupy exactly the slots 0 to n - 1 and its height is
+ * floor(log<sub>2</sub> n).
+ * </p>
+ *
+ * <p>
+ * Breadth-first order keeps the top levels of the tree, which every query
+ * visits, in the first few cache lines, and the coordinates of the two children
+ * of a node next to each other. Each point costs {@code dims} {@code int}s and
+ * nothing else; the {@link KDPoint}s returned by queries are created on the way
+ * out. It is used by {@link spatial.trees.StaticKDTree} to implement its
+ * functionality.
+ * </p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see spatial.trees.StaticKDTree
+ * @see KDTreeArena
+ */
+public class StaticKDTreeLayout {
+
+	private final int dims;
+	private final int size;
+	private final int[] coords;
+	private final DistanceMetric metric;
+	private final boolean euclidean; // take the squared distance kernel instead of folding coordinates one by one
+
+	/**
+	 * Lays the provided {@link KDPoint}s out in a complete, implicit KD-Tree.
+	 *
+	 * @param points The {@link KDPoint}s to store. The array is reordered in
+	 *               place, so pass a scratch copy.
+	 * @param dims   The total number of dimensions that the space considers.
+	 * @param metric The {@link DistanceMetric} that queries measure distances
+	 *               with.
+	 */
+	public StaticKDTreeLayout(KDPoint[] points, int dims, DistanceMetric metric) {
+		this.dims = dims;
+		this.size = points.length;
+		this.coords = new int[size * dims];
+		this.metric = metric;
+		this.euclidean = (metric == EuclideanMetric.INSTANCE);
+		layOut(points, 0, size, 0, 0);
+	}
+
+	/*
+	 * Places the median of points[from, to) in the current dimension at slot, and
+	 * lays out the points before it and after it as the subtrees of slot. The
+	 * median is not the middle point, but the point of rank "size of the left
+	 * subtree of a complete tree with to - from nodes", so that the slots are
+	 * filled without gaps.
+	 */
+	private void layOut(KDPoint[] points, int from, int to, int slot, int currDim) {
+		if (from >= to) {
+			return;
+		}
+		int split = from + completeLeftSubtreeSize(to - from);
+		KDTreeNode.select(points, from, to - 1, split, currDim);
+		System.arraycopy(points[split].coords, 0, coords, slot * dims, dims);
+		int next = nextDim(currDim);
+		layOut(points, from, split, 2 * slot + 1, next);
+		layOut(points, split + 1, to, 2 * slot + 2, next);
+	}
+
+	// the number of nodes in the left subtree of a complete binary tree with n nodes
+	private static int completeLeftSubtreeSize(int n) {
+		int h = 31 - Integer.numberOfLeadingZeros(n); // index of the last level
+		if (h == 0) {
+			return 0;
+		}
+		int lastLevel = n - ((1 << h) - 1), halfLastLevel = 1 << (h - 1);
+		return (halfLastLevel - 1) + Math.min(lastLevel, halfLastLevel);
+	}
+
+	// private helper for calculating next dimension to use for Tree operations
+	private int nextDim(int currentDim) {
+		return (currentDim + 1 == dims) ? 0 : currentDim + 1;
+	}
+
+	// private helper comparing the point stored at slot with p
+	private boolean pointEquals(int slot, int[] p) {
+		int base = slot * dims;
+		for (int i = 0; i < dims; i++) {
+			if (coords[base + i] != p[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// private helper for the reduced distance between the point stored at slot and p
+	private double reducedDistance(int slot, int[] p) {
+		int base = slot * dims;
+		if (euclidean) {
+			return DistanceKernels.squaredDistance(coords, base, p, 0, dims);
+		}
+		double reduced = 0.0;
+		for (int i = 0; i < dims; i++) {
+			reduced = metric.accumulate(reduced, i, (double) coords[base + i] - p[i]);
+		}
+		return reduced;
+	}
+
+	/**
+	 * Copies the point stored at a slot out of the layout.
+	 *
+	 * @param slot The slot of the node.
+	 * @return A fresh {@link ImmutableKDPoint} with the coordinates stored at slot.
+	 */
+	public ImmutableKDPoint getPoint(int slot) {
+		return new ImmutableKDPoint(Arrays.copyOfRange(coords, slot * dims, slot * dims + dims));
+	}
+
+	/**
+	 * @return The number of points stored.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The height of the complete tree, or -1 if it is empty.
+	 */
+	public int height() {
+		return 31 - Integer.numberOfLeadingZeros(size); // -1 for size 0
+	}
+
+	/**
+	 * Executes a range query. All the {@link KDPoint}s whose distance from the
+	 * anchor is at most range, <b>INCLUSIVE</b>, <b>except</b> for the anchor
+	 * itself, are added to results.
+	 *
+	 * @param anchor  The centroid of the hypersphere that the range query
+	 *                implicitly creates.
+	 * @param results A {@link Collection} that accumulates the results.
+	 * @param range   The <b>INCLUSIVE</b> range from the anchor.
+	 * @see KDTreeNode#range(KDPoint, Collection, double, int, int, DistanceMetric)
+	 */
+	public void range(KDPoint anchor, Collection<KDPoint> results, double range) {
+		if (size > 0) {
+			range(0, anchor.coords, results, metric.reducedRange(range), 0);
+		}
+	}
+
+	private void range(int slot, int[] anchor, Collection<KDPoint> results, double reducedRange, int currDim) {
+		if (!pointEquals(slot, anchor) && reducedDistance(slot, anchor) <= reducedRange) {
+			results.add(getPoint(slot));
+		}
+		double diff = (double) anchor[currDim] - coords[slot * dims + currDim];
+		int near = (diff < 0) ? 2 * slot + 1 : 2 * slot + 2;
+		int far = (diff < 0) ? 2 * slot + 2 : 2 * slot + 1;
+		if (near < size) {
+			range(near, anchor, results, reducedRange, nextDim(currDim));
+		}
+		if (far < size && metric.reducedPlaneDistance(currDim, diff) <= reducedRange) {
+			range(far, anchor, results, reducedRange, nextDim(currDim));
+		}
+	}
+
+	/**
+	 * Executes a nearest neighbor query.
+	 *
+	 * @param anchor The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @return The nearest {@link KDPoint} to anchor other than anchor itself, or
+	 *         null if there is none.
+	 */
+	public KDPoint nearestNeighbor(KDPoint anchor) {
+		// best[0] holds the reduced distance of the node whose slot is in best[1]
+		double[] best = { Double.POSITIVE_INFINITY, -1 };
+		if (size > 0) {
+			nearestNeighbor(0, anchor.coords, best, 0);
+		}
+		return best[1] < 0 ? null : getPoint((int) best[1]);
+	}
+
+	private void nearestNeighbor(int slot, int[] anchor, double[] best, int currDim) {
+		if (!pointEquals(slot, anchor)) {
+			double dist = reducedDistance(slot, anchor);
+			if (dist <= best[0]) {
+				best[0] = dist;
+				best[1] = slot;
+			}
+		}
+		double diff = (double) anchor[currDim] - coords[slot * dims + currDim];
+		int near = (diff < 0) ? 2 * slot + 1 : 2 * slot + 2;
+		int far = (diff < 0) ? 2 * slot + 2 : 2 * slot + 1;
+		if (near < size) {
+			nearestNeighbor(near, anchor, best, nextDim(currDim));
+		}
+		if (far < size && metric.reducedPlaneDistance(currDim, diff) <= best[0]) {
+			nearestNeighbor(far, anchor, best, nextDim(currDim));
+		}
+	}
+
+	/**
+	 * Executes a k-nearest neighbors query. Candidates are kept as slots in a
+	 * primitive max-heap while the tree is traversed, and only the k survivors
+	 * are turned into {@link KDPoint}s and moved into the queue, with their
+	 * reduced distances as priorities.
+	 *
+	 * @param k      The total number of neighbors to retrieve.
+	 * @param anchor The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param queue  A {@link BoundedPriorityQueue} that receives the k nearest
+	 *               neighbors of anchor, sorted by distance.
+	 */
+	public void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue) {
+		kNearestNeighbors(k, anchor, queue, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Executes a k-nearest neighbors query that only accepts neighbors within
+	 * maxRadius of the anchor, <b>INCLUSIVE</b>. The radius bounds the search from
+	 * the root on, before k candidates have been found, so subtrees beyond it are
+	 * never visited.
+	 *
+	 * @param k         The total number of neighbors to retrieve.
+	 * @param anchor    The &quot;anchor&quot; {@link KDPoint} of the query.
+	 * @param queue     A {@link BoundedPriorityQueue} that receives the k nearest
+	 *                  neighbors of anchor within maxRadius, sorted by distance.
+	 * @param maxRadius The largest distance from the anchor that a neighbor may
+	 *                  have.
+	 * @see KDTreeNode#kNearestNeighborsWithin(int, KDPoint, BoundedPriorityQueue,
+	 *      int, int, DistanceMetric, double)
+	 */
+	public void kNearestNeighborsWithin(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, double maxRadius) {
+		kNearestNeighbors(k, anchor, queue, metric.reducedRange(maxRadius));
+	}
+
+	// private helper for k-nearest neighbors queries, which never look farther than reducedRadius from the anchor
+	private void kNearestNeighbors(int k, KDPoint anchor, BoundedPriorityQueue<KDPoint> queue, double reducedRadius) {
+		if (size == 0) {
+			return;
+		}
+		CandidateHeap heap = new CandidateHeap(k);
+		kNearestNeighbors(0, anchor.coords, heap, reducedRadius, 0);
+		int[] slots = new int[heap.size];
+		double[] dists = new double[heap.size];
+		int found = heap.drainAscending(slots, dists);
+		for (int i = 0; i < found; i++) {
+			queue.enqueue(getPoint(slots[i]), dists[i]);
+		}
+	}
+
+	private void kNearestNeighbors(int slot, int[] anchor, CandidateHeap heap, double reducedRadius, int currDim) {
+		if (!pointEquals(slot, anchor)) {
+			double dist = reducedDistance(slot, anchor);
+			if (dist <= reducedRadius) {
+				heap.offer(slot, dist);
+			}
+		}
+		double diff = (double) anchor[currDim] - coords[slot * dims + currDim];
+		int near = (diff < 0) ? 2 * slot + 1 : 2 * slot + 2;
+		int far = (diff < 0) ? 2 * slot + 2 : 2 * slot + 1;
+		if (near < size) {
+			kNearestNeighbors(near, anchor, heap, reducedRadius, nextDim(currDim));
+		}
+		if (far < size) {
+			double bound = metric.reducedPlaneDistance(currDim, diff);
+			if (bound <= reducedRadius && (!heap.isFull() || bound <= heap.dist[0])) {
+				kNearestNeighbors(far, anchor, heap, reducedRadius, nextDim(currDim));
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package spatial.nodes;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * An explicit stack for the iterative tree traversals of {@link KDTreeNode},
+ * {@link KDTreeArena} and {@link PRQuadNode}. Every entry is a node together
+ * with an {@code int} (the cutting dimension, or the depth, of the node) and a
+ * {@code double} (a lower bound on the distance from the anchor to anything in
+ * the node's subtree, checked when the entry is popped). The three parts live in parallel
+ * arrays, so pushing and popping allocate nothing.
+ * </p>
+ *
+ * <p>
+ * Each thread keeps one stack and reuses it across queries through
+ * {@link #acquire()} and {@link #release()}, so the arrays only grow until they
+ * fit the deepest tree seen, and are never garbage. A traversal that starts
+ * while the thread's stack is in use (for example from inside a
+ * {@link java.util.Collection#add(Object)} callback) gets a fresh one.
+ * </p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ */
+final class TraversalStack {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final ThreadLocal<TraversalStack> CACHED = ThreadLocal.withInitial(TraversalStack::new);
+
+	private Object[] nodes = new Object[INITIAL_CAPACITY];
+	private int[] ints = new int[INITIAL_CAPACITY];
+	private double[] bounds = new double[INITIAL_CAPACITY];
+	private int size;
+	private boolean inUse;
+
+	// the int and double of the entry popped last
+	private int poppedInt;
+	private double poppedBound;
+
+	/**
+	 * @return An empty stack for the calling thread. It must be handed back with
+	 *         {@link #release()} once the traversal is over.
+	 */
+	static TraversalStack acquire() {
+		TraversalStack stack = CACHED.get();
+		if (stack.inUse) {
+			return new TraversalStack(); // re-entrant traversal: never share the stack
+		}
+		stack.inUse = true;
+		return stack;
+	}
+
+	/**
+	 * Empties the stack, dropping its references to nodes, and makes it available
+	 * to the next {@link #acquire()} of the thread.
+	 */
+	void release() {
+		while (size > 0) {
+			nodes[--size] = null;
+		}
+		inUse = false;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void push(Object node, int i, double bound) {
+		if (size == nodes.length) {
+			int capacity = 2 * size;
+			nodes = Arrays.copyOf(nodes, capacity);
+			ints = Arrays.copyOf(ints, capacity);
+			bounds = Arrays.copyOf(bounds, capacity);
+		}
+		nodes[size] = node;
+		ints[size] = i;
+		bounds[size++] = bound;
+	}
+
+	/**
+	 * Pops the top entry. Its {@code int} and {@code double} are available from
+	 * {@link #poppedInt()} and {@link #poppedBound()} until the next pop.
+	 *
+	 * @return The node of the top entry.
+	 */
+	Object pop() {
+		Object node = nodes[--size];
+		nodes[size] = null;
+		poppedInt = ints[size];
+		poppedBound = bounds[size];
+		return node;
+	}
+
+	int poppedInt() {
+		return poppedInt;
+	}
+
+	double poppedBound() {
+		return poppedBound;
+	}
+}
@@ -0,0 +1,139 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedPriorityQueue;
+import spatial.nodes.KDTreeArena;
+
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * <p>{@link ArenaKDTree} is a <em>K</em>-D Tree with exactly the semantics of {@link KDTree}, but a different storage
+ * layout: instead of one {@link spatial.nodes.KDTreeNode} per point, each with its own {@link KDPoint} and
+ * {@code int[]}, all coordinates live in one flat {@code int[]} indexed by node id and the children are {@code int}
+ * indices. For tens of millions of points this saves several object headers and references per point, and keeps the
+ * coordinates visited by a descent close together in memory.</p>
+ *
+ * <p>Like {@link KDTree}, the tree only performs some elementary sanity checks and defers all the work to a
+ * {@link KDTreeArena}. {@link KDPoint}s are copied into the arena on insertion, and the {@link KDPoint}s returned by
+ * queries are fresh copies.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see KDTree
+ * @see KDTreeArena
+ * @see SpatialDictionary
+ * @see SpatialQuerySolver
+ */
+public class ArenaKDTree implements SpatialDictionary, SpatialQuerySolver {
+
+	/**
+	 * The arena holding every node of the tree.
+	 * @see KDTreeArena
+	 */
+	private KDTreeArena arena;
+
+	/**
+	 * The dimensionality of the space considered.
+	 */
+	private int dims;
+
+	/**
+	 * The total number of {@link KDPoint}s held by the container.
+	 */
+	private int count;
+
+	/**
+	 * Default constructor constructs this with <em>k=2</em>.
+	 * @see KDTree#DEFAULT_DIMS
+	 */
+	public ArenaKDTree(){
+		this(KDTree.DEFAULT_DIMS);
+	}
+
+	/**
+	 * This constructor requires that the user provide the value for <em>k</em>.
+	 * @param k The dimensionality of this.
+	 * @throws RuntimeException if k&lt;=0.
+	 */
+	public ArenaKDTree(int k){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		dims = k;
+		arena = new KDTreeArena(k);
+		count = 0;
+	}
+
+	@Override
+	public void insert(KDPoint p){
+		arena.insert(p);
+		count++;
+	}
+
+	@Override
+	public void delete(KDPoint p){
+		if(search(p)) {
+			arena.delete(p);
+			count--; // Guaranteed successful deletion.
+		}
+	}
+
+	@Override
+	public boolean search(KDPoint p){
+		return arena.search(p);
+	}
+
+	@Override
+	public Collection<KDPoint> range(KDPoint p, double range){
+		LinkedList<KDPoint> pts = new LinkedList<>();
+		arena.range(p, pts, range);
+		return pts;
+	}
+
+	@Override
+	public KDPoint nearestNeighbor(KDPoint p){
+		return arena.nearestNeighbor(p);
+	}
+
+	@Override
+	public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
+		arena.kNearestNeighbors(k, p, queue);
+		return queue; // Might be empty; that's not a problem.
+	}
+
+	@Override
+	public int height(){
+		return arena.height();
+	}
+
+	@Override
+	public boolean isEmpty(){
+		return count == 0;
+	}
+
+	@Override
+	public int count(){
+		return count;
+	}
+
+	/**
+	 * Returns the {@link KDPoint} located at the <b>root</b> of the tree.
+	 * @return A copy of the {@link KDPoint} located at the root of the tree, or null
+	 * if the tree is empty.
+	 * @see KDTree#getRoot()
+	 */
+	public KDPoint getRoot(){
+		return arena.getRoot() == KDTreeArena.NIL ? null : arena.getPoint(arena.getRoot());
+	}
+
+	/**
+	 * Returns the dimensionality of the space considered by this.
+	 * @return The dimensionality of the space considered by this.
+	 */
+	public int getDims(){
+		return dims;
+	}
+}
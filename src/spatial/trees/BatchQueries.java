@@ -0,0 +1,79 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedPriorityQueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <p>{@link BatchQueries} fans a batch of k-nearest neighbor queries out over an {@link ExecutorService}, for
+ * {@link KDTree} and {@link PRQuadTree}. The anchors are cut into chunks of {@link #CHUNK_SIZE}, and every chunk runs
+ * its queries one after the other on a single worker, so the traversal stacks and queues that the nodes keep per
+ * thread are reused across the whole chunk instead of being set up again for every anchor.</p>
+ *
+ * <p>The queries only read the tree, so any number of them may run at once, but the tree must not be modified until
+ * the batch is over.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see KDTree#kNearestNeighbors(int, KDPoint[], ExecutorService)
+ * @see PRQuadTree#kNearestNeighbors(int, KDPoint[], ExecutorService)
+ */
+final class BatchQueries {
+
+	/**
+	 * The number of anchors that a single task queries: large enough to amortize the hand-off to a worker, small
+	 * enough to balance the load of batches with a few thousand anchors across many cores.
+	 */
+	static final int CHUNK_SIZE = 64;
+
+	private BatchQueries(){}
+
+	/**
+	 * Runs tree.kNearestNeighbors(k, anchor) for every anchor, in parallel, and waits for all of them.
+	 * @param tree The tree to query.
+	 * @param k The number of neighbors to retrieve per anchor.
+	 * @param anchors The anchors of the queries.
+	 * @param executor The {@link ExecutorService} that runs the chunks of the batch.
+	 * @return A {@link List} with the result of the i-th anchor at index i.
+	 * @throws RuntimeException if k&lt;=0, executor is null, or some query fails.
+	 */
+	static List<BoundedPriorityQueue<KDPoint>> kNearestNeighbors(SpatialQuerySolver tree, int k, KDPoint[] anchors,
+																  ExecutorService executor){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		if(executor == null)
+			throw new RuntimeException("Please provide a non-null ExecutorService.");
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		BoundedPriorityQueue<KDPoint>[] results = new BoundedPriorityQueue[anchors.length];
+		List<Callable<Void>> chunks = new ArrayList<>((anchors.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		for(int from = 0; from < anchors.length; from += CHUNK_SIZE){
+			int start = from, end = Math.min(from + CHUNK_SIZE, anchors.length);
+			chunks.add(() -> {
+				for(int i = start; i < end; i++)
+					results[i] = tree.kNearestNeighbors(k, anchors[i]);
+				return null;
+			});
+		}
+		try {
+			for(Future<Void> chunk : executor.invokeAll(chunks))
+				chunk.get(); // rethrows the failure of the chunk, if any
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for a batch of kNN queries.", e);
+		} catch(ExecutionException e){
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if(e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new RuntimeException("A batch of kNN queries failed.", e.getCause());
+		}
+		return Arrays.asList(results);
+	}
+}
@@ -0,0 +1,212 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.NNData;
+import spatial.metrics.DistanceMetric;
+import spatial.metrics.EuclideanMetric;
+import spatial.nodes.ConcurrentKDTreeNode;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>{@link ConcurrentKDTree} is an <b>insert-only</b> KD-Tree for append-only workloads such as sensor ingestion:
+ * any number of threads may insert into it and query it at once, and none of them ever takes a lock. An insertion
+ * descends like it does in a {@link KDTree} and installs its node on the first empty link with a compare-and-set; a
+ * thread that loses the race for a link continues below the node that won it. Queries run over the same links without
+ * any synchronization, and see every insertion either whole or not at all.</p>
+ *
+ * <p>Deletions are not supported, and since nothing is ever rebuilt, the shape of the tree depends on the order of the
+ * insertions, like that of a plain {@link KDTree}. Points that arrive in random order keep it shallow; for sorted
+ * streams, a {@link KDTree} with rebalancing behind a lock may be the better choice.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see ConcurrentKDTreeNode
+ * @see KDTree
+ */
+public class ConcurrentKDTree implements SpatialDictionary, SpatialQuerySolver {
+
+	private volatile ConcurrentKDTreeNode root;
+
+	/**
+	 * Installs the first {@link #root}, so that two threads that insert into an empty tree do not both become it.
+	 */
+	private static final AtomicReferenceFieldUpdater<ConcurrentKDTree, ConcurrentKDTreeNode> ROOT =
+			AtomicReferenceFieldUpdater.newUpdater(ConcurrentKDTree.class, ConcurrentKDTreeNode.class, "root");
+
+	private final int dims;
+	private final DistanceMetric metric;
+
+	/**
+	 * The number of points, counted in cells that the inserting threads do not contend for.
+	 */
+	private final LongAdder count = new LongAdder();
+
+	/**
+	 * Creates an empty tree for k-dimensional {@link KDPoint}s.
+	 * @param k The dimensionality of this.
+	 * @throws RuntimeException if k&lt;=0.
+	 */
+	public ConcurrentKDTree(int k){
+		this(k, EuclideanMetric.INSTANCE);
+	}
+
+	/**
+	 * Creates an empty tree for k-dimensional {@link KDPoint}s, whose queries measure distances with the provided
+	 * {@link DistanceMetric}.
+	 * @param k The dimensionality of this.
+	 * @param metric The {@link DistanceMetric} that this measures distances with.
+	 * @throws RuntimeException if k&lt;=0, or metric is null or does not support k dimensions.
+	 */
+	public ConcurrentKDTree(int k, DistanceMetric metric){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		if(metric == null)
+			throw new RuntimeException("Please provide a non-null DistanceMetric.");
+		if(!metric.supportsDims(k))
+			throw new RuntimeException("The DistanceMetric provided, " + metric + ", cannot measure " + k + "-dimensional " +
+					"points: Please provide a DistanceMetric for " + k + " dimensions.");
+		dims = k;
+		this.metric = metric;
+	}
+
+	@Override
+	public void insert(KDPoint p){
+		// once the root is set, whether by this thread or by another, it never changes again
+		if(root != null || !ROOT.compareAndSet(this, null, new ConcurrentKDTreeNode(p)))
+			root.insert(p, 0, dims);
+		count.increment();
+	}
+
+	/**
+	 * Not supported: a {@link ConcurrentKDTree} only grows.
+	 * @param p The {@link KDPoint} that would be deleted.
+	 * @throws RuntimeException always.
+	 */
+	@Override
+	public void delete(KDPoint p){
+		throw new RuntimeException("A ConcurrentKDTree is insert-only: deletions are not supported.");
+	}
+
+	@Override
+	public boolean search(KDPoint p){
+		ConcurrentKDTreeNode root = this.root;
+		return (root != null) && root.search(p, 0, dims);
+	}
+
+	/**
+	 * Returns the height of this. No heights are kept, so that insertions do not contend for them, which makes this
+	 * linear in the number of points.
+	 * @return The height of this, or -1 if it is empty.
+	 */
+	@Override
+	public int height(){
+		ConcurrentKDTreeNode root = this.root;
+		return (root == null) ? -1 : root.height();
+	}
+
+	@Override
+	public int count(){
+		return count.intValue();
+	}
+
+	@Override
+	public boolean isEmpty(){
+		return root == null;
+	}
+
+	/**
+	 * A simple accessor for the {@link DistanceMetric} of the current {@link ConcurrentKDTree}.
+	 * @return The {@link DistanceMetric} that the current {@link ConcurrentKDTree} measures distances with.
+	 */
+	public DistanceMetric getMetric(){
+		return metric;
+	}
+
+	@Override
+	public Collection<KDPoint> range(KDPoint p, double range){
+		LinkedList<KDPoint> pts = new LinkedList<>();
+		ConcurrentKDTreeNode root = this.root;
+		if(root != null)
+			root.range(p, pts, range, 0, dims, metric);
+		return pts;
+	}
+
+	@Override
+	public KDPoint nearestNeighbor(KDPoint p){
+		NNData<KDPoint> n = new NNData<>(null, KDTree.INFTY);
+		ConcurrentKDTreeNode root = this.root;
+		if(root != null)
+			n = root.nearestNeighbor(p, 0, n, dims, metric);
+		return n.getBestGuess();
+	}
+
+	@Override
+	public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
+		ConcurrentKDTreeNode root = this.root;
+		if(root != null)
+			root.kNearestNeighbors(k, p, queue, 0, dims, metric);
+		return queue; // Might be empty; that's not a problem.
+	}
+
+	/**
+	 * Executes a k-nearest neighbors query bounded by a radius: up to k neighbors of p, but none farther than
+	 * maxRadius, like {@link KDTree#kNearestNeighborsWithin(int, KDPoint, double)} does.
+	 * @param k The maximum number of neighbors to retrieve.
+	 * @param p The query {@link KDPoint}.
+	 * @param maxRadius The maximum distance from p, <b>INCLUSIVE</b>.
+	 * @return A {@link BoundedPriorityQueue} with at most k nearest neighbors of p, all within maxRadius of it.
+	 * @throws RuntimeException if k&lt;=0 or maxRadius&lt;0.
+	 * @see ConcurrentKDTreeNode#kNearestNeighborsWithin(int, KDPoint, BoundedPriorityQueue, int, int, DistanceMetric, double)
+	 */
+	@Override
+	public BoundedPriorityQueue<KDPoint> kNearestNeighborsWithin(int k, KDPoint p, double maxRadius){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		if(!(maxRadius >= 0))
+			throw new RuntimeException("The radius provided, " + maxRadius + ", is invalid: Please provide a non-negative number.");
+		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
+		ConcurrentKDTreeNode root = this.root;
+		if(root != null)
+			root.kNearestNeighborsWithin(k, p, queue, 0, dims, metric, maxRadius);
+		return queue; // Might be empty; that's not a problem.
+	}
+
+	/**
+	 * Runs a {@link #kNearestNeighbors(int, KDPoint) k-nearest neighbors query} for every anchor of a batch, in
+	 * parallel, as tasks of the {@link ForkJoinPool#commonPool() common pool}.
+	 * @param k The number of neighbors to retrieve per anchor.
+	 * @param anchors The anchors of the queries.
+	 * @return A {@link List} with the k nearest neighbors of anchors[i] at index i.
+	 * @throws RuntimeException if k&lt;=0.
+	 * @see #kNearestNeighbors(int, KDPoint[], ExecutorService)
+	 */
+	public List<BoundedPriorityQueue<KDPoint>> kNearestNeighbors(int k, KDPoint[] anchors){
+		return kNearestNeighbors(k, anchors, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Runs a {@link #kNearestNeighbors(int, KDPoint) k-nearest neighbors query} for every anchor of a batch, in
+	 * parallel, on the provided {@link ExecutorService}. Unlike the batches of {@link KDTree}, these may run while
+	 * other threads insert into the tree.
+	 * @param k The number of neighbors to retrieve per anchor.
+	 * @param anchors The anchors of the queries.
+	 * @param executor The {@link ExecutorService} that runs the queries.
+	 * @return A {@link List} with the k nearest neighbors of anchors[i] at index i.
+	 * @throws RuntimeException if k&lt;=0 or executor is null.
+	 * @see BatchQueries
+	 */
+	public List<BoundedPriorityQueue<KDPoint>> kNearestNeighbors(int k, KDPoint[] anchors, ExecutorService executor){
+		return BatchQueries.kNearestNeighbors(this, k, anchors, executor);
+	}
+}
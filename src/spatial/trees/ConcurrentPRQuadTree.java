@@ -0,0 +1,405 @@
+package spatial.trees;
+
+import spatial.kdpoint.ImmutableKDPoint;
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.NNData;
+import spatial.metrics.DistanceMetric;
+import spatial.metrics.EuclideanMetric;
+import spatial.nodes.PRQuadBlackNode;
+import spatial.nodes.PRQuadGrayNode;
+import spatial.nodes.PRQuadNode;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * <p>{@link ConcurrentPRQuadTree} is a {@link PRQuadTree} that any number of threads may update and query at once.
+ * The top {@link #STRIPE_LEVELS} levels of the decomposition are fixed in advance: they cut the space into up to
+ * 4^{@link #STRIPE_LEVELS} quadrants, the <em>stripes</em>, and every stripe holds a subtree of ordinary
+ * {@link PRQuadNode}s guarded by its own {@link StampedLock}. An update write-locks the single stripe its point falls
+ * into, so black-to-gray splits and gray-to-black collapses happen entirely inside it, exactly as they do in a
+ * {@link PRQuadTree}, while the other stripes stay open. A query read-locks the stripes it visits one at a time, so
+ * queries never wait for each other, and only wait for writers to the stripes they actually reach.</p>
+ *
+ * <p>The nodes change in place, so reads take a real read lock instead of an optimistic stamp: validating a stamp
+ * after the fact would be too late for a traversal that followed a child pointer of a node in the middle of a
+ * split. Every stripe is read atomically, but a query over several stripes may see an update to one stripe and not a
+ * concurrent update to another, like the iterators of {@link java.util.concurrent.ConcurrentHashMap} do.</p>
+ *
+ * <p>Since the stripe levels never collapse, the tree is as high as the tallest stripe plus the levels above it,
+ * which can exceed the height of a {@link PRQuadTree} over the same points by up to {@link #STRIPE_LEVELS}.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see PRQuadTree
+ */
+public class ConcurrentPRQuadTree implements SpatialDictionary, SpatialQuerySolver {
+
+    /**
+     * The number of levels of the decomposition that are fixed, which makes for 4^3 = 64 stripes: a few per core on
+     * a large machine, so that writers seldom contend for the same one. Trees whose space is too small to be
+     * decomposed that many times use fewer levels.
+     */
+    public static final int STRIPE_LEVELS = 3;
+
+    private final int k, bucketingParam, levels, stripeK;
+    private final DistanceMetric metric;
+
+    /*
+     * The subtree, lock and extent of every stripe, in Z-order of the quadrant paths: the stripe of index
+     * 4*i + q is quadrant q (0 for NW, 1 for NE, 2 for SW, 3 for SE) of the quadrant of index i one level up.
+     * The roots are only read and written under the lock of their stripe.
+     */
+    private final PRQuadNode[] roots;
+    private final StampedLock[] locks;
+    private final ImmutableKDPoint[] centroids;
+    private final double[][] lows, highs;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Constructor for ConcurrentPRQuadTree objects. The parameters mean what they mean for a {@link PRQuadTree}.
+     * @param k The exponent of 2 that defines the area spanned by the entire tree.
+     * @param bucketingParam The number of {@link KDPoint}s a {@link PRQuadBlackNode} can hold before having to split.
+     * @throws RuntimeException if {@code bucketingParam} &lt; 1 or {@code k } &lt; 1
+     * @see PRQuadTree#PRQuadTree(int, int)
+     */
+    public ConcurrentPRQuadTree(int k, int bucketingParam){
+        this(k, bucketingParam, EuclideanMetric.INSTANCE);
+    }
+
+    /**
+     * Constructor for ConcurrentPRQuadTree objects whose queries measure distances with the provided
+     * {@link DistanceMetric}.
+     * @param k The exponent of 2 that defines the area spanned by the entire tree.
+     * @param bucketingParam The number of {@link KDPoint}s a {@link PRQuadBlackNode} can hold before having to split.
+     * @param metric The {@link DistanceMetric} that this measures distances with.
+     * @throws RuntimeException if {@code bucketingParam} &lt; 1 or {@code k } &lt; 1, or {@code metric} is null or
+     * does not support 2 dimensions.
+     * @see PRQuadTree#PRQuadTree(int, int, DistanceMetric)
+     */
+    public ConcurrentPRQuadTree(int k, int bucketingParam, DistanceMetric metric){
+        if(k < 1 || bucketingParam < 1)
+            throw new RuntimeException("k should be 1 and above, and bucketingParam 1 and above. " +
+                    "Provided: k=" + k + ", bucketingParam=" + bucketingParam + ".");
+        if(metric == null)
+            throw new RuntimeException("Please provide a non-null DistanceMetric.");
+        if(!metric.supportsDims(2))
+            throw new RuntimeException("The DistanceMetric provided, " + metric + ", cannot measure 2-dimensional " +
+                    "points: Please provide a DistanceMetric for 2 dimensions.");
+        this.k = k;
+        this.bucketingParam = bucketingParam;
+        this.metric = metric;
+        // the children of a quadrant of side 2^j have their centroids 2^(j-2) away from its own, which stays on the
+        // int grid for j >= 2
+        levels = Math.min(STRIPE_LEVELS, k - 1);
+        stripeK = k - levels;
+        int stripes = 1 << (2 * levels);
+        roots = new PRQuadNode[stripes];
+        locks = new StampedLock[stripes];
+        centroids = new ImmutableKDPoint[stripes];
+        lows = new double[stripes][];
+        highs = new double[stripes][];
+        double half = Math.scalb(1.0, stripeK - 1);
+        for(int s = 0; s < stripes; s++){
+            int x = 0, y = 0;
+            for(int level = 1; level <= levels; level++){
+                int quadrant = (s >> (2 * (levels - level))) & 3, offset = 1 << (k - 1 - level);
+                x += (quadrant & 1) == 1 ? offset : -offset;
+                y += (quadrant & 2) == 0 ? offset : -offset;
+            }
+            locks[s] = new StampedLock();
+            centroids[s] = new ImmutableKDPoint(x, y);
+            lows[s] = new double[]{x - half, y - half};
+            highs[s] = new double[]{x + half, y + half};
+        }
+    }
+
+    /*
+     * The stripe p falls into, following the rules of PRQuadGrayNode#insert: points on the vertical line through a
+     * centroid go east, and points on the horizontal line go north.
+     */
+    private int stripeOf(KDPoint p){
+        int s = 0, x = 0, y = 0;
+        for(int level = 1; level <= levels; level++){
+            int offset = 1 << (k - 1 - level);
+            boolean east = p.coords[0] >= x, north = p.coords[1] >= y;
+            s = 4 * s + (east ? 1 : 0) + (north ? 0 : 2);
+            x += east ? offset : -offset;
+            y += north ? offset : -offset;
+        }
+        return s;
+    }
+
+    /**
+     * Inserts {@code p} into the tree, unless it is already there. Only the stripe of p is locked.
+     * @param p The {@link KDPoint} to insert into the tree.
+     * @throws CentroidAccuracyException if the insertion causes a decomposition of the
+     * tree that is too &quot; fine &quot; for {@code int} coordinate {@link KDPoint}s can handle.
+     */
+    @Override
+    public void insert(KDPoint p) throws CentroidAccuracyException {
+        int s = stripeOf(p);
+        long stamp = locks[s].writeLock();
+        try {
+            PRQuadNode root = roots[s];
+            if(root == null)
+                roots[s] = new PRQuadBlackNode(centroids[s], stripeK, bucketingParam, p);
+            else if(!root.search(p))
+                roots[s] = root.insert(p, stripeK);
+            else
+                return;
+            count.incrementAndGet();
+        } finally {
+            locks[s].unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void delete(KDPoint p) {
+        int s = stripeOf(p);
+        long stamp = locks[s].writeLock();
+        try {
+            PRQuadNode root = roots[s];
+            if(root != null && root.search(p)) {
+                roots[s] = root.delete(p);
+                count.decrementAndGet();
+            }
+        } finally {
+            locks[s].unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean search(KDPoint p) {
+        int s = stripeOf(p);
+        long stamp = locks[s].readLock();
+        try {
+            return roots[s] != null && roots[s].search(p);
+        } finally {
+            locks[s].unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int height() {
+        int height = -1;
+        for(int s = 0; s < roots.length; s++){
+            long stamp = locks[s].readLock();
+            try {
+                if(roots[s] != null)
+                    height = Math.max(height, levels + roots[s].height());
+            } finally {
+                locks[s].unlockRead(stamp);
+            }
+        }
+        return height;
+    }
+
+    @Override
+    public boolean isEmpty(){
+        return (count() == 0);
+    }
+
+    @Override
+    public int count() {
+        return count.get();
+    }
+
+    /**
+     * A simple accessor for the dimension parameter k of the current {@link ConcurrentPRQuadTree}.
+     * @return The parameter k that defines the side length of the space spanned by the tree.
+     */
+    public int getK(){
+        return k;
+    }
+
+    /**
+     * A simple accessor for the bucket size of the current {@link ConcurrentPRQuadTree}.
+     * @return The bucket size of the current {@link ConcurrentPRQuadTree}.
+     */
+    public int getBucketSize(){
+        return bucketingParam;
+    }
+
+    /**
+     * A simple accessor for the {@link DistanceMetric} of the current {@link ConcurrentPRQuadTree}.
+     * @return The {@link DistanceMetric} that the current {@link ConcurrentPRQuadTree} measures distances with.
+     */
+    public DistanceMetric getMetric(){
+        return metric;
+    }
+
+    @Override
+    public Collection<KDPoint> range(KDPoint p, double range) {
+        LinkedList<KDPoint> pts = new LinkedList<>();
+        double reducedRange = metric.reducedRange(range);
+        for(int s = 0; s < roots.length; s++){
+            if(metric.reducedBoxDistance(p, lows[s], highs[s]) > reducedRange)
+                continue; // the ball does not reach into the stripe, so its lock is not even taken
+            long stamp = locks[s].readLock();
+            try {
+                if(roots[s] != null)
+                    roots[s].range(p, pts, range, metric);
+            } finally {
+                locks[s].unlockRead(stamp);
+            }
+        }
+        return pts;
+    }
+
+    /**
+     * Counts the {@link KDPoint}s that {@link #range(KDPoint, double)} would return, without collecting them.
+     * @param p The query {@link KDPoint}.
+     * @param range The maximum distance from p, <b>INCLUSIVE</b>.
+     * @return The number of {@link KDPoint}s other than p within range of p.
+     * @see PRQuadTree#rangeCount(KDPoint, double)
+     */
+    public int rangeCount(KDPoint p, double range) {
+        int total = 0;
+        double reducedRange = metric.reducedRange(range);
+        for(int s = 0; s < roots.length; s++){
+            if(metric.reducedBoxDistance(p, lows[s], highs[s]) > reducedRange)
+                continue;
+            long stamp = locks[s].readLock();
+            try {
+                if(roots[s] != null)
+                    total += roots[s].rangeCount(p, range, metric);
+            } finally {
+                locks[s].unlockRead(stamp);
+            }
+        }
+        return total;
+    }
+
+    /*
+     * The stripes by increasing reduced distance from p, with those distances, so that nearest neighbor queries
+     * visit the stripes most likely to hold the answer first and can stop at the first one that is too far.
+     */
+    private int[] stripesByDistance(KDPoint p, double[] distances){
+        int[] order = new int[roots.length];
+        for(int s = 0; s < roots.length; s++){ // insertion sort: there are a few dozen stripes at most
+            double d = metric.reducedBoxDistance(p, lows[s], highs[s]);
+            int i = s;
+            for(; i > 0 && distances[i - 1] > d; i--){
+                distances[i] = distances[i - 1];
+                order[i] = order[i - 1];
+            }
+            distances[i] = d;
+            order[i] = s;
+        }
+        return order;
+    }
+
+    @Override
+    public KDPoint nearestNeighbor(KDPoint p) {
+        NNData<KDPoint> n = new NNData<>(null, PRQuadTree.INFTY);
+        double[] distances = new double[roots.length];
+        int[] order = stripesByDistance(p, distances);
+        for(int i = 0; i < order.length; i++){
+            if(n.getBestDist() != PRQuadTree.INFTY && distances[i] > metric.toReduced(n.getBestDist()))
+                break;
+            int s = order[i];
+            long stamp = locks[s].readLock();
+            try {
+                if(roots[s] != null)
+                    n = roots[s].nearestNeighbor(p, n, metric);
+            } finally {
+                locks[s].unlockRead(stamp);
+            }
+        }
+        return n.getBestGuess();
+    }
+
+    @Override
+    public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p) {
+        if(k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
+        double[] distances = new double[roots.length];
+        int[] order = stripesByDistance(p, distances);
+        for(int i = 0; i < order.length; i++){
+            if(queue.size() >= k && distances[i] > queue.lastPriority())
+                break;
+            int s = order[i];
+            long stamp = locks[s].readLock();
+            try {
+                if(roots[s] != null)
+                    roots[s].kNearestNeighbors(k, p, queue, metric);
+            } finally {
+                locks[s].unlockRead(stamp);
+            }
+        }
+        return queue; // Might be empty; that's not a problem.
+    }
+
+    /**
+     * Executes a k-nearest neighbors query bounded by a radius: up to k neighbors of p, but none farther than
+     * maxRadius, like {@link PRQuadTree#kNearestNeighborsWithin(int, KDPoint, double)} does. Stripes beyond the radius
+     * are skipped without taking their locks.
+     * @param k The maximum number of neighbors to retrieve.
+     * @param p The query {@link KDPoint}.
+     * @param maxRadius The maximum distance from p, <b>INCLUSIVE</b>.
+     * @return A {@link BoundedPriorityQueue} with at most k nearest neighbors of p, all within maxRadius of it.
+     * @throws RuntimeException if k&lt;=0 or maxRadius&lt;0.
+     * @see PRQuadNode#kNearestNeighborsWithin(int, KDPoint, BoundedPriorityQueue, DistanceMetric, double)
+     */
+    @Override
+    public BoundedPriorityQueue<KDPoint> kNearestNeighborsWithin(int k, KDPoint p, double maxRadius) {
+        if(k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        if(!(maxRadius >= 0))
+            throw new RuntimeException("The radius provided, " + maxRadius + ", is invalid: Please provide a non-negative number.");
+        BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
+        double reducedRadius = metric.reducedRange(maxRadius);
+        double[] distances = new double[roots.length];
+        int[] order = stripesByDistance(p, distances);
+        for(int i = 0; i < order.length; i++){
+            if(distances[i] > reducedRadius || (queue.size() >= k && distances[i] > queue.lastPriority()))
+                break;
+            int s = order[i];
+            long stamp = locks[s].readLock();
+            try {
+                if(roots[s] != null)
+                    roots[s].kNearestNeighborsWithin(k, p, queue, metric, maxRadius);
+            } finally {
+                locks[s].unlockRead(stamp);
+            }
+        }
+        return queue; // Might be empty; that's not a problem.
+    }
+
+    /**
+     * Runs a {@link #kNearestNeighbors(int, KDPoint) k-nearest neighbors query} for every anchor of a batch, in
+     * parallel, as tasks of the {@link ForkJoinPool#commonPool() common pool}.
+     * @param k The number of neighbors to retrieve per anchor.
+     * @param anchors The anchors of the queries.
+     * @return A {@link List} with the k nearest neighbors of anchors[i] at index i.
+     * @throws RuntimeException if k&lt;=0.
+     * @see #kNearestNeighbors(int, KDPoint[], ExecutorService)
+     */
+    public List<BoundedPriorityQueue<KDPoint>> kNearestNeighbors(int k, KDPoint[] anchors) {
+        return kNearestNeighbors(k, anchors, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Runs a {@link #kNearestNeighbors(int, KDPoint) k-nearest neighbors query} for every anchor of a batch, in
+     * parallel, on the provided {@link ExecutorService}. Unlike the batches of {@link PRQuadTree}, these may run
+     * while other threads update the tree.
+     * @param k The number of neighbors to retrieve per anchor.
+     * @param anchors The anchors of the queries.
+     * @param executor The {@link ExecutorService} that runs the queries.
+     * @return A {@link List} with the k nearest neighbors of anchors[i] at index i.
+     * @throws RuntimeException if k&lt;=0 or executor is null.
+     * @see BatchQueries
+     */
+    public List<BoundedPriorityQueue<KDPoint>> kNearestNeighbors(int k, KDPoint[] anchors, ExecutorService executor) {
+        return BatchQueries.kNearestNeighbors(this, k, anchors, executor);
+    }
+}
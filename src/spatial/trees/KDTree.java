@@ -2,12 +2,31 @@ package spatial.trees;
 
 import spatial.kdpoint.KDPoint;
 import spatial.knnutils.BoundedPriorityQueue;
+import spatial.knnutils.KNNGraph;
 import spatial.knnutils.NNData;
+import spatial.metrics.DistanceMetric;
+import spatial.metrics.EuclideanMetric;
+import spatial.nodes.DualTreeKNN;
+import spatial.nodes.KDTreeBucketNode;
 import spatial.nodes.KDTreeNode;
+import spatial.nodes.NeighborIterator;
+import spatial.nodes.RangeSpliterator;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * <p>{@link KDTree} implements <em>K</em>-D Trees, where  <em>K</em> is a positive integer
@@ -48,6 +67,24 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 	 */
 	public static final double INFTY = -1.0;
 
+	/**
+	 * The balance factor of trees that do not rebalance themselves: with alpha = 1, no subtree can ever be unbalanced.
+	 * @see #KDTree(int, DistanceMetric, double)
+	 */
+	public static final double NO_REBALANCING = 1.0;
+
+	/**
+	 * The leaf size of trees that store one point per node, and no buckets at all.
+	 * @see #KDTree(int, int)
+	 */
+	public static final int NO_BUCKETING = 1;
+
+	/**
+	 * The tombstone ratio of trees that delete eagerly: every deletion removes its node from the tree right away.
+	 * @see #KDTree(int, DistanceMetric, double, double)
+	 */
+	public static final double EAGER_DELETION = 0.0;
+
 	/* ************************************************************************** */
 	/* ************************* PRIVATE FIELDS ********************************* */
 	/* *********  JAVADOC STILL GENERATABLE, FOR EDUCATIONAL PURPOSES ************* */
@@ -58,10 +95,18 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 	/* ************************************************************************** */
 
 	/**
-	 * The root of the <em>k</em>-d tree.
+	 * The root of the <em>k</em>-d tree. It is volatile so that a {@link #persistent(int) persistent} tree can publish
+	 * every new version of itself to concurrent readers at once; queries read it exactly once.
 	 * @see KDTreeNode
 	 */
-	private KDTreeNode root;
+	private volatile KDTreeNode root;
+
+	/**
+	 * Atomically swaps the {@link #root} of a persistent tree, so that concurrent writers never lose each other's
+	 * updates.
+	 */
+	private static final AtomicReferenceFieldUpdater<KDTree, KDTreeNode> ROOT =
+			AtomicReferenceFieldUpdater.newUpdater(KDTree.class, KDTreeNode.class, "root");
 
 	/**
 	 * The dimensionality of the space considered.
@@ -74,6 +119,45 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 	 */
 	private int count;
 
+	/**
+	 * The {@link DistanceMetric} that range and nearest neighbor queries measure distances with.
+	 * @see EuclideanMetric
+	 */
+	private DistanceMetric metric;
+
+	/**
+	 * The balance factor of the self-balancing mode, in (0.5, 1), or {@link #NO_REBALANCING} if the tree never
+	 * rebalances.
+	 * @see KDTreeNode#insert(KDPoint, int, int, double)
+	 */
+	private double alpha;
+
+	/**
+	 * The capacity of the leaves of the bucketed mode, or {@link #NO_BUCKETING} if every node holds a single point.
+	 * @see KDTreeBucketNode
+	 */
+	private int leafSize;
+
+	/**
+	 * The root of the tree in the bucketed mode. In that mode, {@link #root} is always null.
+	 * @see KDTreeBucketNode
+	 */
+	private KDTreeBucketNode bucketRoot;
+
+	/**
+	 * The largest share of tombstones that a subtree may hold in the lazy deletion mode, in (0, 1), or
+	 * {@link #EAGER_DELETION} if deletions are eager.
+	 * @see KDTreeNode#lazyDelete(KDPoint, int, int, double)
+	 */
+	private double maxTombstoneRatio;
+
+	/**
+	 * Whether the tree is persistent: updates path-copy instead of modifying any node, so every root ever published is
+	 * an immutable snapshot.
+	 * @see #persistent(int, DistanceMetric)
+	 */
+	private boolean persistent;
+
 
 	/* *********************************************************************************************** */
 	/* *************************** PUBLIC METHOD IMPLEMENTATION ************************************* */
@@ -94,17 +178,264 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 	 * @throws RuntimeException if k&lt;=0.
 	 */
 	public KDTree(int k){
+		this(k, EuclideanMetric.INSTANCE);
+	}
+
+	/**
+	 * This constructor requires that the user provide the value for <em>k</em>, as well as the {@link DistanceMetric}
+	 * that range and nearest neighbor queries will use.
+	 * @param k The dimensionality of this.
+	 * @param metric The {@link DistanceMetric} that this measures distances with.
+	 * @throws RuntimeException if k&lt;=0 or metric is null.
+	 */
+	public KDTree(int k, DistanceMetric metric){
+		this(k, metric, NO_REBALANCING);
+	}
+
+	/**
+	 * <p>This constructor creates a <b>self-balancing</b> tree: every subtree is kept alpha-weight-balanced, meaning
+	 * that neither of its children holds more than alpha times its nodes. Whenever an insertion would break this for
+	 * some subtree, the highest such subtree is rebuilt around medians, so the height stays logarithmic even for
+	 * sorted or time-ordered insertions, at an amortized O(log<sup>2</sup> n) cost per insertion. Deletions do not
+	 * rebalance; later insertions repair the paths they touch.</p>
+	 * @param k The dimensionality of this.
+	 * @param metric The {@link DistanceMetric} that this measures distances with.
+	 * @param alpha The balance factor, in (0.5, 1): smaller values give shallower trees and more frequent rebuilds.
+	 *              0.75 is a reasonable default. {@link #NO_REBALANCING} disables rebalancing altogether.
+	 * @throws RuntimeException if k&lt;=0, metric is null, or alpha is neither in (0.5, 1) nor
+	 * {@link #NO_REBALANCING}.
+	 * @see KDTreeNode#insert(KDPoint, int, int, double)
+	 */
+	public KDTree(int k, DistanceMetric metric, double alpha){
+		this(k, metric, alpha, EAGER_DELETION);
+	}
+
+	/**
+	 * <p>This constructor creates a tree that deletes <b>lazily</b>, if maxTombstoneRatio is positive: a deletion only
+	 * marks the node of its point with a tombstone, and searches and queries skip marked points, so no successor has
+	 * to be found and moved up. Once the tombstones of a subtree exceed maxTombstoneRatio times its nodes, the subtree
+	 * is compacted: it is rebuilt, balanced, from its live points. Every deletion then costs a single descent, plus an
+	 * amortized share of the compactions, which suits workloads with heavy churn.</p>
+	 * @param k The dimensionality of this.
+	 * @param metric The {@link DistanceMetric} that this measures distances with.
+	 * @param alpha The balance factor, in (0.5, 1), or {@link #NO_REBALANCING}.
+	 * @param maxTombstoneRatio The largest share of tombstones in any subtree, in (0, 1): smaller values mean less
+	 *                          dead weight in queries but more frequent compactions. 0.5 is a reasonable default.
+	 *                          {@link #EAGER_DELETION} deletes eagerly instead.
+	 * @throws RuntimeException if k&lt;=0, metric is null or does not {@link DistanceMetric#supportsDims(int) support}
+	 * k dimensions, alpha is invalid, or maxTombstoneRatio is neither in (0, 1) nor {@link #EAGER_DELETION}.
+	 * @see #KDTree(int, DistanceMetric, double)
+	 * @see KDTreeNode#lazyDelete(KDPoint, int, int, double)
+	 */
+	public KDTree(int k, DistanceMetric metric, double alpha, double maxTombstoneRatio){
 		if(k <= 0)
 			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		if(metric == null)
+			throw new RuntimeException("Please provide a non-null DistanceMetric.");
+		if(!metric.supportsDims(k))
+			throw new RuntimeException("The DistanceMetric provided, " + metric + ", cannot measure " + k + "-dimensional " +
+					"points: Please provide a DistanceMetric for " + k + " dimensions.");
+		if(!(alpha > 0.5 && alpha <= NO_REBALANCING))
+			throw new RuntimeException("The balance factor provided, " + alpha + ", is invalid: Please provide a value " +
+					"in (0.5, 1), or NO_REBALANCING.");
+		if(!(maxTombstoneRatio == EAGER_DELETION || (maxTombstoneRatio > 0 && maxTombstoneRatio < 1)))
+			throw new RuntimeException("The tombstone ratio provided, " + maxTombstoneRatio + ", is invalid: Please " +
+					"provide a value in (0, 1), or EAGER_DELETION.");
 		dims = k;
+		this.metric = metric;
+		this.alpha = alpha;
+		this.maxTombstoneRatio = maxTombstoneRatio;
+		this.leafSize = NO_BUCKETING;
 		root = null;
 		count = 0;
 	}
 
+	/**
+	 * <p>This constructor creates a <b>bucketed</b> tree, where the {@link KDPoint}s are stored only in the leaves,
+	 * up to leafSize of them per leaf, in contiguous primitive arrays. A leaf is split, at the median of its most
+	 * spread out dimension, only when it overflows. The tree has far fewer nodes than the classic one, is shallower, and
+	 * its range and nearest neighbor queries scan leaves in tight loops instead of chasing a reference per point.
+	 * Leaves of 16 to 64 points are a reasonable default.</p>
+	 * @param k The dimensionality of this.
+	 * @param leafSize The capacity of the leaves. {@link #NO_BUCKETING} creates the classic tree, with one point per
+	 *                 node.
+	 * @throws RuntimeException if k&lt;=0 or leafSize&lt;=0.
+	 * @see KDTreeBucketNode
+	 */
+	public KDTree(int k, int leafSize){
+		this(k, leafSize, EuclideanMetric.INSTANCE);
+	}
+
+	/**
+	 * Creates a bucketed tree like {@link #KDTree(int, int)} does, with the provided {@link DistanceMetric}.
+	 * @param k The dimensionality of this.
+	 * @param leafSize The capacity of the leaves.
+	 * @param metric The {@link DistanceMetric} that this measures distances with.
+	 * @throws RuntimeException if k&lt;=0, leafSize&lt;=0 or metric is null.
+	 */
+	public KDTree(int k, int leafSize, DistanceMetric metric){
+		this(k, metric);
+		if(leafSize < NO_BUCKETING)
+			throw new RuntimeException("The leaf size provided, " + leafSize + ", is invalid: Please provide a positive integer.");
+		this.leafSize = leafSize;
+	}
+
+	/**
+	 * Bulk-loading constructor: builds a <b>balanced</b> tree over the provided {@link KDPoint}s in O(n log n) time,
+	 * by median splits. Unlike repeated {@link #insert(KDPoint) insertions}, the resulting height is logarithmic even
+	 * for sorted or clustered input.
+	 * @param k The dimensionality of this.
+	 * @param points The {@link KDPoint}s to store. Duplicates are stored, as with {@link #insert(KDPoint)}.
+	 * @throws RuntimeException if k&lt;=0, or some point is not k-dimensional.
+	 * @see KDTreeNode#build(KDPoint[], int)
+	 * @see #bulkLoadParallel(int, Collection)
+	 */
+	public KDTree(int k, Collection<? extends KDPoint> points){
+		this(k, points, EuclideanMetric.INSTANCE);
+	}
+
+	/**
+	 * Bulk-loading constructor, like {@link #KDTree(int, Collection)}, for an array of {@link KDPoint}s.
+	 * @param k The dimensionality of this.
+	 * @param points The {@link KDPoint}s to store. The array itself is not modified.
+	 * @throws RuntimeException if k&lt;=0, or some point is not k-dimensional.
+	 */
+	public KDTree(int k, KDPoint[] points){
+		this(k, Arrays.asList(points));
+	}
+
+	/**
+	 * Bulk-loading constructor, like {@link #KDTree(int, Collection)}, for a tree that measures distances with the
+	 * provided {@link DistanceMetric}.
+	 * @param k The dimensionality of this.
+	 * @param points The {@link KDPoint}s to store.
+	 * @param metric The {@link DistanceMetric} that this measures distances with.
+	 * @throws RuntimeException if k&lt;=0, metric is null, or some point is not k-dimensional.
+	 */
+	public KDTree(int k, Collection<? extends KDPoint> points, DistanceMetric metric){
+		this(k, metric);
+		KDPoint[] scratch = toScratchArray(points);
+		root = KDTreeNode.build(scratch, dims);
+		count = scratch.length;
+	}
+
+	/**
+	 * Builds a balanced tree like {@link #KDTree(int, Collection)} does, with the subtrees built in parallel as
+	 * fork-join tasks of the {@link ForkJoinPool#commonPool() common pool}. The tree is identical to the one the
+	 * sequential constructor builds.
+	 * @param k The dimensionality of the tree.
+	 * @param points The {@link KDPoint}s to store.
+	 * @return A balanced {@link KDTree} holding points.
+	 * @throws RuntimeException if k&lt;=0, or some point is not k-dimensional.
+	 * @see KDTreeNode#buildParallel(KDPoint[], int, ForkJoinPool)
+	 */
+	public static KDTree bulkLoadParallel(int k, Collection<? extends KDPoint> points){
+		return bulkLoadParallel(k, points, EuclideanMetric.INSTANCE, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Builds a balanced tree like {@link #bulkLoadParallel(int, Collection)} does, with the provided
+	 * {@link DistanceMetric}, in the provided {@link ForkJoinPool}.
+	 * @param k The dimensionality of the tree.
+	 * @param points The {@link KDPoint}s to store.
+	 * @param metric The {@link DistanceMetric} that the tree measures distances with.
+	 * @param pool The {@link ForkJoinPool} that runs the build.
+	 * @return A balanced {@link KDTree} holding points.
+	 * @throws RuntimeException if k&lt;=0, metric is null, or some point is not k-dimensional.
+	 */
+	public static KDTree bulkLoadParallel(int k, Collection<? extends KDPoint> points, DistanceMetric metric,
+										  ForkJoinPool pool){
+		KDTree tree = new KDTree(k, metric);
+		KDPoint[] scratch = tree.toScratchArray(points);
+		tree.root = KDTreeNode.buildParallel(scratch, tree.dims, pool);
+		tree.count = scratch.length;
+		return tree;
+	}
+
+	/**
+	 * Creates an empty <b>persistent</b> tree, which measures distances with the Euclidean metric.
+	 * @param k The dimensionality of the tree.
+	 * @return An empty persistent {@link KDTree}.
+	 * @throws RuntimeException if k&lt;=0.
+	 * @see #persistent(int, DistanceMetric)
+	 */
+	public static KDTree persistent(int k){
+		return persistent(k, EuclideanMetric.INSTANCE);
+	}
+
+	/**
+	 * <p>Creates an empty <b>persistent</b> tree. Its insertions and deletions never modify a node: they copy the
+	 * O(height) nodes on their path, and publish the new root atomically. Queries read the root once, so every query
+	 * runs on a consistent version of the tree and never waits for, or blocks, a writer, and {@link #snapshot()} takes
+	 * a frozen copy in O(1) time. Concurrent writers do not need a lock either: an update that loses the race to publish
+	 * its root is redone on the winner's.</p>
+	 *
+	 * <p>Persistent trees store one point per node, do not rebalance themselves, and delete eagerly.</p>
+	 * @param k The dimensionality of the tree.
+	 * @param metric The {@link DistanceMetric} that the tree measures distances with.
+	 * @return An empty persistent {@link KDTree}.
+	 * @throws RuntimeException if k&lt;=0 or metric is null.
+	 * @see KDTreeNode#persistentInsert(KDPoint, int, int)
+	 * @see KDTreeNode#persistentDelete(KDPoint, int, int)
+	 */
+	public static KDTree persistent(int k, DistanceMetric metric){
+		KDTree tree = new KDTree(k, metric);
+		tree.persistent = true;
+		return tree;
+	}
+
+	/**
+	 * Takes a snapshot of a {@link #persistent(int, DistanceMetric) persistent} tree in O(1) time. The snapshot is
+	 * itself a persistent tree that shares every node with this, but the two evolve independently: updates to either one
+	 * are invisible to the other.
+	 * @return A persistent {@link KDTree} with the current points of this.
+	 * @throws RuntimeException if this is not persistent, since its nodes could not be shared safely.
+	 */
+	public KDTree snapshot(){
+		if(!persistent)
+			throw new RuntimeException("Only persistent trees can be snapshot without copying them.");
+		KDTree copy = persistent(dims, metric);
+		copy.root = root;
+		return copy;
+	}
+
+	/**
+	 * Returns whether this is a persistent tree.
+	 * @return true iff this was created by {@link #persistent(int, DistanceMetric)} or {@link #snapshot()}.
+	 */
+	public boolean isPersistent(){
+		return persistent;
+	}
+
+	// private helper that copies the points to bulk load into an array that the build may reorder
+	private KDPoint[] toScratchArray(Collection<? extends KDPoint> points){
+		KDPoint[] scratch = points.toArray(new KDPoint[0]);
+		for(KDPoint p : scratch)
+			if(p.coords.length != dims)
+				throw new RuntimeException("Cannot bulk load the " + p.coords.length + "-dimensional KDPoint " + p +
+						" into a " + dims + "-D Tree.");
+		return scratch;
+	}
+
 	@Override
 	public void insert(KDPoint p){
-		if(root == null)
+		if(persistent){
+			KDTreeNode old, updated;
+			do {
+				old = root;
+				updated = (old == null) ? new KDTreeNode(p) : old.persistentInsert(p, 0, dims);
+			} while(!ROOT.compareAndSet(this, old, updated));
+			return;
+		}
+		if(leafSize > NO_BUCKETING){
+			if(bucketRoot == null)
+				bucketRoot = new KDTreeBucketNode(leafSize, dims);
+			bucketRoot.insert(p, leafSize, dims);
+		}
+		else if(root == null)
 			root = new KDTreeNode(p);
+		else if(alpha < NO_REBALANCING)
+			root = root.insert(p, 0, dims, alpha);
 		else
 			root.insert(p, 0, dims);
 		count++;
@@ -112,9 +443,28 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 
 	@Override
 	public void delete(KDPoint p){
-		if (root != null) {
+		if (persistent) {
+			KDTreeNode old, updated;
+			do {
+				old = root;
+				if (old == null || !old.search(p, 0, dims))
+					return;
+				updated = old.persistentDelete(p, 0, dims);
+			} while (!ROOT.compareAndSet(this, old, updated));
+			return;
+		}
+		if (bucketRoot != null) {
 			if(search(p)) {
-				root = root.delete(p, 0, dims);
+				bucketRoot = bucketRoot.delete(p, leafSize, dims);
+				count--;
+			}
+		}
+		else if (root != null) {
+			if(search(p)) {
+				if(maxTombstoneRatio > EAGER_DELETION)
+					root = root.lazyDelete(p, 0, dims, maxTombstoneRatio);
+				else
+					root = root.delete(p, 0, dims);
 				count--; // Guaranteed successful deletion.
 			}
 		}
@@ -122,6 +472,9 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 
 	@Override
 	public boolean search(KDPoint p){
+		if(bucketRoot != null)
+			return bucketRoot.search(p, dims);
+		KDTreeNode root = this.root;
 		return (root != null) && root.search(p, 0, dims);
 	}
 
@@ -129,18 +482,130 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 	@Override
 	public Collection<KDPoint> range(KDPoint p, double range){
 		LinkedList<KDPoint> pts = new LinkedList<>();
-		if(root == null)
-			return pts; // empty
-		else
-			root.range(p, pts, range, 0, dims);
+		KDTreeNode root = this.root;
+		if(bucketRoot != null)
+			bucketRoot.range(p, pts, range, dims, metric);
+		else if(root != null)
+			root.range(p, pts, range, 0, dims, metric);
 		return pts;
 	}
 
+	/**
+	 * Runs the range query of {@link #range(KDPoint, double)} without collecting its hits: every {@link KDPoint} within
+	 * range of p, other than p itself, is handed to the visitor as soon as it is found, and the traversal stops as
+	 * soon as the visitor returns false, leaving the rest of the tree unvisited. The hits are the points of the tree
+	 * themselves, so no hit allocates anything. This must not be modified while the query runs, unless it is
+	 * {@link #persistent(int) persistent}.
+	 * @param p The query {@link KDPoint}.
+	 * @param range The maximum distance from p, <b>INCLUSIVE</b>.
+	 * @param visitor Called with every hit; returns true to go on, or false to end the query.
+	 * @return true if the query ran to completion, false if the visitor ended it.
+	 * @see RangeSpliterator#forEachWhile(Predicate)
+	 */
+	public boolean range(KDPoint p, double range, Predicate<? super KDPoint> visitor){
+		RangeSpliterator hits = rangeSpliterator(p, range);
+		return (hits == null) || hits.forEachWhile(visitor);
+	}
+
+	/**
+	 * Streams the hits of the range query of {@link #range(KDPoint, double)} lazily, in the order in which the
+	 * traversal finds them: short-circuiting operations such as limit, anyMatch and findFirst stop the traversal along
+	 * with the stream.
+	 * @param p The query {@link KDPoint}.
+	 * @param range The maximum distance from p, <b>INCLUSIVE</b>.
+	 * @return A sequential {@link Stream} of the {@link KDPoint}s of this other than p within range of p.
+	 */
+	public Stream<KDPoint> rangeStream(KDPoint p, double range){
+		RangeSpliterator hits = rangeSpliterator(p, range);
+		return StreamSupport.stream((hits == null) ? Spliterators.emptySpliterator() : hits, false);
+	}
+
+	// private helper that starts a range query over the current root, or returns null if this is empty
+	private RangeSpliterator rangeSpliterator(KDPoint p, double range){
+		if(bucketRoot != null)
+			return bucketRoot.rangeSpliterator(p, range, dims, metric);
+		KDTreeNode root = this.root;
+		return (root == null) ? null : root.rangeSpliterator(p, range, 0, dims, metric);
+	}
+
+	/**
+	 * Executes an orthogonal range query, such as the viewport of a map: all the {@link KDPoint}s of this that lie in
+	 * the axis-aligned box spanned by lowCorner and highCorner, <b>INCLUSIVE</b> on every side. Unlike
+	 * {@link #range(KDPoint, double)}, no point is excluded. Subtrees on the far side of a split that the box does not
+	 * cross are pruned, and subtrees whose cells lie within the box are added whole.
+	 * @param lowCorner The corner of the box with the smallest coordinates.
+	 * @param highCorner The corner of the box with the largest coordinates. If it is below lowCorner in any dimension,
+	 *                   the box is empty.
+	 * @return A {@link Collection} with the {@link KDPoint}s of this within the box, duplicates included.
+	 * @see KDTreeNode#range(KDPoint, KDPoint, Collection, int, int)
+	 */
+	public Collection<KDPoint> range(KDPoint lowCorner, KDPoint highCorner){
+		LinkedList<KDPoint> pts = new LinkedList<>();
+		KDTreeNode root = this.root;
+		if(bucketRoot != null)
+			bucketRoot.range(lowCorner, highCorner, pts, dims);
+		else if(root != null)
+			root.range(lowCorner, highCorner, pts, 0, dims);
+		return pts;
+	}
+
+	/**
+	 * Counts the {@link KDPoint}s that {@link #range(KDPoint, double)} would return, without collecting them. Subtrees
+	 * that lie entirely within range are counted whole, from the sizes that every node keeps, so the cost depends on
+	 * the number of nodes near the border of the range rather than on the number of points within it.
+	 * @param p The query {@link KDPoint}.
+	 * @param range The maximum distance from p, <b>INCLUSIVE</b>.
+	 * @return The number of {@link KDPoint}s other than p within range of p.
+	 * @see KDTreeNode#rangeCount(KDPoint, double, int, int, DistanceMetric)
+	 */
+	public int rangeCount(KDPoint p, double range){
+		if(bucketRoot != null)
+			return bucketRoot.rangeCount(p, range, dims, metric);
+		KDTreeNode root = this.root;
+		return (root == null) ? 0 : root.rangeCount(p, range, 0, dims, metric);
+	}
+
+	/**
+	 * Counts the {@link KDPoint}s that {@link #range(KDPoint, KDPoint)} would return, without collecting them, such as
+	 * the number of points in the viewport of a map. Subtrees whose cells lie entirely within the box are counted
+	 * whole, so the cost depends on the number of nodes near the sides of the box rather than on the number of points
+	 * within it.
+	 * @param lowCorner The corner of the box with the smallest coordinates.
+	 * @param highCorner The corner of the box with the largest coordinates.
+	 * @return The number of {@link KDPoint}s of this within the box, duplicates included.
+	 * @see KDTreeNode#rangeCount(KDPoint, KDPoint, int, int)
+	 */
+	public int rangeCount(KDPoint lowCorner, KDPoint highCorner){
+		if(bucketRoot != null)
+			return bucketRoot.rangeCount(lowCorner, highCorner, dims);
+		KDTreeNode root = this.root;
+		return (root == null) ? 0 : root.rangeCount(lowCorner, highCorner, 0, dims);
+	}
+
+	/**
+	 * Draws a {@link KDPoint} of this uniformly at random, in time proportional to the height of the tree, by
+	 * descending towards a random rank with the sizes that every node keeps. Every copy of a duplicate point counts
+	 * separately.
+	 * @param random The source of randomness.
+	 * @return A uniformly random {@link KDPoint} of this, or null if this is empty.
+	 * @see KDTreeNode#pointAt(int)
+	 */
+	public KDPoint sample(Random random){
+		if(bucketRoot != null)
+			return (count == 0) ? null : bucketRoot.pointAt(random.nextInt(count));
+		KDTreeNode root = this.root;
+		int live = persistent ? ((root == null) ? 0 : root.size()) : count;
+		return (live == 0) ? null : root.pointAt(random.nextInt(live));
+	}
+
 	@Override
 	public KDPoint nearestNeighbor(KDPoint p){
 		NNData<KDPoint> n = new NNData<>(null, INFTY);
-		if(root != null)
-			n = root.nearestNeighbor(p, 0, n, dims);
+		KDTreeNode root = this.root;
+		if(bucketRoot != null)
+			n = bucketRoot.nearestNeighbor(p, n, dims, metric);
+		else if(root != null)
+			n = root.nearestNeighbor(p, 0, n, dims, metric);
 		return n.getBestGuess();
 	}
 
@@ -149,12 +614,193 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 		if(k <= 0)
 			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
 		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
-		if(root != null)
-			root.kNearestNeighbors(k, p, queue, 0, dims);
+		KDTreeNode root = this.root;
+		if(bucketRoot != null)
+			bucketRoot.kNearestNeighbors(k, p, queue, dims, metric);
+		else if(root != null)
+			root.kNearestNeighbors(k, p, queue, 0, dims, metric);
+		return queue; // Might be empty; that's not a problem.
+	}
+
+	/**
+	 * Executes a k-nearest neighbors query bounded by a radius: up to k neighbors of p, but none farther than
+	 * maxRadius. The radius bounds the search from the root on, before k neighbors have been found, so subtrees beyond
+	 * it are never visited; this is much cheaper than an unbounded query followed by a filter when few points lie near
+	 * p.
+	 * @param k The maximum number of neighbors to retrieve.
+	 * @param p The query {@link KDPoint}.
+	 * @param maxRadius The maximum distance from p, <b>INCLUSIVE</b>.
+	 * @return A {@link BoundedPriorityQueue} with at most k nearest neighbors of p, all within maxRadius of it.
+	 * @throws RuntimeException if k&lt;=0 or maxRadius&lt;0.
+	 * @see KDTreeNode#kNearestNeighborsWithin(int, KDPoint, BoundedPriorityQueue, int, int, DistanceMetric, double)
+	 */
+	@Override
+	public BoundedPriorityQueue<KDPoint> kNearestNeighborsWithin(int k, KDPoint p, double maxRadius){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		if(!(maxRadius >= 0))
+			throw new RuntimeException("The radius provided, " + maxRadius + ", is invalid: Please provide a non-negative number.");
+		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
+		KDTreeNode root = this.root;
+		if(bucketRoot != null)
+			bucketRoot.kNearestNeighborsWithin(k, p, queue, dims, metric, maxRadius);
+		else if(root != null)
+			root.kNearestNeighborsWithin(k, p, queue, 0, dims, metric, maxRadius);
+		return queue; // Might be empty; that's not a problem.
+	}
+
+	/**
+	 * Executes a reverse k-nearest neighbors query: all the {@link KDPoint}s of this that would have p among their own
+	 * k nearest neighbors, such as the customers for whom a new store at p would be one of the k closest. Points are
+	 * filtered with six-region pruning around p, and only the few candidates left are checked, each by browsing its
+	 * own neighbors up to the distance of p, so no k-nearest neighbors query runs from every point.
+	 * @param k The number of nearest neighbors that p must be among. Points equal to p are not counted, as they are
+	 *          not by {@link #kNearestNeighbors(int, KDPoint)}, and a tie with the k-th nearest neighbor includes p.
+	 * @param p The query {@link KDPoint}, which does not need to be in this.
+	 * @return A {@link Collection} with the {@link KDPoint}s of this that have p among their k nearest neighbors, by
+	 * increasing distance from p.
+	 * @throws RuntimeException if k&lt;=0, or if this is not a 2-dimensional tree under the {@link EuclideanMetric},
+	 * which the sectors of the pruning rely on.
+	 * @see ReverseNeighbors
+	 */
+	public Collection<KDPoint> reverseKNearestNeighbors(int k, KDPoint p){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		if(dims != 2 || !(metric instanceof EuclideanMetric))
+			throw new RuntimeException("Reverse k-nearest neighbors queries need a 2-dimensional KDTree under the EuclideanMetric.");
+		return ReverseNeighbors.reverseKNearestNeighbors(k, p, this::neighborIterator);
+	}
+
+	/**
+	 * Browses the {@link KDPoint}s of this by increasing distance from p, for consumers that do not know in advance
+	 * how many neighbors they need: every call to next() expands only as many nodes as it takes to be sure of the
+	 * next neighbor, so the search stops as soon as the consumer does. Points equal to p are skipped, as they are by
+	 * {@link #kNearestNeighbors(int, KDPoint)}. This must not be modified while the iterator is in use, unless it is
+	 * {@link #persistent(int) persistent}, in which case the iterator browses the version it was created from.
+	 * @param p The query {@link KDPoint}.
+	 * @return An iterator over the {@link KDPoint}s of this other than p, nearest first.
+	 * @see NeighborIterator
+	 */
+	public NeighborIterator neighborIterator(KDPoint p){
+		KDTreeNode root = this.root;
+		if(bucketRoot != null)
+			return bucketRoot.neighbors(p, dims, metric);
+		return (root == null) ? NeighborIterator.empty(p, metric) : root.neighbors(p, 0, dims, metric);
+	}
+
+	/**
+	 * Streams the {@link KDPoint}s of this by increasing distance from p, lazily, like
+	 * {@link #neighborIterator(KDPoint)} does: short-circuiting operations such as limit, takeWhile and findFirst stop
+	 * the search along with the stream.
+	 * @param p The query {@link KDPoint}.
+	 * @return A sequential, ordered {@link Stream} of the {@link KDPoint}s of this other than p, nearest first.
+	 */
+	public Stream<KDPoint> neighbors(KDPoint p){
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(neighborIterator(p),
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * Runs a {@link #kNearestNeighbors(int, KDPoint) k-nearest neighbors query} for every anchor of a batch, in
+	 * parallel, as tasks of the {@link ForkJoinPool#commonPool() common pool}.
+	 * @param k The number of neighbors to retrieve per anchor.
+	 * @param anchors The anchors of the queries.
+	 * @return A {@link List} with the k nearest neighbors of anchors[i] at index i.
+	 * @throws RuntimeException if k&lt;=0.
+	 * @see #kNearestNeighbors(int, KDPoint[], ExecutorService)
+	 */
+	public List<BoundedPriorityQueue<KDPoint>> kNearestNeighbors(int k, KDPoint[] anchors){
+		return kNearestNeighbors(k, anchors, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Runs a {@link #kNearestNeighbors(int, KDPoint) k-nearest neighbors query} for every anchor of a batch, in
+	 * parallel, on the provided {@link ExecutorService}: a {@link ForkJoinPool}, a fixed thread pool, or, on JDKs that
+	 * have them, a virtual-thread-per-task executor. The anchors are split into chunks that each worker queries with its
+	 * own traversal buffers, and the call returns once every query has. The tree may be shared by any number of batches
+	 * at once, but must not be modified while one is running.
+	 * @param k The number of neighbors to retrieve per anchor.
+	 * @param anchors The anchors of the queries.
+	 * @param executor The {@link ExecutorService} that runs the queries.
+	 * @return A {@link List} with the k nearest neighbors of anchors[i] at index i.
+	 * @throws RuntimeException if k&lt;=0 or executor is null.
+	 * @see BatchQueries
+	 */
+	public List<BoundedPriorityQueue<KDPoint>> kNearestNeighbors(int k, KDPoint[] anchors, ExecutorService executor){
+		return BatchQueries.kNearestNeighbors(this, k, anchors, executor);
+	}
+
+	/**
+	 * Computes the k-nearest neighbors graph of this: the k nearest neighbors of every {@link KDPoint} of this, among
+	 * the other points of this, as {@link #kNearestNeighbors(int, KDPoint)} would find them. Rather than descending
+	 * from the root once per point, a dual-tree join walks pairs of subtrees and prunes every pair whose bounding boxes
+	 * are too far apart for any point of one to improve any point of the other.
+	 * @param k The number of neighbors per point.
+	 * @return A {@link KNNGraph} whose query and reference points are both the points of this.
+	 * @throws RuntimeException if k&lt;=0.
+	 * @see DualTreeKNN
+	 */
+	public KNNGraph allKNearestNeighbors(int k){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		KDPoint[] pts = points().toArray(new KDPoint[0]);
+		return DualTreeKNN.join(pts, pts, k, dims, metric);
+	}
+
+	/**
+	 * Computes the k nearest {@link KDPoint}s of references for every {@link KDPoint} of this, with a dual-tree join
+	 * like {@link #allKNearestNeighbors(int)} does. Distances are measured with the {@link DistanceMetric} of this, and
+	 * a reference point equal to a point of this is never its neighbor.
+	 * @param k The number of neighbors per point.
+	 * @param references The {@link KDTree} to find the neighbors in.
+	 * @return A {@link KNNGraph} from the points of this to the points of references.
+	 * @throws RuntimeException if k&lt;=0, or references is null or of a different dimensionality.
+	 * @see DualTreeKNN
+	 */
+	public KNNGraph allKNearestNeighbors(int k, KDTree references){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		if(references == null || references.dims != dims)
+			throw new RuntimeException("Please provide a non-null " + dims + "-D Tree of reference points.");
+		return DualTreeKNN.join(points().toArray(new KDPoint[0]), references.points().toArray(new KDPoint[0]), k,
+				dims, metric);
+	}
+
+	/**
+	 * Finds k approximate nearest neighbors of p in best-bin-first order: the subtrees are explored by increasing
+	 * distance from p, their pruning bound is tightened by a factor of 1+epsilon, and the search stops after
+	 * maxLeafVisits descents to a leaf (or bucket) even if closer subtrees remain. With {@link #UNLIMITED_VISITS},
+	 * the i-th neighbor returned is at most 1+epsilon times farther from p than the true i-th nearest neighbor.
+	 * @param k The number of neighbors to retrieve.
+	 * @param p The query {@link KDPoint}.
+	 * @param epsilon The relative error allowed, at least 0 (zero).
+	 * @param maxLeafVisits The largest number of leaves to visit, at least 1, or {@link #UNLIMITED_VISITS}.
+	 * @return A {@link BoundedPriorityQueue} with at most k approximate nearest neighbors of p.
+	 * @throws RuntimeException if k or maxLeafVisits is not positive, or epsilon is negative.
+	 * @see KDTreeNode#kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, int, int, DistanceMetric, double, int)
+	 */
+	@Override
+	public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p, double epsilon, int maxLeafVisits){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		if(!(epsilon >= 0))
+			throw new RuntimeException("The value of epsilon provided, " + epsilon + ", is invalid: Please provide a non-negative number.");
+		if(maxLeafVisits < 1)
+			throw new RuntimeException("The leaf visit limit provided, " + maxLeafVisits + ", is invalid: Please provide a positive integer.");
+		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
+		KDTreeNode root = this.root;
+		if(bucketRoot != null)
+			bucketRoot.kNearestNeighbors(k, p, queue, dims, metric, epsilon, maxLeafVisits);
+		else if(root != null)
+			root.kNearestNeighbors(k, p, queue, 0, dims, metric, epsilon, maxLeafVisits);
 		return queue; // Might be empty; that's not a problem.
 	}
+
 	@Override
 	public int height(){
+		if(bucketRoot != null)
+			return bucketRoot.height();
+		KDTreeNode root = this.root;
 		return root == null ? -1 : root.height();
 	}
 
@@ -165,6 +811,10 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 
 	@Override
 	public int count(){
+		if(persistent){
+			KDTreeNode root = this.root;
+			return (root == null) ? 0 : root.size(); // no tombstones, so every node holds a point
+		}
 		return count;
 	}
 
@@ -172,10 +822,85 @@ public class KDTree implements SpatialDictionary, SpatialQuerySolver {
 	 * Returns the {@link KDPoint} located at the <b>root</b>of the KDTree.
 	 * Only non-interface method! Added primarily for debugging purposes.
 	 * @return The {@link KDPoint} located at the root of the tree, or null
-	 * if the tree is empty.
+	 * if the tree is empty or {@link #KDTree(int, int) bucketed}, since the root of a bucketed tree holds no points. It
+	 * is an {@link spatial.kdpoint.ImmutableKDPoint}, shared with the tree. With
+	 * {@link #KDTree(int, DistanceMetric, double, double) lazy deletion}, the root may be a tombstone, whose point has
+	 * been deleted but still splits the space.
 	 */
 	public KDPoint getRoot(){
-		return root == null ? null : new KDPoint(root.getPoint());
+		KDTreeNode root = this.root;
+		return root == null ? null : root.getPoint();
+	}
+
+	/**
+	 * Returns the dimensionality of the space considered by this.
+	 * @return The dimensionality of the space considered by this.
+	 */
+	public int getDims(){
+		return dims;
+	}
+
+	/**
+	 * Returns the balance factor of this.
+	 * @return The balance factor of this, or {@link #NO_REBALANCING} if this does not rebalance itself.
+	 * @see #KDTree(int, DistanceMetric, double)
+	 */
+	public double getBalanceFactor(){
+		return alpha;
+	}
+
+	/**
+	 * Returns the {@link DistanceMetric} that this measures distances with.
+	 * @return The {@link DistanceMetric} of this.
+	 */
+	public DistanceMetric getMetric(){
+		return metric;
+	}
+
+	/**
+	 * Returns the leaf capacity of this.
+	 * @return The capacity of the leaves of this, or {@link #NO_BUCKETING} if every node holds a single point.
+	 * @see #KDTree(int, int)
+	 */
+	public int getLeafSize(){
+		return leafSize;
+	}
+
+	/**
+	 * Returns the largest share of tombstones that a subtree of this may hold.
+	 * @return The tombstone ratio of this, or {@link #EAGER_DELETION} if this deletes eagerly.
+	 * @see #KDTree(int, DistanceMetric, double, double)
+	 */
+	public double getMaxTombstoneRatio(){
+		return maxTombstoneRatio;
+	}
+
+	/**
+	 * Gathers all the {@link KDPoint}s held by this, in pre-order. Package-private, for the trees that are built out of
+	 * a {@link KDTree}.
+	 * @return A fresh {@link List} with every {@link KDPoint} of this, duplicates included.
+	 * @see StaticKDTree#StaticKDTree(KDTree)
+	 */
+	List<KDPoint> points(){
+		List<KDPoint> points = new ArrayList<>(count());
+		if(bucketRoot != null){
+			bucketRoot.points(points);
+			return points;
+		}
+		KDTreeNode root = this.root;
+		ArrayDeque<KDTreeNode> stack = new ArrayDeque<>();
+		if(root != null)
+			stack.push(root);
+		while(!stack.isEmpty()){
+			KDTreeNode curr = stack.pop();
+			if(!curr.isDeleted())
+				points.add(curr.getPoint());
+			if(curr.getRight() != null)
+				stack.push(curr.getRight());
+			if(curr.getLeft() != null)
+				stack.push(curr.getLeft());
+		}
+		return points;
 	}
 
 	/**
@@ -1,8 +1,12 @@
 package spatial.trees;
 
+import spatial.kdpoint.ImmutableKDPoint;
 import spatial.kdpoint.KDPoint;
 import spatial.knnutils.BoundedPriorityQueue;
 import spatial.knnutils.NNData;
+import spatial.metrics.DistanceMetric;
+import spatial.metrics.EuclideanMetric;
+import spatial.nodes.NeighborIterator;
 import spatial.nodes.PRQuadBlackNode;
 import spatial.nodes.PRQuadGrayNode;
 import spatial.nodes.PRQuadNode;
@@ -10,6 +14,15 @@ import spatial.nodes.PRQuadNode;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * <p>PRQuadTree implements Point-Region (P-R) QuadTrees. Those are trie-based
@@ -66,6 +79,12 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
      */
     private int count;
 
+    /**
+     * The {@link DistanceMetric} that range and nearest neighbor queries measure distances with.
+     * @see EuclideanMetric
+     */
+    private DistanceMetric metric;
+
     /**
      * Constructor for PRQuadTree objects.
      * @param k The exponent of 2 that defines the area assumed to be spanned by the <b>entire QuadTree</b> (i.e by its
@@ -84,9 +103,30 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
      * @see #bucketingParam
      */
     public PRQuadTree(int k, int bucketingParam){
+        this(k, bucketingParam, EuclideanMetric.INSTANCE);
+    }
+
+    /**
+     * Constructor for PRQuadTree objects whose range and nearest neighbor queries measure distances with the provided
+     * {@link DistanceMetric}.
+     * @param k The exponent of 2 that defines the area assumed to be spanned by the <b>entire QuadTree</b>.
+     * @param bucketingParam The "bucketing" parameter, which controls how many {@link KDPoint}s a {@link PRQuadBlackNode}
+     *                       of this tree can hold before having to split.
+     * @param metric The {@link DistanceMetric} that this measures distances with.
+     * @throws RuntimeException if {@code bucketingParam} &lt; 1 or {@code k } &lt; 1, or {@code metric} is null or
+     * does not {@link DistanceMetric#supportsDims(int) support} 2 dimensions.
+     * @see #PRQuadTree(int, int)
+     */
+    public PRQuadTree(int k, int bucketingParam, DistanceMetric metric){
         if(k < 1 || bucketingParam < 1)
             throw new RuntimeException("k should be 1 and above, and bucketingParam 1 and above. " +
                     "Provided: k=" + k + ", bucketingParam=" + bucketingParam + ".");
+        if(metric == null)
+            throw new RuntimeException("Please provide a non-null DistanceMetric.");
+        if(!metric.supportsDims(2))
+            throw new RuntimeException("The DistanceMetric provided, " + metric + ", cannot measure 2-dimensional " +
+                    "points: Please provide a DistanceMetric for 2 dimensions.");
+        this.metric = metric;
         this.k = k;
         this.bucketingParam = bucketingParam;
         count = 0;
@@ -105,7 +145,7 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
     public void insert(KDPoint p) throws CentroidAccuracyException{
         if(root == null) {  // white nodes, first point stored
             // Notice that we are calling the second constructor of PRQuadBlackNode here!
-            root = new PRQuadBlackNode(new KDPoint(0, 0), k, bucketingParam, p); // Initial centroid assumed at (0, 0).
+            root = new PRQuadBlackNode(new ImmutableKDPoint(0, 0), k, bucketingParam, p); // Initial centroid assumed at (0, 0).
             count++;
         } else {// black or gray nodes
             if(!root.search(p)) {
@@ -162,6 +202,14 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
         return bucketingParam;
     }
 
+    /**
+     * A simple accessor for the {@link DistanceMetric} of the current {@link PRQuadTree}.
+     * @return The {@link DistanceMetric} that the current {@link PRQuadTree} measures distances with.
+     */
+    public DistanceMetric getMetric(){
+        return metric;
+    }
+
 
     @Override
     public Collection<KDPoint> range(KDPoint p, double range) {
@@ -169,15 +217,94 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
         if(root == null)
             return pts; // empty
         else
-            root.range(p, pts, range);
+            root.range(p, pts, range, metric);
         return pts;
     }
 
+    /**
+     * Runs the range query of {@link #range(KDPoint, double)} without collecting its hits, handing every hit to the
+     * visitor as soon as it is found, like {@link KDTree#range(KDPoint, double, Predicate)} does. Quadrants left on the
+     * stack when the visitor returns false are never opened. This must not be modified while the query runs.
+     * @param p The query {@link KDPoint}.
+     * @param range The maximum distance from p, <b>INCLUSIVE</b>.
+     * @param visitor Called with every hit; returns true to go on, or false to end the query.
+     * @return true if the query ran to completion, false if the visitor ended it.
+     * @see PRQuadNode#rangeSpliterator(KDPoint, double, DistanceMetric)
+     */
+    public boolean range(KDPoint p, double range, Predicate<? super KDPoint> visitor) {
+        return (root == null) || root.rangeSpliterator(p, range, metric).forEachWhile(visitor);
+    }
+
+    /**
+     * Streams the hits of the range query of {@link #range(KDPoint, double)} lazily, like
+     * {@link KDTree#rangeStream(KDPoint, double)} does.
+     * @param p The query {@link KDPoint}.
+     * @param range The maximum distance from p, <b>INCLUSIVE</b>.
+     * @return A sequential {@link Stream} of the {@link KDPoint}s of this other than p within range of p.
+     */
+    public Stream<KDPoint> rangeStream(KDPoint p, double range) {
+        return StreamSupport.stream((root == null) ? Spliterators.emptySpliterator()
+                : root.rangeSpliterator(p, range, metric), false);
+    }
+
+    /**
+     * Executes an orthogonal range query, such as the viewport of a map: all the {@link KDPoint}s of this that lie in
+     * the axis-aligned box spanned by lowCorner and highCorner, <b>INCLUSIVE</b> on every side, like
+     * {@link KDTree#range(KDPoint, KDPoint)} does. Quadrants that miss the box are pruned, and quadrants that lie
+     * within it are added whole.
+     * @param lowCorner The corner of the box with the smallest coordinates.
+     * @param highCorner The corner of the box with the largest coordinates.
+     * @return A {@link Collection} with the {@link KDPoint}s of this within the box.
+     * @see PRQuadNode#range(KDPoint, KDPoint, Collection)
+     */
+    public Collection<KDPoint> range(KDPoint lowCorner, KDPoint highCorner) {
+        LinkedList<KDPoint> pts = new LinkedList<>();
+        if(root != null)
+            root.range(lowCorner, highCorner, pts);
+        return pts;
+    }
+
+    /**
+     * Counts the {@link KDPoint}s that {@link #range(KDPoint, double)} would return, without collecting them. Quadrants
+     * that lie entirely within range are counted whole, from the counts that every node keeps, so the cost depends on
+     * the number of quadrants near the border of the range rather than on the number of points within it.
+     * @param p The query {@link KDPoint}.
+     * @param range The maximum distance from p, <b>INCLUSIVE</b>.
+     * @return The number of {@link KDPoint}s other than p within range of p.
+     * @see PRQuadNode#rangeCount(KDPoint, double, DistanceMetric)
+     */
+    public int rangeCount(KDPoint p, double range) {
+        return (root == null) ? 0 : root.rangeCount(p, range, metric);
+    }
+
+    /**
+     * Counts the {@link KDPoint}s that {@link #range(KDPoint, KDPoint)} would return, without collecting them, like
+     * {@link KDTree#rangeCount(KDPoint, KDPoint)} does. Quadrants that lie entirely within the box are counted whole.
+     * @param lowCorner The corner of the box with the smallest coordinates.
+     * @param highCorner The corner of the box with the largest coordinates.
+     * @return The number of {@link KDPoint}s of this within the box.
+     * @see PRQuadNode#rangeCount(KDPoint, KDPoint)
+     */
+    public int rangeCount(KDPoint lowCorner, KDPoint highCorner) {
+        return (root == null) ? 0 : root.rangeCount(lowCorner, highCorner);
+    }
+
+    /**
+     * Draws a {@link KDPoint} of this uniformly at random, in time proportional to the height of the tree, by
+     * descending towards a random rank with the counts that every node keeps.
+     * @param random The source of randomness.
+     * @return A uniformly random {@link KDPoint} of this, or null if this is empty.
+     * @see PRQuadNode#pointAt(int)
+     */
+    public KDPoint sample(Random random) {
+        return (root == null) ? null : root.pointAt(random.nextInt(count));
+    }
+
     @Override
     public KDPoint nearestNeighbor(KDPoint p) {
         NNData<KDPoint> n = new NNData<>(null, INFTY);
         if(root != null)
-            n = root.nearestNeighbor(p, n);
+            n = root.nearestNeighbor(p, n, metric);
         return n.getBestGuess();
     }
 
@@ -187,7 +314,128 @@ public class PRQuadTree implements SpatialDictionary,SpatialQuerySolver {
             throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
         BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
         if(root != null)
-            root.kNearestNeighbors(k, p, queue);
+            root.kNearestNeighbors(k, p, queue, metric);
+        return queue; // Might be empty; that's not a problem.
+    }
+
+    /**
+     * Executes a k-nearest neighbors query bounded by a radius: up to k neighbors of p, but none farther than
+     * maxRadius, like {@link KDTree#kNearestNeighborsWithin(int, KDPoint, double)} does. Quadrants beyond the radius are
+     * pruned from the root on.
+     * @param k The maximum number of neighbors to retrieve.
+     * @param p The query {@link KDPoint}.
+     * @param maxRadius The maximum distance from p, <b>INCLUSIVE</b>.
+     * @return A {@link BoundedPriorityQueue} with at most k nearest neighbors of p, all within maxRadius of it.
+     * @throws RuntimeException if k&lt;=0 or maxRadius&lt;0.
+     * @see PRQuadNode#kNearestNeighborsWithin(int, KDPoint, BoundedPriorityQueue, DistanceMetric, double)
+     */
+    @Override
+    public BoundedPriorityQueue<KDPoint> kNearestNeighborsWithin(int k, KDPoint p, double maxRadius) {
+        if(k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        if(!(maxRadius >= 0))
+            throw new RuntimeException("The radius provided, " + maxRadius + ", is invalid: Please provide a non-negative number.");
+        BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
+        if(root != null)
+            root.kNearestNeighborsWithin(k, p, queue, metric, maxRadius);
+        return queue; // Might be empty; that's not a problem.
+    }
+
+    /**
+     * Executes a reverse k-nearest neighbors query: all the {@link KDPoint}s of this that would have p among their own
+     * k nearest neighbors, like {@link KDTree#reverseKNearestNeighbors(int, KDPoint)} does.
+     * @param k The number of nearest neighbors that p must be among.
+     * @param p The query {@link KDPoint}, which does not need to be in this.
+     * @return A {@link Collection} with the {@link KDPoint}s of this that have p among their k nearest neighbors, by
+     * increasing distance from p.
+     * @throws RuntimeException if k&lt;=0, or if this does not measure distances with the {@link EuclideanMetric}.
+     * @see ReverseNeighbors
+     */
+    public Collection<KDPoint> reverseKNearestNeighbors(int k, KDPoint p) {
+        if(k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        if(!(metric instanceof EuclideanMetric))
+            throw new RuntimeException("Reverse k-nearest neighbors queries need a PRQuadTree under the EuclideanMetric.");
+        return ReverseNeighbors.reverseKNearestNeighbors(k, p, this::neighborIterator);
+    }
+
+    /**
+     * Browses the {@link KDPoint}s of this by increasing distance from p, opening quadrants only when the consumer
+     * asks for a neighbor that they might hold, like {@link KDTree#neighborIterator(KDPoint)} does. This must not be
+     * modified while the iterator is in use.
+     * @param p The query {@link KDPoint}.
+     * @return An iterator over the {@link KDPoint}s of this other than p, nearest first.
+     * @see PRQuadNode#neighbors(KDPoint, DistanceMetric)
+     */
+    public NeighborIterator neighborIterator(KDPoint p) {
+        return (root == null) ? NeighborIterator.empty(p, metric) : root.neighbors(p, metric);
+    }
+
+    /**
+     * Streams the {@link KDPoint}s of this by increasing distance from p, lazily, like
+     * {@link #neighborIterator(KDPoint)} does.
+     * @param p The query {@link KDPoint}.
+     * @return A sequential, ordered {@link Stream} of the {@link KDPoint}s of this other than p, nearest first.
+     * @see KDTree#neighbors(KDPoint)
+     */
+    public Stream<KDPoint> neighbors(KDPoint p) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(neighborIterator(p),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Runs a {@link #kNearestNeighbors(int, KDPoint) k-nearest neighbors query} for every anchor of a batch, in
+     * parallel, as tasks of the {@link ForkJoinPool#commonPool() common pool}.
+     * @param k The number of neighbors to retrieve per anchor.
+     * @param anchors The anchors of the queries.
+     * @return A {@link List} with the k nearest neighbors of anchors[i] at index i.
+     * @throws RuntimeException if k&lt;=0.
+     * @see #kNearestNeighbors(int, KDPoint[], ExecutorService)
+     */
+    public List<BoundedPriorityQueue<KDPoint>> kNearestNeighbors(int k, KDPoint[] anchors) {
+        return kNearestNeighbors(k, anchors, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Runs a {@link #kNearestNeighbors(int, KDPoint) k-nearest neighbors query} for every anchor of a batch, in
+     * parallel, on the provided {@link ExecutorService}, exactly like
+     * {@link KDTree#kNearestNeighbors(int, KDPoint[], ExecutorService)} does. The tree must not be modified while a
+     * batch is running.
+     * @param k The number of neighbors to retrieve per anchor.
+     * @param anchors The anchors of the queries.
+     * @param executor The {@link ExecutorService} that runs the queries.
+     * @return A {@link List} with the k nearest neighbors of anchors[i] at index i.
+     * @throws RuntimeException if k&lt;=0 or executor is null.
+     * @see BatchQueries
+     */
+    public List<BoundedPriorityQueue<KDPoint>> kNearestNeighbors(int k, KDPoint[] anchors, ExecutorService executor) {
+        return BatchQueries.kNearestNeighbors(this, k, anchors, executor);
+    }
+
+    /**
+     * Finds k approximate nearest neighbors of p in best-bin-first order: quadrants are explored by increasing
+     * distance from p, their pruning bound is tightened by a factor of 1+epsilon, and the search stops after
+     * maxLeafVisits black nodes even if closer quadrants remain. With {@link #UNLIMITED_VISITS}, the i-th neighbor
+     * returned is at most 1+epsilon times farther from p than the true i-th nearest neighbor.
+     * @param k The number of neighbors to retrieve.
+     * @param p The query {@link KDPoint}.
+     * @param epsilon The relative error allowed, at least 0 (zero).
+     * @param maxLeafVisits The largest number of black nodes to visit, at least 1, or {@link #UNLIMITED_VISITS}.
+     * @return A {@link BoundedPriorityQueue} with at most k approximate nearest neighbors of p.
+     * @throws RuntimeException if k or maxLeafVisits is not positive, or epsilon is negative.
+     * @see PRQuadNode#kNearestNeighbors(int, KDPoint, BoundedPriorityQueue, DistanceMetric, double, int)
+     */
+    @Override
+    public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p, double epsilon, int maxLeafVisits) {
+        if(k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        if(!(epsilon >= 0))
+            throw new RuntimeException("The value of epsilon provided, " + epsilon + ", is invalid: Please provide a non-negative number.");
+        if(maxLeafVisits < 1)
+            throw new RuntimeException("The leaf visit limit provided, " + maxLeafVisits + ", is invalid: Please provide a positive integer.");
+        BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
+        if(root != null)
+            root.kNearestNeighbors(k, p, queue, metric, epsilon, maxLeafVisits);
         return queue; // Might be empty; that's not a problem.
     }
 
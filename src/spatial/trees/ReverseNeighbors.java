@@ -0,0 +1,105 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+import spatial.nodes.NeighborIterator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * <p>{@link ReverseNeighbors} answers reverse k-nearest neighbor queries for {@link KDTree} and {@link PRQuadTree}: the
+ * {@link KDPoint}s that would have the query point among their own k nearest neighbors. Instead of running a
+ * k-nearest neighbors query from every point, it filters the points down to a handful of candidates first, with the
+ * six-region pruning of Sharifzadeh and Shahabi, and only refines those.</p>
+ *
+ * <p>The plane around the query point q is cut into six sectors of 60 degrees. If p and o lie in the same sector and
+ * o is closer to q than p is, the angle between them at q is at most 60 degrees, so o is closer to p than q is, too.
+ * Hence a point with k points of its own sector closer to q cannot have q among its k nearest neighbors, and only
+ * the k points closest to q in every sector, and their ties, are candidates. The filter browses the neighbors of q
+ * by increasing distance, and stops as soon as all six sectors hold k points closer than the next one. Every
+ * candidate p is then refined by browsing its own neighbors, up to k of them or up to the distance of q, whichever
+ * comes first.</p>
+ *
+ * <p>The sector argument relies on Euclidean angles, so the queries are only defined for 2-dimensional trees under
+ * the {@link spatial.metrics.EuclideanMetric}.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see KDTree#reverseKNearestNeighbors(int, KDPoint)
+ * @see PRQuadTree#reverseKNearestNeighbors(int, KDPoint)
+ */
+final class ReverseNeighbors {
+
+	private static final int SECTORS = 6;
+
+	private ReverseNeighbors(){}
+
+	/**
+	 * Runs a reverse k-nearest neighbors query. Like the k-nearest neighbors queries, the points equal to q are
+	 * neither candidates nor neighbors of anything, and a point whose k-th nearest neighbor is exactly as far as q is
+	 * counts q among its k nearest neighbors.
+	 * @param k The number of nearest neighbors that q must be among.
+	 * @param q The query {@link KDPoint}, which does not need to be in the tree.
+	 * @param neighborsOf Browses the {@link KDPoint}s of the tree by increasing distance from a given point.
+	 * @return A {@link Collection} with the {@link KDPoint}s of the tree that have q among their k nearest
+	 * neighbors, by increasing distance from q.
+	 */
+	static Collection<KDPoint> reverseKNearestNeighbors(int k, KDPoint q, Function<KDPoint, NeighborIterator> neighborsOf){
+		// filter: the k smallest distances from q seen in every sector, in the order they were browsed
+		double[][] closest = new double[SECTORS][k];
+		int[] seen = new int[SECTORS];
+		int full = 0;
+		double widest = Double.POSITIVE_INFINITY; // the largest k-th distance over all sectors, once all are full
+		List<KDPoint> candidates = new ArrayList<>();
+		List<Double> distances = new ArrayList<>();
+		NeighborIterator around = neighborsOf.apply(q);
+		while(around.hasNext()){
+			KDPoint p = around.next();
+			double dist = around.distance();
+			// every point from here on has k points closer to q in its own sector
+			if(dist > widest)
+				break;
+			int s = sectorOf(p, q);
+			if(seen[s] < k || closest[s][k - 1] >= dist){ // a tie with the k-th point may still be a neighbor
+				candidates.add(p);
+				distances.add(dist);
+			}
+			if(seen[s] < k){
+				closest[s][seen[s]++] = dist;
+				if(seen[s] == k && ++full == SECTORS){
+					widest = 0;
+					for(double[] sector : closest)
+						widest = Math.max(widest, sector[k - 1]);
+				}
+			}
+		}
+
+		// refine: p keeps q among its k nearest neighbors unless k points are strictly closer to it than q is
+		LinkedList<KDPoint> results = new LinkedList<>();
+		for(int i = 0; i < candidates.size(); i++){
+			KDPoint p = candidates.get(i);
+			double dist = distances.get(i);
+			NeighborIterator neighbors = neighborsOf.apply(p);
+			int closer = 0;
+			while(closer < k && neighbors.hasNext()){
+				neighbors.next();
+				if(neighbors.distance() >= dist)
+					break;
+				closer++;
+			}
+			if(closer < k)
+				results.add(p);
+		}
+		return results;
+	}
+
+	// private helper that returns the sector of 60 degrees around q that p lies in, from 0 to 5
+	private static int sectorOf(KDPoint p, KDPoint q){
+		double angle = Math.atan2((double) p.coords[1] - q.coords[1], (double) p.coords[0] - q.coords[0]);
+		int s = (int) Math.floor((angle + Math.PI) / (Math.PI / 3));
+		return Math.min(s, SECTORS - 1); // an angle of exactly pi belongs with the last sector
+	}
+}
@@ -1,6 +1,8 @@
 package spatial.trees;
 import spatial.kdpoint.KDPoint;
 import spatial.knnutils.BoundedPriorityQueue;
+import spatial.metrics.DistanceMetric;
+import spatial.metrics.EuclideanMetric;
 
 import java.util.Collection;
 
@@ -20,6 +22,12 @@ import java.util.Collection;
  */
 public interface SpatialQuerySolver {
 
+    /**
+     * The leaf visit limit of approximate searches that stop only on their error bound.
+     * @see #kNearestNeighbors(int, KDPoint, double, int)
+     */
+    int UNLIMITED_VISITS = Integer.MAX_VALUE;
+
      /**
      * Performs a range query. Returns all the {@link KDPoint}s whose {@link KDPoint#euclideanDistance(KDPoint) euclideanDistance} from
      * p is at most range, <b>INCLUSIVE</b>.
@@ -56,4 +64,106 @@ public interface SpatialQuerySolver {
      * @see BoundedPriorityQueue
      */
     BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p);
+
+    /**
+     * Returns the {@link DistanceMetric} that the queries of this measure distances with. The default is
+     * {@link EuclideanMetric#INSTANCE}, for solvers that only measure euclidean distances; solvers built with a
+     * different metric must override it.
+     * @return The {@link DistanceMetric} of this.
+     */
+    default DistanceMetric getMetric(){
+        return EuclideanMetric.INSTANCE;
+    }
+
+    /**
+     * Performs a k-nearest neighbors query bounded by a radius: up to k {@link KDPoint}s nearest to p, but none whose
+     * distance from p under {@link #getMetric()} exceeds maxRadius. The default runs
+     * {@link #kNearestNeighbors(int, KDPoint)} and drops the neighbors beyond the radius; trees that can prune with
+     * the radius from the start should override it.
+     * @param k A positive integer denoting the maximum amount of neighbors to return.
+     * @param p The query point.
+     * @param maxRadius The maximum distance from p, <b>INCLUSIVE</b>.
+     * @return A {@link BoundedPriorityQueue} with at most k nearest neighbors of p, all within maxRadius of it.
+     * @throws RuntimeException If k&lt;=0 or maxRadius&lt;0.
+     * @see #kNearestNeighbors(int, KDPoint)
+     */
+    default BoundedPriorityQueue<KDPoint> kNearestNeighborsWithin(int k, KDPoint p, double maxRadius){
+        if(k <= 0)
+            throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+        if(!(maxRadius >= 0))
+            throw new RuntimeException("The radius provided, " + maxRadius + ", is invalid: Please provide a non-negative number.");
+        DistanceMetric metric = getMetric();
+        double reducedRadius = metric.reducedRange(maxRadius);
+        BoundedPriorityQueue<KDPoint> neighbors = kNearestNeighbors(k, p);
+        BoundedPriorityQueue<KDPoint> within = new BoundedPriorityQueue<>(k);
+        for(KDPoint q : neighbors){ // ascending, so the first one beyond the radius ends the scan
+            double dist = metric.reducedDistance(p, q);
+            if(dist > reducedRadius)
+                break;
+            within.enqueue(q, dist);
+        }
+        return within;
+    }
+
+    /**
+     * Performs a (1+epsilon)-approximate nearest neighbor query: no other {@link KDPoint} is closer to p by more than a
+     * factor of 1+epsilon. The default answers exactly, which satisfies every epsilon.
+     * @param p The query {@link KDPoint}.
+     * @param epsilon The relative error allowed, at least 0 (zero). With 0, the search is exact.
+     * @return An approximate nearest neighbor of p, or null if there is none.
+     * @throws RuntimeException If epsilon&lt;0.
+     * @see #kNearestNeighbors(int, KDPoint, double, int)
+     */
+    default KDPoint nearestNeighbor(KDPoint p, double epsilon){
+        return nearestNeighbor(p, epsilon, UNLIMITED_VISITS);
+    }
+
+    /**
+     * Like {@link #nearestNeighbor(KDPoint, double)}, but gives up after maxLeafVisits leaves and returns the best
+     * neighbor seen so far.
+     * @param p The query {@link KDPoint}.
+     * @param epsilon The relative error allowed, at least 0 (zero).
+     * @param maxLeafVisits The largest number of leaves to visit, at least 1, or {@link #UNLIMITED_VISITS}.
+     * @return An approximate nearest neighbor of p, or null if there is none.
+     * @throws RuntimeException If epsilon&lt;0 or maxLeafVisits&lt;1.
+     * @see #kNearestNeighbors(int, KDPoint, double, int)
+     */
+    default KDPoint nearestNeighbor(KDPoint p, double epsilon, int maxLeafVisits){
+        BoundedPriorityQueue<KDPoint> queue = kNearestNeighbors(1, p, epsilon, maxLeafVisits);
+        return queue.isEmpty() ? null : queue.first();
+    }
+
+    /**
+     * Performs a (1+epsilon)-approximate k-nearest neighbors query: the i-th neighbor returned is at most 1+epsilon
+     * times farther from p than the true i-th nearest neighbor.
+     * @param k A positive integer denoting the amount of neighbors to return.
+     * @param p The query point.
+     * @param epsilon The relative error allowed, at least 0 (zero). With 0, the search is exact.
+     * @return A {@link BoundedPriorityQueue} with at most k approximate nearest neighbors of p.
+     * @throws RuntimeException If k&lt;=0 or epsilon&lt;0.
+     * @see #kNearestNeighbors(int, KDPoint, double, int)
+     */
+    default BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p, double epsilon){
+        return kNearestNeighbors(k, p, epsilon, UNLIMITED_VISITS);
+    }
+
+    /**
+     * Performs an approximate k-nearest neighbors query that tightens its pruning bound by a factor of 1+epsilon and
+     * stops after maxLeafVisits leaves, even if closer ones remain. The default ignores both and runs the exact
+     * {@link #kNearestNeighbors(int, KDPoint)}, which is always within the error bound; trees that can trade accuracy
+     * for speed should override it.
+     * @param k A positive integer denoting the amount of neighbors to return.
+     * @param p The query point.
+     * @param epsilon The relative error allowed, at least 0 (zero).
+     * @param maxLeafVisits The largest number of leaves to visit, at least 1, or {@link #UNLIMITED_VISITS}.
+     * @return A {@link BoundedPriorityQueue} with at most k approximate nearest neighbors of p.
+     * @throws RuntimeException If k&lt;=0, epsilon&lt;0 or maxLeafVisits&lt;1.
+     */
+    default BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p, double epsilon, int maxLeafVisits){
+        if(!(epsilon >= 0))
+            throw new RuntimeException("The value of epsilon provided, " + epsilon + ", is invalid: Please provide a non-negative number.");
+        if(maxLeafVisits < 1)
+            throw new RuntimeException("The leaf visit limit provided, " + maxLeafVisits + ", is invalid: Please provide a positive integer.");
+        return kNearestNeighbors(k, p);
+    }
 }
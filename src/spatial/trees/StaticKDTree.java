@@ -0,0 +1,174 @@
+package spatial.trees;
+
+import spatial.kdpoint.KDPoint;
+import spatial.knnutils.BoundedPriorityQueue;
+import spatial.metrics.DistanceMetric;
+import spatial.metrics.EuclideanMetric;
+import spatial.nodes.StaticKDTreeLayout;
+
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * <p>{@link StaticKDTree} is a <b>frozen</b> <em>K</em>-D Tree for read-only workloads. It is built once, from an
+ * existing {@link KDTree} or from a set of {@link KDPoint}s, and answers the same range and nearest neighbor queries,
+ * but it supports no insertions or deletions. In exchange, it is perfectly balanced and stored <em>implicitly</em>: the
+ * coordinates of all the points live in one flat {@code int[]} in breadth-first order, and children are found by index
+ * arithmetic instead of references. This removes every node object and pointer of the linked representation, so it
+ * takes a fraction of the memory of a {@link KDTree}, and queries walk through contiguous memory.</p>
+ *
+ * <p>Like {@link KDTree}, the tree only performs some elementary sanity checks and defers all the work to a
+ * {@link StaticKDTreeLayout}. The {@link KDPoint}s returned by queries are fresh
+ * {@link spatial.kdpoint.ImmutableKDPoint}s.</p>
+ *
+ * @author ---- BRANDON RUBIO -----
+ *
+ * @see KDTree
+ * @see StaticKDTreeLayout
+ * @see SpatialQuerySolver
+ */
+public class StaticKDTree implements SpatialQuerySolver {
+
+	/**
+	 * The implicit layout holding every point of the tree.
+	 * @see StaticKDTreeLayout
+	 */
+	private StaticKDTreeLayout layout;
+
+	/**
+	 * The dimensionality of the space considered.
+	 */
+	private int dims;
+
+	/**
+	 * The {@link DistanceMetric} that range and nearest neighbor queries measure distances with.
+	 */
+	private DistanceMetric metric;
+
+	/**
+	 * Freezes the contents of a {@link KDTree}. The new tree has the dimensionality and the {@link DistanceMetric} of
+	 * the original, and is unaffected by any later changes to it.
+	 * @param tree The {@link KDTree} to freeze.
+	 */
+	public StaticKDTree(KDTree tree){
+		this(tree.getDims(), tree.points(), tree.getMetric());
+	}
+
+	/**
+	 * Builds a frozen tree over the provided {@link KDPoint}s, with Euclidean distances.
+	 * @param k The dimensionality of this.
+	 * @param points The {@link KDPoint}s to store. Duplicates are stored.
+	 * @throws RuntimeException if k&lt;=0, or some point is not k-dimensional.
+	 */
+	public StaticKDTree(int k, Collection<? extends KDPoint> points){
+		this(k, points, EuclideanMetric.INSTANCE);
+	}
+
+	/**
+	 * Builds a frozen tree over the provided {@link KDPoint}s.
+	 * @param k The dimensionality of this.
+	 * @param points The {@link KDPoint}s to store. Duplicates are stored.
+	 * @param metric The {@link DistanceMetric} that this measures distances with.
+	 * @throws RuntimeException if k&lt;=0, metric is null or does not support k dimensions, or some point is not
+	 * k-dimensional.
+	 */
+	public StaticKDTree(int k, Collection<? extends KDPoint> points, DistanceMetric metric){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		if(metric == null)
+			throw new RuntimeException("Please provide a non-null DistanceMetric.");
+		if(!metric.supportsDims(k))
+			throw new RuntimeException("The DistanceMetric provided, " + metric + ", cannot measure " + k + "-dimensional " +
+					"points: Please provide a DistanceMetric for " + k + " dimensions.");
+		KDPoint[] scratch = points.toArray(new KDPoint[0]);
+		for(KDPoint p : scratch)
+			if(p.coords.length != k)
+				throw new RuntimeException("Cannot store the " + p.coords.length + "-dimensional KDPoint " + p +
+						" in a " + k + "-D Tree.");
+		dims = k;
+		this.metric = metric;
+		layout = new StaticKDTreeLayout(scratch, k, metric);
+	}
+
+	@Override
+	public Collection<KDPoint> range(KDPoint p, double range){
+		LinkedList<KDPoint> pts = new LinkedList<>();
+		layout.range(p, pts, range);
+		return pts;
+	}
+
+	@Override
+	public KDPoint nearestNeighbor(KDPoint p){
+		return layout.nearestNeighbor(p);
+	}
+
+	@Override
+	public BoundedPriorityQueue<KDPoint> kNearestNeighbors(int k, KDPoint p){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
+		layout.kNearestNeighbors(k, p, queue);
+		return queue; // Might be empty; that's not a problem.
+	}
+
+	/**
+	 * Executes a k-nearest neighbors query bounded by a radius: up to k neighbors of p, but none farther than
+	 * maxRadius, like {@link KDTree#kNearestNeighborsWithin(int, KDPoint, double)} does.
+	 * @param k The maximum number of neighbors to retrieve.
+	 * @param p The query {@link KDPoint}.
+	 * @param maxRadius The maximum distance from p, <b>INCLUSIVE</b>.
+	 * @return A {@link BoundedPriorityQueue} with at most k nearest neighbors of p, all within maxRadius of it.
+	 * @throws RuntimeException if k&lt;=0 or maxRadius&lt;0.
+	 * @see StaticKDTreeLayout#kNearestNeighborsWithin(int, KDPoint, BoundedPriorityQueue, double)
+	 */
+	@Override
+	public BoundedPriorityQueue<KDPoint> kNearestNeighborsWithin(int k, KDPoint p, double maxRadius){
+		if(k <= 0)
+			throw new RuntimeException("The value of k provided, " + k + ", is invalid: Please provide a positive integer.");
+		if(!(maxRadius >= 0))
+			throw new RuntimeException("The radius provided, " + maxRadius + ", is invalid: Please provide a non-negative number.");
+		BoundedPriorityQueue<KDPoint> queue = new BoundedPriorityQueue<>(k);
+		layout.kNearestNeighborsWithin(k, p, queue, maxRadius);
+		return queue; // Might be empty; that's not a problem.
+	}
+
+	/**
+	 * Returns the height of the tree, which is always floor(log<sub>2</sub> n) for n points.
+	 * @return The height of the tree, or -1 if it is empty.
+	 */
+	public int height(){
+		return layout.height();
+	}
+
+	/**
+	 * Returns the number of {@link KDPoint}s held by the tree.
+	 * @return The number of {@link KDPoint}s held by the tree.
+	 */
+	public int count(){
+		return layout.size();
+	}
+
+	/**
+	 * Returns whether the tree holds no {@link KDPoint}s.
+	 * @return true iff the tree is empty.
+	 */
+	public boolean isEmpty(){
+		return count() == 0;
+	}
+
+	/**
+	 * Returns the dimensionality of the space considered by this.
+	 * @return The dimensionality of the space considered by this.
+	 */
+	public int getDims(){
+		return dims;
+	}
+
+	/**
+	 * Returns the {@link DistanceMetric} that this measures distances with.
+	 * @return The {@link DistanceMetric} of this.
+	 */
+	public DistanceMetric getMetric(){
+		return metric;
+	}
+}